@@ -33,6 +33,7 @@ import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.volatiles.VolatileARGBType;
 import net.imglib2.util.Pair;
 import net.imglib2.util.Util;
+import tpietzsch.multires.SourceStacks;
 
 /**
  * all show methods return a {@link Bvv} which can be used to add more stuff to the same window
@@ -135,6 +136,10 @@ public class BvvFunctions
 		WrapBasicImgLoader.wrapImgLoaderIfNecessary( spimData );
 		final ArrayList< SourceAndConverter< ? > > sources = new ArrayList<>();
 		BigDataViewer.initSetups( spimData, new ArrayList<>(), sources );
+		// the XML file is unknown here, so only HDF5 datasets are identified (by their HDF5 file)
+		final String datasetId = SourceStacks.datasetId( null, spimData );
+		if ( datasetId != null )
+			SourceStacks.setPersistentIds( datasetId, spimData, sources );
 
 		final List< BvvStackSource< ? > > bvvSources = new ArrayList<>();
 		for ( final SourceAndConverter< ? > source : sources )
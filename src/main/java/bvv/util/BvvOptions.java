@@ -35,6 +35,12 @@ import bdv.util.BdvSource;
 import bdv.viewer.ViewerPanel;
 import net.imglib2.realtransform.AffineTransform3D;
 import org.scijava.ui.behaviour.io.InputTriggerConfig;
+import tpietzsch.cache.PartialUploadPolicy;
+import tpietzsch.cache.TextureCache;
+import tpietzsch.cache.TileEvictionPolicy;
+import tpietzsch.example2.GpuCacheManager;
+import tpietzsch.example2.VolumeBlocks;
+import tpietzsch.example2.VolumeRenderer;
 import tpietzsch.example2.VolumeViewerOptions;
 
 /**
@@ -169,6 +175,8 @@ public class BvvOptions
 	/**
 	 * Sets the max memory to use for the GPU cache texture in MB.
 	 * The size of the GPU cache texture will match this as close as possible with the given tile size.
+	 * Caches larger than {@link TextureCache#MAX_PAGE_SIZE_IN_MB} are split into several textures (pages).
+	 * The cache size is capped at {@link TextureCache#MAX_NUM_PAGES} pages (64 GB).
 	 *
 	 * @param s
 	 * 		the GPU cache size in MB.
@@ -180,6 +188,207 @@ public class BvvOptions
 		return this;
 	}
 
+	/**
+	 * Sets the max memory to use for PBOs staging tile uploads to the GPU
+	 * cache texture in MB. Number and size of PBOs are adapted to measured
+	 * fill and upload throughput within this limit.
+	 *
+	 * @param s
+	 * 		the staging memory size in MB.
+	 * @return this instance.
+	 */
+	public BvvOptions maxStagingSizeInMB( final int s )
+	{
+		values.maxStagingSizeInMB = s;
+		return this;
+	}
+
+	/**
+	 * Sets the max memory to use for the host-side cache of padded tiles in
+	 * MB. Tiles that were evicted from the GPU cache texture can be
+	 * re-uploaded from this cache without copying them from the source image
+	 * again. Set to {@code 0} to disable the host-side cache.
+	 *
+	 * @param s
+	 * 		the host-side tile cache size in MB.
+	 * @return this instance.
+	 */
+	public BvvOptions maxHostCacheSizeInMB( final int s )
+	{
+		values.maxHostCacheSizeInMB = s;
+		return this;
+	}
+
+	/**
+	 * Sets the directory of the on-disk tile store. Padded tiles of sources
+	 * with a persistent id are kept there across sessions, so that a reopened
+	 * dataset can be rendered without loading them again. Set to {@code null}
+	 * to disable the tile store.
+	 *
+	 * @param dir
+	 * 		the tile store directory.
+	 * @return this instance.
+	 */
+	public BvvOptions tileStoreDirectory( final String dir )
+	{
+		values.tileStoreDirectory = dir;
+		return this;
+	}
+
+	/**
+	 * Sets the max size of the on-disk tile store in MB.
+	 *
+	 * @param s
+	 * 		the tile store size in MB.
+	 * @return this instance.
+	 */
+	public BvvOptions maxTileStoreSizeInMB( final int s )
+	{
+		values.maxTileStoreSizeInMB = s;
+		return this;
+	}
+
+	/**
+	 * Sets the policy that decides which tiles of the GPU cache are replaced
+	 * first when new blocks need to be uploaded.
+	 *
+	 * @param p
+	 * 		the eviction policy.
+	 * @return this instance.
+	 */
+	public BvvOptions evictionPolicy( final TileEvictionPolicy.Type p )
+	{
+		values.evictionPolicy = p;
+		return this;
+	}
+
+	/**
+	 * Sets the fraction of the GPU cache that is reserved for pinned tiles.
+	 * The coarsest resolution level of each visible source is pinned, so that
+	 * there is always something to show. Set to {@code 0} to disable pinning.
+	 *
+	 * @param f
+	 * 		the pinned fraction of the GPU cache.
+	 * @return this instance.
+	 */
+	public BvvOptions pinnedCacheFraction( final double f )
+	{
+		values.pinnedCacheFraction = f;
+		return this;
+	}
+
+	/**
+	 * Sets whether blocks that are identical to a block already in the GPU
+	 * cache (e.g. background in time-lapse data) are recognized by a content
+	 * hash, and mapped to the existing tile instead of uploading them.
+	 *
+	 * @param b
+	 * 		whether to deduplicate blocks by content hash.
+	 * @return this instance.
+	 */
+	public BvvOptions contentHashDedup( final boolean b )
+	{
+		values.contentHashDedup = b;
+		return this;
+	}
+
+	/**
+	 * Sets a {@link GpuCacheManager} to share the GPU cache with other
+	 * viewers. Tiles loaded for one viewer are then immediately available to
+	 * the others. If set, the cache settings of this {@code BvvOptions}
+	 * (cache size, staging size, etc.) are ignored. If {@code null}, the viewer
+	 * uses its own cache.
+	 *
+	 * @param m
+	 * 		the shared cache manager.
+	 * @return this instance.
+	 */
+	public BvvOptions cacheManager( final GpuCacheManager m )
+	{
+		values.cacheManager = m;
+		return this;
+	}
+
+	/**
+	 * Sets whether blocks that can only be loaded partially (while data is
+	 * loading) are uploaded to the GPU cache: only complete blocks, always,
+	 * or adaptively within an upload budget per frame (see
+	 * {@link #partialUploadBudgetInMB(int)}).
+	 *
+	 * @param p
+	 * 		the partial upload policy.
+	 * @return this instance.
+	 */
+	public BvvOptions partialUploadPolicy( final PartialUploadPolicy.Type p )
+	{
+		values.partialUploadPolicy = p;
+		return this;
+	}
+
+	/**
+	 * Sets the upload budget per frame in MB for the
+	 * {@link PartialUploadPolicy.Type#ADAPTIVE ADAPTIVE} partial upload
+	 * policy. Partial blocks are only uploaded while the measured upload
+	 * volume per frame is below this budget.
+	 *
+	 * @param s
+	 * 		the upload budget per frame in MB.
+	 * @return this instance.
+	 */
+	public BvvOptions partialUploadBudgetInMB( final int s )
+	{
+		values.partialUploadBudgetInMB = s;
+		return this;
+	}
+
+	/**
+	 * Sets the margin (in resolution levels) by which the ideal level of a
+	 * block must move past a level boundary before the block switches level.
+	 * This avoids blocks flipping between levels (and being uploaded again)
+	 * during slow camera motion. Set to {@code 0} to disable hysteresis.
+	 *
+	 * @param m
+	 * 		the margin in levels.
+	 * @return this instance.
+	 */
+	public BvvOptions levelHysteresis( final double m )
+	{
+		values.levelHysteresis = m;
+		return this;
+	}
+
+	/**
+	 * Sets whether unsigned short sources are converted to 8 bits while
+	 * copying blocks to the GPU cache. Values are quantized within a window
+	 * around the display range of the source. This halves GPU memory and
+	 * upload bandwidth per block. Blocks are quantized again when the display
+	 * range changes a lot.
+	 *
+	 * @param b
+	 * 		whether to quantize unsigned short sources.
+	 * @return this instance.
+	 */
+	public BvvOptions quantizeToByte( final boolean b )
+	{
+		values.quantizeToByte = b;
+		return this;
+	}
+
+	/**
+	 * Sets how many frames ahead camera motion is extrapolated for
+	 * prefetching blocks into spare cache capacity. Set to {@code 0} to
+	 * disable prefetching.
+	 *
+	 * @param n
+	 * 		the number of frames to look ahead.
+	 * @return this instance.
+	 */
+	public BvvOptions prefetchFrames( final int n )
+	{
+		values.prefetchFrames = n;
+		return this;
+	}
+
 	/**
 	 * Sets the distance from the camera to the z=0 plane. In units of screen pixel width.
 	 *
@@ -344,6 +553,19 @@ public class BvvOptions
 		private int numDitherSamples = 8;
 		private final int[] cacheBlockSize = new int[] { 32, 32, 32 };
 		private int maxCacheSizeInMB = 300;
+		private int maxStagingSizeInMB = 64;
+		private int maxHostCacheSizeInMB = 256;
+		private String tileStoreDirectory = null;
+		private int maxTileStoreSizeInMB = 1024;
+		private TileEvictionPolicy.Type evictionPolicy = TileEvictionPolicy.Type.LRU;
+		private double pinnedCacheFraction = TextureCache.DEFAULT_MAX_PINNED_FRACTION;
+		private boolean contentHashDedup = false;
+		private GpuCacheManager cacheManager = null;
+		private int prefetchFrames = VolumeRenderer.DEFAULT_PREFETCH_FRAMES;
+		private PartialUploadPolicy.Type partialUploadPolicy = PartialUploadPolicy.Type.COMPLETE;
+		private int partialUploadBudgetInMB = 16;
+		private double levelHysteresis = VolumeBlocks.DEFAULT_LEVEL_HYSTERESIS;
+		private boolean quantizeToByte = false;
 		private double dCam = 2000;
 		private double dClipNear = 1000;
 		private double dClipFar = 1000;
@@ -371,6 +593,19 @@ public class BvvOptions
 					.ditherWidth( ditherWidth )
 					.numDitherSamples( numDitherSamples )
 					.maxCacheSizeInMB( maxCacheSizeInMB )
+					.maxStagingSizeInMB( maxStagingSizeInMB )
+					.maxHostCacheSizeInMB( maxHostCacheSizeInMB )
+					.tileStoreDirectory( tileStoreDirectory )
+					.maxTileStoreSizeInMB( maxTileStoreSizeInMB )
+					.evictionPolicy( evictionPolicy )
+					.pinnedCacheFraction( pinnedCacheFraction )
+					.contentHashDedup( contentHashDedup )
+					.cacheManager( cacheManager )
+					.prefetchFrames( prefetchFrames )
+					.partialUploadPolicy( partialUploadPolicy )
+					.partialUploadBudgetInMB( partialUploadBudgetInMB )
+					.levelHysteresis( levelHysteresis )
+					.quantizeToByte( quantizeToByte )
 					.dCam( dCam )
 					.dClipFar( dClipFar )
 					.dClipNear( dClipNear )
@@ -393,6 +628,19 @@ public class BvvOptions
 					.ditherWidth( ditherWidth )
 					.numDitherSamples( numDitherSamples )
 					.maxCacheSizeInMB( maxCacheSizeInMB )
+					.maxStagingSizeInMB( maxStagingSizeInMB )
+					.maxHostCacheSizeInMB( maxHostCacheSizeInMB )
+					.tileStoreDirectory( tileStoreDirectory )
+					.maxTileStoreSizeInMB( maxTileStoreSizeInMB )
+					.evictionPolicy( evictionPolicy )
+					.pinnedCacheFraction( pinnedCacheFraction )
+					.contentHashDedup( contentHashDedup )
+					.cacheManager( cacheManager )
+					.prefetchFrames( prefetchFrames )
+					.partialUploadPolicy( partialUploadPolicy )
+					.partialUploadBudgetInMB( partialUploadBudgetInMB )
+					.levelHysteresis( levelHysteresis )
+					.quantizeToByte( quantizeToByte )
 					.dCam( dCam )
 					.dClipFar( dClipFar )
 					.dClipNear( dClipNear )
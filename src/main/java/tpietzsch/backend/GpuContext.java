@@ -50,14 +50,36 @@ public interface GpuContext
 	// previous staging buffer binding is restored when done
 	void unmap( StagingBuffer stagingBuffer );
 
+	// delete a staging buffer (if it has already been allocated)
+	void delete( StagingBuffer stagingBuffer );
+
 	// delete a texture (if it has already been allocated)
 	// used to redefine a texture that has changed size
 	void delete( Texture texture );
 
+	// redefine a texture that has changed size, and copy regions of the
+	// previous texture to the new one. regions contains (srcx, srcy, srcz,
+	// dstx, dsty, dstz) for each region of size width x height x depth.
+	// returns false if copying is not supported (the texture is redefined
+	// without copying in that case)
+	boolean resize( Texture3D texture, int width, int height, int depth, int[] regions );
+
 	// upload texture block from staging buffer
 	// previous staging buffer binding is restored when done
 	void texSubImage3D( StagingBuffer stagingBuffer, Texture3D texture, int xoffset, int yoffset, int zoffset, int width, int height, int depth, long pixels_buffer_offset );
 
 	// upload texture block from Buffer
 	void texSubImage3D( Texture3D texture, int xoffset, int yoffset, int zoffset, int width, int height, int depth, Buffer pixels );
+
+	// insert a fence after all previously issued commands and flush, so that
+	// other contexts sharing objects with this one can wait for it.
+	// returns a handle to the fence
+	Object fenceSync();
+
+	// make commands issued after this call wait until the given fence
+	// (created by fenceSync() in this or a sharing context) is signaled
+	void waitSync( Object fence );
+
+	// delete a fence created by fenceSync()
+	void deleteSync( Object fence );
 }
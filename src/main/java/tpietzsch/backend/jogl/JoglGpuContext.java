@@ -1,10 +1,12 @@
 package tpietzsch.backend.jogl;
 
 import com.jogamp.opengl.GL3;
+import com.jogamp.opengl.GLContext;
 import com.jogamp.opengl.util.glsl.ShaderCode;
 import com.jogamp.opengl.util.glsl.ShaderProgram;
 import java.nio.Buffer;
 import java.nio.ByteBuffer;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.WeakHashMap;
@@ -17,8 +19,10 @@ import tpietzsch.shadergen.Shader;
 
 import static com.jogamp.opengl.GL.GL_ACTIVE_TEXTURE;
 import static com.jogamp.opengl.GL.GL_CLAMP_TO_EDGE;
+import static com.jogamp.opengl.GL.GL_FLOAT;
 import static com.jogamp.opengl.GL.GL_LINEAR;
 import static com.jogamp.opengl.GL.GL_NEAREST;
+import static com.jogamp.opengl.GL.GL_R32F;
 import static com.jogamp.opengl.GL.GL_R8;
 import static com.jogamp.opengl.GL.GL_REPEAT;
 import static com.jogamp.opengl.GL.GL_RGBA;
@@ -46,9 +50,11 @@ import static com.jogamp.opengl.GL2ES3.GL_PIXEL_UNPACK_BUFFER;
 import static com.jogamp.opengl.GL2ES3.GL_PIXEL_UNPACK_BUFFER_BINDING;
 import static com.jogamp.opengl.GL2ES3.GL_RGBA8UI;
 import static com.jogamp.opengl.GL2ES3.GL_RGBA_INTEGER;
+import static com.jogamp.opengl.GL2ES3.GL_TIMEOUT_IGNORED;
 import static com.jogamp.opengl.GL2GL3.GL_R16;
 import static com.jogamp.opengl.GL2GL3.GL_TEXTURE_1D;
 import static com.jogamp.opengl.GL2GL3.GL_TEXTURE_BINDING_1D;
+import static com.jogamp.opengl.GL3ES3.GL_SYNC_GPU_COMMANDS_COMPLETE;
 import static tpietzsch.backend.Texture.Wrap.CLAMP_TO_BORDER_ZERO;
 
 public class JoglGpuContext implements GpuContext
@@ -173,6 +179,14 @@ public class JoglGpuContext implements GpuContext
 			gl.glBindBuffer( GL_PIXEL_UNPACK_BUFFER, restoreId );
 	}
 
+	@Override
+	public void delete( final StagingBuffer stagingBuffer )
+	{
+		final Integer pboId = pbos.remove( stagingBuffer );
+		if ( pboId != null )
+			gl.glDeleteBuffers( 1, new int[] { pboId }, 0 );
+	}
+
 	@Override
 	public void delete( final Texture texture )
 	{
@@ -181,6 +195,25 @@ public class JoglGpuContext implements GpuContext
 			gl.glDeleteTextures( 1, new int[] { texId.id }, 0 );
 	}
 
+	@Override
+	public boolean resize( final Texture3D texture, final int width, final int height, final int depth, final int[] regions )
+	{
+		final TexId oldTexId = textures.remove( texture );
+		if ( oldTexId == null )
+			return true;
+
+		final TexId texId = getTextureId( texture );
+		final boolean copy = gl.isFunctionAvailable( "glCopyImageSubData" );
+		if ( copy )
+			for ( int i = 0; i < regions.length; i += 6 )
+				gl.glCopyImageSubData(
+						oldTexId.id, GL_TEXTURE_3D, 0, regions[ i ], regions[ i + 1 ], regions[ i + 2 ],
+						texId.id, GL_TEXTURE_3D, 0, regions[ i + 3 ], regions[ i + 4 ], regions[ i + 5 ],
+						width, height, depth );
+		gl.glDeleteTextures( 1, new int[] { oldTexId.id }, 0 );
+		return copy;
+	}
+
 	@Override
 	public void texSubImage3D( final StagingBuffer stagingBuffer, final Texture3D texture, final int xoffset, final int yoffset, final int zoffset, final int width, final int height, final int depth, final long pixels_buffer_offset )
 	{
@@ -227,9 +260,33 @@ public class JoglGpuContext implements GpuContext
 			gl.glBindTexture( GL_TEXTURE_3D, restoreTextureId );
 	}
 
+	@Override
+	public Object fenceSync()
+	{
+		final long sync = gl.glFenceSync( GL_SYNC_GPU_COMMANDS_COMPLETE, 0 );
+		// the fence must reach the GPU before other contexts can wait for it
+		gl.glFlush();
+		return sync;
+	}
+
+	@Override
+	public void waitSync( final Object fence )
+	{
+		gl.glWaitSync( ( Long ) fence, 0, GL_TIMEOUT_IGNORED );
+	}
+
+	@Override
+	public void deleteSync( final Object fence )
+	{
+		gl.glDeleteSync( ( Long ) fence );
+	}
+
 	public static JoglGpuContext get( final GL3 gl )
 	{
-		return contexts.computeIfAbsent( gl, JoglGpuContext::new );
+		synchronized ( contexts )
+		{
+			return contexts.computeIfAbsent( gl, JoglGpuContext::new );
+		}
 	}
 
 	/*
@@ -257,17 +314,43 @@ public class JoglGpuContext implements GpuContext
 
 	private static Map< GL3, JoglGpuContext > contexts = new HashMap<>();
 
+	/**
+	 * Buffer and texture names, by share group (identified by the shared
+	 * master context). Contexts in the same share group use the same GL objects
+	 * for a {@code StagingBuffer} or {@code Texture}.
+	 */
+	private static Map< GLContext, SharedObjects > shareGroups = new WeakHashMap<>();
+
+	private static class SharedObjects
+	{
+		final Map< StagingBuffer, Integer > pbos = Collections.synchronizedMap( new WeakHashMap<>() );
+
+		final Map< Texture, TexId > textures = Collections.synchronizedMap( new WeakHashMap<>() );
+	}
+
 	private final GL3 gl;
 
 	private final Map< Shader, ShaderProgram > shaders = new WeakHashMap<>();
 
-	private final Map< StagingBuffer, Integer > pbos = new WeakHashMap<>();
+	private final Map< StagingBuffer, Integer > pbos;
 
-	private final Map< Texture, TexId > textures = new WeakHashMap<>();
+	private final Map< Texture, TexId > textures;
 
 	private JoglGpuContext( final GL3 gl )
 	{
 		this.gl = gl;
+		final SharedObjects shared = getSharedObjects( gl.getContext() );
+		pbos = shared.pbos;
+		textures = shared.textures;
+	}
+
+	private static SharedObjects getSharedObjects( final GLContext context )
+	{
+		synchronized ( shareGroups )
+		{
+			final GLContext master = context.getSharedMaster();
+			return shareGroups.computeIfAbsent( master != null ? master : context, c -> new SharedObjects() );
+		}
 	}
 
 	private ShaderProgram getShaderProgram( final Shader shader )
@@ -414,6 +497,8 @@ public class JoglGpuContext implements GpuContext
 			return GL_R8;
 		case R16:
 			return GL_R16;
+		case R32F:
+			return GL_R32F;
 		case RGBA8:
 			return GL_RGBA8;
 		case RGBA8UI:
@@ -431,6 +516,8 @@ public class JoglGpuContext implements GpuContext
 			return GL_RED;
 		case R16:
 			return GL_RED;
+		case R32F:
+			return GL_RED;
 		case RGBA8:
 			return GL_RGBA;
 		case RGBA8UI:
@@ -448,6 +535,8 @@ public class JoglGpuContext implements GpuContext
 			return GL_UNSIGNED_BYTE;
 		case R16:
 			return GL_UNSIGNED_SHORT;
+		case R32F:
+			return GL_FLOAT;
 		case RGBA8:
 			return GL_UNSIGNED_BYTE;
 		case RGBA8UI:
@@ -0,0 +1,363 @@
+package tpietzsch.blockmath;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import tpietzsch.util.LongObjectMap;
+
+/**
+ * Chooses resolution levels for the required blocks of several sources, such
+ * that the number of distinct tiles fits into the capacity of the texture
+ * cache.
+ * <p>
+ * Initially, every block is assigned the coarsest level of its source. Blocks
+ * that map to the same tile at a level form a node. Refining a node (moving
+ * its blocks one level finer, where that is not finer than their best level)
+ * costs the number of additional tiles, and benefits the (weighted) number of
+ * refined blocks. Refinements are applied greedily in order of benefit per
+ * tile cost, from one priority queue per source, until the capacity is
+ * exhausted. The required blocks are computed once; refining only regroups
+ * the blocks of the refined node.
+ * <p>
+ * Every source is guaranteed a minimum share of the capacity: While a source
+ * uses less than {@code minShareFraction * capacity / numSources} tiles, its
+ * refinements take precedence over those of other sources. The same share is
+ * applied by {@link #select} if the coarsest levels alone do not fit.
+ * <p>
+ * {@link Source#isFree Free} tiles (e.g., pinned tiles) are not counted.
+ */
+public class BlockBudgetAllocator
+{
+	/**
+	 * The required blocks of one source.
+	 */
+	public interface Source
+	{
+		int numBlocks();
+
+		/**
+		 * @return the coarsest resolution level.
+		 */
+		int maxLevel();
+
+		/**
+		 * @return the finest useful resolution level of {@code block}.
+		 */
+		int bestLevel( int block );
+
+		/**
+		 * @return a key identifying the tile containing {@code block} at
+		 *         resolution {@code level}. Must be non-negative.
+		 */
+		long tileKey( int block, int level );
+
+		/**
+		 * @return how much refining {@code block} is worth, relative to other
+		 *         blocks (e.g., larger for near and central blocks).
+		 */
+		double weight( int block );
+
+		/**
+		 * Set the allocated resolution level of {@code block}.
+		 */
+		void setLevel( int block, int level );
+
+		/**
+		 * @return whether the tile containing {@code block} at resolution
+		 *         {@code level} is present and does not count against the
+		 *         capacity (e.g., because it is pinned). Such tiles cost
+		 *         nothing.
+		 */
+		default boolean isFree( final int block, final int level )
+		{
+			return false;
+		}
+	}
+
+	/**
+	 * Default fraction of the capacity that is split evenly between sources
+	 * as their minimum share.
+	 */
+	public static final double DEFAULT_MIN_SHARE_FRACTION = 0.5;
+
+	private final double minShareFraction;
+
+	private final LongObjectMap< Node > groups = new LongObjectMap<>();
+
+	public BlockBudgetAllocator()
+	{
+		this( DEFAULT_MIN_SHARE_FRACTION );
+	}
+
+	/**
+	 * @param minShareFraction
+	 * 		fraction of the capacity that is split evenly between sources
+	 * 		as their minimum share.
+	 */
+	public BlockBudgetAllocator( final double minShareFraction )
+	{
+		this.minShareFraction = minShareFraction;
+	}
+
+	/**
+	 * Allocate resolution levels for the blocks of {@code sources} and
+	 * {@link Source#setLevel(int, int) set} them. Every block is allocated a
+	 * level between its best level and the coarsest level.
+	 *
+	 * @param capacity
+	 * 		max number of tiles.
+	 * @return the number of tiles required for the allocated levels. This is
+	 *         larger than {@code capacity} only if the coarsest levels alone
+	 *         do not fit.
+	 */
+	public int allocate( final List< ? extends Source > sources, final int capacity )
+	{
+		final int numSources = sources.size();
+		final List< PriorityQueue< Node > > queues = new ArrayList<>( numSources );
+		final int[] used = new int[ numSources ];
+		int numVisible = 0;
+		int total = 0;
+		for ( int s = 0; s < numSources; ++s )
+		{
+			final Source source = sources.get( s );
+			final PriorityQueue< Node > queue = new PriorityQueue<>( Node.BEST_FIRST );
+			queues.add( queue );
+			final int n = source.numBlocks();
+			if ( n == 0 )
+				continue;
+			++numVisible;
+			final int maxLevel = source.maxLevel();
+			final int[] blocks = new int[ n ];
+			for ( int i = 0; i < n; ++i )
+			{
+				blocks[ i ] = i;
+				source.setLevel( i, maxLevel );
+			}
+			final List< Node > roots = group( s, source, maxLevel, blocks, n );
+			for ( final Node root : roots )
+			{
+				offer( queue, root, source );
+				if ( !root.free )
+					++used[ s ];
+			}
+			total += used[ s ];
+		}
+		if ( numVisible == 0 )
+			return 0;
+
+		final int minShare = ( int ) ( minShareFraction * capacity / numVisible );
+		while ( true )
+		{
+			// best refinement, preferring sources below their minimum share
+			int best = -1;
+			boolean bestBelowShare = false;
+			for ( int s = 0; s < numSources; ++s )
+			{
+				final Node head = queues.get( s ).peek();
+				if ( head == null )
+					continue;
+				final boolean belowShare = used[ s ] < minShare;
+				if ( best < 0
+						|| ( belowShare && !bestBelowShare )
+						|| ( belowShare == bestBelowShare && Node.BEST_FIRST.compare( head, queues.get( best ).peek() ) < 0 ) )
+				{
+					best = s;
+					bestBelowShare = belowShare;
+				}
+			}
+			if ( best < 0 )
+				break;
+
+			final Node node = queues.get( best ).poll();
+			if ( total + node.cost > capacity )
+				continue; // does not fit, but cheaper refinements might
+
+			total += node.cost;
+			used[ best ] += node.cost;
+			final Source source = sources.get( best );
+			for ( final Node child : node.children )
+			{
+				for ( int i = 0; i < child.size; ++i )
+					source.setLevel( child.blocks[ i ], child.level );
+				offer( queues.get( best ), child, source );
+			}
+		}
+		return total;
+	}
+
+	/**
+	 * Select the fill tasks to process if the tasks of all sources do not fit
+	 * into {@code capacity} (i.e., if the coarsest levels alone do not fit).
+	 * Every source gets its minimum share of the capacity (minus the tiles it
+	 * already {@code uses}), filled with its first tasks in {@code order}.
+	 * The rest of the capacity is filled with the remaining tasks of all
+	 * sources in {@code order}.
+	 *
+	 * @param tasks
+	 * 		tasks of each source. (Lists are sorted in place.)
+	 * @param uses
+	 * 		number of tiles that each source already occupies, which count
+	 * 		against {@code capacity} and its share.
+	 * @param order
+	 * 		most important tasks first.
+	 * @param capacity
+	 * 		max number of tiles.
+	 * @return the selected tasks, at most {@code capacity - sum(uses)}.
+	 */
+	public < T > List< T > select( final List< ? extends List< T > > tasks, final int[] uses, final Comparator< ? super T > order, final int capacity )
+	{
+		final int numSources = tasks.size();
+		int numVisible = 0;
+		int numTasks = 0;
+		int free = capacity;
+		for ( int s = 0; s < numSources; ++s )
+		{
+			if ( uses[ s ] > 0 || !tasks.get( s ).isEmpty() )
+				++numVisible;
+			numTasks += tasks.get( s ).size();
+			free -= uses[ s ];
+		}
+		free = Math.max( 0, free );
+
+		final List< T > selected = new ArrayList<>( Math.min( numTasks, free ) );
+		if ( numTasks <= free )
+		{
+			for ( final List< T > list : tasks )
+				selected.addAll( list );
+			return selected;
+		}
+
+		final int minShare = numVisible == 0 ? 0 : ( int ) ( minShareFraction * capacity / numVisible );
+		final List< T > remaining = new ArrayList<>();
+		for ( int s = 0; s < numSources; ++s )
+		{
+			final List< T > list = tasks.get( s );
+			list.sort( order );
+			final int n = Math.min( list.size(), Math.min( free - selected.size(), Math.max( 0, minShare - uses[ s ] ) ) );
+			selected.addAll( list.subList( 0, n ) );
+			remaining.addAll( list.subList( n, list.size() ) );
+		}
+		remaining.sort( order );
+		selected.addAll( remaining.subList( 0, free - selected.size() ) );
+		return selected;
+	}
+
+	/**
+	 * Group {@code blocks[0..size)} by their tile at {@code level}.
+	 */
+	private List< Node > group( final int sourceIndex, final Source source, final int level, final int[] blocks, final int size )
+	{
+		groups.clear();
+		final List< Node > nodes = new ArrayList<>();
+		for ( int i = 0; i < size; ++i )
+		{
+			final int block = blocks[ i ];
+			final long key = source.tileKey( block, level );
+			Node node = groups.get( key );
+			if ( node == null )
+			{
+				node = new Node( sourceIndex, level, source.isFree( block, level ) );
+				groups.put( key, node );
+				nodes.add( node );
+			}
+			node.add( block );
+		}
+		return nodes;
+	}
+
+	/**
+	 * Compute the refinement of {@code node} and add it to {@code queue}, if
+	 * any of its blocks can be refined.
+	 */
+	private void offer( final PriorityQueue< Node > queue, final Node node, final Source source )
+	{
+		final int level = node.level;
+		if ( level == 0 )
+			return;
+
+		final int[] refined = new int[ node.size ];
+		int numRefined = 0;
+		double benefit = 0;
+		for ( int i = 0; i < node.size; ++i )
+		{
+			final int block = node.blocks[ i ];
+			if ( source.bestLevel( block ) < level )
+			{
+				refined[ numRefined++ ] = block;
+				benefit += source.weight( block );
+			}
+		}
+		if ( numRefined == 0 )
+			return;
+
+		final List< Node > children = group( node.source, source, level - 1, refined, numRefined );
+		int cost = ( numRefined == node.size && !node.free ) ? -1 : 0;
+		for ( final Node child : children )
+			if ( !child.free )
+				++cost;
+		node.children = children;
+		node.cost = Math.max( 0, cost );
+		node.benefit = benefit;
+		queue.add( node );
+	}
+
+	/**
+	 * Blocks of one source that map to the same tile at {@code level}, and
+	 * the refinement of these blocks to {@code level - 1}.
+	 */
+	private static final class Node
+	{
+		/**
+		 * Higher benefit per cost first, and higher benefit first among
+		 * refinements that cost nothing.
+		 */
+		static final Comparator< Node > BEST_FIRST = ( n1, n2 ) -> {
+			final int c = Double.compare( n2.benefit * n1.cost, n1.benefit * n2.cost );
+			return c != 0 ? c : Double.compare( n2.benefit, n1.benefit );
+		};
+
+		final int source;
+
+		final int level;
+
+		/**
+		 * Whether the tile of this node is {@link Source#isFree free}.
+		 */
+		final boolean free;
+
+		int[] blocks = new int[ 1 ];
+
+		int size;
+
+		/**
+		 * Nodes at {@code level - 1} that the refined blocks are moved to.
+		 */
+		List< Node > children;
+
+		/**
+		 * Number of additional tiles when refining this node.
+		 */
+		int cost;
+
+		/**
+		 * Total weight of the blocks that are refined.
+		 */
+		double benefit;
+
+		Node( final int source, final int level, final boolean free )
+		{
+			this.source = source;
+			this.level = level;
+			this.free = free;
+		}
+
+		void add( final int block )
+		{
+			if ( size == blocks.length )
+				blocks = Arrays.copyOf( blocks, 2 * size );
+			blocks[ size++ ] = block;
+		}
+	}
+}
@@ -152,6 +152,29 @@ public class MipmapSizes
 		return bestLevel( drel );
 	}
 
+	/**
+	 * Get the (fractional) ideal resolution level at source coordinates
+	 * {@code x}. Between two levels, this interpolates linearly in voxel
+	 * size. {@link #bestLevel(Vector3fc, Vector3f)} is this rounded to the
+	 * nearest level (rounding {@code .5} down).
+	 */
+	public float levelPosition( final Vector3fc x, final Vector3f temp )
+	{
+		final float drel = x.sub( pNear, temp ).dot( pFarMinusNear ) * drels;
+		final float sd = drel * sf + ( 1 - drel ) * sn;
+
+		for ( int l = 0; l < sls.length; ++l )
+		{
+			if ( sd <= sls[ l ] )
+			{
+				if ( l == 0 )
+					return 0;
+				return l - 1 + ( sd - sls[ l - 1 ] ) / ( sls[ l ] - sls[ l - 1 ] );
+			}
+		}
+		return sls.length - 1;
+	}
+
 	private int bestLevel( final float drel )
 	{
 		final float sd = drel * sf + ( 1 - drel ) * sn;
@@ -7,14 +7,32 @@ import java.security.PrivilegedExceptionAction;
 
 import sun.misc.Unsafe;
 
+/**
+ * Raw memory access for filling upload buffers.
+ * <p>
+ * The fill, comparison, and conversion kernels process aligned 8-byte words
+ * where possible (with scalar head and tail loops), which is several times
+ * faster than element-wise access for typical block rows.
+ * <p>
+ * Accesses are not bounds-checked, so a bad offset corrupts memory or crashes
+ * the JVM. For debugging, run with {@code -Dbvv.checkBounds=true}: Then
+ * {@link #address(Address, long, long)} checks ranges against
+ * {@link Address#getSizeInBytes()}, and array copies check source ranges,
+ * throwing {@code IndexOutOfBoundsException} instead. Otherwise the checks
+ * are constant-folded away by the JIT.
+ */
 @SuppressWarnings( "restriction" )
 public class ByteUtils
 {
 	private static final Unsafe UNSAFE;
 
+	static final boolean CHECK_BOUNDS = Boolean.getBoolean( "bvv.checkBounds" );
+
 	private static final long BUFFER_ADDRESS_OFFSET;
 	private static final long BYTE_ARRAY_OFFSET;
 	private static final long SHORT_ARRAY_OFFSET;
+	private static final long INT_ARRAY_OFFSET;
+	private static final long FLOAT_ARRAY_OFFSET;
 
 	static
 	{
@@ -39,6 +57,8 @@ public class ByteUtils
 
 			BYTE_ARRAY_OFFSET = UNSAFE.arrayBaseOffset( byte[].class );
 			SHORT_ARRAY_OFFSET = UNSAFE.arrayBaseOffset( short[].class );
+			INT_ARRAY_OFFSET = UNSAFE.arrayBaseOffset( int[].class );
+			FLOAT_ARRAY_OFFSET = UNSAFE.arrayBaseOffset( float[].class );
 		}
 		catch ( final Exception ex )
 		{
@@ -48,18 +68,267 @@ public class ByteUtils
 
 	public static long addressOf( final Buffer buffer )
 	{
+		if ( CHECK_BOUNDS && !buffer.isDirect() )
+			throw new IllegalArgumentException( "not a direct buffer" );
 		return UNSAFE.getLong( buffer, BUFFER_ADDRESS_OFFSET );
 	}
 
+	/**
+	 * @return the address of the range of {@code length} bytes starting
+	 *         {@code offset} bytes into {@code address}. If bounds checking is
+	 *         enabled, the range is checked to lie within
+	 *         {@link Address#getSizeInBytes()} (if known).
+	 */
+	public static long address( final Address address, final long offset, final long length )
+	{
+		if ( CHECK_BOUNDS )
+		{
+			final long size = address.getSizeInBytes();
+			if ( offset < 0 || length < 0 || ( size >= 0 && offset + length > size ) )
+				throw new IndexOutOfBoundsException( "range [" + offset + ", " + ( offset + length ) + ") out of bounds [0, " + size + ")" );
+		}
+		return address.getAddress() + offset;
+	}
+
+	private static void checkArrayRange( final int arrayLength, final long offset, final long length )
+	{
+		if ( offset < 0 || length < 0 || offset + length > arrayLength )
+			throw new IndexOutOfBoundsException( "range [" + offset + ", " + ( offset + length ) + ") out of bounds [0, " + arrayLength + ")" );
+	}
+
 	public static void copyShorts( final short[] src, final long dst, final long sox, final long csx )
 	{
+		if ( CHECK_BOUNDS )
+			checkArrayRange( src.length, sox, csx );
 		UNSAFE.copyMemory( src, SHORT_ARRAY_OFFSET + 2 * sox, null, dst, 2 * csx );
 	}
 
-	public static void setShorts( final short src, final long dst, final long csx )
+	public static void copyBytes( final byte[] src, final long dst, final long sox, final long csx )
 	{
+		if ( CHECK_BOUNDS )
+			checkArrayRange( src.length, sox, csx );
+		UNSAFE.copyMemory( src, BYTE_ARRAY_OFFSET + sox, null, dst, csx );
+	}
+
+	public static void copyInts( final int[] src, final long dst, final long sox, final long csx )
+	{
+		if ( CHECK_BOUNDS )
+			checkArrayRange( src.length, sox, csx );
+		UNSAFE.copyMemory( src, INT_ARRAY_OFFSET + 4 * sox, null, dst, 4 * csx );
+	}
+
+	public static void copyFloats( final float[] src, final long dst, final long sox, final long csx )
+	{
+		if ( CHECK_BOUNDS )
+			checkArrayRange( src.length, sox, csx );
+		UNSAFE.copyMemory( src, FLOAT_ARRAY_OFFSET + 4 * sox, null, dst, 4 * csx );
+	}
+
+	/**
+	 * Copy {@code csx} unsigned shorts starting at {@code src[sox]} to
+	 * {@code dst}, converting each value {@code v} to the byte
+	 * {@code lut[v]}.
+	 */
+	public static void quantizeShorts( final short[] src, final byte[] lut, final long dst, final int sox, final int csx )
+	{
+		// (packing 8 lookups into one word store was measured to be slower)
 		for ( int i = 0; i < csx; ++i )
-			UNSAFE.putShort( dst + 2 * i, src );
+			UNSAFE.putByte( dst + i, lut[ src[ sox + i ] & 0xffff ] );
+	}
+
+	public static void copyBytes( final long src, final long dst, final long csx )
+	{
+		UNSAFE.copyMemory( src, dst, csx );
+	}
+
+	/**
+	 * @return whether all {@code csx} bytes starting at {@code src} are equal.
+	 */
+	public static boolean allBytesEqual( final long src, final long csx )
+	{
+		if ( csx == 0 )
+			return true;
+		return allEqual( src, csx, UNSAFE.getByte( src ) & 0xffL, 1 );
+	}
+
+	/**
+	 * @return whether all {@code csx} ints starting at {@code src} are equal.
+	 * (Also used for floats, comparing bit patterns.)
+	 */
+	public static boolean allIntsEqual( final long src, final long csx )
+	{
+		if ( csx == 0 )
+			return true;
+		return allEqual( src, 4 * csx, UNSAFE.getInt( src ) & 0xffffffffL, 4 );
+	}
+
+	/**
+	 * @return whether all {@code csx} shorts starting at {@code src} are equal.
+	 */
+	public static boolean allShortsEqual( final long src, final long csx )
+	{
+		if ( csx == 0 )
+			return true;
+		return allEqual( src, 2 * csx, UNSAFE.getShort( src ) & 0xffffL, 2 );
+	}
+
+	/**
+	 * @return whether all elements of size {@code elementSize} (1, 2, or 4
+	 *         bytes) in the {@code numBytes} bytes starting at {@code src}
+	 *         have the value {@code bits}.
+	 */
+	private static boolean allEqual( final long src, final long numBytes, final long bits, final int elementSize )
+	{
+		final long end = src + numBytes;
+		long a = src;
+
+		// head: until a is aligned
+		for ( ; a < end && ( a & 7 ) != 0; a += elementSize )
+			if ( getElement( a, elementSize ) != bits )
+				return false;
+
+		// body: aligned words
+		final long pattern = replicate( bits, elementSize );
+		for ( ; a + 8 <= end; a += 8 )
+			if ( UNSAFE.getLong( a ) != pattern )
+				return false;
+
+		// tail
+		for ( ; a < end; a += elementSize )
+			if ( getElement( a, elementSize ) != bits )
+				return false;
+		return true;
+	}
+
+	/**
+	 * Set all elements of size {@code elementSize} (1, 2, or 4 bytes) in the
+	 * {@code numBytes} bytes starting at {@code dst} to {@code bits}.
+	 */
+	private static void fill( final long dst, final long numBytes, final long bits, final int elementSize )
+	{
+		final long pattern = replicate( bits, elementSize );
+		if ( pattern == replicate( pattern & 0xff, 1 ) )
+		{
+			// all bytes equal (e.g., 0)
+			UNSAFE.setMemory( dst, numBytes, ( byte ) pattern );
+			return;
+		}
+
+		final long end = dst + numBytes;
+		long a = dst;
+
+		// head: until a is aligned
+		for ( ; a < end && ( a & 7 ) != 0; a += elementSize )
+			putElement( a, bits, elementSize );
+
+		// body: aligned words
+		for ( ; a + 8 <= end; a += 8 )
+			UNSAFE.putLong( a, pattern );
+
+		// tail
+		for ( ; a < end; a += elementSize )
+			putElement( a, bits, elementSize );
+	}
+
+	/**
+	 * @return a {@code long} consisting of copies of the lowest
+	 *         {@code elementSize} bytes of {@code bits}.
+	 */
+	private static long replicate( final long bits, final int elementSize )
+	{
+		switch ( elementSize )
+		{
+		case 1:
+			return ( bits & 0xffL ) * 0x0101010101010101L;
+		case 2:
+			return ( bits & 0xffffL ) * 0x0001000100010001L;
+		default:
+			return ( bits & 0xffffffffL ) * 0x0000000100000001L;
+		}
+	}
+
+	private static long getElement( final long src, final int elementSize )
+	{
+		switch ( elementSize )
+		{
+		case 1:
+			return UNSAFE.getByte( src ) & 0xffL;
+		case 2:
+			return UNSAFE.getShort( src ) & 0xffffL;
+		default:
+			return UNSAFE.getInt( src ) & 0xffffffffL;
+		}
+	}
+
+	private static void putElement( final long dst, final long bits, final int elementSize )
+	{
+		switch ( elementSize )
+		{
+		case 1:
+			UNSAFE.putByte( dst, ( byte ) bits );
+			break;
+		case 2:
+			UNSAFE.putShort( dst, ( short ) bits );
+			break;
+		default:
+			UNSAFE.putInt( dst, ( int ) bits );
+			break;
+		}
+	}
+
+	/**
+	 * Read {@code numBytes} (at most 8) bytes starting at {@code src} into a {@code long}.
+	 */
+	public static long getBits( final long src, final int numBytes )
+	{
+		long bits = 0;
+		for ( int i = 0; i < numBytes; ++i )
+			bits |= ( UNSAFE.getByte( src + i ) & 0xffL ) << ( 8 * i );
+		return bits;
+	}
+
+	/**
+	 * Compute a 64-bit hash of the {@code numBytes} bytes starting at
+	 * {@code src}. This is used to recognize identical blocks, so it should
+	 * be fast and well distributed, but it is not cryptographically strong.
+	 */
+	public static long hash( final long src, final long numBytes )
+	{
+		final long numLongs = numBytes >>> 3;
+		long h0 = 0x9E3779B97F4A7C15L;
+		long h1 = 0xC2B2AE3D27D4EB4FL ^ numBytes;
+		long i = 0;
+		for ( ; i + 1 < numLongs; i += 2 )
+		{
+			h0 = Long.rotateLeft( h0 ^ UNSAFE.getLong( src + 8 * i ) * 0x87C37B91114253D5L, 31 ) * 0x4CF5AD432745937FL;
+			h1 = Long.rotateLeft( h1 ^ UNSAFE.getLong( src + 8 * i + 8 ) * 0x4CF5AD432745937FL, 27 ) * 0x87C37B91114253D5L;
+		}
+		if ( i < numLongs )
+			h0 = Long.rotateLeft( h0 ^ UNSAFE.getLong( src + 8 * i ) * 0x87C37B91114253D5L, 31 ) * 0x4CF5AD432745937FL;
+		final int tail = ( int ) ( numBytes & 7 );
+		if ( tail != 0 )
+			h1 ^= getBits( src + 8 * numLongs, tail ) * 0x87C37B91114253D5L;
+		return mix( h0 ^ Long.rotateLeft( h1, 32 ) );
+	}
+
+	/**
+	 * Final avalanche of {@link #hash}.
+	 */
+	private static long mix( long h )
+	{
+		h = ( h ^ ( h >>> 33 ) ) * 0xFF51AFD7ED558CCDL;
+		h = ( h ^ ( h >>> 33 ) ) * 0xC4CEB9FE1A85EC53L;
+		return h ^ ( h >>> 33 );
+	}
+
+	public static void setShorts( final short src, final long dst, final long csx )
+	{
+		fill( dst, 2 * csx, src & 0xffffL, 2 );
+	}
+
+	public static void setInts( final int src, final long dst, final long csx )
+	{
+		fill( dst, 4 * csx, src & 0xffffffffL, 4 );
 	}
 
 	public static void setBytes( final byte src, final long dst, final long csx )
@@ -67,8 +336,20 @@ public class ByteUtils
 		UNSAFE.setMemory( dst, csx, src );
 	}
 
+	/**
+	 * A range of native memory.
+	 */
 	public interface Address
 	{
 		long getAddress();
+
+		/**
+		 * @return size of the range in bytes, or {@code -1} if unknown (in
+		 *         which case accesses are not bounds-checked).
+		 */
+		default long getSizeInBytes()
+		{
+			return -1;
+		}
 	}
 }
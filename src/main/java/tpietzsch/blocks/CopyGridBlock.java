@@ -1,7 +1,14 @@
 package tpietzsch.blocks;
 
+import java.util.Arrays;
+
 public class CopyGridBlock
 {
+	/**
+	 * log2 of the number of entries in the cell array cache.
+	 */
+	private static final int CELL_CACHE_BITS = 6;
+
 	private final int[][] spans = new int[ 3 ][ 6 ];
 	private final int[] ls = new int[ 3 ];
 	private final int[] gmin = new int[ 3 ];
@@ -10,6 +17,85 @@ public class CopyGridBlock
 	private final int css[] = new int[ 3 ];
 	private final int[] doo = new int[ 3 ];
 	private final int[] doo2 = new int[ 3 ];
+	private boolean uniform;
+
+	/*
+	 * Direct-mapped cache of cell arrays, indexed by hashed cell grid
+	 * position. Neighboring (padded) blocks typically share cells, so this
+	 * avoids looking up the same cells in the source over and over. Only
+	 * valid (non-null) cell data is cached. See clearCellCache().
+	 */
+	private final long[] cellKeys = new long[ 1 << CELL_CACHE_BITS ];
+	private final Object[] cellData = new Object[ 1 << CELL_CACHE_BITS ];
+	private GridDataAccess< ? > cellAccess;
+	private final int[] cellPos = new int[ 3 ];
+
+	public CopyGridBlock()
+	{
+		Arrays.fill( cellKeys, -1 );
+	}
+
+	/**
+	 * Forget cached cell arrays. Cell arrays retrieved from the
+	 * {@code GridDataAccess} are cached (until they are displaced by other
+	 * cells) to speed up copying neighboring blocks. This should be called
+	 * periodically (e.g., for every batch of blocks) so that replaced cell
+	 * data is picked up, and cell arrays are not retained indefinitely.
+	 */
+	public void clearCellCache()
+	{
+		Arrays.fill( cellKeys, -1 );
+		Arrays.fill( cellData, null );
+		cellAccess = null;
+	}
+
+	/**
+	 * Get the data of cell {@code (x, y, z)} from {@code srca}, or from the
+	 * cell cache.
+	 *
+	 * @return data of the cell, or {@code null} if data is not valid.
+	 */
+	@SuppressWarnings( "unchecked" )
+	private < S > S cell( final GridDataAccess< S > srca, final int x, final int y, final int z )
+	{
+		if ( srca != cellAccess )
+		{
+			clearCellCache();
+			cellAccess = srca;
+		}
+
+		// (grid positions are non-negative. Those that do not fit into 21 bits are not cached.)
+		final boolean cacheable = ( ( x | y | z ) >>> 21 ) == 0;
+		final long key = x | ( long ) y << 21 | ( long ) z << 42;
+		final int i = ( int ) ( ( key * 0x9e3779b97f4a7c15L ) >>> ( 64 - CELL_CACHE_BITS ) );
+		if ( cacheable && cellKeys[ i ] == key )
+			return ( S ) cellData[ i ];
+
+		cellPos[ 0 ] = x;
+		cellPos[ 1 ] = y;
+		cellPos[ 2 ] = z;
+		srca.setPosition( cellPos );
+		final S data = srca.get();
+		if ( cacheable && data != null )
+		{
+			cellKeys[ i ] = key;
+			cellData[ i ] = data;
+		}
+		return data;
+	}
+
+	/**
+	 * Whether the block copied by the last call to {@link #copy} was complete
+	 * and uniform, i.e., all elements have the same value. Blocks that are
+	 * completely outside the source are recognized without looking at the
+	 * data. Other complete blocks are checked with
+	 * {@link CopySubArray#isuniform}, which returns at the first element that
+	 * differs, so this is cheap for non-uniform blocks.
+	 */
+	public boolean isUniform()
+	{
+		return uniform;
+	}
 
 	/**
 	 * Copy (non-aligned) block from cell grid.
@@ -49,6 +135,7 @@ public class CopyGridBlock
 			if ( min[ d ] >= srca.imgSize( d ) || min[ d ] + dim[ d ] <= 0 )
 			{
 				copy.clearsubarray3d( dst, 0,0,0, dim[ 0 ], dim[ 1 ], dim[ 0 ], dim[ 1 ], dim[ 2 ] );
+				uniform = true;
 				return true;
 			}
 
@@ -75,7 +162,9 @@ public class CopyGridBlock
 			doo2[ d ] = doo[ d ];
 		}
 
-		return copyNoOob( nmin, ndim, doo, dim, dst, srca, copy );
+		final boolean complete = copyNoOob( nmin, ndim, doo, dim, dst, srca, copy );
+		uniform = complete && copy.isuniform( dst, dim[ 0 ] * dim[ 1 ] * dim[ 2 ] );
+		return complete;
 	}
 
 	/**
@@ -113,6 +202,31 @@ public class CopyGridBlock
 			final int g1 = ( min[ d ] + dim[ d ] - 1 ) / cellsize;
 			gmin[ d ] = g0;
 			ls[ d ] = g1 - g0 + 1;
+		}
+
+		// fast path: block is contained in a single cell
+		if ( ls[ 0 ] == 1 && ls[ 1 ] == 1 && ls[ 2 ] == 1 )
+		{
+			final S src = cell( srca, gmin[ 0 ], gmin[ 1 ], gmin[ 2 ] );
+			if ( src == null )
+			{
+				copy.clearsubarray3d( dst, doff[ 0 ], doff[ 1 ], doff[ 2 ], ddim[ 0 ], ddim[ 1 ], dim[ 0 ], dim[ 1 ], dim[ 2 ] );
+				return false;
+			}
+			final int ox = min[ 0 ] - gmin[ 0 ] * srca.cellSize( 0 );
+			final int oy = min[ 1 ] - gmin[ 1 ] * srca.cellSize( 1 );
+			final int oz = min[ 2 ] - gmin[ 2 ] * srca.cellSize( 2 );
+			final int ssx = srca.cellSize( 0, gmin[ 0 ] );
+			final int ssy = srca.cellSize( 1, gmin[ 1 ] );
+			copy.copysubarray3d( src, ox, oy, oz, ssx, ssy, dst, doff[ 0 ], doff[ 1 ], doff[ 2 ], ddim[ 0 ], ddim[ 1 ], dim[ 0 ], dim[ 1 ], dim[ 2 ] );
+			return true;
+		}
+
+		for ( int d = 0; d < 3; ++d )
+		{
+			final int cellsize = srca.cellSize( d );
+			final int g0 = gmin[ d ];
+			final int g1 = g0 + ls[ d ] - 1;
 			final int spanreq = 3 * ls[ d ];
 			if ( spans[ d ].length < spanreq )
 				spans[ d ] = new int[ spanreq ];
@@ -131,7 +245,6 @@ public class CopyGridBlock
 			span[ i ] = srca.cellSize( d, g1 );
 		}
 
-		srca.setPosition( gmin );
 		final int gsx = ls[ 0 ];
 		final int gsy = ls[ 1 ];
 		final int gsz = ls[ 2 ];
@@ -157,7 +270,7 @@ public class CopyGridBlock
 					final int ox = spanx[ 3 * gx ];
 					final int sx = spanx[ 3 * gx + 1 ];
 					final int ssx = spanx[ 3 * gx + 2 ];
-					final S src = srca.get();
+					final S src = cell( srca, gmin[ 0 ] + gx, gmin[ 1 ] + gy, gmin[ 2 ] + gz );
 					if ( src == null )
 					{
 						complete = false;
@@ -166,20 +279,10 @@ public class CopyGridBlock
 					else
 						copy.copysubarray3d( src, ox, oy, oz, ssx, ssy, dst, dox, doy, doz, dsx, dsy, sx, sy, sz );
 					dox += sx;
-					if ( gx < gsx - 1 )
-						srca.fwd( 0 );
 				}
 				doy += sy;
-				if ( gsx > 1 )
-					srca.setPosition( gmin[ 0 ], 0 );
-				if ( gy < gsy - 1 )
-					srca.fwd( 1 );
 			}
 			doz += sz;
-			if ( gsy > 1 )
-				srca.setPosition( gmin[ 1 ], 1 );
-			if ( gz < gsz - 1 )
-				srca.fwd( 2 );
 		}
 
 		return complete;
@@ -231,35 +334,18 @@ public class CopyGridBlock
 			ls[ d ] = g1 - g0 + 1;
 		}
 
-		srca.setPosition( gmin );
 		final int gsx = ls[ 0 ];
 		final int gsy = ls[ 1 ];
 		final int gsz = ls[ 2 ];
 		for ( int gz = 0; gz < gsz; ++gz )
-		{
 			for ( int gy = 0; gy < gsy; ++gy )
-			{
 				for ( int gx = 0; gx < gsx; ++gx )
-				{
-					if ( srca.get() == null )
+					if ( cell( srca, gmin[ 0 ] + gx, gmin[ 1 ] + gy, gmin[ 2 ] + gz ) == null )
 					{
 						complete = false;
 						if( failfast )
 							return false;
 					}
-					if ( gx < gsx - 1 )
-						srca.fwd( 0 );
-				}
-				if ( gsx > 1 )
-					srca.setPosition( gmin[ 0 ], 0 );
-				if ( gy < gsy - 1 )
-					srca.fwd( 1 );
-			}
-			if ( gsy > 1 )
-				srca.setPosition( gmin[ 1 ], 1 );
-			if ( gz < gsz - 1 )
-				srca.fwd( 2 );
-		}
 
 		return complete;
 	}
@@ -308,32 +394,64 @@ public class CopyGridBlock
 			ls[ d ] = g1 - g0 + 1;
 		}
 
-		srca.setPosition( gmin );
 		final int gsx = ls[ 0 ];
 		final int gsy = ls[ 1 ];
 		final int gsz = ls[ 2 ];
 		for ( int gz = 0; gz < gsz; ++gz )
-		{
 			for ( int gy = 0; gy < gsy; ++gy )
-			{
 				for ( int gx = 0; gx < gsx; ++gx )
-				{
-					if ( srca.get() != null )
+					if ( cell( srca, gmin[ 0 ] + gx, gmin[ 1 ] + gy, gmin[ 2 ] + gz ) != null )
 						return true;
-					if ( gx < gsx - 1 )
-						srca.fwd( 0 );
-				}
-				if ( gsx > 1 )
-					srca.setPosition( gmin[ 0 ], 0 );
-				if ( gy < gsy - 1 )
-					srca.fwd( 1 );
+
+		return false;
+	}
+
+	/**
+	 * Count the cells with valid data that overlap the block at {@code min}
+	 * with size {@code dim}. This increases while a partially loadable block
+	 * is streaming in.
+	 */
+	public int numLoadableCells(
+			final int[] min,
+			final int[] dim,
+			final GridDataAccess< ? > srca )
+	{
+		// check whether dst is completely outside of src
+		for ( int d = 2; d >= 0; --d )
+			if ( min[ d ] >= srca.imgSize( d ) || min[ d ] + dim[ d ] <= 0 )
+				return 0;
+
+		// check whether dst is partially outside of src
+		for ( int d = 0; d < 3; ++d )
+		{
+			final int srcsize = srca.imgSize( d );
+			nmin[ d ] = min[ d ];
+			ndim[ d ] = dim[ d ];
+			if ( min[ d ] < 0 )
+			{
+				nmin[ d ] = 0;
+				ndim[ d ] += min[ d ];
 			}
-			if ( gsy > 1 )
-				srca.setPosition( gmin[ 1 ], 1 );
-			if ( gz < gsz - 1 )
-				srca.fwd( 2 );
+			final int b = min[ d ] + dim[ d ] - srcsize;
+			if ( b > 0 )
+				ndim[ d ] -= b;
 		}
 
-		return false;
+		for ( int d = 0; d < 3; ++d )
+		{
+			final int cellsize = srca.cellSize( d );
+			final int g0 = nmin[ d ] / cellsize;
+			final int g1 = ( nmin[ d ] + ndim[ d ] - 1 ) / cellsize;
+			gmin[ d ] = g0;
+			ls[ d ] = g1 - g0 + 1;
+		}
+
+		int n = 0;
+		for ( int gz = 0; gz < ls[ 2 ]; ++gz )
+			for ( int gy = 0; gy < ls[ 1 ]; ++gy )
+				for ( int gx = 0; gx < ls[ 0 ]; ++gx )
+					if ( cell( srca, gmin[ 0 ] + gx, gmin[ 1 ] + gy, gmin[ 2 ] + gz ) != null )
+						++n;
+		return n;
 	}
 }
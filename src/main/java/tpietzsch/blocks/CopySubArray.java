@@ -12,6 +12,13 @@ public interface CopySubArray< S, T >
 			final int dsx, final int dsy,
 			final int csx, final int csy, final int csz );
 
+	// n: number of elements in dst
+	// returns whether all n elements of dst have the same value
+	default boolean isuniform( final T dst, final int n )
+	{
+		return false;
+	}
+
 	// sox, soy, soz: start offset in src
 	// ssx, ssy: dimensions of src
 	// dox, doy, doz: start offset in dst
@@ -12,16 +12,138 @@ public class CopySubArrayImp
 		@Override
 		public void clearsubarray3d( final Address dst, final int dox, final int doy, final int doz, final int dsx, final int dsy, final int csx, final int csy, final int csz )
 		{
-			final ArrayFill fill = ( o, l ) -> ByteUtils.setShorts( ( short ) 0, dst.getAddress() + 2 * o, l );
+			final ArrayFill fill = ( o, l ) -> ByteUtils.setShorts( ( short ) 0, ByteUtils.address( dst, 2L * o, 2L * l ), l );
 			fillsubarray3dn( fill, dox, doy, doz, dsx, dsy, csx, csy, csz );
 		}
 
 		@Override
 		public void copysubarray3d( final short[] src, final int sox, final int soy, final int soz, final int ssx, final int ssy, final Address dst, final int dox, final int doy, final int doz, final int dsx, final int dsy, final int csx, final int csy, final int csz )
 		{
-			final ArrayCopy copy = ( so, o, l ) -> ByteUtils.copyShorts( src, dst.getAddress() + 2 * o, so, l );
+			final ArrayCopy copy = ( so, o, l ) -> ByteUtils.copyShorts( src, ByteUtils.address( dst, 2L * o, 2L * l ), so, l );
 			copysubarray3dn( copy, sox, soy, soz, ssx, ssy, dox, doy, doz, dsx, dsy, csx, csy, csz );
 		}
+
+		@Override
+		public boolean isuniform( final Address dst, final int n )
+		{
+			return ByteUtils.allShortsEqual( ByteUtils.address( dst, 0, 2L * n ), n );
+		}
+	}
+
+	// -------------------------------------------------------------
+	// short[] to address, quantized to bytes
+	// (unsigned short values are converted with a lookup table, see QuantizationWindow)
+
+	public static class ShortToAddressQuantized implements CopySubArray< short[], Address >
+	{
+		private final byte[] lut;
+
+		public ShortToAddressQuantized( final byte[] lut )
+		{
+			this.lut = lut;
+		}
+
+		@Override
+		public void clearsubarray3d( final Address dst, final int dox, final int doy, final int doz, final int dsx, final int dsy, final int csx, final int csy, final int csz )
+		{
+			final ArrayFill fill = ( o, l ) -> ByteUtils.setBytes( lut[ 0 ], ByteUtils.address( dst, o, l ), l );
+			fillsubarray3dn( fill, dox, doy, doz, dsx, dsy, csx, csy, csz );
+		}
+
+		@Override
+		public void copysubarray3d( final short[] src, final int sox, final int soy, final int soz, final int ssx, final int ssy, final Address dst, final int dox, final int doy, final int doz, final int dsx, final int dsy, final int csx, final int csy, final int csz )
+		{
+			final ArrayCopy copy = ( so, o, l ) -> ByteUtils.quantizeShorts( src, lut, ByteUtils.address( dst, o, l ), so, l );
+			copysubarray3dn( copy, sox, soy, soz, ssx, ssy, dox, doy, doz, dsx, dsy, csx, csy, csz );
+		}
+
+		@Override
+		public boolean isuniform( final Address dst, final int n )
+		{
+			return ByteUtils.allBytesEqual( ByteUtils.address( dst, 0, n ), n );
+		}
+	}
+
+	// -------------------------------------------------------------
+	// byte[] to address
+
+	public static class ByteToAddress implements CopySubArray< byte[], Address >
+	{
+		@Override
+		public void clearsubarray3d( final Address dst, final int dox, final int doy, final int doz, final int dsx, final int dsy, final int csx, final int csy, final int csz )
+		{
+			final ArrayFill fill = ( o, l ) -> ByteUtils.setBytes( ( byte ) 0, ByteUtils.address( dst, o, l ), l );
+			fillsubarray3dn( fill, dox, doy, doz, dsx, dsy, csx, csy, csz );
+		}
+
+		@Override
+		public void copysubarray3d( final byte[] src, final int sox, final int soy, final int soz, final int ssx, final int ssy, final Address dst, final int dox, final int doy, final int doz, final int dsx, final int dsy, final int csx, final int csy, final int csz )
+		{
+			final ArrayCopy copy = ( so, o, l ) -> ByteUtils.copyBytes( src, ByteUtils.address( dst, o, l ), so, l );
+			copysubarray3dn( copy, sox, soy, soz, ssx, ssy, dox, doy, doz, dsx, dsy, csx, csy, csz );
+		}
+
+		@Override
+		public boolean isuniform( final Address dst, final int n )
+		{
+			return ByteUtils.allBytesEqual( ByteUtils.address( dst, 0, n ), n );
+		}
+	}
+
+	// -------------------------------------------------------------
+	// int[] to address
+	// (ARGB pixels, copied as is. In (little-endian) memory, the channels are
+	// ordered B,G,R,A, so the shader swizzles RGBA8 texels with .bgra)
+
+	public static class IntToAddress implements CopySubArray< int[], Address >
+	{
+		@Override
+		public void clearsubarray3d( final Address dst, final int dox, final int doy, final int doz, final int dsx, final int dsy, final int csx, final int csy, final int csz )
+		{
+			final ArrayFill fill = ( o, l ) -> ByteUtils.setInts( 0, ByteUtils.address( dst, 4L * o, 4L * l ), l );
+			fillsubarray3dn( fill, dox, doy, doz, dsx, dsy, csx, csy, csz );
+		}
+
+		@Override
+		public void copysubarray3d( final int[] src, final int sox, final int soy, final int soz, final int ssx, final int ssy, final Address dst, final int dox, final int doy, final int doz, final int dsx, final int dsy, final int csx, final int csy, final int csz )
+		{
+			final ArrayCopy copy = ( so, o, l ) -> ByteUtils.copyInts( src, ByteUtils.address( dst, 4L * o, 4L * l ), so, l );
+			copysubarray3dn( copy, sox, soy, soz, ssx, ssy, dox, doy, doz, dsx, dsy, csx, csy, csz );
+		}
+
+		@Override
+		public boolean isuniform( final Address dst, final int n )
+		{
+			return ByteUtils.allIntsEqual( ByteUtils.address( dst, 0, 4L * n ), n );
+		}
+	}
+
+	// -------------------------------------------------------------
+	// float[] to address
+
+	public static class FloatToAddress implements CopySubArray< float[], Address >
+	{
+		@Override
+		public void clearsubarray3d( final Address dst, final int dox, final int doy, final int doz, final int dsx, final int dsy, final int csx, final int csy, final int csz )
+		{
+			// 0.0f has all bits zero
+			final ArrayFill fill = ( o, l ) -> ByteUtils.setInts( 0, ByteUtils.address( dst, 4L * o, 4L * l ), l );
+			fillsubarray3dn( fill, dox, doy, doz, dsx, dsy, csx, csy, csz );
+		}
+
+		@Override
+		public void copysubarray3d( final float[] src, final int sox, final int soy, final int soz, final int ssx, final int ssy, final Address dst, final int dox, final int doy, final int doz, final int dsx, final int dsy, final int csx, final int csy, final int csz )
+		{
+			final ArrayCopy copy = ( so, o, l ) -> ByteUtils.copyFloats( src, ByteUtils.address( dst, 4L * o, 4L * l ), so, l );
+			copysubarray3dn( copy, sox, soy, soz, ssx, ssy, dox, doy, doz, dsx, dsy, csx, csy, csz );
+		}
+
+		@Override
+		public boolean isuniform( final Address dst, final int n )
+		{
+			// compares bit patterns, so -0.0f and 0.0f (or NaNs) are not equal
+			return ByteUtils.allIntsEqual( ByteUtils.address( dst, 0, 4L * n ), n );
+		}
 	}
 
 	static void copysubarray3dn(
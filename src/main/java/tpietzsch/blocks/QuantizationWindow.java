@@ -0,0 +1,121 @@
+package tpietzsch.blocks;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An intensity window for converting unsigned 16-bit data to 8 bits while
+ * copying blocks (see {@link CopySubArrayImp.ShortToAddressQuantized}).
+ * Values {@code v} in {@code [min, max]} are mapped linearly to
+ * {@code [0, 255]}, values outside are clamped.
+ * <p>
+ * Every window has a unique, increasing {@link #version()}, which is stored
+ * with the tiles quantized with it. When the display range changes such that
+ * the window {@link #needsUpdate(double, double) no longer fits}, a new window
+ * is created and tiles with older versions are quantized again.
+ * <p>
+ * The window is chosen larger than the display range (by
+ * {@link #DEFAULT_MARGIN} on each side), so that small adjustments of the
+ * display range do not require re-quantization.
+ */
+public class QuantizationWindow
+{
+	/**
+	 * Default margin (relative to the width of the display range) that the
+	 * window extends beyond the display range on each side.
+	 */
+	public static final double DEFAULT_MARGIN = 0.25;
+
+	/**
+	 * The window is updated when the display range becomes narrower than
+	 * this fraction of the window width, to keep enough quantization levels
+	 * within the display range.
+	 */
+	public static final double MIN_DISPLAY_FRACTION = 0.5;
+
+	private static final int MAX_VALUE = 0xffff;
+
+	private static final AtomicInteger versionGen = new AtomicInteger();
+
+	private final double min;
+
+	private final double max;
+
+	private final int version;
+
+	/** maps unsigned short value to quantized (unsigned) byte */
+	private final byte[] lut;
+
+	/**
+	 * Create a window mapping {@code [min, max]} to {@code [0, 255]}, with a
+	 * new version.
+	 */
+	public QuantizationWindow( final double min, final double max )
+	{
+		this.min = min;
+		this.max = Math.max( max, min + 1 );
+		version = versionGen.incrementAndGet();
+		lut = new byte[ MAX_VALUE + 1 ];
+		final double scale = 255 / ( this.max - min );
+		for ( int v = 0; v <= MAX_VALUE; ++v )
+			lut[ v ] = ( byte ) Math.max( 0, Math.min( 255, Math.round( ( v - min ) * scale ) ) );
+	}
+
+	/**
+	 * Create a window for the given display range, extended by
+	 * {@link #DEFAULT_MARGIN} on each side and clipped to the range of
+	 * unsigned short values.
+	 */
+	public static QuantizationWindow forDisplayRange( final double displayMin, final double displayMax )
+	{
+		final double dmin = clip( displayMin );
+		final double dmax = Math.max( clip( displayMax ), dmin + 1 );
+		final double margin = DEFAULT_MARGIN * ( dmax - dmin );
+		return new QuantizationWindow( clip( dmin - margin ), clip( dmax + margin ) );
+	}
+
+	/**
+	 * Whether the window should be replaced for the given display range:
+	 * Either the display range is not contained in the window (values would
+	 * be clamped), or it is much narrower than the window (too few
+	 * quantization levels).
+	 */
+	public boolean needsUpdate( final double displayMin, final double displayMax )
+	{
+		final double dmin = clip( displayMin );
+		final double dmax = Math.max( clip( displayMax ), dmin + 1 );
+		return dmin < min || dmax > max || ( dmax - dmin ) < MIN_DISPLAY_FRACTION * ( max - min );
+	}
+
+	public double min()
+	{
+		return min;
+	}
+
+	public double max()
+	{
+		return max;
+	}
+
+	/**
+	 * Unique version of this window. Versions of windows created later are
+	 * larger.
+	 */
+	public int version()
+	{
+		return version;
+	}
+
+	/**
+	 * Lookup table mapping unsigned short values {@code v} to quantized
+	 * values {@code lut[v] & 0xff}.
+	 */
+	public byte[] lut()
+	{
+		return lut;
+	}
+
+	private static double clip( final double value )
+	{
+		return Math.max( 0, Math.min( MAX_VALUE, value ) );
+	}
+}
@@ -8,13 +8,19 @@ import net.imglib2.cache.ref.WeakRefLoaderCache;
 import net.imglib2.img.cell.AbstractCellImg;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.PrimitiveType;
+import net.imglib2.type.numeric.ARGBType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
 import net.imglib2.util.Fraction;
+import net.imglib2.util.Intervals;
+import tpietzsch.backend.Texture.InternalFormat;
 import tpietzsch.cache.CacheSpec;
 import tpietzsch.cache.UploadBuffer;
 import tpietzsch.multires.ResolutionLevel3D;
 
-import static net.imglib2.type.PrimitiveType.SHORT;
 import static tpietzsch.backend.Texture.InternalFormat.R16;
+import static tpietzsch.backend.Texture.InternalFormat.R32F;
+import static tpietzsch.backend.Texture.InternalFormat.R8;
+import static tpietzsch.backend.Texture.InternalFormat.RGBA8;
 
 /**
  * Copy blocks from a {@link ResolutionLevel3D} source to an {@link UploadBuffer}.
@@ -40,14 +46,54 @@ public class TileAccess< S >
 	/** temporary to store block min (computed from gridPos) */
 	private final int[] min = new int[ 3 ];
 
+	/** size of a padded block in bytes (for computing content hashes) */
+	private final long bytesPerTile;
+
+	/** version stamp of loaded tiles (see {@link UploadBuffer#setVersion(int)}) */
+	private final int version;
+
+	/** batch for which {@code gcopy} caches cell arrays (see {@link #beginBatch(int)}) */
+	private int batch;
+
 	public TileAccess(
 			final GridDataAccess< S > dataAccess,
 			final CopySubArray< S, ByteUtils.Address > copySubArray,
 			final CacheSpec cacheSpec )
+	{
+		this( dataAccess, copySubArray, cacheSpec, 0 );
+	}
+
+	/**
+	 * @param version
+	 *            version stamp of loaded tiles, e.g., the
+	 *            {@link QuantizationWindow#version()} of the window that
+	 *            {@code copySubArray} quantizes with.
+	 */
+	public TileAccess(
+			final GridDataAccess< S > dataAccess,
+			final CopySubArray< S, ByteUtils.Address > copySubArray,
+			final CacheSpec cacheSpec,
+			final int version )
 	{
 		this.dataAccess = dataAccess;
 		this.copySubArray = copySubArray;
 		this.cacheSpec = cacheSpec;
+		this.version = version;
+		bytesPerTile = Intervals.numElements( cacheSpec.paddedBlockSize() ) * cacheSpec.format().getBytesPerElement();
+	}
+
+	/**
+	 * Cell arrays are cached between tiles of the same batch. When
+	 * {@code batch} differs from the previous call, cached cell arrays are
+	 * discarded.
+	 */
+	public void beginBatch( final int batch )
+	{
+		if ( this.batch != batch )
+		{
+			this.batch = batch;
+			gcopy.clearCellCache();
+		}
 	}
 
 	public boolean canLoadCompletely( final int[] gridPos, final boolean failfast )
@@ -64,6 +110,16 @@ public class TileAccess< S >
 		return gcopy.canLoadPartially( min, cacheSpec.paddedBlockSize(), dataAccess );
 	}
 
+	/**
+	 * @return number of source cells with valid data that overlap the tile at {@code gridPos}.
+	 */
+	public int numLoadableCells( final int[] gridPos )
+	{
+		for ( int d = 0; d < 3; ++d )
+			min[ d ] = gridPos[ d ] * cacheSpec.blockSize()[ d ] - cacheSpec.padOffset()[ d ];
+		return gcopy.numLoadableCells( min, cacheSpec.paddedBlockSize(), dataAccess );
+	}
+
 	/**
 	 * Load data for the tile at {@code gridPos} into {@code buffer}.
 	 * The tile is a padded block according to the {@code CacheSpec}.
@@ -72,29 +128,46 @@ public class TileAccess< S >
 	{
 		for ( int d = 0; d < 3; ++d )
 			min[ d ] = gridPos[ d ] * cacheSpec.blockSize()[ d ] - cacheSpec.padOffset()[ d ];
-		return gcopy.copy( min, cacheSpec.paddedBlockSize(), buffer, dataAccess, copySubArray );
+		final boolean complete = gcopy.copy( min, cacheSpec.paddedBlockSize(), buffer, dataAccess, copySubArray );
+		buffer.setUniform( gcopy.isUniform() );
+		buffer.setVersion( version );
+		if ( complete && !gcopy.isUniform() && buffer.isContentHashRequested() )
+			buffer.setContentHash( ByteUtils.hash( ByteUtils.address( buffer, 0, bytesPerTile ), bytesPerTile ) );
+		return complete;
 	}
 
+	/**
+	 * @param window
+	 *            if not {@code null}, unsigned short data is quantized to
+	 *            bytes with this window (into an {@code R8} cache).
+	 */
 	@SuppressWarnings( { "rawtypes", "unchecked" } )
-	static TileAccess< ? > create( final ResolutionLevel3D< ? > resolutionLevel3D, final CacheSpec cacheSpec )
+	static TileAccess< ? > create( final ResolutionLevel3D< ? > resolutionLevel3D, final CacheSpec cacheSpec, final QuantizationWindow window )
 	{
 		final Object type = resolutionLevel3D.getType();
-		if ( isSupportedType( type ) )
+		final InternalFormat format = window == null
+				? cacheFormat( type )
+				: isQuantizable( type ) ? R8 : null;
+		if ( format != null && format == cacheSpec.format() )
 		{
 			RandomAccessible< ? > img = resolutionLevel3D.getImage();
 			if ( img instanceof VolatileView )
 				img = ( ( VolatileView ) img ).getVolatileViewData().getImg();
 			final boolean cellimg = img instanceof AbstractCellImg;
 
-			if ( cacheSpec.format() == R16 && cellimg )
+			if ( cellimg )
 			{
 				final boolean volatil = type instanceof Volatile;
+				final CopySubArray copy = window == null
+						? copySubArray( format )
+						: new CopySubArrayImp.ShortToAddressQuantized( window.lut() );
 				return new TileAccess<>(
 						volatil
 								? new GridDataAccessImp.VolatileCells<>( ( AbstractCellImg ) img )
 								: new GridDataAccessImp.Cells<>( ( AbstractCellImg ) img ),
-						new CopySubArrayImp.ShortToAddress(),
-						cacheSpec
+						copy,
+						cacheSpec,
+						window == null ? 0 : window.version()
 				);
 			}
 		}
@@ -102,23 +175,81 @@ public class TileAccess< S >
 		throw new UnsupportedOperationException( "pixel and/or image type not supported (yet)." );
 	}
 
+	private static CopySubArray< ?, ByteUtils.Address > copySubArray( final InternalFormat format )
+	{
+		switch ( format )
+		{
+		case R8:
+			return new CopySubArrayImp.ByteToAddress();
+		case R16:
+			return new CopySubArrayImp.ShortToAddress();
+		case R32F:
+			return new CopySubArrayImp.FloatToAddress();
+		case RGBA8:
+			return new CopySubArrayImp.IntToAddress();
+		default:
+			throw new IllegalArgumentException();
+		}
+	}
+
 	public static boolean isSupportedType( final Object type )
 	{
-		// Currently only [Volatile]UnsignedShortType CellImgs are handled correctly
+		return cacheFormat( type ) != null;
+	}
+
+	/**
+	 * Get the {@link CacheSpec#format() cache format} for blocks of the given
+	 * pixel type.
+	 * <ul>
+	 * <li>{@code [Volatile]UnsignedByteType} (and other byte types): {@code R8}</li>
+	 * <li>{@code [Volatile]UnsignedShortType} (and other short types): {@code R16}</li>
+	 * <li>{@code [Volatile]FloatType}: {@code R32F}</li>
+	 * <li>{@code [Volatile]ARGBType}: {@code RGBA8}</li>
+	 * </ul>
+	 *
+	 * @return the cache format, or {@code null} if the type is not supported.
+	 */
+	public static InternalFormat cacheFormat( final Object type )
+	{
 		if ( type instanceof NativeType )
 		{
 			final PrimitiveType primitive = ( ( NativeType ) type ).getNativeTypeFactory().getPrimitiveType();
 			final Fraction epp = ( ( NativeType ) type ).getEntitiesPerPixel();
-			if ( primitive == SHORT && epp.getNumerator() == epp.getDenominator() )
-				return true;
+			if ( epp.getNumerator() != epp.getDenominator() )
+				return null;
+			switch ( primitive )
+			{
+			case BYTE:
+				return R8;
+			case SHORT:
+				return R16;
+			case FLOAT:
+				return R32F;
+			case INT:
+				final Object t = type instanceof Volatile ? ( ( Volatile< ? > ) type ).get() : type;
+				return t instanceof ARGBType ? RGBA8 : null;
+			default:
+				return null;
+			}
 		}
 
-		return false;
+		return null;
+	}
+
+	/**
+	 * Whether blocks of the given pixel type can be quantized to bytes with
+	 * a {@link QuantizationWindow}. This is the case for
+	 * {@code [Volatile]UnsignedShortType}.
+	 */
+	public static boolean isQuantizable( final Object type )
+	{
+		final Object t = type instanceof Volatile ? ( ( Volatile< ? > ) type ).get() : type;
+		return t instanceof UnsignedShortType;
 	}
 
 	/**
 	 * Thread-local weak cache for {@code TileAccess} to avoid creating too many of them.
-	 * (There should be one {@code TileAccess} per thread, source stack, and {@code CacheSpec}.)
+	 * (There should be one {@code TileAccess} per thread, source stack, {@code CacheSpec}, and {@code QuantizationWindow}.)
 	 */
 	public static class Cache
 	{
@@ -126,14 +257,17 @@ public class TileAccess< S >
 		{
 			final ResolutionLevel3D< ? > resolutionLevel3D;
 			final CacheSpec cacheSpec;
+			final QuantizationWindow window;
 			private final int hashcode;
 
-			Key( final ResolutionLevel3D< ? > resolutionLevel3D, final CacheSpec cacheSpec )
+			Key( final ResolutionLevel3D< ? > resolutionLevel3D, final CacheSpec cacheSpec, final QuantizationWindow window )
 			{
 				this.resolutionLevel3D = resolutionLevel3D;
 				this.cacheSpec = cacheSpec;
+				this.window = window;
 				int value = resolutionLevel3D.hashCode();
 				value = 31 * value + cacheSpec.hashCode();
+				value = 31 * value + ( window == null ? 0 : window.version() );
 				this.hashcode = value;
 			}
 
@@ -147,6 +281,8 @@ public class TileAccess< S >
 
 				if ( !resolutionLevel3D.equals( key.resolutionLevel3D ) )
 					return false;
+				if ( window != key.window )
+					return false;
 				return cacheSpec.equals( key.cacheSpec );
 			}
 
@@ -157,14 +293,40 @@ public class TileAccess< S >
 			}
 		}
 
+		// incremented by beginBatch()
+		private volatile int batch;
+
 		private final ThreadLocal< UncheckedCache< Cache.Key, TileAccess< ? > > > accesses = ThreadLocal.withInitial( () ->
 				new WeakRefLoaderCache< Cache.Key, TileAccess< ? > >()
-						.withLoader( key -> TileAccess.create( key.resolutionLevel3D, key.cacheSpec ) )
+						.withLoader( key -> TileAccess.create( key.resolutionLevel3D, key.cacheSpec, key.window ) )
 						.unchecked() );
 
 		public TileAccess< ? > get( final ResolutionLevel3D< ? > resolutionLevel3D, final CacheSpec cacheSpec )
 		{
-			return accesses.get().get( new Cache.Key( resolutionLevel3D, cacheSpec ) );
+			return get( resolutionLevel3D, cacheSpec, null );
+		}
+
+		/**
+		 * @param window
+		 *            if not {@code null}, unsigned short data is quantized to
+		 *            bytes with this window.
+		 */
+		public TileAccess< ? > get( final ResolutionLevel3D< ? > resolutionLevel3D, final CacheSpec cacheSpec, final QuantizationWindow window )
+		{
+			final TileAccess< ? > access = accesses.get().get( new Cache.Key( resolutionLevel3D, cacheSpec, window ) );
+			access.beginBatch( batch );
+			return access;
+		}
+
+		/**
+		 * Start a new batch of tiles. {@code TileAccess}es obtained after this
+		 * call discard cell arrays cached while loading previous batches.
+		 * Should be called (by the render thread) before creating fill tasks
+		 * for a frame.
+		 */
+		public void beginBatch()
+		{
+			++batch;
 		}
 	}
 }
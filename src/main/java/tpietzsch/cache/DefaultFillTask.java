@@ -14,15 +14,48 @@ public class DefaultFillTask implements FillTask
 
 	final BooleanSupplier containsData;
 
+	final double priority;
+
+	final int version;
+
 	/**
 	 * {@code fill.test()} fills buffer and returns whether block data was
 	 * complete
 	 */
 	public DefaultFillTask( final ImageBlockKey< ? > key, final Predicate< UploadBuffer > fill, final BooleanSupplier containsData )
+	{
+		this( key, fill, containsData, 0 );
+	}
+
+	/**
+	 * {@code fill.test()} fills buffer and returns whether block data was
+	 * complete
+	 *
+	 * @param priority
+	 *            loading priority (smaller is more urgent)
+	 */
+	public DefaultFillTask( final ImageBlockKey< ? > key, final Predicate< UploadBuffer > fill, final BooleanSupplier containsData, final double priority )
+	{
+		this( key, fill, containsData, priority, 0 );
+	}
+
+	/**
+	 * {@code fill.test()} fills buffer and returns whether block data was
+	 * complete
+	 *
+	 * @param priority
+	 *            loading priority (smaller is more urgent)
+	 * @param version
+	 *            required version of the block content (see
+	 *            {@link FillTask#getVersion()})
+	 */
+	public DefaultFillTask( final ImageBlockKey< ? > key, final Predicate< UploadBuffer > fill, final BooleanSupplier containsData, final double priority, final int version )
 	{
 		this.key = key;
 		this.fill = fill;
 		this.containsData = containsData;
+		this.priority = priority;
+		this.version = version;
 	}
 
 	@Override
@@ -37,6 +70,18 @@ public class DefaultFillTask implements FillTask
 		return containsData.getAsBoolean();
 	}
 
+	@Override
+	public double getPriority()
+	{
+		return priority;
+	}
+
+	@Override
+	public int getVersion()
+	{
+		return version;
+	}
+
 	@Override
 	public void fill( final UploadBuffer buffer )
 	{
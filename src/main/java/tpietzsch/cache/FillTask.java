@@ -7,4 +7,30 @@ public interface FillTask
 	boolean containsData();
 
 	void fill( UploadBuffer buffer );
+
+	/**
+	 * Loading priority of this task. Tasks with smaller values are processed
+	 * first, so that partially processed batches contain the most important
+	 * blocks. Tasks of different images are sorted together, so priorities
+	 * should be on a common scale.
+	 *
+	 * @return loading priority (smaller is more urgent)
+	 */
+	default double getPriority()
+	{
+		return 0;
+	}
+
+	/**
+	 * Version stamp that the block content must have. If the block is
+	 * present in the cache with an older {@link TextureCache.Tile#version()
+	 * version} (e.g., because it was quantized with an outdated intensity
+	 * window), it is filled again.
+	 *
+	 * @return required version (the default {@code 0} accepts any content)
+	 */
+	default int getVersion()
+	{
+		return 0;
+	}
 }
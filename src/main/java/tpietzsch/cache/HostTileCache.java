@@ -0,0 +1,275 @@
+package tpietzsch.cache;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import net.imglib2.util.Intervals;
+import tpietzsch.blocks.ByteUtils;
+
+/**
+ * Host-side (second-level) cache of padded tiles, in the upload format of a
+ * {@link CacheSpec}. Tiles are stored off-heap, in direct {@code ByteBuffer}
+ * slabs, and keyed by {@link ImageBlockKey}.
+ * <p>
+ * Only complete tiles should be {@link #put(ImageBlockKey, UploadBuffer) put}
+ * into the cache. A tile that is evicted from the {@link TextureCache} and is
+ * needed again can then be {@link #get(ImageBlockKey, UploadBuffer) copied}
+ * into the {@link UploadBuffer} with a single memcpy, instead of gathering
+ * and padding it from source cells again.
+ * <p>
+ * The total size of all slabs is limited by a byte budget. When the budget is
+ * exhausted, the least recently used tile is evicted.
+ * <p>
+ * This class is thread-safe. Tiles are copied into and out of their slots
+ * without holding the lock: a slot is pinned while it is being copied, and
+ * pinned slots are not reused until the copy is done.
+ */
+public class HostTileCache
+{
+	/** max size of one slab in bytes */
+	private static final long MAX_SLAB_SIZE = 1 << 30;
+
+	private final int tileSizeInBytes;
+
+	private final int maxNumTiles;
+
+	private final int tilesPerSlab;
+
+	private final ArrayList< ByteBuffer > slabs = new ArrayList<>();
+
+	/** number of slots allocated so far (in {@link #slabs}) */
+	private int numAllocatedTiles;
+
+	/** maps key to slot index, in access order */
+	private final LinkedHashMap< ImageBlockKey< ? >, Integer > slots = new LinkedHashMap<>( 16, 0.75f, true );
+
+	/** number of threads copying from or into each slot */
+	private int[] pins = new int[ 0 ];
+
+	/** slots that were evicted or cleared while pinned, to be freed when unpinned */
+	private final BitSet retired = new BitSet();
+
+	/** allocated slots that are not in use */
+	private final ArrayDeque< Integer > freeSlots = new ArrayDeque<>();
+
+	/** incremented by {@link #clear()}, so that concurrent {@link #put}s are discarded */
+	private int generation;
+
+	private final LongAdder hits = new LongAdder();
+
+	private final LongAdder misses = new LongAdder();
+
+	private final LongAdder evictions = new LongAdder();
+
+	/**
+	 * @param cacheSpec
+	 * 		specifies tile size and format
+	 * @param maxSizeInBytes
+	 * 		max memory to use for cached tiles
+	 */
+	public HostTileCache( final CacheSpec cacheSpec, final long maxSizeInBytes )
+	{
+		tileSizeInBytes = cacheSpec.format().getBytesPerElement() * ( int ) Intervals.numElements( cacheSpec.paddedBlockSize() );
+		maxNumTiles = ( int ) Math.min( Integer.MAX_VALUE, maxSizeInBytes / tileSizeInBytes );
+		tilesPerSlab = ( int ) Math.max( 1, Math.min( maxNumTiles, MAX_SLAB_SIZE / tileSizeInBytes ) );
+	}
+
+	/**
+	 * If the tile for {@code key} is cached, copy it into {@code buffer}.
+	 *
+	 * @return {@code true} if the tile was cached (and copied).
+	 */
+	public boolean get( final ImageBlockKey< ? > key, final UploadBuffer buffer )
+	{
+		final Integer slot;
+		final long address;
+		synchronized ( this )
+		{
+			slot = slots.get( key );
+			if ( slot == null )
+			{
+				misses.increment();
+				return false;
+			}
+			++pins[ slot ];
+			address = addressOf( slot );
+		}
+		ByteUtils.copyBytes( address, buffer.getAddress(), tileSizeInBytes );
+		unpin( slot );
+		hits.increment();
+		return true;
+	}
+
+	/**
+	 * Store a copy of the (complete) tile in {@code buffer} for {@code key}.
+	 * Evicts the least recently used tile, if the byte budget is exhausted.
+	 */
+	public void put( final ImageBlockKey< ? > key, final UploadBuffer buffer )
+	{
+		if ( maxNumTiles == 0 )
+			return;
+
+		final int slot;
+		final long address;
+		final int gen;
+		synchronized ( this )
+		{
+			if ( slots.containsKey( key ) )
+				return;
+			slot = takeSlot();
+			if ( slot < 0 )
+				return;
+			++pins[ slot ];
+			address = addressOf( slot );
+			gen = generation;
+		}
+		ByteUtils.copyBytes( buffer.getAddress(), address, tileSizeInBytes );
+		synchronized ( this )
+		{
+			--pins[ slot ];
+			if ( gen != generation || slots.containsKey( key ) )
+				// cleared, or put concurrently by another thread
+				freeSlots.push( slot );
+			else
+				slots.put( key, slot );
+		}
+	}
+
+	/**
+	 * Remove all cached tiles. (Allocated memory is kept for reuse.)
+	 */
+	public synchronized void clear()
+	{
+		for ( final int slot : slots.values() )
+			retire( slot );
+		slots.clear();
+		++generation;
+	}
+
+	/**
+	 * Get a slot to copy a new tile into: a free slot, a newly allocated
+	 * slot, or the slot of the least recently used tile that is not pinned.
+	 * Must be called while holding the lock.
+	 *
+	 * @return slot index, or {@code -1} if all slots are pinned.
+	 */
+	private int takeSlot()
+	{
+		if ( !freeSlots.isEmpty() )
+			return freeSlots.pop();
+
+		if ( numAllocatedTiles < maxNumTiles )
+			return allocateSlot();
+
+		final Iterator< Map.Entry< ImageBlockKey< ? >, Integer > > it = slots.entrySet().iterator();
+		while ( it.hasNext() )
+		{
+			final int slot = it.next().getValue();
+			if ( pins[ slot ] == 0 )
+			{
+				it.remove();
+				evictions.increment();
+				return slot;
+			}
+		}
+		return -1;
+	}
+
+	private int allocateSlot()
+	{
+		final int slot = numAllocatedTiles++;
+		if ( slot / tilesPerSlab >= slabs.size() )
+			slabs.add( ByteBuffer.allocateDirect( tilesPerSlab * tileSizeInBytes ) );
+		if ( slot >= pins.length )
+			pins = Arrays.copyOf( pins, Math.min( maxNumTiles, Math.max( 16, 2 * pins.length ) ) );
+		return slot;
+	}
+
+	/**
+	 * Free a slot that was removed from {@link #slots}, or mark it for
+	 * freeing when it is unpinned. Must be called while holding the lock.
+	 */
+	private void retire( final int slot )
+	{
+		if ( pins[ slot ] == 0 )
+			freeSlots.push( slot );
+		else
+			retired.set( slot );
+	}
+
+	private synchronized void unpin( final int slot )
+	{
+		if ( --pins[ slot ] == 0 && retired.get( slot ) )
+		{
+			retired.clear( slot );
+			freeSlots.push( slot );
+		}
+	}
+
+	/**
+	 * Must be called while holding the lock ({@link #slabs} may grow).
+	 */
+	private long addressOf( final int slot )
+	{
+		final ByteBuffer slab = slabs.get( slot / tilesPerSlab );
+		return ByteUtils.addressOf( slab ) + ( long ) ( slot % tilesPerSlab ) * tileSizeInBytes;
+	}
+
+	/**
+	 * Number of {@link #get} calls that found the requested tile.
+	 */
+	public long getHits()
+	{
+		return hits.sum();
+	}
+
+	/**
+	 * Number of {@link #get} calls that did not find the requested tile.
+	 */
+	public long getMisses()
+	{
+		return misses.sum();
+	}
+
+	/**
+	 * Number of tiles evicted to make room for new ones.
+	 */
+	public long getEvictions()
+	{
+		return evictions.sum();
+	}
+
+	/**
+	 * Number of tiles currently cached.
+	 */
+	public synchronized int size()
+	{
+		return slots.size();
+	}
+
+	public void resetStatistics()
+	{
+		hits.reset();
+		misses.reset();
+		evictions.reset();
+	}
+
+	@Override
+	public String toString()
+	{
+		return "HostTileCache{" +
+				"size=" + size() +
+				", maxNumTiles=" + maxNumTiles +
+				", hits=" + getHits() +
+				", misses=" + getMisses() +
+				", evictions=" + getEvictions() +
+				'}';
+	}
+}
@@ -0,0 +1,217 @@
+package tpietzsch.cache;
+
+import java.util.Arrays;
+
+/**
+ * Decides whether blocks that can only be loaded partially (because some of
+ * the cells they are copied from are not available yet) are uploaded to the
+ * {@link TextureCache}.
+ * <p>
+ * Uploading partial blocks presents a more complete volume while data is
+ * loading, but consumes (typically much) more upload bandwidth, because the
+ * blocks are uploaded again when they become complete. Not uploading them
+ * saves bandwidth, but shows coarser data (or nothing) until the blocks are
+ * complete.
+ */
+public interface PartialUploadPolicy
+{
+	/**
+	 * Called (from filler threads) for a block that can be loaded partially
+	 * but not completely.
+	 *
+	 * @param coverage
+	 *            fraction of the screen covered by the block.
+	 * @param bytes
+	 *            size of the block upload in bytes.
+	 * @return whether the partial block should be uploaded.
+	 */
+	boolean uploadPartial( double coverage, long bytes );
+
+	/**
+	 * Whether this policy ever uploads partial blocks. If {@code false},
+	 * {@link #uploadPartial(double, long)} is never called, and checking
+	 * whether a block could be loaded partially is skipped.
+	 */
+	default boolean allowsPartialUploads()
+	{
+		return true;
+	}
+
+	/**
+	 * Called (on the render thread) before fill tasks for a new frame are
+	 * processed.
+	 *
+	 * @param uploadedBytes
+	 *            number of bytes uploaded to the {@link TextureCache} since
+	 *            the previous call.
+	 */
+	default void beginFrame( final long uploadedBytes )
+	{
+	}
+
+	enum Type
+	{
+		/**
+		 * Only complete blocks are uploaded.
+		 */
+		COMPLETE,
+
+		/**
+		 * Partial blocks are always uploaded.
+		 */
+		PARTIAL,
+
+		/**
+		 * Partial blocks are uploaded as long as the measured upload volume
+		 * per frame is below a budget. If the budget does not suffice, blocks
+		 * covering more of the screen are preferred.
+		 */
+		ADAPTIVE;
+
+		/**
+		 * @param budgetBytesPerFrame
+		 *            upload budget per frame (only used for {@code ADAPTIVE}).
+		 */
+		public PartialUploadPolicy create( final long budgetBytesPerFrame )
+		{
+			switch ( this )
+			{
+			case PARTIAL:
+				return new Partial();
+			case ADAPTIVE:
+				return new Adaptive( budgetBytesPerFrame );
+			case COMPLETE:
+			default:
+				return new CompleteOnly();
+			}
+		}
+	}
+
+	/**
+	 * Upload only complete blocks.
+	 */
+	class CompleteOnly implements PartialUploadPolicy
+	{
+		@Override
+		public boolean uploadPartial( final double coverage, final long bytes )
+		{
+			return false;
+		}
+
+		@Override
+		public boolean allowsPartialUploads()
+		{
+			return false;
+		}
+	}
+
+	/**
+	 * Always upload partial blocks.
+	 */
+	class Partial implements PartialUploadPolicy
+	{
+		@Override
+		public boolean uploadPartial( final double coverage, final long bytes )
+		{
+			return true;
+		}
+	}
+
+	/**
+	 * Upload partial blocks within a per-frame budget.
+	 * <p>
+	 * The budget for partial blocks in a frame is
+	 * {@code budgetBytesPerFrame} minus the (smoothed) number of bytes
+	 * uploaded per frame, i.e., partial blocks are only uploaded while the
+	 * upload bandwidth is not saturated.
+	 * <p>
+	 * Partial blocks are only uploaded if they cover at least a minimum
+	 * fraction of the screen. When partial blocks were rejected because the
+	 * budget was exhausted, the minimum coverage for the next frame is raised
+	 * such that (assuming similar requests) only the partial blocks covering
+	 * most of the screen fit into the budget. Otherwise it is halved.
+	 */
+	class Adaptive implements PartialUploadPolicy
+	{
+		private static final double ALPHA = 0.5;
+
+		private final long budgetBytesPerFrame;
+
+		// smoothed number of bytes uploaded per frame, or -1 if not measured yet
+		private double uploadedBytesPerFrame = -1;
+
+		// remaining budget for partial blocks in the current frame
+		private long remaining;
+
+		// min coverage of partial blocks uploaded in the current frame
+		private double minCoverage;
+
+		// coverages of partial blocks requested in the current frame
+		private double[] requested = new double[ 64 ];
+
+		private int numRequested;
+
+		// total bytes of partial blocks requested in the current frame
+		private long requestedBytes;
+
+		// whether partial blocks were rejected for lack of budget in the current frame
+		private boolean exhausted;
+
+		public Adaptive( final long budgetBytesPerFrame )
+		{
+			this.budgetBytesPerFrame = budgetBytesPerFrame;
+			remaining = budgetBytesPerFrame;
+		}
+
+		@Override
+		public synchronized boolean uploadPartial( final double coverage, final long bytes )
+		{
+			if ( numRequested == requested.length )
+				requested = Arrays.copyOf( requested, 2 * numRequested );
+			requested[ numRequested++ ] = coverage;
+			requestedBytes += bytes;
+
+			if ( coverage < minCoverage )
+				return false;
+			if ( remaining < bytes )
+			{
+				exhausted = true;
+				return false;
+			}
+			remaining -= bytes;
+			return true;
+		}
+
+		@Override
+		public synchronized void beginFrame( final long uploadedBytes )
+		{
+			uploadedBytesPerFrame = uploadedBytesPerFrame < 0
+					? uploadedBytes
+					: ( 1 - ALPHA ) * uploadedBytesPerFrame + ALPHA * uploadedBytes;
+			remaining = Math.max( 0, budgetBytesPerFrame - ( long ) uploadedBytesPerFrame );
+
+			if ( exhausted )
+			{
+				// number of requested blocks that fit into the budget (at least 1)
+				final int n = numRequested;
+				final int k = ( int ) Math.max( 1, Math.min( n, remaining * n / requestedBytes ) );
+				Arrays.sort( requested, 0, n );
+				minCoverage = requested[ n - k ];
+			}
+			else
+				minCoverage /= 2;
+			exhausted = false;
+			numRequested = 0;
+			requestedBytes = 0;
+		}
+
+		/**
+		 * @return the min screen coverage of partial blocks to be uploaded
+		 *         in the current frame.
+		 */
+		public synchronized double getMinCoverage()
+		{
+			return minCoverage;
+		}
+	}
+}
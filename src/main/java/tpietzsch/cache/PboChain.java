@@ -1,17 +1,21 @@
 package tpietzsch.cache;
 
 import java.nio.Buffer;
-import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
 import net.imglib2.util.Intervals;
 import tpietzsch.backend.GpuContext;
 import tpietzsch.backend.StagingBuffer;
+import tpietzsch.blocks.ByteUtils;
 import tpietzsch.cache.TextureCache.StagedTasks;
 import tpietzsch.cache.TextureCache.Tile;
 import tpietzsch.cache.TextureCache.TileFillTask;
@@ -21,29 +25,61 @@ import static tpietzsch.cache.PboChain.PboChainState.FLUSH;
 import static tpietzsch.cache.PboChain.PboState.CLEAN;
 import static tpietzsch.cache.PboChain.PboState.MAPPED;
 import static tpietzsch.cache.PboChain.PboState.UNMAPPED;
-
+import static tpietzsch.cache.TextureCache.ContentState.COMPLETE;
+
+/**
+ * A ring of Pbos that are filled by (many) filler threads and uploaded to the
+ * {@link TextureCache} by the gpu maintenance thread.
+ * <p>
+ * Fillers reserve and commit upload slots in the active Pbo with atomic
+ * counters, without locking. Threads only park when there is genuinely
+ * nothing to do: fillers when the active Pbo is exhausted and no clean Pbo
+ * has been activated yet, the gpu maintenance thread when there is nothing to
+ * activate or upload. Parking goes through
+ * {@link ForkJoinPool#managedBlock(ForkJoinPool.ManagedBlocker)}, so that a
+ * (shared) {@code ForkJoinPool} running the fillers can compensate for
+ * blocked workers.
+ * <p>
+ * If constructed with a staging memory cap, number and size of Pbos are
+ * adapted between batches, based on measured fill and upload throughput (see
+ * {@link Geometry}).
+ */
 public class PboChain
 {
-	private final int numBufs; // number of PBOs to create
-	private final int bufSize; // size in blocks of each PBO
+	private int numBufs; // number of PBOs to use
+	private int bufSize; // size in blocks of each PBO
 	private final int blockSize; // size in bytes of each block
+	private final int bytesPerElement;
+	private final int[] blockDimensions;
+	private final TextureCache cache;
 
-	private final Queue< Pbo > cleanPbos;
-	private final Queue< Pbo > readyForUploadPbos;
-	private Pbo activePbo;
+	/** max total size in bytes of all PBOs, or {@code 0} for fixed geometry */
+	private final long maxStagingBytes;
+
+	/** number of filler threads (for adapting geometry) */
+	private final int parallelism;
+
+	/** PBOs of the current geometry */
+	private final List< Pbo > allPbos = new ArrayList<>();
 
+	/** PBOs that are no longer used, to be deleted on the gpu maintenance thread */
+	private final Queue< Pbo > retiredPbos = new ConcurrentLinkedQueue<>();
 
-	/** Main lock guarding all access */
-	private final ReentrantLock lock;
+	final Throughput throughput = new Throughput();
+
+	/** total number of bytes uploaded so far */
+	private long numUploadedBytes;
+
+	private final Queue< Pbo > cleanPbos;
+	private final Queue< Pbo > readyForUploadPbos;
+	private volatile Pbo activePbo;
 
-	/** Condition for waiting takes */
-	private final Condition notEmpty;
 
-	/** Condition for waiting maintain */
-	private final Condition gpu;
+	/** Thread running {@link #maintain(GpuContext)}, to be unparked when there is something to activate or upload */
+	private volatile Thread gpuThread;
 
-	/** Condition for waiting init */
-	private final Condition allClean;
+	/** Threads parked in {@link #take(TileFillTask)} or {@link #init(StagedTasks)} */
+	private final Queue< Thread > waiters = new ConcurrentLinkedQueue<>();
 
 
 	/** tile fill tasks in current batch */
@@ -53,10 +89,10 @@ public class PboChain
 	private List< Tile > reusableTiles;
 
 	/** index of next task in {@code fillTileTasks} */
-	private AtomicInteger ti = new AtomicInteger();
+	private final AtomicInteger ti = new AtomicInteger();
 
 	/** index of next tile in {@code reusableTiles} */
-	private int rti;
+	private final AtomicInteger rti = new AtomicInteger();
 
 	/**
 	 *
@@ -72,7 +108,26 @@ public class PboChain
 		this( numBufs, bufSize,
 				cache.spec().format().getBytesPerElement() * ( int ) Intervals.numElements( cache.spec().paddedBlockSize() ),
 				cache.spec().paddedBlockSize(),
-				cache );
+				cache, 0, 1 );
+	}
+
+	/**
+	 * Create a {@code PboChain} that adapts number and size of its PBOs to
+	 * measured fill and upload throughput.
+	 *
+	 * @param maxStagingBytes max total size in bytes of all PBOs
+	 * @param parallelism number of threads filling PBOs
+	 * @param cache texture to upload to
+	 */
+	public PboChain(
+			final long maxStagingBytes,
+			final int parallelism,
+			final TextureCache cache )
+	{
+		this( Geometry.DEFAULT_NUM_BUFS, Geometry.DEFAULT_BUF_SIZE,
+				cache.spec().format().getBytesPerElement() * ( int ) Intervals.numElements( cache.spec().paddedBlockSize() ),
+				cache.spec().paddedBlockSize(),
+				cache, maxStagingBytes, parallelism );
 	}
 
 	/**
@@ -82,29 +137,83 @@ public class PboChain
 	 * @param blockSize size in bytes of each block
 	 * @param blockDimensions dimensions of each block
 	 * @param cache texture to upload to
+	 * @param maxStagingBytes max total size in bytes of all PBOs, or {@code 0} for fixed geometry
+	 * @param parallelism number of threads filling PBOs
 	 */
-	// TODO: remove? (inline into other constructor)
 	PboChain(
 			final int numBufs,
 			final int bufSize,
 			final int blockSize,
 			final int[] blockDimensions,
-			final TextureCache cache )
+			final TextureCache cache,
+			final long maxStagingBytes,
+			final int parallelism )
 	{
-		this.numBufs = numBufs;
-		this.bufSize = bufSize;
 		this.blockSize = blockSize;
+		this.bytesPerElement = cache.spec().format().getBytesPerElement();
+		this.blockDimensions = blockDimensions;
+		this.cache = cache;
+		this.maxStagingBytes = maxStagingBytes;
+		this.parallelism = Math.max( 1, parallelism );
+
+		cleanPbos = new ConcurrentLinkedQueue<>();
+		readyForUploadPbos = new ConcurrentLinkedQueue<>();
+		if ( maxStagingBytes > 0 )
+			setGeometry( Geometry.clamp( numBufs, bufSize, blockSize, maxStagingBytes ) );
+		else
+			setGeometry( new Geometry( numBufs, bufSize ) );
+	}
 
-		cleanPbos = new ArrayDeque<>( numBufs );
+	/**
+	 * Use {@code geometry.numBufs} PBOs (creating them if necessary), each
+	 * with {@code geometry.bufSize} blocks. PBOs that are no longer needed are
+	 * retired, and their staging buffers deleted in the next
+	 * {@link #tryActivate(GpuContext)}. (The staging buffers of the remaining
+	 * PBOs are reallocated with the new size when they are mapped.) Must only
+	 * be called when all PBOs are clean.
+	 */
+	private void setGeometry( final Geometry geometry )
+	{
+		numBufs = geometry.numBufs;
+		bufSize = geometry.bufSize;
+		while ( allPbos.size() < numBufs )
+			allPbos.add( new Pbo( bufSize, blockSize, blockDimensions, cache ) );
+		while ( allPbos.size() > numBufs )
+			retiredPbos.add( allPbos.remove( allPbos.size() - 1 ) );
+		cleanPbos.clear();
 		for ( int i = 0; i < numBufs; i++ )
-			cleanPbos.add( new Pbo( bufSize, blockSize, blockDimensions, cache ) );
-		readyForUploadPbos = new ArrayDeque<>( numBufs );
+		{
+			final Pbo pbo = allPbos.get( i );
+			pbo.setBufSize( bufSize );
+			cleanPbos.add( pbo );
+		}
 		activePbo = cleanPbos.peek();
+	}
 
-		lock = new ReentrantLock();
-		notEmpty = lock.newCondition();
-		gpu = lock.newCondition();
-		allClean = lock.newCondition();
+	/**
+	 * Number of PBOs currently in use.
+	 */
+	public int getNumBufs()
+	{
+		return numBufs;
+	}
+
+	/**
+	 * Size in blocks of each PBO currently in use.
+	 */
+	public int getBufSize()
+	{
+		return bufSize;
+	}
+
+	/**
+	 * Total number of bytes staged in PBOs and uploaded so far. (Blocks whose
+	 * upload was skipped, e.g. because they were mapped to a shared tile, are
+	 * included.)
+	 */
+	public long getNumUploadedBytes()
+	{
+		return numUploadedBytes;
 	}
 
 
@@ -127,7 +236,7 @@ public class PboChain
 	/**
 	 * Take next available UploadBuffer. (Blocks if necessary until one is
 	 * available). When taking the last UploadBuffer of the active Pbo,
-	 * {@code gpu.signal()} to activate next Pbo.
+	 * the gpu thread is unparked to activate the next Pbo.
 	 *
 	 * @return new buffer to be filled and {@link #commit(PboUploadBuffer)
 	 *         committed}.
@@ -140,72 +249,174 @@ public class PboChain
 	 */
 	PboUploadBuffer take( final TileFillTask task ) throws InterruptedException, NoSuchElementException, IllegalStateException
 	{
-		final ReentrantLock lock = this.lock;
-		lock.lockInterruptibly();
-		try
-		{
-			if ( chainState != FILL )
-				throw new IllegalStateException();
+		if ( chainState != FILL )
+			throw new IllegalStateException();
 
-			while ( !activePbo.hasRemainingBuffers() )
-				notEmpty.await();
+		final boolean needsTile = task.getTile() == null;
+		if ( needsTile && rti.get() >= reusableTiles.size() )
+			throw new NoSuchElementException();
 
-			if ( task.getTile() == null )
+		while ( true )
+		{
+			final Pbo pbo = activePbo;
+			final int i = pbo.reserve();
+			if ( i >= 0 )
 			{
-				if ( rti >= reusableTiles.size() )
-					throw new NoSuchElementException();
+				final PboUploadBuffer buffer = pbo.takeBuffer( i );
 
-				task.setTile( reusableTiles.get( rti++ ) );
-			}
+				/*
+				 * Take the tile right after reserving the slot, such that
+				 * consecutive slots get consecutive tiles (which can then be
+				 * uploaded with one texSubImage3D call).
+				 */
+				boolean noTileLeft = false;
+				if ( needsTile )
+				{
+					final int t = rti.getAndIncrement();
+					if ( t < reusableTiles.size() )
+						task.setTile( reusableTiles.get( t ) );
+					else
+						noTileLeft = true;
+				}
 
-			final PboUploadBuffer buffer = activePbo.takeBuffer();
-			buffer.setTask( task );
-			if ( !activePbo.hasRemainingBuffers() )
-			{
-//				System.out.println( "take() last buffer --> gpu.signal() to trigger activate" );
-				gpu.signal();
-			}
+				if ( i == pbo.bufSize - 1 )
+				{
+					// took the last buffer: pbo is closed, activate the next one
+					if ( pbo.close( pbo.bufSize ) )
+						enqueueForUpload( pbo );
+					signalGpu();
+				}
 
-			return buffer;
-		}
-		finally
-		{
-			lock.unlock();
+				if ( noTileLeft )
+				{
+					// (another filler took the last tile concurrently.) release the slot without uploading it.
+					buffer.skipUpload = true;
+					if ( pbo.commitBuffer() )
+						enqueueForUpload( pbo );
+					throw new NoSuchElementException();
+				}
+
+				buffer.setTask( task );
+				buffer.setContentHashRequested( cache.isContentHashDedup() );
+				buffer.setVersion( 0 );
+				return buffer;
+			}
+			awaitActivated( pbo );
 		}
 	}
 
 	/**
-	 * Commit {@code buffer}. When committing the last UploadBuffer of a Pbo,
-	 * {@code gpu.signal()} to upload the Pbo.
+	 * Commit {@code buffer}. When committing the last UploadBuffer of a
+	 * (closed) Pbo, the gpu thread is unparked to upload the Pbo.
 	 *
 	 * @param buffer
 	 *            buffer to commit
 	 */
 	void commit( final PboUploadBuffer buffer )
 	{
-		final ReentrantLock lock = this.lock;
-		lock.lock();
+		if ( chainState != FILL )
+			throw new IllegalStateException();
+
+		final long fillNanos = System.nanoTime() - buffer.takeNanoTime;
+		throughput.fillNanos.add( fillNanos );
+		throughput.fillBlocks.increment();
+		cache.fillCompleted( buffer.task.getKey().image(), fillNanos );
+
+		// read value of uniform blocks while the buffer is still mapped
+		if ( buffer.isUniform() && buffer.getContentState() == COMPLETE )
+			buffer.uniformValue = ByteUtils.getBits( buffer.getAddress(), bytesPerElement );
+		else
+			buffer.setUniform( false );
+
+		final Pbo pbo = buffer.pbo;
+		if ( pbo.commitBuffer() )
+			enqueueForUpload( pbo );
+	}
+
+	/**
+	 * Park until {@code pbo} is no longer the exhausted active Pbo.
+	 */
+	private void awaitActivated( final Pbo pbo ) throws InterruptedException
+	{
+		final Thread thread = Thread.currentThread();
+		waiters.add( thread );
 		try
 		{
-			if ( chainState != FILL )
+			final BooleanSupplier exhausted = () -> activePbo == pbo && !pbo.hasRemainingBuffers();
+			park( () -> !exhausted.getAsBoolean() || chainState != FILL );
+			if ( chainState != FILL && exhausted.getAsBoolean() )
 				throw new IllegalStateException();
-
-			final Pbo pbo = buffer.pbo;
-			pbo.commitBuffer();
-
-			if ( pbo.isReadyForUpload() )
-			{
-				readyForUploadPbos.add( pbo );
-//				System.out.println( "commit() makes pbo.isReadyForUpload -> gpu.signal() to trigger upload" );
-				gpu.signal();
-			}
 		}
 		finally
 		{
-			lock.unlock();
+			waiters.remove( thread );
 		}
 	}
 
+	/**
+	 * Park the current thread until {@code releasable} is {@code true}. If
+	 * called from a {@code ForkJoinPool} worker, the pool may activate a
+	 * spare thread while this one is blocked.
+	 */
+	private void park( final BooleanSupplier releasable ) throws InterruptedException
+	{
+		park( releasable, false, 0 );
+	}
+
+	/**
+	 * Park the current thread until {@code releasable} is {@code true}, or
+	 * until {@code System.nanoTime()} exceeds {@code maxNanoTime}.
+	 */
+	private void park( final BooleanSupplier releasable, final long maxNanoTime ) throws InterruptedException
+	{
+		park( releasable, true, maxNanoTime );
+	}
+
+	private void park( final BooleanSupplier releasable, final boolean timed, final long maxNanoTime ) throws InterruptedException
+	{
+		ForkJoinPool.managedBlock( new ForkJoinPool.ManagedBlocker()
+		{
+			@Override
+			public boolean block() throws InterruptedException
+			{
+				if ( isReleasable() )
+					return true;
+				if ( timed )
+					LockSupport.parkNanos( PboChain.this, maxNanoTime - System.nanoTime() );
+				else
+					LockSupport.park( PboChain.this );
+				if ( Thread.interrupted() )
+					throw new InterruptedException();
+				return isReleasable();
+			}
+
+			@Override
+			public boolean isReleasable()
+			{
+				return releasable.getAsBoolean() || ( timed && System.nanoTime() - maxNanoTime >= 0 );
+			}
+		} );
+	}
+
+	private void enqueueForUpload( final Pbo pbo )
+	{
+		readyForUploadPbos.add( pbo );
+		signalGpu();
+	}
+
+	private void signalGpu()
+	{
+		final Thread thread = gpuThread;
+		if ( thread != null )
+			LockSupport.unpark( thread );
+	}
+
+	private void signalWaiters()
+	{
+		for ( final Thread thread : waiters )
+			LockSupport.unpark( thread );
+	}
+
 
 	/*
 	 * ====================================================
@@ -219,37 +430,24 @@ public class PboChain
 		FILL
 	}
 
-	private PboChainState chainState = FLUSH;
+	private volatile PboChainState chainState = FLUSH;
 
 	/**
 	 * Finalize a batch of cache tile uploads.
 	 */
 	public void flush()
 	{
-		final ReentrantLock lock = this.lock;
-		lock.lock();
-		try
-		{
-			if ( chainState != FILL )
-				throw new IllegalStateException();
-
-			chainState = FLUSH;
+		if ( chainState != FILL )
+			throw new IllegalStateException();
 
-//			System.out.println( "flush()" );
-//			System.out.println( "  activePbo.nextIndex = " + activePbo.nextIndex + " / " + activePbo.bufSize + "  uncommitted = " + activePbo.uncommitted );
+		chainState = FLUSH;
 
-			if ( activePbo.flush() )
-			{
-				// Pbo.flush() returns true if the Pbo becomes immediately ready for upload
-				readyForUploadPbos.add( activePbo );
-//				System.out.println( "flush() make activePbo immediately ready -> gpu.signal() for" );
-			}
-			gpu.signal();
-		}
-		finally
-		{
-			lock.unlock();
-		}
+		// Pbo.close() returns true if the Pbo becomes immediately ready for upload
+		final Pbo pbo = activePbo;
+		if ( pbo.close() )
+			enqueueForUpload( pbo );
+		signalGpu();
+		signalWaiters();
 	}
 
 	/**
@@ -257,21 +455,7 @@ public class PboChain
 	 */
 	public boolean ready()
 	{
-		final ReentrantLock lock = this.lock;
-		lock.lock();
-		try
-		{
-//			System.out.println();
-//			System.out.println( "PboChain.ready() = " + ( chainState == FLUSH && cleanPbos.size() == numBufs ) );
-//			System.out.println( "  chainState = " + chainState );
-//			System.out.println( "  cleanPbos.size = " + cleanPbos.size() + " / " + numBufs );
-//			System.out.println( "  readyForUploadPbos.size = " + readyForUploadPbos.size() + " / " + numBufs );
-			return chainState == FLUSH && cleanPbos.size() == numBufs;
-		}
-		finally
-		{
-			lock.unlock();
-		}
+		return chainState == FLUSH && cleanPbos.size() == numBufs;
 	}
 
 	/**
@@ -279,23 +463,25 @@ public class PboChain
 	 */
 	public void init( final StagedTasks stagedTasks ) throws InterruptedException
 	{
-		final ReentrantLock lock = this.lock;
-		lock.lockInterruptibly();
+		final Thread thread = Thread.currentThread();
+		waiters.add( thread );
 		try
 		{
-			while ( !ready() )
-				allClean.await();
-
-			this.tileFillTasks = stagedTasks.tasks;
-			this.reusableTiles = stagedTasks.reusableTiles;
-			this.ti.set( 0 );
-			this.rti = 0;
-			chainState = FILL;
+			park( this::ready );
 		}
 		finally
 		{
-			lock.unlock();
+			waiters.remove( thread );
 		}
+
+		if ( maxStagingBytes > 0 )
+			setGeometry( throughput.adapt( numBufs, bufSize, blockSize, maxStagingBytes, parallelism ) );
+
+		this.tileFillTasks = stagedTasks.tasks;
+		this.reusableTiles = stagedTasks.reusableTiles;
+		this.ti.set( 0 );
+		this.rti.set( 0 );
+		chainState = FILL;
 	}
 
 
@@ -305,97 +491,128 @@ public class PboChain
 	 * ====================================================
 	 */
 
+	/**
+	 * @return whether there is nothing to activate and nothing to upload.
+	 */
+	private boolean idle()
+	{
+		return ( chainState == FLUSH || activePbo.hasRemainingBuffers() || cleanPbos.peek() == null ) // nothing to activate
+				&& readyForUploadPbos.peek() == null; // nothing to upload
+	}
+
 	/**
 	 * Maps and unmaps Pbos and uploads to texture. Runs until flush() is
 	 * completed
 	 */
 	public void maintain( final GpuContext context ) throws InterruptedException
 	{
-		while ( !ready() )
+		gpuThread = Thread.currentThread();
+		try
 		{
-			final ReentrantLock lock = this.lock;
-			lock.lockInterruptibly();
-			try
+			while ( !ready() )
 			{
-				while ( ( chainState == FLUSH || activePbo.hasRemainingBuffers() || cleanPbos.peek() == null ) // nothing to activate
-						&& readyForUploadPbos.peek() == null ) // nothing to upload
-				{
-//					System.out.println("gpu.await();");
-//					System.out.println( "  chainState = " + chainState );
-//					System.out.println( "  cleanPbos.size = " + cleanPbos.size() + " / " + numBufs );
-//					System.out.println( "  readyForUploadPbos.size = " + readyForUploadPbos.size() + " / " + numBufs );
-//					System.out.println( "  activePbo.nextIndex = " + activePbo.nextIndex + " / " + activePbo.bufSize + "  uncommitted = " + activePbo.uncommitted );
-					gpu.await();
-				}
-//				System.out.println("go");
+				park( () -> !idle() );
+				tryActivate( context );
+				tryUpload( context );
 			}
-			finally
+		}
+		finally
+		{
+			gpuThread = null;
+		}
+	}
+
+	/**
+	 * Maps and unmaps Pbos and uploads to texture. Runs until flush() is
+	 * completed, or until {@code System.nanoTime()} exceeds
+	 * {@code maxNanoTime}.
+	 * <p>
+	 * The batch is suspended between Pbos: Fillers keep filling the active
+	 * Pbo (and block when it is exhausted), and already committed buffers
+	 * remain queued for upload. Call {@code maintain()} again to resume. A new
+	 * batch can only be {@link #init(StagedTasks) initialized} after the
+	 * current one is completed.
+	 * <p>
+	 * Work that is possible without waiting (activating a Pbo for blocked
+	 * fillers, uploading a ready Pbo) is done before returning, even if the
+	 * deadline has already passed. So every call makes progress.
+	 *
+	 * @param maxNanoTime
+	 *            {@code System.nanoTime()} deadline.
+	 * @return {@code true} if the batch is completed (i.e., {@link #ready()}),
+	 *         {@code false} if it was suspended.
+	 */
+	public boolean maintain( final GpuContext context, final long maxNanoTime ) throws InterruptedException
+	{
+		gpuThread = Thread.currentThread();
+		try
+		{
+			while ( !ready() )
 			{
-				lock.unlock();
+				final boolean activated = tryActivate( context );
+				final boolean uploaded = tryUpload( context );
+				if ( ready() )
+					return true;
+				if ( System.nanoTime() - maxNanoTime >= 0 )
+					return false;
+				if ( !activated && !uploaded )
+					park( () -> !idle(), maxNanoTime );
 			}
-			tryActivate( context );
-			tryUpload( context );
-//			final boolean a = tryActivate( context );
-//			System.out.println( "a = " + a );
-//			final boolean u = tryUpload( context );
-//			System.out.println( "u = " + u );
+			return true;
+		}
+		finally
+		{
+			gpuThread = null;
 		}
-//		System.out.println( "done" );
-//		System.out.println( "=====================" );
 	}
 
 	/**
-	 * Activate next Pbo if necessary and possible. Signals {@code notEmpty} if
+	 * Activate next Pbo if necessary and possible. Unparks waiting fillers if
 	 * Pbo is activated.
 	 *
 	 * @return whether a Pbo was activated.
 	 */
 	public boolean tryActivate( final GpuContext context )
 	{
-		Pbo pbo = null;
-
-		final ReentrantLock lock = this.lock;
-		lock.lock();
-		try
-		{
-			if ( chainState == FLUSH )
-				return false;
+		deleteRetiredPbos( context );
 
-			if ( activePbo.hasRemainingBuffers() )
-				return false;
+		if ( chainState == FLUSH )
+			return false;
 
-			pbo = cleanPbos.poll();
-		}
-		finally
-		{
-			lock.unlock();
-		}
+		if ( activePbo.hasRemainingBuffers() )
+			return false;
 
+		final Pbo pbo = cleanPbos.poll();
 		if ( pbo == null )
 			return false;
+		final long t0 = System.nanoTime();
 		pbo.map( context );
+		throughput.mapNanos += System.nanoTime() - t0;
+		throughput.mapCount++;
 
-		lock.lock();
-		try
+		if ( chainState == FLUSH )
 		{
-			if ( chainState == FLUSH )
-			{
-				// oops, that map() was unnecessary...
-				pbo.flush();
-				readyForUploadPbos.add( pbo );
-				gpu.signal();
-			}
-			else
-			{
-				activePbo = pbo;
-				notEmpty.signalAll();
-			}
-			return true;
+			// oops, that map() was unnecessary...
+			if ( pbo.close() )
+				enqueueForUpload( pbo );
 		}
-		finally
+		else
 		{
-			lock.unlock();
+			activePbo = pbo;
+			signalWaiters();
+
+			// flush() may have happened concurrently, and closed the previous activePbo
+			if ( chainState == FLUSH && pbo.close() )
+				enqueueForUpload( pbo );
 		}
+		return true;
+	}
+
+	private void deleteRetiredPbos( final GpuContext context )
+	{
+		Pbo pbo;
+		while ( ( pbo = retiredPbos.poll() ) != null )
+			context.delete( pbo );
 	}
 
 	/**
@@ -405,37 +622,129 @@ public class PboChain
 	 */
 	public boolean tryUpload( final GpuContext context )
 	{
-		Pbo pbo = null;
-
-		final ReentrantLock lock = this.lock;
-		lock.lock();
-		try
-		{
-			pbo = readyForUploadPbos.poll();
-		}
-		finally
-		{
-			lock.unlock();
-		}
-
+		final Pbo pbo = readyForUploadPbos.poll();
 		if ( pbo == null )
 			return false;
+		final long t0 = System.nanoTime();
+		final int numBlocks = pbo.numTaken;
 		pbo.unmap( context );
 		pbo.uploadToTexture( context );
+		throughput.uploadNanos += System.nanoTime() - t0;
+		throughput.uploadBlocks += numBlocks;
+		numUploadedBytes += ( long ) numBlocks * blockSize;
 
-		lock.lock();
-		try
+		cleanPbos.add( pbo );
+		if ( cleanPbos.size() == numBufs )
+			signalWaiters();
+
+		return true;
+	}
+
+
+	/*
+	 * ====================================================
+	 * adapting PBO geometry.
+	 * ====================================================
+	 */
+
+	/**
+	 * Number and size of PBOs.
+	 */
+	static class Geometry
+	{
+		static final int DEFAULT_NUM_BUFS = 5;
+
+		static final int DEFAULT_BUF_SIZE = 100;
+
+		static final int MIN_NUM_BUFS = 2;
+
+		static final int MAX_NUM_BUFS = 16;
+
+		final int numBufs;
+
+		final int bufSize;
+
+		Geometry( final int numBufs, final int bufSize )
 		{
-			cleanPbos.add( pbo );
-			if ( cleanPbos.size() == numBufs )
-				allClean.signalAll();
+			this.numBufs = numBufs;
+			this.bufSize = bufSize;
 		}
-		finally
+
+		/**
+		 * Shrink {@code bufSize} (and if that is not enough {@code numBufs})
+		 * such that the PBOs fit into {@code maxStagingBytes}.
+		 */
+		static Geometry clamp( int numBufs, int bufSize, final int blockSize, final long maxStagingBytes )
 		{
-			lock.unlock();
+			numBufs = Math.max( MIN_NUM_BUFS, Math.min( MAX_NUM_BUFS, numBufs ) );
+			final long maxBlocks = Math.max( 1, maxStagingBytes / blockSize );
+			bufSize = ( int ) Math.max( 1, Math.min( bufSize, maxBlocks / numBufs ) );
+			numBufs = ( int ) Math.max( 1, Math.min( numBufs, maxBlocks / bufSize ) );
+			return new Geometry( numBufs, bufSize );
 		}
+	}
 
-		return true;
+	/**
+	 * Fill and upload timings, accumulated during a batch and smoothed over
+	 * batches.
+	 * <p>
+	 * Fill times are measured by the filler threads from {@code take()} to
+	 * {@code commit()}. Map and upload (unmap + texSubImage3D) times are
+	 * measured by the gpu maintenance thread.
+	 */
+	static class Throughput
+	{
+		// current batch
+		final LongAdder fillNanos = new LongAdder();
+		final LongAdder fillBlocks = new LongAdder();
+		long mapNanos;
+		long mapCount;
+		long uploadNanos;
+		long uploadBlocks;
+
+		// smoothed estimates (nanoseconds), or -1 if not measured yet
+		private double fillPerBlock = -1;
+		private double mapPerPbo = -1;
+		private double uploadPerBlock = -1;
+
+		private static final double ALPHA = 0.3;
+
+		private static double smooth( final double estimate, final double nanos, final double count )
+		{
+			if ( count <= 0 )
+				return estimate;
+			final double value = nanos / count;
+			return estimate < 0 ? value : ( 1 - ALPHA ) * estimate + ALPHA * value;
+		}
+
+		/**
+		 * Update estimates with the measurements of the last batch, and
+		 * compute a new geometry.
+		 * <p>
+		 * {@code bufSize} is chosen such that the per-PBO overhead (map) is
+		 * at most 10% of the time to upload the PBO, and every filler thread
+		 * gets at least one slot. {@code numBufs} is chosen such that, while
+		 * a PBO is being filled, the previously filled ones can be uploaded
+		 * and re-mapped, i.e., fillers do not have to wait for the gpu:
+		 * {@code 2 + ceil(recycleTime / fillTime)}. Finally, the geometry is
+		 * clamped to {@code maxStagingBytes}.
+		 */
+		Geometry adapt( final int numBufs, final int bufSize, final int blockSize, final long maxStagingBytes, final int parallelism )
+		{
+			fillPerBlock = smooth( fillPerBlock, fillNanos.sumThenReset(), fillBlocks.sumThenReset() );
+			mapPerPbo = smooth( mapPerPbo, mapNanos, mapCount );
+			uploadPerBlock = smooth( uploadPerBlock, uploadNanos, uploadBlocks );
+			mapNanos = mapCount = uploadNanos = uploadBlocks = 0;
+
+			if ( fillPerBlock < 0 || mapPerPbo < 0 || uploadPerBlock <= 0 )
+				return Geometry.clamp( numBufs, bufSize, blockSize, maxStagingBytes );
+
+			final int newBufSize = ( int ) Math.max( parallelism, Math.ceil( 10 * mapPerPbo / uploadPerBlock ) );
+			final double fillTime = newBufSize * fillPerBlock / parallelism;
+			final double recycleTime = mapPerPbo + newBufSize * uploadPerBlock;
+			final int newNumBufs = 2 + ( int ) Math.ceil( recycleTime / Math.max( 1, fillTime ) );
+			return Geometry.clamp( newNumBufs, newBufSize, blockSize, maxStagingBytes );
+		}
 	}
 
 
@@ -458,9 +767,18 @@ public class PboChain
 
 		final Pbo pbo;
 
-		public PboUploadBuffer( final Buffer buffer, final int offset, final Pbo pbo )
+		/** when the buffer was taken (for measuring fill throughput) */
+		final long takeNanoTime = System.nanoTime();
+
+		/** value of all elements, if {@link #isUniform()} */
+		long uniformValue;
+
+		/** whether the upload is skipped because the block was mapped to a shared tile */
+		boolean skipUpload;
+
+		public PboUploadBuffer( final Buffer buffer, final int offset, final int sizeInBytes, final Pbo pbo )
 		{
-			super( buffer, offset );
+			super( buffer, offset, sizeInBytes );
 			this.pbo = pbo;
 		}
 
@@ -470,23 +788,44 @@ public class PboChain
 		}
 	}
 
+	/**
+	 * A Pbo with {@code bufSize} upload slots.
+	 * <p>
+	 * While mapped, slots are reserved with {@link #reserve()} (atomic
+	 * increment of {@code reserved}) and committed with
+	 * {@link #commitBuffer()} (atomic increment of {@code committed}). The Pbo
+	 * is closed when the last slot is reserved, or when it is
+	 * {@link #close() closed} explicitly on flush. It is ready for upload when
+	 * it is closed and all reserved slots are committed. Whoever observes
+	 * that first (the closing or the last committing thread) enqueues it.
+	 */
 	static class Pbo implements StagingBuffer
 	{
-		private final int bufSize; // size in blocks of this PBO
+		private int bufSize; // size in blocks of this PBO
 		private final int blockSize; // size in bytes of each block
 		private final int[] blockDimensions;
 		private final TextureCache cache;
 
 		/**
-		 * Committed buffers, ready for upload. All buffers that were taken out,
-		 * are assumed to be committed by the time uploadToTexture() is called.
+		 * Taken buffers, indexed by slot. All buffers that were taken out, are
+		 * assumed to be committed by the time uploadToTexture() is called.
 		 */
-		private final ArrayList< PboUploadBuffer > buffers = new ArrayList<>();
+		private PboUploadBuffer[] buffers;
+
+		/** number of reserved slots. {@code >= bufSize} means closed. */
+		private final AtomicInteger reserved = new AtomicInteger();
+
+		/** number of committed slots */
+		private final AtomicInteger committed = new AtomicInteger();
 
-		private PboState state;
-		private Buffer buffer;
-		private int nextIndex;
-		private int uncommitted;
+		/** number of slots that were taken before closing, or {@code -1} while open */
+		private volatile int numTaken;
+
+		/** whether ready for upload has been detected */
+		private final AtomicBoolean ready = new AtomicBoolean();
+
+		private volatile PboState state;
+		private volatile Buffer buffer;
 
 		Pbo( final int bufSize, final int blockSize, final int[] blockDimensions, final TextureCache cache )
 		{
@@ -494,11 +833,27 @@ public class PboChain
 			this.blockSize = blockSize;
 			this.blockDimensions = blockDimensions;
 			this.cache = cache;
+			this.buffers = new PboUploadBuffer[ bufSize ];
 
 			state = CLEAN;
 			buffer = null;
-			nextIndex = 0;
-			uncommitted = 0;
+			reserved.set( bufSize );
+			numTaken = 0;
+		}
+
+		/**
+		 * Change the size of this (clean) PBO. The staging buffer is
+		 * reallocated with the new size on the next {@link #map(GpuContext)}.
+		 */
+		void setBufSize( final int bufSize )
+		{
+			if ( state != CLEAN )
+				throw new IllegalStateException();
+
+			this.bufSize = bufSize;
+			if ( buffers.length != bufSize )
+				buffers = new PboUploadBuffer[ bufSize ];
+			reserved.set( bufSize );
 		}
 
 		// for GpuContext to initialize StagingBuffer to correct size
@@ -508,51 +863,78 @@ public class PboChain
 			return bufSize * blockSize;
 		}
 
-		PboUploadBuffer takeBuffer()
+		/**
+		 * @return index of reserved slot, or {@code -1} if there are no remaining slots.
+		 */
+		int reserve()
+		{
+			if ( reserved.get() >= bufSize )
+				return -1;
+			final int i = reserved.getAndIncrement();
+			return i < bufSize ? i : -1;
+		}
+
+		PboUploadBuffer takeBuffer( final int i )
 		{
 			if ( state != MAPPED )
 				throw new IllegalStateException();
 
-			if ( nextIndex >= bufSize )
-				throw new NoSuchElementException();
-
-			final PboUploadBuffer b = new PboUploadBuffer( buffer, nextIndex * blockSize, this );
-			buffers.add( b );
-			++uncommitted;
-			++nextIndex;
+			final PboUploadBuffer b = new PboUploadBuffer( buffer, i * blockSize, blockSize, this );
+			buffers[ i ] = b;
 			return b;
 		}
 
-		void commitBuffer()
+		/**
+		 * @return {@code true} if the Pbo becomes {@link #isReadyForUpload()
+		 *         ready for upload} as an immediate result of this commit.
+		 */
+		boolean commitBuffer()
 		{
-			--uncommitted;
+			final int c = committed.incrementAndGet();
+			return c == numTaken && ready.compareAndSet( false, true );
 		}
 
 		boolean hasRemainingBuffers()
 		{
-			return state == MAPPED && bufSize - nextIndex > 0;
+			return state == MAPPED && reserved.get() < bufSize;
 		}
 
-		boolean hasUncommittedBuffers()
+		boolean isReadyForUpload()
 		{
-			return uncommitted > 0;
+			return ready.get();
 		}
 
-		boolean isReadyForUpload()
+		/**
+		 * Close after the last slot was reserved.
+		 *
+		 * @return {@code true} if the Pbo becomes {@link #isReadyForUpload()
+		 *         ready for upload} as an immediate result of this
+		 *         {@code close()}
+		 */
+		boolean close( final int taken )
 		{
-			return !hasUncommittedBuffers() && !hasRemainingBuffers();
+			numTaken = taken;
+			return committed.get() == taken && ready.compareAndSet( false, true );
 		}
 
 		/**
+		 * Close a Pbo that may still have remaining slots (on flush). Does
+		 * nothing, if the Pbo is already closed.
+		 *
 		 * @return {@code true} if the Pbo becomes {@link #isReadyForUpload()
 		 *         ready for upload} as an immediate result of this
-		 *         {@code flush()}
+		 *         {@code close()}
 		 */
-		boolean flush()
+		boolean close()
 		{
-			final boolean ret = hasRemainingBuffers() && !hasUncommittedBuffers();
-			nextIndex = bufSize;
-			return ret;
+			while ( true )
+			{
+				final int r = reserved.get();
+				if ( r >= bufSize )
+					return false;
+				if ( reserved.compareAndSet( r, bufSize ) )
+					return close( r );
+			}
 		}
 
 		void map( final GpuContext context )
@@ -561,14 +943,16 @@ public class PboChain
 				throw new IllegalStateException();
 
 			buffer = context.map( this );
+			numTaken = -1;
+			committed.set( 0 );
+			ready.set( false );
 			state = MAPPED;
-			nextIndex = 0;
-			uncommitted = 0;
+			reserved.set( 0 );
 		}
 
 		void unmap( final GpuContext context )
 		{
-			if ( state != MAPPED || hasUncommittedBuffers() )
+			if ( state != MAPPED || !isReadyForUpload() )
 				throw new IllegalStateException();
 
 			context.unmap( this );
@@ -586,17 +970,36 @@ public class PboChain
 
 			final int restoreId = context.bindStagingBuffer( this );
 
+			final int numBuffers = numTaken;
+
+			// map uniform blocks to shared tiles, and blocks with known content
+			// to tiles already containing it (if possible)
+			for ( int i = 0; i < numBuffers; ++i )
+			{
+				final PboUploadBuffer buffer = buffers[ i ];
+				if ( buffer.isUniform() )
+					buffer.skipUpload = cache.assignUniform( buffer.task.getTile(), buffer.task.getPackedKey(), buffer.uniformValue, buffer.getVersion() );
+				else if ( buffer.hasContentHash() && buffer.getContentState() == COMPLETE )
+					buffer.skipUpload = cache.assignContentHash( buffer.task.getTile(), buffer.task.getPackedKey(), buffer.getContentHash(), buffer.getVersion() );
+			}
+
 			int bi = 0; // index of next buffer
-			while ( bi < buffers.size() )
+			while ( bi < numBuffers )
 			{
-				final PboUploadBuffer buf0 = buffers.get( bi );
+				final PboUploadBuffer buf0 = buffers[ bi ];
+				if ( buf0.skipUpload )
+				{
+					++bi;
+					continue;
+				}
+
 				Tile prevTile = buf0.task.getTile();
 				final int x = blockDimensions[ 0 ] * prevTile.x;
 				final int y = blockDimensions[ 1 ] * prevTile.y;
 				final int z = blockDimensions[ 2 ] * prevTile.z;
 				final long pixels_buffer_offset = buf0.getOffset();
 
-				final int remainingBlocks = buffers.size() - bi;
+				final int remainingBlocks = numBuffers - bi;
 				int nb = 1;
 				if ( x != 0 || y != 0 || z != 0 )
 				/*
@@ -607,8 +1010,10 @@ public class PboChain
 				{
 					for ( ; nb < remainingBlocks; ++nb )
 					{
-						final Tile tile = buffers.get( bi + nb ).task.getTile();
-						if ( tile.z == prevTile.z + 1 && tile.y == prevTile.y && tile.x == prevTile.x )
+						if ( buffers[ bi + nb ].skipUpload )
+							break;
+						final Tile tile = buffers[ bi + nb ].task.getTile();
+						if ( tile.z == prevTile.z + 1 && tile.y == prevTile.y && tile.x == prevTile.x && tile.page == prevTile.page )
 							prevTile = tile;
 						else
 							break;
@@ -619,21 +1024,24 @@ public class PboChain
 				final int w = blockDimensions[ 0 ];
 				final int h = blockDimensions[ 1 ];
 				final int d = blockDimensions[ 2 ] * nb;
-				context.texSubImage3D( this, cache, x, y, z, w, h, d, pixels_buffer_offset );
+				context.texSubImage3D( this, cache.getPage( prevTile.page ), x, y, z, w, h, d, pixels_buffer_offset );
 
 				// for each (uploadbuffer, tile): map tile to uploadBuffer.getKey, assign uploadBuffer.isComplete
 				for ( int i = 0; i < nb; ++i )
 				{
-					final PboUploadBuffer buffer = buffers.get( bi + i );
-					cache.assign( buffer.task.getTile(), buffer.task.getKey(), buffer.getContentState() );
+					final PboUploadBuffer buffer = buffers[ bi + i ];
+					cache.assign( buffer.task.getTile(), buffer.task.getPackedKey(), buffer.getContentState(), buffer.getVersion() );
+					if ( buffer.hasContentHash() && buffer.getContentState() == COMPLETE )
+						cache.indexContentHash( buffer.task.getTile(), buffer.getContentHash() );
 				}
 
 				bi += nb;
-			}	// repeat until bi == buffers.size()
+			}	// repeat until bi == numBuffers
 
 			context.bindStagingBufferId( restoreId );
 
-			buffers.clear();
+			for ( int i = 0; i < numBuffers; ++i )
+				buffers[ i ] = null;
 			state = CLEAN;
 		}
 	}
@@ -0,0 +1,536 @@
+package tpietzsch.cache;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.LongAdder;
+
+import net.imglib2.util.Intervals;
+import tpietzsch.blocks.ByteUtils;
+
+/**
+ * On-disk store of padded tiles, in the upload format of a {@link CacheSpec}.
+ * Tiles are kept in a memory-mapped data file, and are copied directly from
+ * the mapping into an {@link UploadBuffer}.
+ * <p>
+ * Tiles are identified by a persistent image id (see
+ * {@link tpietzsch.multires.ResolutionLevel3D#getPersistentId()}) and grid
+ * position. The id includes the modification time and size of the dataset
+ * files, so tiles of datasets that changed on disk are never returned and age
+ * out of the store. Sources that were invalidated in the current session
+ * have no persistent id.
+ * <p>
+ * The store directory contains the data file {@code tiles.bin} and the index
+ * file {@code tiles.idx}. The index records the {@code CacheSpec} and, for
+ * each stored tile, its key and slot in the data file, in LRU order. If the
+ * {@code CacheSpec} does not match, the store starts out empty. The index is
+ * removed while the store is open and only written by {@link #close()}, so
+ * after a crash the store starts out empty instead of returning tiles whose
+ * slots were reused.
+ * <p>
+ * While open, the store holds a lock on the file {@code tiles.lock} in its
+ * directory, so that the directory is not used by two stores (e.g., of two
+ * viewer processes) at the same time.
+ * <p>
+ * The size of the data file is limited by a byte budget. When the budget is
+ * exhausted, the least recently used tile is evicted. If the store is opened
+ * with a smaller budget than before, the most recently used tiles that fit are
+ * kept.
+ * <p>
+ * This class is thread-safe. As in {@link HostTileCache}, tiles are copied
+ * into and out of the mapping without holding the lock (a cold mapping may
+ * have to read from disk): a slot is pinned while it is being copied, and
+ * pinned slots are not reused until the copy is done.
+ */
+public class PersistentTileStore implements Closeable
+{
+	private static final int MAGIC = 0x42565453; // "BVTS"
+
+	private static final int VERSION = 1;
+
+	/** max size of one mapped region in bytes */
+	private static final long MAX_REGION_SIZE = 1 << 30;
+
+	private final CacheSpec cacheSpec;
+
+	private final File dataFile;
+
+	private final File indexFile;
+
+	private final FileChannel lockChannel;
+
+	private final FileLock lock;
+
+	private final RandomAccessFile raf;
+
+	private final int tileSizeInBytes;
+
+	private final int maxNumTiles;
+
+	private final int tilesPerRegion;
+
+	private final MappedByteBuffer[] regions;
+
+	/** number of slots used so far */
+	private int numAllocatedTiles;
+
+	/** maps key to slot index, in access order */
+	private final LinkedHashMap< Key, Integer > slots = new LinkedHashMap<>( 16, 0.75f, true );
+
+	/** number of threads copying from or into each slot */
+	private int[] pins = new int[ 0 ];
+
+	/** allocated slots that are not in use */
+	private final ArrayDeque< Integer > freeSlots = new ArrayDeque<>();
+
+	private final LongAdder hits = new LongAdder();
+
+	private final LongAdder misses = new LongAdder();
+
+	private final LongAdder evictions = new LongAdder();
+
+	private boolean closed;
+
+	/**
+	 * Open (or create) the store in {@code directory}.
+	 *
+	 * @param directory
+	 * 		directory containing data and index file
+	 * @param cacheSpec
+	 * 		specifies tile size and format
+	 * @param maxSizeInBytes
+	 * 		max size of the data file
+	 * @throws IOException
+	 * 		if the store could not be opened, e.g., because {@code directory}
+	 * 		is used by another store.
+	 */
+	public PersistentTileStore( final File directory, final CacheSpec cacheSpec, final long maxSizeInBytes ) throws IOException
+	{
+		this.cacheSpec = cacheSpec;
+		if ( !directory.isDirectory() && !directory.mkdirs() )
+			throw new IOException( "Could not create directory " + directory );
+
+		lockChannel = FileChannel.open( new File( directory, "tiles.lock" ).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE );
+		FileLock l;
+		try
+		{
+			l = lockChannel.tryLock();
+		}
+		catch ( final OverlappingFileLockException e )
+		{
+			// locked by another store in this JVM
+			l = null;
+		}
+		if ( l == null )
+		{
+			lockChannel.close();
+			throw new IOException( "Tile store directory " + directory + " is in use" );
+		}
+		lock = l;
+
+		dataFile = new File( directory, "tiles.bin" );
+		indexFile = new File( directory, "tiles.idx" );
+
+		tileSizeInBytes = cacheSpec.format().getBytesPerElement() * ( int ) Intervals.numElements( cacheSpec.paddedBlockSize() );
+		maxNumTiles = ( int ) Math.min( Integer.MAX_VALUE, maxSizeInBytes / tileSizeInBytes );
+		tilesPerRegion = ( int ) Math.max( 1, Math.min( maxNumTiles, MAX_REGION_SIZE / tileSizeInBytes ) );
+
+		try
+		{
+			readIndex();
+			indexFile.delete();
+
+			raf = new RandomAccessFile( dataFile, "rw" );
+			trim( raf.getChannel() );
+			final long length = ( long ) maxNumTiles * tileSizeInBytes;
+			raf.setLength( length );
+			final int numRegions = ( maxNumTiles + tilesPerRegion - 1 ) / tilesPerRegion;
+			regions = new MappedByteBuffer[ numRegions ];
+			final FileChannel channel = raf.getChannel();
+			for ( int i = 0; i < numRegions; ++i )
+			{
+				final long pos = ( long ) i * tilesPerRegion * tileSizeInBytes;
+				regions[ i ] = channel.map( FileChannel.MapMode.READ_WRITE, pos, Math.min( length - pos, ( long ) tilesPerRegion * tileSizeInBytes ) );
+			}
+
+			// slots below the last used one that are not in use can be allocated again
+			final BitSet used = new BitSet();
+			for ( final int slot : slots.values() )
+				used.set( slot );
+			numAllocatedTiles = used.length();
+			pins = new int[ numAllocatedTiles ];
+			for ( int slot = used.nextClearBit( 0 ); slot < numAllocatedTiles; slot = used.nextClearBit( slot + 1 ) )
+				freeSlots.push( slot );
+		}
+		catch ( final IOException | RuntimeException e )
+		{
+			lock.release();
+			lockChannel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * If the tile at grid position {@code (x,y,z)} of the image identified by
+	 * {@code id} is stored, copy it into {@code buffer}.
+	 *
+	 * @return {@code true} if the tile was stored (and copied).
+	 */
+	public boolean get( final String id, final int x, final int y, final int z, final UploadBuffer buffer )
+	{
+		final Integer slot;
+		final long address;
+		synchronized ( this )
+		{
+			slot = closed ? null : slots.get( new Key( id, x, y, z ) );
+			if ( slot == null )
+			{
+				misses.increment();
+				return false;
+			}
+			++pins[ slot ];
+			address = addressOf( slot );
+		}
+		ByteUtils.copyBytes( address, buffer.getAddress(), tileSizeInBytes );
+		synchronized ( this )
+		{
+			--pins[ slot ];
+		}
+		hits.increment();
+		return true;
+	}
+
+	/**
+	 * Store a copy of the (complete) tile in {@code buffer} for grid position
+	 * {@code (x,y,z)} of the image identified by {@code id}. Evicts the least
+	 * recently used tile, if the byte budget is exhausted.
+	 */
+	public void put( final String id, final int x, final int y, final int z, final UploadBuffer buffer )
+	{
+		if ( maxNumTiles == 0 )
+			return;
+
+		final Key key = new Key( id, x, y, z );
+		final int slot;
+		final long address;
+		synchronized ( this )
+		{
+			if ( closed || slots.containsKey( key ) )
+				return;
+			slot = takeSlot();
+			if ( slot < 0 )
+				return;
+			++pins[ slot ];
+			address = addressOf( slot );
+		}
+		ByteUtils.copyBytes( buffer.getAddress(), address, tileSizeInBytes );
+		synchronized ( this )
+		{
+			--pins[ slot ];
+			if ( closed || slots.containsKey( key ) )
+				// closed, or put concurrently by another thread
+				freeSlots.push( slot );
+			else
+				slots.put( key, slot );
+		}
+	}
+
+	/**
+	 * Get a slot to copy a new tile into: a free slot, a newly allocated
+	 * slot, or the slot of the least recently used tile that is not pinned.
+	 * Must be called while holding the lock.
+	 *
+	 * @return slot index, or {@code -1} if all slots are pinned.
+	 */
+	private int takeSlot()
+	{
+		if ( !freeSlots.isEmpty() )
+			return freeSlots.pop();
+
+		if ( numAllocatedTiles < maxNumTiles )
+		{
+			final int slot = numAllocatedTiles++;
+			if ( slot >= pins.length )
+				pins = Arrays.copyOf( pins, Math.min( maxNumTiles, Math.max( 16, 2 * pins.length ) ) );
+			return slot;
+		}
+
+		final Iterator< Map.Entry< Key, Integer > > it = slots.entrySet().iterator();
+		while ( it.hasNext() )
+		{
+			final int slot = it.next().getValue();
+			if ( pins[ slot ] == 0 )
+			{
+				it.remove();
+				evictions.increment();
+				return slot;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Write the data file to disk. (The index is only written by
+	 * {@link #close()}, because slots are reused by subsequent {@link #put}s.)
+	 */
+	public synchronized void flush() throws IOException
+	{
+		if ( closed )
+			return;
+
+		for ( final MappedByteBuffer region : regions )
+			region.force();
+	}
+
+	/**
+	 * Write data file and index to disk, and close the store.
+	 */
+	@Override
+	public synchronized void close() throws IOException
+	{
+		if ( closed )
+			return;
+
+		try
+		{
+			flush();
+			writeIndex();
+		}
+		finally
+		{
+			closed = true;
+			raf.close();
+			lock.release();
+			lockChannel.close();
+		}
+	}
+
+	/**
+	 * If there are more tiles in the index than fit into {@link #maxNumTiles}
+	 * slots, keep only the most recently used ones. Kept tiles in slots
+	 * {@code >= maxNumTiles} are moved to unused slots below, before the data
+	 * file is truncated.
+	 */
+	private void trim( final FileChannel channel ) throws IOException
+	{
+		final Iterator< Map.Entry< Key, Integer > > it = slots.entrySet().iterator();
+		for ( int numEvicted = slots.size() - maxNumTiles; numEvicted > 0; --numEvicted )
+		{
+			it.next();
+			it.remove();
+		}
+
+		final BitSet used = new BitSet();
+		for ( final int slot : slots.values() )
+			if ( slot < maxNumTiles )
+				used.set( slot );
+		final ByteBuffer tile = ByteBuffer.allocate( tileSizeInBytes );
+		for ( final Map.Entry< Key, Integer > entry : slots.entrySet() )
+		{
+			final int slot = entry.getValue();
+			if ( slot < maxNumTiles )
+				continue;
+			final int free = used.nextClearBit( 0 );
+			used.set( free );
+			tile.clear();
+			final long src = ( long ) slot * tileSizeInBytes;
+			while ( tile.hasRemaining() )
+			{
+				if ( channel.read( tile, src + tile.position() ) < 0 )
+				{
+					// data file does not match the index: start out empty
+					slots.clear();
+					return;
+				}
+			}
+			tile.flip();
+			final long dst = ( long ) free * tileSizeInBytes;
+			while ( tile.hasRemaining() )
+				channel.write( tile, dst + tile.position() );
+			entry.setValue( free );
+		}
+	}
+
+	/**
+	 * Must be called while holding the lock.
+	 */
+	private long addressOf( final int slot )
+	{
+		return ByteUtils.addressOf( regions[ slot / tilesPerRegion ] ) + ( long ) ( slot % tilesPerRegion ) * tileSizeInBytes;
+	}
+
+	private void readIndex()
+	{
+		if ( !indexFile.isFile() || !dataFile.isFile() )
+			return;
+
+		try ( final DataInputStream in = new DataInputStream( new BufferedInputStream( new FileInputStream( indexFile ) ) ) )
+		{
+			if ( in.readInt() != MAGIC || in.readInt() != VERSION || !readCacheSpecMatches( in ) )
+				return;
+
+			// number of slots in use when the index was written
+			final int numSlots = in.readInt();
+			final int numEntries = in.readInt();
+			for ( int i = 0; i < numEntries; ++i )
+			{
+				final Key key = new Key( in.readUTF(), in.readInt(), in.readInt(), in.readInt() );
+				final int slot = in.readInt();
+				if ( slot < 0 || slot >= numSlots )
+					throw new IOException( "invalid slot" );
+				slots.put( key, slot );
+			}
+		}
+		catch ( final IOException e )
+		{
+			// unreadable index: start out empty
+			slots.clear();
+		}
+	}
+
+	private boolean readCacheSpecMatches( final DataInputStream in ) throws IOException
+	{
+		if ( !cacheSpec.format().name().equals( in.readUTF() ) )
+			return false;
+		for ( final int[] a : Arrays.asList( cacheSpec.blockSize(), cacheSpec.paddedBlockSize(), cacheSpec.padOffset() ) )
+			for ( int d = 0; d < 3; ++d )
+				if ( in.readInt() != a[ d ] )
+					return false;
+		return true;
+	}
+
+	private void writeIndex() throws IOException
+	{
+		try ( final DataOutputStream out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( indexFile ) ) ) )
+		{
+			out.writeInt( MAGIC );
+			out.writeInt( VERSION );
+			out.writeUTF( cacheSpec.format().name() );
+			for ( final int[] a : Arrays.asList( cacheSpec.blockSize(), cacheSpec.paddedBlockSize(), cacheSpec.padOffset() ) )
+				for ( int d = 0; d < 3; ++d )
+					out.writeInt( a[ d ] );
+			out.writeInt( numAllocatedTiles );
+			out.writeInt( slots.size() );
+			for ( final Map.Entry< Key, Integer > entry : slots.entrySet() )
+			{
+				final Key key = entry.getKey();
+				out.writeUTF( key.id );
+				out.writeInt( key.x );
+				out.writeInt( key.y );
+				out.writeInt( key.z );
+				out.writeInt( entry.getValue() );
+			}
+		}
+	}
+
+	/**
+	 * Number of {@link #get} calls that found the requested tile.
+	 */
+	public long getHits()
+	{
+		return hits.sum();
+	}
+
+	/**
+	 * Number of {@link #get} calls that did not find the requested tile.
+	 */
+	public long getMisses()
+	{
+		return misses.sum();
+	}
+
+	/**
+	 * Number of tiles evicted to make room for new ones.
+	 */
+	public long getEvictions()
+	{
+		return evictions.sum();
+	}
+
+	/**
+	 * Number of tiles currently stored.
+	 */
+	public synchronized int size()
+	{
+		return slots.size();
+	}
+
+	@Override
+	public String toString()
+	{
+		return "PersistentTileStore{" +
+				"dataFile=" + dataFile +
+				", size=" + size() +
+				", maxNumTiles=" + maxNumTiles +
+				", hits=" + getHits() +
+				", misses=" + getMisses() +
+				", evictions=" + getEvictions() +
+				'}';
+	}
+
+	static class Key
+	{
+		final String id;
+
+		final int x;
+
+		final int y;
+
+		final int z;
+
+		private final int hashcode;
+
+		Key( final String id, final int x, final int y, final int z )
+		{
+			this.id = id;
+			this.x = x;
+			this.y = y;
+			this.z = z;
+
+			int value = id.hashCode();
+			value = 31 * value + x;
+			value = 31 * value + y;
+			value = 31 * value + z;
+			hashcode = value;
+		}
+
+		@Override
+		public boolean equals( final Object o )
+		{
+			if ( !( o instanceof Key ) )
+				return false;
+
+			final Key b = ( Key ) o;
+			return x == b.x
+					&& y == b.y
+					&& z == b.z
+					&& Objects.equals( id, b.id );
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return hashcode;
+		}
+	}
+}
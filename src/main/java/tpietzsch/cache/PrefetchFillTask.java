@@ -0,0 +1,64 @@
+package tpietzsch.cache;
+
+/**
+ * A {@link FillTask} for a block that is not required yet, but is expected to
+ * be required soon (e.g., because the view is moving). Prefetch tasks are
+ * staged after all required blocks, and only replace tiles that were not used
+ * since {@code protectedTimestamp}. Blocks that are already present are
+ * skipped.
+ */
+public class PrefetchFillTask implements FillTask
+{
+	private final FillTask task;
+
+	private final int protectedTimestamp;
+
+	/**
+	 * @param task
+	 *            the task to fill the block
+	 * @param protectedTimestamp
+	 *            tiles that were used at this timestamp or later are not
+	 *            replaced for prefetching. (Usually the timestamp of the last
+	 *            frame.)
+	 */
+	public PrefetchFillTask( final FillTask task, final int protectedTimestamp )
+	{
+		this.task = task;
+		this.protectedTimestamp = protectedTimestamp;
+	}
+
+	public int getProtectedTimestamp()
+	{
+		return protectedTimestamp;
+	}
+
+	@Override
+	public ImageBlockKey< ? > getKey()
+	{
+		return task.getKey();
+	}
+
+	@Override
+	public boolean containsData()
+	{
+		return task.containsData();
+	}
+
+	@Override
+	public void fill( final UploadBuffer buffer )
+	{
+		task.fill( buffer );
+	}
+
+	@Override
+	public double getPriority()
+	{
+		return task.getPriority();
+	}
+
+	@Override
+	public int getVersion()
+	{
+		return task.getVersion();
+	}
+}
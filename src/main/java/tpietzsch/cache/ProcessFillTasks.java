@@ -2,6 +2,7 @@ package tpietzsch.cache;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.NoSuchElementException;
 import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.RecursiveAction;
 import tpietzsch.backend.GpuContext;
@@ -26,9 +27,16 @@ public class ProcessFillTasks
 			final TileFillTask task = pboChain.nextTask();
 			if ( task.containsData() )
 			{
-				final PboUploadBuffer buf = pboChain.take( task );
-				task.fill( buf );
-				pboChain.commit( buf );
+				try
+				{
+					final PboUploadBuffer buf = pboChain.take( task );
+					task.fill( buf );
+					pboChain.commit( buf );
+				}
+				catch ( final NoSuchElementException e )
+				{
+					// no tile left for this block in the current batch
+				}
 			}
 			pboChain.tryUpload( context );
 		}
@@ -42,21 +50,96 @@ public class ProcessFillTasks
 			final GpuContext context,
 			final ForkJoinPool forkJoinPool,
 			final Collection< ? extends FillTask > tasks ) throws InterruptedException
+	{
+		if ( startParallel( textureCache, pboChain, forkJoinPool, tasks ) )
+		{
+			final int restoreId = context.bindTexture( textureCache );
+			pboChain.maintain( context );
+			context.bindTextureId( restoreId, 3 );
+		}
+	}
+
+	/**
+	 * Like {@link #parallel(TextureCache, PboChain, GpuContext, ForkJoinPool, Collection)},
+	 * but returns when {@code System.nanoTime()} exceeds {@code maxNanoTime}.
+	 * If the batch is not completed by then, it is suspended. Fill tasks
+	 * continue in the background, and the remaining uploads are done by
+	 * calling {@link #resume(TextureCache, PboChain, GpuContext, long)}
+	 * (repeatedly, until it returns {@code true}).
+	 * <p>
+	 * Must not be called while a suspended batch is pending, i.e., only if
+	 * {@code pboChain.ready()}.
+	 *
+	 * @param maxNanoTime
+	 *            {@code System.nanoTime()} deadline.
+	 * @return {@code true} if all tasks were processed, {@code false} if the
+	 *         batch was suspended.
+	 */
+	public static boolean parallel(
+			final TextureCache textureCache,
+			final PboChain pboChain,
+			final GpuContext context,
+			final ForkJoinPool forkJoinPool,
+			final Collection< ? extends FillTask > tasks,
+			final long maxNanoTime ) throws InterruptedException
+	{
+		if ( !startParallel( textureCache, pboChain, forkJoinPool, tasks ) )
+			return true;
+		return resume( textureCache, pboChain, context, maxNanoTime );
+	}
+
+	/**
+	 * Continue a batch that was suspended by
+	 * {@link #parallel(TextureCache, PboChain, GpuContext, ForkJoinPool, Collection, long)}.
+	 *
+	 * @param maxNanoTime
+	 *            {@code System.nanoTime()} deadline.
+	 * @return {@code true} if all tasks were processed, {@code false} if the
+	 *         batch is still suspended.
+	 */
+	public static boolean resume(
+			final TextureCache textureCache,
+			final PboChain pboChain,
+			final GpuContext context,
+			final long maxNanoTime ) throws InterruptedException
+	{
+		final int restoreId = context.bindTexture( textureCache );
+		final boolean complete = pboChain.maintain( context, maxNanoTime );
+		context.bindTextureId( restoreId, 3 );
+		return complete;
+	}
+
+	/**
+	 * Stage {@code tasks}, initialize {@code pboChain} and start fill tasks on {@code forkJoinPool}.
+	 *
+	 * @return {@code false} if there was nothing to do.
+	 */
+	private static boolean startParallel(
+			final TextureCache textureCache,
+			final PboChain pboChain,
+			final ForkJoinPool forkJoinPool,
+			final Collection< ? extends FillTask > tasks ) throws InterruptedException
 	{
 		final StagedTasks stagedTasks = textureCache.stage( tasks );
 		final int numTasks = stagedTasks.tasks.size();
 		if ( numTasks == 0 )
-			return;
+			return false;
 
 		pboChain.init( stagedTasks );
-		final int restoreId = context.bindTexture( textureCache );
 		forkJoinPool.execute( new RecursiveAction()
 		{
 			@Override
 			protected void compute()
 			{
+				/*
+				 * A fixed number of filler loops (rather than one action per
+				 * task), such that at most that many workers block in
+				 * PboChain.take() (which lets the pool compensate with spare
+				 * threads).
+				 */
+				final int numFillers = Math.min( numTasks, forkJoinPool.getParallelism() );
 				final ArrayList< RecursiveAction > actions = new ArrayList<>();
-				for ( int i = 0; i < numTasks; i++ )
+				for ( int i = 0; i < numFillers; i++ )
 				{
 					final RecursiveAction fill = new RecursiveAction()
 					{
@@ -65,12 +148,30 @@ public class ProcessFillTasks
 						{
 							try
 							{
-								final TileFillTask task = pboChain.nextTask();
-								if ( task.containsData() )
+								while ( true )
 								{
-									final PboUploadBuffer buf = pboChain.take( task );
-									task.fill( buf );
-									pboChain.commit( buf );
+									final TileFillTask task;
+									try
+									{
+										task = pboChain.nextTask();
+									}
+									catch ( final NoSuchElementException e )
+									{
+										return; // all tasks of the batch are taken
+									}
+									if ( task.containsData() )
+									{
+										try
+										{
+											final PboUploadBuffer buf = pboChain.take( task );
+											task.fill( buf );
+											pboChain.commit( buf );
+										}
+										catch ( final NoSuchElementException e )
+										{
+											// no tile left for this block in the current batch
+										}
+									}
 								}
 							}
 							catch ( final InterruptedException e )
@@ -83,15 +184,19 @@ public class ProcessFillTasks
 					actions.add( fill );
 				}
 
-				for ( final RecursiveAction action : actions )
-					action.join();
-
-				pboChain.flush();
+				try
+				{
+					for ( final RecursiveAction action : actions )
+						action.join();
+				}
+				finally
+				{
+					pboChain.flush();
+				}
 			}
 		} );
 
 //		System.out.println( "{{ numTasks = " + numTasks + " }}" );
-		pboChain.maintain( context );
-		context.bindTextureId( restoreId, 3 );
+		return true;
 	}
 }
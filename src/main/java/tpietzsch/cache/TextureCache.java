@@ -1,16 +1,25 @@
 package tpietzsch.cache;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.Set;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongFunction;
+import net.imglib2.Interval;
 import net.imglib2.util.Intervals;
+import tpietzsch.backend.GpuContext;
 import tpietzsch.backend.Texture3D;
 import tpietzsch.blocks.ByteUtils;
+import tpietzsch.multires.ResolutionLevel3D;
+import tpietzsch.util.LongObjectMap;
 
 import static tpietzsch.cache.TextureCache.ContentState.INCOMPLETE;
 
@@ -29,27 +38,85 @@ public class TextureCache implements Texture3D
 
 	public static class Tile
 	{
-		final int x;
+		/** index of the cache page (texture) containing this tile */
+		final int page;
 
-		final int y;
+		// tile coordinates are modified when the cache is resized
+		int x;
 
-		final int z;
+		int y;
 
-		ImageBlockKey< ? > content;
+		int z;
+
+		/** {@link #packKey packed key} of the block in this tile, or {@link #NO_CONTENT} */
+		long content;
 
 		ContentState state;
 
+		/** version stamp of the content (see {@link UploadBuffer#setVersion(int)}) */
+		int version;
+
 		int lru;
 
-		Tile( final int x, final int y, final int z )
+		/**
+		 * Whether this tile is shared by all blocks with a particular uniform
+		 * value (like the out-of-bounds tile 0). Shared tiles are not in any
+		 * {@link LruList} and are never reused.
+		 */
+		boolean shared;
+
+		/**
+		 * Whether this tile contains a pinned block. Pinned tiles are not in
+		 * any {@link LruList} and are not reused until they are unpinned.
+		 */
+		boolean pinned;
+
+		/**
+		 * Whether {@link #contentHash} is the hash of the (complete) content
+		 * of this tile, and the tile is in the content hash index.
+		 */
+		boolean hashed;
+
+		long contentHash;
+
+		/**
+		 * Packed keys (other than {@link #content}) of blocks with the same
+		 * content, that were mapped to this tile instead of uploading them.
+		 * The first {@link #numAliases} elements are used.
+		 */
+		long[] aliases;
+
+		int numAliases;
+
+		/** neighbours in {@link LruList} */
+		Tile prev;
+
+		Tile next;
+
+		/** the {@link LruList} containing this tile (or {@code null}) */
+		LruList list;
+
+		/** keeps this tile ordered for eviction (or {@code null} for the sentinel) */
+		private final EvictionOrder order;
+
+		Tile( final int page, final int x, final int y, final int z, final EvictionOrder order )
 		{
+			this.page = page;
 			this.x = x;
 			this.y = y;
 			this.z = z;
+			this.order = order;
+			content = NO_CONTENT;
 			state = INCOMPLETE;
 			lru = -1;
 		}
 
+		/** Index of the cache page containing the tile (see {@link TextureCache#getPage(int)}) */
+		public int page()
+		{
+			return page;
+		}
+
 		/** Tile X coordinate in texture grid (padded blocks) */
 		public int x()
 		{
@@ -73,27 +140,304 @@ public class TextureCache implements Texture3D
 			return state;
 		}
 
+		/**
+		 * Version stamp of the content, e.g., of the intensity window it was
+		 * quantized with (see {@link UploadBuffer#setVersion(int)}). Blocks
+		 * that are mapped to this tile because they have identical content
+		 * have the same version (or version {@code 0}, which does not depend
+		 * on any window).
+		 */
+		public int version()
+		{
+			return version;
+		}
+
+		/**
+		 * Whether the tile can be replaced by other blocks, i.e., it is
+		 * neither pinned nor shared by blocks with identical content. (Only
+		 * such tiles count against {@link TextureCache#getNumEvictableTiles()}.)
+		 */
+		public boolean evictable()
+		{
+			return !pinned && !shared;
+		}
+
 		public void useAtTimestamp( final int timestamp )
 		{
 //			lru = Math.max( lru, timestamp );
 			lru = timestamp;
+			if ( !shared && !pinned )
+				order.update( this );
+		}
+	}
+
+	/**
+	 * Orders tiles for eviction according to a {@link TileEvictionPolicy}.
+	 * Tiles are evicted in order of {@code lru + bonus}, where the bonus given
+	 * by the policy is rounded down to one of a few fixed {@link #BONUS_BUCKETS
+	 * buckets}. There is one {@link LruList} for each bucket. Updating a tile
+	 * is {@code O(1)} in the common case. Selecting the {@code k} tiles to
+	 * evict merges the heads of the non-empty lists in {@code O(k * numLists)}.
+	 * <p>
+	 * The bonus of a tile is determined when it is inserted. When the
+	 * {@link TileEvictionPolicy#getGeneration() generation} of the policy
+	 * changes, the bonuses of all tiles are re-evaluated before the next
+	 * selection.
+	 */
+	static class EvictionOrder
+	{
+		/**
+		 * Bonus of each bucket, about {@code sqrt(2)} apart. A bonus is
+		 * rounded down to the nearest bucket.
+		 */
+		static final int[] BONUS_BUCKETS = { 0, 8, 11, 16, 23, 32, 45, 64, 91, 128, 181, 256, 362, 512, 724, 1024 };
+
+		private final TileEvictionPolicy policy;
+
+		// maps packed key to image
+		private final LongFunction< Object > imageOfKey;
+
+		private final LruList[] lists;
+
+		// policy generation that the bonuses of the tiles correspond to
+		private int policyGeneration;
+
+		EvictionOrder( final TileEvictionPolicy policy, final LongFunction< Object > imageOfKey )
+		{
+			this.policy = policy;
+			this.imageOfKey = imageOfKey;
+			lists = new LruList[ BONUS_BUCKETS.length ];
+			for ( int i = 0; i < lists.length; ++i )
+				lists[ i ] = new LruList( BONUS_BUCKETS[ i ] );
+			policyGeneration = policy.getGeneration();
+		}
+
+		/**
+		 * Append {@code tile} (without content) at the tail of the list for
+		 * bonus 0. The caller must make sure that this does not violate the
+		 * order.
+		 */
+		void add( final Tile tile )
+		{
+			lists[ 0 ].add( tile );
+		}
+
+		/**
+		 * Move {@code tile} to the correct position after its {@code lru} was
+		 * modified.
+		 */
+		void update( final Tile tile )
+		{
+			if ( tile.list != null )
+				tile.list.remove( tile );
+			list( tile ).insert( tile );
+		}
+
+		/**
+		 * Remove {@code tile}, so that it is never evicted.
+		 */
+		void remove( final Tile tile )
+		{
+			if ( tile.list != null )
+				tile.list.remove( tile );
+		}
+
+		/**
+		 * Get the {@code size} tiles that should be evicted first. Tiles that
+		 * were used at {@code maxLru} or later are skipped.
+		 *
+		 * @param required
+		 *            whether to throw an exception if there are less than
+		 *            {@code size} tiles. Otherwise, all available tiles are
+		 *            returned.
+		 *
+		 * @throws IllegalArgumentException
+		 *             if there are not enough tiles (and {@code required}).
+		 */
+		List< Tile > select( final int size, final int maxLru, final boolean required )
+		{
+			final int generation = policy.getGeneration();
+			if ( generation != policyGeneration )
+			{
+				policyGeneration = generation;
+				reassignBuckets();
+			}
+
+			final ArrayList< LruList > nonEmpty = new ArrayList<>();
+			for ( final LruList list : lists )
+				if ( list.first() != null )
+					nonEmpty.add( list );
+			final int numLists = nonEmpty.size();
+			final Tile[] heads = new Tile[ numLists ];
+			for ( int i = 0; i < numLists; ++i )
+				heads[ i ] = nonEmpty.get( i ).first();
+
+			final ArrayList< Tile > selected = new ArrayList<>( size );
+			while ( selected.size() < size )
+			{
+				int best = -1;
+				long bestRetention = Long.MAX_VALUE;
+				for ( int i = 0; i < numLists; ++i )
+				{
+					final Tile head = heads[ i ];
+					if ( head != null )
+					{
+						final long retention = ( long ) head.lru + nonEmpty.get( i ).bonus;
+						if ( retention < bestRetention )
+						{
+							best = i;
+							bestRetention = retention;
+						}
+					}
+				}
+				if ( best < 0 )
+				{
+					if ( required )
+						throw new IllegalArgumentException( "Requested blocks don't fit into TextureCache." );
+					break;
+				}
+
+				final Tile tile = heads[ best ];
+				heads[ best ] = nonEmpty.get( best ).next( tile );
+				if ( tile.lru < maxLru )
+					selected.add( tile );
+			}
+			return selected;
+		}
+
+		/**
+		 * Move every tile to the list for its current bonus. Tiles are
+		 * re-appended in {@code lru} order, which is {@code O(n log n)}.
+		 */
+		private void reassignBuckets()
+		{
+			final ArrayList< Tile > tiles = new ArrayList<>();
+			for ( final LruList list : lists )
+			{
+				for ( Tile tile = list.first(); tile != null; tile = list.next( tile ) )
+					tiles.add( tile );
+			}
+			tiles.sort( Comparator.comparingInt( t -> t.lru ) );
+			for ( final Tile tile : tiles )
+			{
+				tile.list.remove( tile );
+				list( tile ).add( tile );
+			}
+		}
+
+		private LruList list( final Tile tile )
+		{
+			if ( tile.content == NO_CONTENT )
+				return lists[ 0 ];
+			return lists[ bucket( policy.bonus( imageOfKey.apply( tile.content ) ) ) ];
+		}
+
+		/**
+		 * @return index of the largest {@link #BONUS_BUCKETS bucket} that is
+		 *         {@code <= bonus}.
+		 */
+		static int bucket( final int bonus )
+		{
+			final int i = Arrays.binarySearch( BONUS_BUCKETS, bonus );
+			return i >= 0 ? i : Math.max( 0, -i - 2 );
+		}
+	}
+
+	/**
+	 * Intrusive doubly-linked list of {@link Tile}s, ordered by increasing
+	 * {@link Tile#lru}. Tiles are (re-)inserted by searching backwards from the
+	 * tail. Because timestamps are handed out in increasing order, this is
+	 * {@code O(1)} in the common case. The {@code k} least recently used tiles
+	 * are the first {@code k} elements of the list.
+	 */
+	static class LruList
+	{
+		/** eviction bonus of all tiles in this list */
+		final int bonus;
+
+		private final Tile sentinel = new Tile( -1, -1, -1, -1, null );
+
+		LruList( final int bonus )
+		{
+			this.bonus = bonus;
+			sentinel.prev = sentinel;
+			sentinel.next = sentinel;
+		}
+
+		/**
+		 * Append {@code tile} at the tail. The caller must make sure that this
+		 * does not violate the order.
+		 */
+		void add( final Tile tile )
+		{
+			insertAfter( sentinel.prev, tile );
+		}
+
+		/**
+		 * Insert {@code tile} at the correct position according to its {@code lru}.
+		 */
+		void insert( final Tile tile )
+		{
+			Tile p = sentinel.prev;
+			while ( p != sentinel && p.lru > tile.lru )
+				p = p.prev;
+			insertAfter( p, tile );
+		}
+
+		/**
+		 * @return the least recently used tile, or {@code null} if the list is empty.
+		 */
+		Tile first()
+		{
+			return next( sentinel );
+		}
+
+		/**
+		 * @return the tile after {@code tile}, or {@code null} if {@code tile} is the last one.
+		 */
+		Tile next( final Tile tile )
+		{
+			return tile.next == sentinel ? null : tile.next;
+		}
+
+		private void insertAfter( final Tile p, final Tile tile )
+		{
+			tile.prev = p;
+			tile.next = p.next;
+			p.next.prev = tile;
+			p.next = tile;
+			tile.list = this;
+		}
+
+		/**
+		 * Remove {@code tile} from the list.
+		 */
+		void remove( final Tile tile )
+		{
+			tile.prev.next = tile.next;
+			tile.next.prev = tile.prev;
+			tile.prev = null;
+			tile.next = null;
+			tile.list = null;
 		}
 	}
 
 	static class TileFillTask implements FillTask
 	{
 		private final FillTask task; // wrapped task
+		private final long packedKey; // packed task.getKey()
 		private Tile tile;
 
-		public TileFillTask( final FillTask task, final Tile tile )
+		public TileFillTask( final FillTask task, final long packedKey, final Tile tile )
 		{
 			this.task = task;
+			this.packedKey = packedKey;
 			this.tile = tile;
 		}
 
-		public TileFillTask( final FillTask task )
+		public TileFillTask( final FillTask task, final long packedKey )
 		{
-			this( task, null );
+			this( task, packedKey, null );
 		}
 
 		@Override
@@ -114,6 +458,23 @@ public class TextureCache implements Texture3D
 			task.fill( buffer );
 		}
 
+		@Override
+		public double getPriority()
+		{
+			return task.getPriority();
+		}
+
+		@Override
+		public int getVersion()
+		{
+			return task.getVersion();
+		}
+
+		long getPackedKey()
+		{
+			return packedKey;
+		}
+
 		Tile getTile()
 		{
 			return tile;
@@ -125,58 +486,223 @@ public class TextureCache implements Texture3D
 		}
 	}
 
-	private final int texWidth;
-	private final int texHeight;
-	private final int texDepth;
+	private int texWidth;
+	private int texHeight;
+	private int texDepth;
+
+	// width, height, depth in tiles (of each page)
+	private int[] dimensions;
+
+	/**
+	 * Max number of pages. The cache may consist of several textures (pages)
+	 * of the same size, to exceed the size limit of a single 3D texture. The
+	 * page of a tile is stored in 4 bits of its lookup table entry (see
+	 * {@code LookupTextureARGB}), so there can be at most 16 pages. Together
+	 * with {@link #MAX_PAGE_SIZE_IN_MB}, this caps the cache size at 64 GB.
+	 * <p>
+	 * The shader declares one sampler per page (see
+	 * {@code sample_cache_pages.frag}), so each page uses a texture unit.
+	 */
+	public static final int MAX_NUM_PAGES = 16;
+
+	/**
+	 * Max size of a single page, see {@link #findSuitableNumPages(int)}.
+	 */
+	public static final int MAX_PAGE_SIZE_IN_MB = 4096;
+
+	/**
+	 * Max size (in voxels) of a page texture along each axis, see
+	 * {@link #findSuitableGridSize(CacheSpec, int)}. (Most GPUs support at
+	 * least this {@code GL_MAX_3D_TEXTURE_SIZE}.)
+	 */
+	public static final int MAX_TEXTURE_SIZE = 2048;
 
-	// width, height, depth in tiles
-	private final int[] dimensions; // TODO: unused? remove?
+	// number of pages
+	private int numPages;
+
+	// the page textures. pages[0] is this TextureCache
+	private Texture3D[] pages;
 
 	// tile size and texture format
 	private final CacheSpec spec;
 
-	// tiles arranged in (z,y,x)-flattened texture order
-	private final Tile[] tiles; // TODO: unused? remove?
+	// tiles arranged in (page,x,y,z)-flattened texture order
+	private Tile[] tiles;
+
+	// tiles arranged by lru (and eviction bonus)
+	private final EvictionOrder lruOrdered;
+
+	private final TileEvictionPolicy evictionPolicy;
+
+	// tiles.length - 1 - number of shared uniform tiles. Tile 0 is reserved for out-of-bounds.
+	private int numUnblockedTiles;
+
+	// maps packed key of currently present blocks to tile containing them
+	// tilemap.get(key).content == key, unless tilemap.get(key).shared, or
+	// key is a content alias of tilemap.get(key)
+	private final LongObjectMap< Tile > tilemap = new LongObjectMap<>();
+
+	// maps image of ImageBlockKey to small integer id used in packed keys
+	private final Map< Object, Integer > imageIds = new HashMap<>();
+
+	// maps small integer id to image (inverse of imageIds), or null for free ids
+	private final ArrayList< Object > images = new ArrayList<>();
+
+	// epoch (see sweepImageIds()) in which each id was last requested by imageId()
+	private int[] imageIdEpochs = new int[ 64 ];
+
+	private int imageIdEpoch;
+
+	// ids reclaimed by sweepImageIds(), to be reused
+	private final ArrayDeque< Integer > freeImageIds = new ArrayDeque<>();
+
+	// sweepImageIds() when a new id is required and this many ids are in use
+	private int imageIdSweepThreshold = MIN_IMAGE_ID_SWEEP_THRESHOLD;
+
+	private static final int MIN_IMAGE_ID_SWEEP_THRESHOLD = 1024;
+
+	/**
+	 * Max number of tiles (in addition to tile 0) that are set aside as
+	 * shared tiles for uniform blocks.
+	 */
+	static final int MAX_NUM_UNIFORM_TILES = 16;
+
+	// maps value of uniform blocks to shared tile containing them.
+	// The out-of-bounds tile 0 is used for value 0.
+	private final Map< Long, Tile > uniformTiles = new HashMap<>();
+
+	// whether fill tasks compute content hashes of complete blocks, so that
+	// blocks with known content can be mapped to existing tiles
+	private volatile boolean contentHashDedup;
+
+	// maps content hash of complete blocks to tile containing them
+	private final LongObjectMap< Tile > contentTiles = new LongObjectMap<>();
+
+	/**
+	 * Default fraction of {@link #getMaxNumTiles()} that may be used for
+	 * pinned tiles.
+	 */
+	public static final double DEFAULT_MAX_PINNED_FRACTION = 0.1;
+
+	// max fraction of getMaxNumTiles() that may be used for pinned tiles
+	private double maxPinnedFraction = DEFAULT_MAX_PINNED_FRACTION;
+
+	// number of tiles with pinned == true
+	private int numPinnedTiles;
+
+	// pinned bounding boxes (including whole images)
+	private final ArrayList< PinnedRegion > pinnedRegions = new ArrayList<>();
+
+	// explicitly pinned packed keys
+	private final LongObjectMap< Boolean > pinnedKeys = new LongObjectMap<>();
+
+	// packed keys of prefetched blocks that were not requested (yet)
+	private final LongObjectMap< Boolean > prefetchedKeys = new LongObjectMap<>();
 
-	// tiles arranged by (lru, x, y, z)
-	private final ArrayList< Tile > lruOrdered = new ArrayList<>();
+	// packed keys of present blocks passed to useRequired() since the last
+	// stage(), which are protected from replacement like requested blocks
+	private long[] requiredKeys = new long[ 64 ];
+	private int numRequiredKeys;
 
-	// tiles.length - 1. Tile 0 is reserved for out-of-bounds.
-	private final int numUnblockedTiles;
+	// packed keys of blocks requested in the current stage() (only used with prefetching)
+	private final LongObjectMap< Boolean > stagedKeys = new LongObjectMap<>();
 
-	// maps key of currently present blocks to tile containing them
-	// tilemap.get(key).content == key
-	private final Map< ImageBlockKey< ? >, Tile > tilemap = new ConcurrentHashMap<>();
+	// statistics: blocks staged for prefetching, and how many of them were requested later
+	private long numPrefetchedBlocks;
+	private long numPrefetchHits;
+
+	// number of keys in tilemap that are mapped to a shared tile or content alias
+	private int numAliasedKeys;
+
+	// when numAliasedKeys exceeds this, aliased keys are removed from tilemap
+	private int maxNumAliasedKeys;
+
+	// statistics: blocks requested in stage(), how many of them were present
+	// in a shared tile, and how many uploads were skipped because of that
+	private long numRequestedBlocks;
+	private long numDeduplicatedBlocks;
+	private long numSkippedUploads;
+
+	// statistics: uploads that were skipped because a tile with the same
+	// content was present
+	private long numContentAliasedUploads;
+
+	// statistics: uploads of incomplete blocks, and how many of them were
+	// replaced later (by the complete block, or by another block)
+	private long numPartialUploads;
+	private long numReplacedPartialUploads;
+
+	// incremented whenever the cache is resized
+	private int generation;
 
 	private static final AtomicInteger timestampGen = new AtomicInteger();
 
 	public TextureCache(
 			final int[] dimensions,
 			final CacheSpec spec )
+	{
+		this( dimensions, spec, new TileEvictionPolicy.Lru() );
+	}
+
+	public TextureCache(
+			final int[] dimensions,
+			final CacheSpec spec,
+			final TileEvictionPolicy evictionPolicy )
+	{
+		this( dimensions, 1, spec, evictionPolicy );
+	}
+
+	/**
+	 * @param dimensions
+	 *            width, height, depth in tiles of each page.
+	 * @param numPages
+	 *            number of pages (textures), at most {@link #MAX_NUM_PAGES}.
+	 */
+	public TextureCache(
+			final int[] dimensions,
+			final int numPages,
+			final CacheSpec spec,
+			final TileEvictionPolicy evictionPolicy )
 	{
 		assert dimensions.length == 3;
+		if ( numPages < 1 || numPages > MAX_NUM_PAGES )
+			throw new IllegalArgumentException( "numPages must be in [1, " + MAX_NUM_PAGES + "]" );
 
 		this.dimensions = dimensions;
+		this.numPages = numPages;
 		this.spec = spec;
+		this.evictionPolicy = evictionPolicy;
+		lruOrdered = new EvictionOrder( evictionPolicy, key -> images.get( ( int ) ( key >>> 45 ) ) );
 
 		final int[] tileDimensions = spec.paddedBlockSize();
 		texWidth = dimensions[ 0 ] * tileDimensions[ 0 ];
 		texHeight = dimensions[ 1 ] * tileDimensions[ 1 ];
 		texDepth = dimensions[ 2 ] * tileDimensions[ 2 ];
 
-		final int len = ( int ) Intervals.numElements( dimensions );
+		pages = new Texture3D[ numPages ];
+		pages[ 0 ] = this;
+		for ( int p = 1; p < numPages; ++p )
+			pages[ p ] = new Page();
+
+		final int len = numPages * ( int ) Intervals.numElements( dimensions );
 		tiles = new Tile[ len ];
 
 		int i = 0;
-		for ( int x = 0; x < dimensions[ 0 ]; ++x )
-			for ( int y = 0; y < dimensions[ 1 ]; ++y )
-				for ( int z = 0; z < dimensions[ 2 ]; ++z )
-					tiles[ i++ ] = new Tile( x, y, z );
+		for ( int p = 0; p < numPages; ++p )
+			for ( int x = 0; x < dimensions[ 0 ]; ++x )
+				for ( int y = 0; y < dimensions[ 1 ]; ++y )
+					for ( int z = 0; z < dimensions[ 2 ]; ++z )
+						tiles[ i++ ] = new Tile( p, x, y, z, lruOrdered );
 
 		// i = 0 is reserved for out-of-bounds block
 		for ( i = 1; i < len; ++i )
 			lruOrdered.add( tiles[ i ] );
 		numUnblockedTiles = len - 1;
+
+		// the out-of-bounds block is all zeros
+		tiles[ 0 ].shared = true;
+		uniformTiles.put( 0L, tiles[ 0 ] );
+		maxNumAliasedKeys = Math.max( 1024, 4 * len );
 	}
 
 	public CacheSpec spec()
@@ -185,110 +711,442 @@ public class TextureCache implements Texture3D
 	}
 
 	/**
-	 * @return number of tiles that can fit into this cache
+	 * @return number of pages (textures) of this cache.
 	 */
-	public int getMaxNumTiles()
-	{
-		return numUnblockedTiles;
-	}
-
-	public Tile get( final ImageBlockKey< ? > key )
+	public int getNumPages()
 	{
-		return tilemap.get( key );
+		return numPages;
 	}
 
-	public int nextTimestamp()
+	/**
+	 * Get the texture of page {@code page}. All pages have the same size and
+	 * format. Page 0 is this {@code TextureCache} itself, so a single-page
+	 * cache can be used as a single texture.
+	 */
+	public Texture3D getPage( final int page )
 	{
-		return timestampGen.incrementAndGet();
+		return pages[ page ];
 	}
 
-	static class StagedTasks
+	/**
+	 * Additional page of the cache. Size and format are the same as for the
+	 * {@code TextureCache} (page 0).
+	 */
+	private class Page implements Texture3D
 	{
-		// tasks with possibly a tile already assigned
-		final List< TileFillTask > tasks;
-
-		// tiles that can be used for the tasks that have no tile assigned yet
-		final List< Tile > reusableTiles;
+		@Override
+		public InternalFormat texInternalFormat()
+		{
+			return TextureCache.this.texInternalFormat();
+		}
 
-		public StagedTasks( final List< TileFillTask > tasks, final List< Tile > reusableTiles )
+		@Override
+		public int texWidth()
 		{
-			this.tasks = tasks;
-			this.reusableTiles = reusableTiles;
+			return texWidth;
 		}
-	}
 
-	StagedTasks stage( final Collection< ? extends FillTask > tasks )
-	{
-		final int mark = timestampGen.incrementAndGet();
+		@Override
+		public int texHeight()
+		{
+			return texHeight;
+		}
 
-		final ArrayList< TileFillTask > tileFillTasks = new ArrayList<>( tasks.size() );
-		initializeBlockedTiles( tileFillTasks );
-		final ArrayList< TileFillTask > update = new ArrayList<>();
+		@Override
+		public int texDepth()
+		{
+			return texDepth;
+		}
 
-		int newsize = 0;
-		for ( final FillTask task : tasks )
+		@Override
+		public MinFilter texMinFilter()
 		{
-			final Tile tile = tilemap.get( task.getKey() );
-			if ( tile == null )
-			{
-				tileFillTasks.add( new TileFillTask( task ) );
-				++newsize;
-			}
-			else
-			{
-				if ( tile.state == INCOMPLETE )
-				{
-					update.add( new TileFillTask( task, tile ) );
-					/*
-					 * Set the tile lru to mark, so that we can detect if it would be overridden in assignFillTiles
-					 */
-					tile.lru = mark;
-				}
-			}
+			return TextureCache.this.texMinFilter();
 		}
 
-		/*
-		 * TODO: sort 'tileFillTasks' list by desired loading order
-		 * TODO: similar to BlockingFetchQueues priority levels?
-		 */
+		@Override
+		public MagFilter texMagFilter()
+		{
+			return TextureCache.this.texMagFilter();
+		}
 
-		tileFillTasks.addAll( update );
+		@Override
+		public Wrap texWrap()
+		{
+			return TextureCache.this.texWrap();
+		}
+	}
 
-		final List< Tile > fillTiles = assignFillTiles( newsize, mark );
-		return new StagedTasks( tileFillTasks, fillTiles );
+	public TileEvictionPolicy getEvictionPolicy()
+	{
+		return evictionPolicy;
 	}
 
-	private boolean blockedTileInitialized = false;
+	/**
+	 * Notify the {@link TileEvictionPolicy} that a block of {@code image} was
+	 * filled in {@code nanos}. (Called from filler threads.)
+	 */
+	void fillCompleted( final Object image, final long nanos )
+	{
+		evictionPolicy.fillCompleted( image, nanos );
+	}
 
 	/**
-	 * Initialize out-of-bounds blocks etc.
+	 * @return number of tiles that can fit into this cache
 	 */
-	private void initializeBlockedTiles( ArrayList< TileFillTask > tileFillTasks )
+	public int getMaxNumTiles()
 	{
-		if ( blockedTileInitialized )
-			return;
+		return numUnblockedTiles;
+	}
+
+	public Tile get( final ImageBlockKey< ? > key )
+	{
+		return tilemap.get( packKey( key ) );
+	}
+
+	/**
+	 * Get the tile containing the block with the given {@link #packKey packed
+	 * key}.
+	 *
+	 * @return tile containing the block, or {@code null} if the block is not present.
+	 */
+	public Tile get( final long packedKey )
+	{
+		return tilemap.get( packedKey );
+	}
+
+	/**
+	 * Get a small integer id for {@code image} (as used in
+	 * {@link ImageBlockKey#image()}). Ids are assigned when an image is seen
+	 * for the first time, and are used to {@link #packKey pack} block keys into
+	 * a {@code long}.
+	 * <p>
+	 * Ids of images that are no longer referenced by any tile, pin, or
+	 * mapped key are reclaimed (and the images released) when many ids are in
+	 * use, see {@link #sweepImageIds()}. To keep using an id, request it
+	 * again (e.g., every frame).
+	 */
+	public int imageId( final Object image )
+	{
+		Integer id = imageIds.get( image );
+		if ( id == null )
+		{
+			if ( imageIds.size() >= imageIdSweepThreshold )
+				sweepImageIds();
+			if ( freeImageIds.isEmpty() )
+			{
+				id = images.size();
+				if ( id > MAX_IMAGE_ID )
+					throw new IllegalStateException( "too many images" );
+				images.add( image );
+			}
+			else
+			{
+				id = freeImageIds.poll();
+				images.set( id, image );
+			}
+			imageIds.put( image, id );
+			if ( id >= imageIdEpochs.length )
+				imageIdEpochs = Arrays.copyOf( imageIdEpochs, Math.max( id + 1, 2 * imageIdEpochs.length ) );
+		}
+		imageIdEpochs[ id ] = imageIdEpoch;
+		return id;
+	}
+
+	/**
+	 * Reclaim the ids of images that no present tile, mapped key, or pin
+	 * refers to, and that were not requested by {@link #imageId} since the
+	 * previous sweep. (Ids held by callers from before that, e.g. of blocks in
+	 * a suspended batch, are assumed to be out of use after a full sweep
+	 * interval, which spans many new images.) The {@link TileEvictionPolicy}
+	 * {@link TileEvictionPolicy#forget forgets} the released images.
+	 */
+	private void sweepImageIds()
+	{
+		final boolean[] used = new boolean[ images.size() ];
+		for ( final Tile tile : tiles )
+			if ( tile.content != NO_CONTENT )
+				used[ ( int ) ( tile.content >>> 45 ) ] = true;
+		tilemap.forEachKey( key -> used[ ( int ) ( key >>> 45 ) ] = true );
+		pinnedKeys.forEachKey( key -> used[ ( int ) ( key >>> 45 ) ] = true );
+		for ( final PinnedRegion region : pinnedRegions )
+			used[ region.imageId ] = true;
+
+		final boolean[] freed = new boolean[ images.size() ];
+		for ( int id = 0; id < images.size(); ++id )
+		{
+			final Object image = images.get( id );
+			if ( image != null && !used[ id ] && imageIdEpochs[ id ] != imageIdEpoch )
+			{
+				imageIds.remove( image );
+				images.set( id, null );
+				evictionPolicy.forget( image );
+				freeImageIds.add( id );
+				freed[ id ] = true;
+			}
+		}
+		prefetchedKeys.removeIf( ( key, value ) -> freed[ ( int ) ( key >>> 45 ) ] );
+
+		++imageIdEpoch;
+		imageIdSweepThreshold = Math.max( MIN_IMAGE_ID_SWEEP_THRESHOLD, Math.min( MAX_IMAGE_ID, 2 * imageIds.size() ) );
+	}
+
+	/**
+	 * @return number of images that currently have an {@link #imageId id}.
+	 */
+	public int getNumImageIds()
+	{
+		return imageIds.size();
+	}
+
+	/**
+	 * Pack {@code key} into a {@code long}. (See {@link #packKey(int, int, int, int)}.)
+	 */
+	public long packKey( final ImageBlockKey< ? > key )
+	{
+		return packKey( imageId( key.image() ), key.x(), key.y(), key.z() );
+	}
+
+	/**
+	 * Pack the key of block {@code (x,y,z)} of the image with the given
+	 * {@link #imageId id} into a (non-negative) {@code long}. The image id
+	 * takes 18 bits, each coordinate 15 bits.
+	 */
+	public static long packKey( final int imageId, final int x, final int y, final int z )
+	{
+		if ( ( ( x | y | z ) & ~MAX_BLOCK_COORDINATE ) != 0 )
+			throw new IllegalArgumentException( "block coordinates out of range" );
+		return ( ( long ) imageId << 45 ) | ( ( long ) x << 30 ) | ( ( long ) y << 15 ) | z;
+	}
+
+	public static final long NO_CONTENT = -1;
+
+	private static final int MAX_IMAGE_ID = ( 1 << 18 ) - 1;
+
+	private static final int MAX_BLOCK_COORDINATE = ( 1 << 15 ) - 1;
+
+	public int nextTimestamp()
+	{
+		numRequiredKeys = 0;
+		return timestampGen.incrementAndGet();
+	}
+
+	/**
+	 * Record that the present {@code tile} with the given {@link #packKey
+	 * packed key} is required and up to date, so that no {@code FillTask}
+	 * needs to be created for it. In the next {@link #stage}, the tile is
+	 * protected from replacement (and counted in the statistics) as if a
+	 * task for it had been passed. Recorded keys are dropped by the next
+	 * {@code stage()} or {@link #nextTimestamp()}.
+	 *
+	 * @return whether the tile occupies an evictable tile, i.e., counts
+	 *         against {@link #getNumEvictableTiles()}.
+	 */
+	public boolean useRequired( final long packedKey, final Tile tile )
+	{
+		++numRequestedBlocks;
+		if ( tile.shared )
+			++numDeduplicatedBlocks;
+		if ( !prefetchedKeys.isEmpty() && prefetchedKeys.remove( packedKey ) != null )
+			++numPrefetchHits;
+		if ( numRequiredKeys == requiredKeys.length )
+			requiredKeys = Arrays.copyOf( requiredKeys, 2 * numRequiredKeys );
+		requiredKeys[ numRequiredKeys++ ] = packedKey;
+		return tile.evictable();
+	}
+
+	static class StagedTasks
+	{
+		// tasks with possibly a tile already assigned
+		final List< TileFillTask > tasks;
+
+		// tiles that can be used for the tasks that have no tile assigned yet
+		final List< Tile > reusableTiles;
+
+		public StagedTasks( final List< TileFillTask > tasks, final List< Tile > reusableTiles )
+		{
+			this.tasks = tasks;
+			this.reusableTiles = reusableTiles;
+		}
+	}
+
+	StagedTasks stage( final Collection< ? extends FillTask > tasks )
+	{
+		final int mark = timestampGen.incrementAndGet();
+
+		if ( numAliasedKeys > maxNumAliasedKeys )
+			removeAliasedKeys();
+
+		final ArrayList< TileFillTask > tileFillTasks = new ArrayList<>( tasks.size() );
+		initializeBlockedTiles( tileFillTasks );
+		final ArrayList< TileFillTask > update = new ArrayList<>();
+		final ArrayList< PrefetchFillTask > prefetch = new ArrayList<>();
+		boolean hasPrefetch = false;
+		for ( final FillTask task : tasks )
+			hasPrefetch |= task instanceof PrefetchFillTask;
+		stagedKeys.clear();
+
+		// present tiles of required blocks without tasks, see useRequired()
+		for ( int i = 0; i < numRequiredKeys; ++i )
+		{
+			final Tile tile = tilemap.get( requiredKeys[ i ] );
+			if ( tile != null )
+				tile.useAtTimestamp( mark );
+		}
+		numRequiredKeys = 0;
+
+		int newsize = 0;
+		for ( final FillTask task : tasks )
+		{
+			if ( task instanceof PrefetchFillTask )
+			{
+				prefetch.add( ( PrefetchFillTask ) task );
+				continue;
+			}
+
+			final long key = packKey( task.getKey() );
+			Tile tile = tilemap.get( key );
+			if ( tile != null && tile.version < task.getVersion() && ( tile.shared || tile.content != key ) )
+			{
+				// outdated block mapped to a tile with identical content: must not be overwritten
+				tilemap.remove( key );
+				tile = null;
+			}
+			++numRequestedBlocks;
+			if ( tile != null && tile.shared )
+				++numDeduplicatedBlocks;
+			if ( tile != null && !prefetchedKeys.isEmpty() && prefetchedKeys.remove( key ) != null )
+				++numPrefetchHits;
+			if ( hasPrefetch )
+				stagedKeys.put( key, Boolean.TRUE );
+			if ( tile == null )
+			{
+				tileFillTasks.add( new TileFillTask( task, key ) );
+				++newsize;
+			}
+			else
+			{
+				if ( tile.state == INCOMPLETE || tile.version < task.getVersion() )
+					update.add( new TileFillTask( task, key, tile ) );
+				/*
+				 * Set the tile lru to mark, so that present tiles of required
+				 * blocks are not selected for replacement in assignFillTiles
+				 * or stagePrefetch. (This matters in particular for tiles
+				 * uploaded by a batch that completed in the same frame, before
+				 * they were used by makeLut.)
+				 */
+				tile.useAtTimestamp( mark );
+			}
+		}
+
+		/*
+		 * Sort by loading order. Tasks for new tiles go before updates of
+		 * incomplete tiles (which already show something). The out-of-bounds
+		 * task (if any) stays in front.
+		 */
+		tileFillTasks.subList( tileFillTasks.size() - newsize, tileFillTasks.size() ).sort( priorityComparator );
+		update.sort( priorityComparator );
+
+		tileFillTasks.addAll( update );
+
+		final List< Tile > fillTiles = assignFillTiles( newsize, mark );
+		if ( prefetch.isEmpty() )
+			return new StagedTasks( tileFillTasks, fillTiles );
+
+		final List< Tile > prefetchTiles = stagePrefetch( prefetch, tileFillTasks, fillTiles, mark );
+		final ArrayList< Tile > reusableTiles = new ArrayList<>( fillTiles.size() + prefetchTiles.size() );
+		reusableTiles.addAll( fillTiles );
+		reusableTiles.addAll( prefetchTiles );
+		reusableTiles.sort( lruComparator );
+		return new StagedTasks( tileFillTasks, reusableTiles );
+	}
+
+	/**
+	 * Append tasks for prefetched blocks that are neither present nor
+	 * required to {@code tileFillTasks}, as far as there are tiles that were
+	 * not used since the {@link PrefetchFillTask#getProtectedTimestamp()
+	 * protected timestamp}.
+	 *
+	 * @param fillTiles
+	 *            tiles already selected for required blocks
+	 * @return tiles selected for prefetched blocks
+	 */
+	private List< Tile > stagePrefetch(
+			final List< PrefetchFillTask > prefetch,
+			final List< TileFillTask > tileFillTasks,
+			final List< Tile > fillTiles,
+			final int mark )
+	{
+		// tiles selected for required blocks must not be selected again
+		for ( final Tile tile : fillTiles )
+			tile.useAtTimestamp( mark );
+
+		int maxLru = mark;
+		final ArrayList< TileFillTask > prefetchTasks = new ArrayList<>();
+		for ( final PrefetchFillTask task : prefetch )
+		{
+			final long key = packKey( task.getKey() );
+			if ( tilemap.get( key ) == null && stagedKeys.put( key, Boolean.TRUE ) == null )
+			{
+				prefetchTasks.add( new TileFillTask( task, key ) );
+				maxLru = Math.min( maxLru, task.getProtectedTimestamp() );
+			}
+		}
+		prefetchTasks.sort( priorityComparator );
+
+		final List< Tile > prefetchTiles = lruOrdered.select( prefetchTasks.size(), maxLru, false );
+		// prefetched blocks should not be replaced before older blocks
+		for ( final Tile tile : prefetchTiles )
+			tile.useAtTimestamp( mark );
+		for ( final TileFillTask task : prefetchTasks.subList( 0, prefetchTiles.size() ) )
+		{
+			prefetchedKeys.put( task.getPackedKey(), Boolean.TRUE );
+			tileFillTasks.add( task );
+		}
+		numPrefetchedBlocks += prefetchTiles.size();
+		return prefetchTiles;
+	}
+
+	private boolean blockedTileInitialized = false;
+
+	/**
+	 * Initialize out-of-bounds blocks etc.
+	 */
+	private void initializeBlockedTiles( ArrayList< TileFillTask > tileFillTasks )
+	{
+		if ( blockedTileInitialized )
+			return;
 
 		blockedTileInitialized = true;
 
 		final Tile oobTile = tiles[ 0 ];
 		final Object dummyImage = new Object();
 		final ImageBlockKey< Object > oobDummyKey = new ImageBlockKey<>( dummyImage, new int[] { 0, 0, 0 } );
-		final int elementsPerTile = ( int ) Intervals.numElements( spec.paddedBlockSize() );
+		final long bytesPerTile = bytesPerTile();
 		tileFillTasks.add( new TileFillTask( new DefaultFillTask( oobDummyKey, buf -> {
-			ByteUtils.setShorts( ( short ) 0, buf.getAddress(), elementsPerTile );
+			ByteUtils.setBytes( ( byte ) 0, ByteUtils.address( buf, 0, bytesPerTile ), bytesPerTile );
 			return true;
-		} , () -> true ), oobTile ) );
+		} , () -> true ), packKey( oobDummyKey ), oobTile ) );
 	}
 
+	/**
+	 * Get the {@code size} tiles to replace first, according to the
+	 * {@link TileEvictionPolicy} (see {@link EvictionOrder#select}). The
+	 * returned tiles are sorted by
+	 * {@code (lru, x, y, z)}, such that {@code Pbo.uploadToTexture()} can
+	 * coalesce uploads of adjacent tiles.
+	 */
 	private List< Tile > assignFillTiles( final int size, final int currentTimestamp )
 	{
 		if ( size == 0 )
 			return Collections.emptyList();
 
-		lruOrdered.sort( lruComparator );
-		if ( size > numUnblockedTiles || lruOrdered.get( size - 1 ).lru == currentTimestamp )
+		if ( size > numUnblockedTiles - numPinnedTiles )
 			throw new IllegalArgumentException( "Requested blocks don't fit into TextureCache." );
-		return lruOrdered.subList( 0, size );
+
+		final List< Tile > fillTiles = lruOrdered.select( size, currentTimestamp, true );
+		fillTiles.sort( lruComparator );
+		return fillTiles;
 	}
 
 	/**
@@ -297,20 +1155,517 @@ public class TextureCache implements Texture3D
 	 * @param tile
 	 * @param key
 	 * @param state
+	 * @param version
 	 */
-	void assign( final Tile tile, final ImageBlockKey< ? > key, final ContentState state )
+	void assign( final Tile tile, final long key, final ContentState state, final int version )
 	{
-		if ( ! key.equals( tile.content ) )
+		if ( tile.content != NO_CONTENT && tile.state == INCOMPLETE )
+			++numReplacedPartialUploads;
+		if ( state == INCOMPLETE )
+			++numPartialUploads;
+		if ( key != tile.content )
 		{
-			if ( tile.content != null )
+			if ( tile.content != NO_CONTENT )
+			{
 				tilemap.remove( tile.content );
+				prefetchedKeys.remove( tile.content );
+			}
+			clearContentHash( tile );
 			tilemap.put( key, tile );
 		}
 		tile.content = key;
 		tile.state = state;
+		tile.version = version;
+
+		final boolean pinned = !tile.shared && isPinned( key );
+		if ( tile.pinned && !pinned )
+			unpinTile( tile );
+		else if ( !tile.pinned && pinned )
+			pinTile( tile );
+	}
+
+	/**
+	 * Called for each tile whose content is a uniform block with the given
+	 * {@code value}, before it is uploaded.
+	 * <p>
+	 * If there is a shared tile for {@code value}, {@code key} is mapped to the
+	 * shared tile, and {@code tile} keeps its previous content (or becomes
+	 * empty, if its previous content was {@code key}).
+	 * <p>
+	 * Otherwise, if the max number of shared tiles is not reached yet,
+	 * {@code tile} is turned into the shared tile for {@code value} (and
+	 * removed from the LRU list).
+	 *
+	 * @return {@code true} if {@code key} was mapped to an existing shared
+	 *         tile, i.e., uploading the block can be skipped.
+	 */
+	boolean assignUniform( final Tile tile, final long key, final long value, final int version )
+	{
+		if ( tile.pinned )
+			unpinTile( tile );
+
+		final Tile sharedTile = uniformTiles.get( value );
+		if ( sharedTile != null )
+		{
+			if ( version != 0 && sharedTile.version > version )
+				return false; // outdated block, upload it to tile
+			if ( version > sharedTile.version )
+			{
+				// keys mapped with an older version must be reloaded
+				removeKeysMappedTo( sharedTile );
+				sharedTile.version = version;
+			}
+			if ( key == tile.content )
+				tile.content = NO_CONTENT;
+			tilemap.put( key, sharedTile );
+			++numSkippedUploads;
+			++numAliasedKeys;
+			return true;
+		}
+
+		if ( uniformTiles.size() <= MAX_NUM_UNIFORM_TILES && numUnblockedTiles - numPinnedTiles > 1 )
+		{
+			lruOrdered.remove( tile );
+			--numUnblockedTiles;
+			tile.shared = true;
+			uniformTiles.put( value, tile );
+		}
+		return false;
+	}
+
+	/**
+	 * Enable or disable content hash deduplication. If enabled, fill tasks
+	 * compute a hash of each complete (non-uniform) block (see
+	 * {@link UploadBuffer#setContentHash}). If a tile with the same content
+	 * hash is present, the block is mapped to that tile instead of uploading
+	 * it. This helps for time-lapse data, where many blocks (e.g. background)
+	 * are identical between time-points.
+	 * <p>
+	 * Blocks are considered identical if their 64-bit hashes are equal. The
+	 * content is not compared.
+	 */
+	public void setContentHashDedup( final boolean enable )
+	{
+		contentHashDedup = enable;
+	}
+
+	public boolean isContentHashDedup()
+	{
+		return contentHashDedup;
+	}
+
+	/**
+	 * Called for each tile whose content is a complete block with the given
+	 * content {@code hash}, before it is uploaded.
+	 * <p>
+	 * If a tile with the same content hash is present, {@code key} is mapped
+	 * to that tile, and {@code tile} keeps its previous content (or becomes
+	 * empty, if its previous content was {@code key}). The alias is removed
+	 * when the content of the existing tile is replaced.
+	 *
+	 * @return {@code true} if {@code key} was mapped to an existing tile,
+	 *         i.e., uploading the block can be skipped.
+	 */
+	boolean assignContentHash( final Tile tile, final long key, final long hash, final int version )
+	{
+		final Tile existing = contentTiles.get( contentKey( hash ) );
+		if ( existing == null || existing.content == key )
+			return false;
+		if ( version != 0 && existing.version != version )
+			return false; // the existing tile's content key and aliases have a different version
+
+		if ( key == tile.content )
+		{
+			if ( tile.pinned )
+				unpinTile( tile );
+			tile.content = NO_CONTENT;
+		}
+		tilemap.put( key, existing );
+		if ( existing.aliases == null )
+			existing.aliases = new long[ 4 ];
+		else if ( existing.numAliases == existing.aliases.length )
+			existing.aliases = Arrays.copyOf( existing.aliases, 2 * existing.numAliases );
+		existing.aliases[ existing.numAliases++ ] = key;
+		existing.useAtTimestamp( Math.max( existing.lru, tile.lru ) );
+		++numContentAliasedUploads;
+		++numAliasedKeys;
+		return true;
+	}
+
+	/**
+	 * Called for each tile after a complete block with the given content
+	 * {@code hash} was uploaded to it (and {@link #assign assigned}).
+	 */
+	void indexContentHash( final Tile tile, final long hash )
+	{
+		if ( tile.shared )
+			return;
+		final long contentKey = contentKey( hash );
+		final Tile existing = contentTiles.get( contentKey );
+		if ( existing != null )
+		{
+			if ( existing.version >= tile.version )
+				return;
+			// index the newer version instead (existing aliases remain valid)
+			existing.hashed = false;
+		}
+		tile.hashed = true;
+		tile.contentHash = contentKey;
+		contentTiles.put( contentKey, tile );
+	}
+
+	/**
+	 * Key of a content hash in {@link #contentTiles}. ({@code LongObjectMap}
+	 * keys must be non-negative, so the sign bit of the hash is dropped.)
+	 */
+	private static long contentKey( final long hash )
+	{
+		return hash & Long.MAX_VALUE;
 	}
 
-	private static final Comparator< Tile > lruComparator = new Comparator< Tile >()
+	/**
+	 * Remove {@code tile} from the content hash index, and remove all keys
+	 * that are mapped to it as content aliases.
+	 */
+	private void clearContentHash( final Tile tile )
+	{
+		if ( tile.hashed )
+		{
+			contentTiles.remove( tile.contentHash );
+			tile.hashed = false;
+		}
+		for ( int i = 0; i < tile.numAliases; ++i )
+		{
+			final long key = tile.aliases[ i ];
+			if ( tilemap.get( key ) == tile )
+			{
+				tilemap.remove( key );
+				prefetchedKeys.remove( key );
+			}
+		}
+		tile.numAliases = 0;
+	}
+
+	/**
+	 * Remove all keys that are mapped to the shared tile {@code sharedTile}
+	 * from {@link #tilemap}.
+	 */
+	private void removeKeysMappedTo( final Tile sharedTile )
+	{
+		final int[] numRemoved = { 0 };
+		tilemap.removeIf( ( key, tile ) -> {
+			if ( tile != sharedTile )
+				return false;
+			prefetchedKeys.remove( key );
+			++numRemoved[ 0 ];
+			return true;
+		} );
+		numAliasedKeys = Math.max( 0, numAliasedKeys - numRemoved[ 0 ] );
+	}
+
+	/**
+	 * Remove all keys that are mapped to shared tiles or content aliases from
+	 * {@link #tilemap}. (They will be requested, filled, and mapped to shared
+	 * or existing tiles again when needed.)
+	 */
+	private void removeAliasedKeys()
+	{
+		tilemap.removeIf( ( key, tile ) -> key != tile.content );
+		prefetchedKeys.removeIf( ( key, value ) -> !tilemap.containsKey( key ) );
+		for ( final Tile tile : tiles )
+			tile.numAliases = 0;
+		numAliasedKeys = 0;
+	}
+
+	/**
+	 * @return number of blocks requested in {@link #stage} so far.
+	 */
+	public long getNumRequestedBlocks()
+	{
+		return numRequestedBlocks;
+	}
+
+	/**
+	 * @return number of requested blocks that were present in a shared
+	 *         uniform tile.
+	 */
+	public long getNumDeduplicatedBlocks()
+	{
+		return numDeduplicatedBlocks;
+	}
+
+	/**
+	 * @return fraction of requested blocks that were present in a shared
+	 *         uniform tile.
+	 */
+	public double getDeduplicatedFraction()
+	{
+		return numRequestedBlocks == 0 ? 0 : ( double ) numDeduplicatedBlocks / numRequestedBlocks;
+	}
+
+	/**
+	 * @return number of block uploads that were skipped, because the block
+	 *         was mapped to an existing shared uniform tile.
+	 */
+	public long getNumSkippedUploads()
+	{
+		return numSkippedUploads;
+	}
+
+	/**
+	 * @return number of block uploads that were skipped, because a tile with
+	 *         the same content was present (see
+	 *         {@link #setContentHashDedup(boolean)}).
+	 */
+	public long getNumContentAliasedUploads()
+	{
+		return numContentAliasedUploads;
+	}
+
+	/**
+	 * @return number of bytes uploaded for incomplete blocks.
+	 */
+	public long getPartialUploadBytes()
+	{
+		return numPartialUploads * bytesPerTile();
+	}
+
+	/**
+	 * @return number of bytes uploaded for incomplete blocks that were later
+	 *         replaced, by the complete (or a more complete) block or by
+	 *         another block. This is upload bandwidth spent on showing
+	 *         incomplete data while loading (see {@link PartialUploadPolicy}).
+	 */
+	public long getReplacedPartialUploadBytes()
+	{
+		return numReplacedPartialUploads * bytesPerTile();
+	}
+
+	private long bytesPerTile()
+	{
+		return Intervals.numElements( spec.paddedBlockSize() ) * spec.format().getBytesPerElement();
+	}
+
+	/**
+	 * @return number of blocks staged for prefetching.
+	 */
+	public long getNumPrefetchedBlocks()
+	{
+		return numPrefetchedBlocks;
+	}
+
+	/**
+	 * @return number of prefetched blocks that were requested (as required
+	 *         blocks) while they were still present.
+	 */
+	public long getNumPrefetchHits()
+	{
+		return numPrefetchHits;
+	}
+
+	/**
+	 * @return fraction of prefetched blocks that were requested (as required
+	 *         blocks) while they were still present.
+	 */
+	public double getPrefetchHitRate()
+	{
+		return numPrefetchedBlocks == 0 ? 0 : ( double ) numPrefetchHits / numPrefetchedBlocks;
+	}
+
+	/**
+	 * Pin all blocks of the given resolution level. Tiles containing pinned
+	 * blocks are not replaced by other blocks, as long as the number of pinned
+	 * tiles does not exceed {@link #getMaxNumPinnedTiles()}. (When it does,
+	 * additional pinned blocks are cached like unpinned blocks.)
+	 */
+	public void pin( final ResolutionLevel3D< ? > level )
+	{
+		pin( level, null );
+	}
+
+	/**
+	 * Pin the blocks of {@code image} (as used in {@link ImageBlockKey#image()})
+	 * with grid coordinates in {@code gridInterval}. If {@code gridInterval ==
+	 * null}, all blocks of {@code image} are pinned.
+	 *
+	 * @see #pin(ResolutionLevel3D)
+	 */
+	public void pin( final Object image, final Interval gridInterval )
+	{
+		final int[] min = new int[ 3 ];
+		final int[] max = new int[ 3 ];
+		for ( int d = 0; d < 3; ++d )
+		{
+			min[ d ] = gridInterval == null ? 0 : ( int ) Math.max( 0, gridInterval.min( d ) );
+			max[ d ] = gridInterval == null ? MAX_BLOCK_COORDINATE : ( int ) Math.min( MAX_BLOCK_COORDINATE, gridInterval.max( d ) );
+		}
+		pinnedRegions.add( new PinnedRegion( imageId( image ), min, max ) );
+		updatePinnedTiles();
+	}
+
+	/**
+	 * Pin the blocks with the given {@code keys}.
+	 *
+	 * @see #pin(ResolutionLevel3D)
+	 */
+	public void pin( final Collection< ? extends ImageBlockKey< ? > > keys )
+	{
+		for ( final ImageBlockKey< ? > key : keys )
+			pinnedKeys.put( packKey( key ), Boolean.TRUE );
+		updatePinnedTiles();
+	}
+
+	/**
+	 * Remove all pins (resolution level, bounding boxes, explicit keys) of
+	 * blocks of {@code image}.
+	 */
+	public void unpin( final Object image )
+	{
+		final Integer id = imageIds.get( image );
+		if ( id == null )
+			return;
+		pinnedRegions.removeIf( region -> region.imageId == id );
+		pinnedKeys.removeIf( ( key, value ) -> ( key >>> 45 ) == id );
+		updatePinnedTiles();
+	}
+
+	/**
+	 * Remove explicit pins of the blocks with the given {@code keys}.
+	 */
+	public void unpin( final Collection< ? extends ImageBlockKey< ? > > keys )
+	{
+		for ( final ImageBlockKey< ? > key : keys )
+			pinnedKeys.remove( packKey( key ) );
+		updatePinnedTiles();
+	}
+
+	/**
+	 * Remove all pins.
+	 */
+	public void unpinAll()
+	{
+		pinnedRegions.clear();
+		pinnedKeys.clear();
+		updatePinnedTiles();
+	}
+
+	/**
+	 * Set the max fraction of {@link #getMaxNumTiles()} that may be used for
+	 * pinned tiles.
+	 */
+	public void setMaxPinnedFraction( final double fraction )
+	{
+		maxPinnedFraction = Math.max( 0, Math.min( 1, fraction ) );
+		updatePinnedTiles();
+	}
+
+	/**
+	 * @return max number of tiles that may be used for pinned blocks.
+	 */
+	public int getMaxNumPinnedTiles()
+	{
+		return ( int ) ( maxPinnedFraction * numUnblockedTiles );
+	}
+
+	/**
+	 * @return number of tiles that currently contain pinned blocks.
+	 */
+	public int getNumPinnedTiles()
+	{
+		return numPinnedTiles;
+	}
+
+	/**
+	 * @return number of tiles that can be replaced by new blocks, i.e.,
+	 *         {@link #getMaxNumTiles()} minus pinned tiles.
+	 */
+	public int getNumEvictableTiles()
+	{
+		return numUnblockedTiles - numPinnedTiles;
+	}
+
+	private boolean isPinned( final long key )
+	{
+		if ( pinnedKeys.containsKey( key ) )
+			return true;
+		for ( final PinnedRegion region : pinnedRegions )
+			if ( region.contains( key ) )
+				return true;
+		return false;
+	}
+
+	/**
+	 * Pin or unpin tiles after pins or {@link #maxPinnedFraction} were
+	 * modified.
+	 */
+	private void updatePinnedTiles()
+	{
+		final int maxNumPinnedTiles = getMaxNumPinnedTiles();
+		for ( int i = 1; i < tiles.length; ++i )
+		{
+			final Tile tile = tiles[ i ];
+			if ( tile.pinned && ( numPinnedTiles > maxNumPinnedTiles || !isPinned( tile.content ) ) )
+				unpinTile( tile );
+		}
+		for ( int i = 1; i < tiles.length; ++i )
+		{
+			final Tile tile = tiles[ i ];
+			if ( !tile.pinned && !tile.shared && tile.content != NO_CONTENT && isPinned( tile.content ) )
+				pinTile( tile );
+		}
+	}
+
+	private void pinTile( final Tile tile )
+	{
+		if ( numPinnedTiles >= getMaxNumPinnedTiles() )
+			return;
+		lruOrdered.remove( tile );
+		tile.pinned = true;
+		++numPinnedTiles;
+	}
+
+	private void unpinTile( final Tile tile )
+	{
+		tile.pinned = false;
+		--numPinnedTiles;
+		lruOrdered.update( tile );
+	}
+
+	/**
+	 * Bounding box (inclusive, in block grid coordinates) of pinned blocks of
+	 * one image.
+	 */
+	static class PinnedRegion
+	{
+		final int imageId;
+
+		private final int[] min;
+
+		private final int[] max;
+
+		PinnedRegion( final int imageId, final int[] min, final int[] max )
+		{
+			this.imageId = imageId;
+			this.min = min;
+			this.max = max;
+		}
+
+		boolean contains( final long key )
+		{
+			if ( ( key >>> 45 ) != imageId )
+				return false;
+			final int x = ( int ) ( key >>> 30 ) & MAX_BLOCK_COORDINATE;
+			final int y = ( int ) ( key >>> 15 ) & MAX_BLOCK_COORDINATE;
+			final int z = ( int ) key & MAX_BLOCK_COORDINATE;
+			return x >= min[ 0 ] && x <= max[ 0 ]
+					&& y >= min[ 1 ] && y <= max[ 1 ]
+					&& z >= min[ 2 ] && z <= max[ 2 ];
+		}
+	}
+
+	private static final Comparator< FillTask > priorityComparator = Comparator.comparingDouble( FillTask::getPriority );
+
+	static final Comparator< Tile > lruComparator = new Comparator< Tile >()
 	{
 		@Override
 		public int compare( final Tile t1, final Tile t2 )
@@ -347,6 +1702,7 @@ public class TextureCache implements Texture3D
 	 *            provides voxel type and size of an individual block.
 	 * @param maxMemoryInMB
 	 * @return size of 3D texture in multiples of {@code CacheSpec.paddedBlockSize()}.
+	 *         The texture is at most {@link #MAX_TEXTURE_SIZE} along each axis.
 	 */
 	public static int[] findSuitableGridSize( final CacheSpec cacheSpec, final int maxMemoryInMB )
 	{
@@ -354,11 +1710,302 @@ public class TextureCache implements Texture3D
 		final double sideLength = Math.pow( numVoxels, 1.0 / 3.0 );
 		final int[] gridSize = new int[ 3 ];
 		for ( int d = 0; d < 3; ++d )
-			gridSize[ d ] = ( int ) ( sideLength / cacheSpec.paddedBlockSize()[ d ] );
+			gridSize[ d ] = ( int ) ( Math.min( sideLength, MAX_TEXTURE_SIZE ) / cacheSpec.paddedBlockSize()[ d ] );
 		return gridSize;
 	}
 
+	/**
+	 * Find suitable number of pages for a cache that requires less than
+	 * {@code maxMemoryInMB}, such that each page requires at most
+	 * {@link #MAX_PAGE_SIZE_IN_MB}. The grid size of each page can then be
+	 * determined by {@link #findSuitableGridSize(CacheSpec, int)
+	 * findSuitableGridSize(cacheSpec, maxMemoryInMB / numPages)}.
+	 */
+	public static int findSuitableNumPages( final int maxMemoryInMB )
+	{
+		final int numPages = ( int ) ( ( maxMemoryInMB + ( long ) MAX_PAGE_SIZE_IN_MB - 1 ) / MAX_PAGE_SIZE_IN_MB );
+		return Math.max( 1, Math.min( MAX_NUM_PAGES, numPages ) );
+	}
+
+
+	/**
+	 * Resize each page of the cache to {@code newDimensions} tiles, keeping as
+	 * many present blocks as possible. The number of pages is not changed. See
+	 * {@link #resize(int[], int, GpuContext)}.
+	 */
+	public int resize( final int[] newDimensions, final GpuContext context )
+	{
+		return resize( newDimensions, numPages, context );
+	}
+
+	/**
+	 * Resize the cache to {@code newNumPages} pages of {@code newDimensions}
+	 * tiles, keeping as many present blocks as possible. Tiles stay on their
+	 * page, tiles of removed pages are discarded. Within each page, tiles are
+	 * kept in order of importance: the out-of-bounds tile, shared uniform
+	 * tiles, pinned tiles, and then other tiles by most recent use. Kept tiles
+	 * stay at their grid position if it is inside the new grid, otherwise they
+	 * are moved to a free position. {@link Tile} coordinates and the
+	 * key-to-tile map are updated in one step, and the page textures are
+	 * reallocated and kept tiles are copied on the GPU (see
+	 * {@link GpuContext#resize}). If the {@code context} does not support
+	 * copying, all blocks are discarded, and will be requested (e.g., from a
+	 * host-side cache) again.
+	 * <p>
+	 * Lookup tables built before the resize refer to invalid tile coordinates
+	 * and must be rebuilt (see {@link #getGeneration()}).
+	 * <p>
+	 * Must be called on the GL thread, when no batch of fill tasks is being
+	 * processed (i.e., the {@link PboChain} is {@link PboChain#ready() ready}).
+	 *
+	 * @param newDimensions
+	 *            new width, height, depth in tiles of each page.
+	 * @param newNumPages
+	 *            new number of pages, at most {@link #MAX_NUM_PAGES}.
+	 * @param context
+	 *            used to reallocate the textures and copy kept tiles.
+	 * @return number of tiles (besides the out-of-bounds tile) whose content
+	 *         was kept.
+	 */
+	public int resize( final int[] newDimensions, final int newNumPages, final GpuContext context )
+	{
+		if ( newNumPages < 1 || newNumPages > MAX_NUM_PAGES )
+			throw new IllegalArgumentException( "numPages must be in [1, " + MAX_NUM_PAGES + "]" );
+		final int tilesPerPage = ( int ) Intervals.numElements( newDimensions );
+		final int newLen = newNumPages * tilesPerPage;
+		if ( newLen < 2 )
+			throw new IllegalArgumentException( "TextureCache must have at least 2 tiles." );
+
+		final int oldTilesPerPage = tiles.length / numPages;
+		final int[] tileDimensions = spec.paddedBlockSize();
+		final Tile[] newTiles = new Tile[ newLen ];
+		newTiles[ 0 ] = tiles[ 0 ];
+
+		final Set< Tile > dropped = Collections.newSetFromMap( new IdentityHashMap<>() );
+		final ArrayList< Tile > kept = new ArrayList<>();
+		final int[][] regions = new int[ newNumPages ][];
+		for ( int p = 0; p < numPages; ++p )
+		{
+			final int first = p == 0 ? 1 : p * oldTilesPerPage;
+			final int last = ( p + 1 ) * oldTilesPerPage;
+
+			// tiles with content, ordered by importance of keeping them
+			final ArrayList< Tile > candidates = new ArrayList<>();
+			for ( int i = first; i < last; ++i )
+			{
+				final Tile tile = tiles[ i ];
+				if ( p < newNumPages && ( tile.shared || tile.content != NO_CONTENT ) )
+					candidates.add( tile );
+				else
+					dropped.add( tile );
+			}
+			if ( p >= newNumPages )
+				continue;
+			candidates.sort( keepComparator );
+			final int capacity = p == 0 ? tilesPerPage - 1 : tilesPerPage;
+			final int numKept = Math.min( candidates.size(), capacity );
+			dropped.addAll( candidates.subList( numKept, candidates.size() ) );
+			final List< Tile > pageKept = candidates.subList( 0, numKept );
+			regions[ p ] = placeTiles( pageKept, newTiles, p * tilesPerPage, newDimensions, tileDimensions );
+			kept.addAll( pageKept );
+		}
+		evict( dropped );
+
+		for ( int i = 1; i < newLen; ++i )
+		{
+			if ( newTiles[ i ] == null )
+			{
+				final int p = i / tilesPerPage;
+				final int j = i % tilesPerPage;
+				final int x = j / ( newDimensions[ 1 ] * newDimensions[ 2 ] );
+				final int y = ( j / newDimensions[ 2 ] ) % newDimensions[ 1 ];
+				final int z = j % newDimensions[ 2 ];
+				newTiles[ i ] = new Tile( p, x, y, z, lruOrdered );
+			}
+		}
+
+		tiles = newTiles;
+		dimensions = newDimensions.clone();
+		texWidth = dimensions[ 0 ] * tileDimensions[ 0 ];
+		texHeight = dimensions[ 1 ] * tileDimensions[ 1 ];
+		texDepth = dimensions[ 2 ] * tileDimensions[ 2 ];
 
+		// free removed pages, add new pages (allocated on first upload)
+		final int oldNumPages = numPages;
+		for ( int p = newNumPages; p < oldNumPages; ++p )
+			context.delete( pages[ p ] );
+		pages = Arrays.copyOf( pages, newNumPages );
+		for ( int p = oldNumPages; p < newNumPages; ++p )
+			pages[ p ] = new Page();
+		numPages = newNumPages;
+
+		int numResident = kept.size();
+		boolean copied = true;
+		for ( int p = 0; p < Math.min( oldNumPages, newNumPages ); ++p )
+			copied &= context.resize( pages[ p ], tileDimensions[ 0 ], tileDimensions[ 1 ], tileDimensions[ 2 ], regions[ p ] );
+		if ( !copied )
+		{
+			// content could not be copied: discard everything, and
+			// re-initialize the out-of-bounds tile in the next stage()
+			final Set< Tile > lost = Collections.newSetFromMap( new IdentityHashMap<>() );
+			lost.addAll( kept );
+			evict( lost );
+			for ( final Tile tile : lost )
+			{
+				tile.content = NO_CONTENT;
+				tile.state = INCOMPLETE;
+				tile.shared = false;
+				tile.lru = -1;
+			}
+			blockedTileInitialized = false;
+			numResident = 0;
+		}
+
+		// rebuild eviction order
+		numUnblockedTiles = newLen - 1;
+		final ArrayList< Tile > evictable = new ArrayList<>( newLen );
+		for ( int i = 1; i < newLen; ++i )
+		{
+			final Tile tile = tiles[ i ];
+			lruOrdered.remove( tile );
+			if ( tile.shared )
+				--numUnblockedTiles;
+			else if ( !tile.pinned )
+				evictable.add( tile );
+		}
+		evictable.sort( Comparator.comparingInt( t -> t.lru ) );
+		for ( final Tile tile : evictable )
+			lruOrdered.update( tile );
+
+		maxNumAliasedKeys = Math.max( 1024, 4 * newLen );
+		updatePinnedTiles();
+		++generation;
+		return numResident;
+	}
+
+	/**
+	 * Assign grid positions in one page to {@code kept} tiles of that page.
+	 * Positions are entered into {@code newTiles} starting at {@code offset}.
+	 *
+	 * @return copy regions for {@link GpuContext#resize} (including the
+	 *         out-of-bounds tile, if {@code newTiles[offset]} is already set).
+	 */
+	private static int[] placeTiles( final List< Tile > kept, final Tile[] newTiles, final int offset, final int[] newDimensions, final int[] tileDimensions )
+	{
+		final int tilesPerPage = ( int ) Intervals.numElements( newDimensions );
+		final ArrayList< Tile > moved = new ArrayList<>();
+		for ( final Tile tile : kept )
+		{
+			final int i = tileIndex( tile.x, tile.y, tile.z, newDimensions );
+			if ( i < 0 || newTiles[ offset + i ] != null )
+				moved.add( tile );
+			else
+				newTiles[ offset + i ] = tile;
+		}
+		final int numRegions = newTiles[ offset ] != null && !kept.contains( newTiles[ offset ] ) ? kept.size() + 1 : kept.size();
+		final int[] regions = new int[ 6 * numRegions ];
+		int r = 0;
+		for ( int i = 0; i < tilesPerPage; ++i )
+		{
+			final Tile tile = newTiles[ offset + i ];
+			if ( tile != null )
+				r = addRegion( regions, r, tile, tile.x, tile.y, tile.z, tileDimensions );
+		}
+		int free = 0;
+		for ( final Tile tile : moved )
+		{
+			while ( newTiles[ offset + free ] != null )
+				++free;
+			newTiles[ offset + free ] = tile;
+			final int x = free / ( newDimensions[ 1 ] * newDimensions[ 2 ] );
+			final int y = ( free / newDimensions[ 2 ] ) % newDimensions[ 1 ];
+			final int z = free % newDimensions[ 2 ];
+			r = addRegion( regions, r, tile, x, y, z, tileDimensions );
+			tile.x = x;
+			tile.y = y;
+			tile.z = z;
+		}
+		return regions;
+	}
+
+	/**
+	 * Remove all keys mapped to {@code dropped} tiles, and remove the tiles
+	 * from the eviction order. (The tiles keep their content and lru, but are
+	 * unpinned.)
+	 */
+	private void evict( final Set< Tile > dropped )
+	{
+		tilemap.removeIf( ( key, tile ) -> dropped.contains( tile ) );
+		prefetchedKeys.removeIf( ( key, value ) -> !tilemap.containsKey( key ) );
+		contentTiles.removeIf( ( hash, tile ) -> dropped.contains( tile ) );
+		uniformTiles.values().removeIf( dropped::contains );
+		for ( final Tile tile : dropped )
+		{
+			lruOrdered.remove( tile );
+			if ( tile.pinned )
+			{
+				tile.pinned = false;
+				--numPinnedTiles;
+			}
+			tile.hashed = false;
+			tile.numAliases = 0;
+		}
+	}
+
+	/**
+	 * Append copy region from the current position of {@code tile} to
+	 * {@code (x,y,z)} (in the new grid) to {@code regions}.
+	 */
+	private static int addRegion( final int[] regions, int r, final Tile tile, final int x, final int y, final int z, final int[] tileDimensions )
+	{
+		regions[ r++ ] = tile.x * tileDimensions[ 0 ];
+		regions[ r++ ] = tile.y * tileDimensions[ 1 ];
+		regions[ r++ ] = tile.z * tileDimensions[ 2 ];
+		regions[ r++ ] = x * tileDimensions[ 0 ];
+		regions[ r++ ] = y * tileDimensions[ 1 ];
+		regions[ r++ ] = z * tileDimensions[ 2 ];
+		return r;
+	}
+
+	/**
+	 * @return index of tile {@code (x,y,z)} in {@link #tiles} for a grid of
+	 *         the given {@code dimensions}, or {@code -1} if it is outside.
+	 */
+	private static int tileIndex( final int x, final int y, final int z, final int[] dimensions )
+	{
+		if ( x >= dimensions[ 0 ] || y >= dimensions[ 1 ] || z >= dimensions[ 2 ] )
+			return -1;
+		return ( x * dimensions[ 1 ] + y ) * dimensions[ 2 ] + z;
+	}
+
+	/**
+	 * Order in which tiles are kept by {@link #resize}: shared tiles, then
+	 * pinned tiles, then by decreasing {@code lru}.
+	 */
+	private static final Comparator< Tile > keepComparator = ( t1, t2 ) -> {
+		if ( t1.shared != t2.shared )
+			return t1.shared ? -1 : 1;
+		if ( t1.pinned != t2.pinned )
+			return t1.pinned ? -1 : 1;
+		return Integer.compare( t2.lru, t1.lru );
+	};
+
+	/**
+	 * Get the number of times this cache was {@link #resize resized}. Lookup
+	 * tables that were built for an older generation must be rebuilt.
+	 */
+	public int getGeneration()
+	{
+		return generation;
+	}
+
+	/**
+	 * @return width, height, depth in tiles (of each page).
+	 */
+	public int[] getGridSize()
+	{
+		return dimensions.clone();
+	}
 
 	/*
 	 * ... implements Texture3D
@@ -0,0 +1,210 @@
+package tpietzsch.cache;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import tpietzsch.multires.ResolutionLevel3D;
+
+/**
+ * Decides which {@link TextureCache} tiles are replaced first.
+ * <p>
+ * Tiles are evicted in order of {@code lru + bonus}, where {@code lru} is the
+ * timestamp when the tile was last used, and {@code bonus} is given by the
+ * policy for the image of the block in the tile. Timestamps come from a
+ * counter shared by all {@link TextureCache}s. Each renderer advances it
+ * twice per frame for each cache it updates (once for staging fill tasks,
+ * once for building lookup tables). So with a single renderer and cache, a
+ * bonus of {@code 2n} keeps a tile about {@code n} frames longer than a tile
+ * without bonus, and proportionally fewer frames with more renderers or
+ * caches.
+ * <p>
+ * {@link TextureCache} rounds bonuses down to a few fixed buckets (0, then 8
+ * to 1024 in steps of about {@code sqrt(2)}) and keeps one LRU list per
+ * bucket.
+ */
+public interface TileEvictionPolicy
+{
+	/**
+	 * Get the eviction bonus for tiles containing blocks of {@code image}.
+	 *
+	 * @param image
+	 *            the image (see {@link ImageBlockKey#image()})
+	 * @return non-negative number of timestamps by which eviction is deferred.
+	 */
+	int bonus( Object image );
+
+	/**
+	 * Called (from filler threads) when a block of {@code image} was filled
+	 * into an upload buffer.
+	 *
+	 * @param image
+	 *            the image (see {@link ImageBlockKey#image()})
+	 * @param nanos
+	 *            time it took to fill the block
+	 */
+	default void fillCompleted( final Object image, final long nanos )
+	{
+	}
+
+	/**
+	 * Called when no tile of {@code image} is cached anymore and the cache
+	 * releases its reference to {@code image}. Policies should drop any
+	 * state kept for {@code image}.
+	 */
+	default void forget( final Object image )
+	{
+	}
+
+	/**
+	 * Get the generation of this policy. The generation changes when the
+	 * {@link #bonus} of an image that may already have cached tiles changes.
+	 * The bonuses of all tiles are then re-evaluated.
+	 */
+	default int getGeneration()
+	{
+		return 0;
+	}
+
+	enum Type
+	{
+		/**
+		 * Least recently used tiles are replaced first.
+		 */
+		LRU,
+
+		/**
+		 * Like LRU, but tiles of coarser resolution levels are kept longer.
+		 */
+		LEVEL_WEIGHTED,
+
+		/**
+		 * Like LRU, but tiles of resolution levels that are more expensive to
+		 * reload (measured) are kept longer.
+		 */
+		COST_AWARE;
+
+		public TileEvictionPolicy create()
+		{
+			switch ( this )
+			{
+			case LEVEL_WEIGHTED:
+				return new LevelWeighted( LevelWeighted.DEFAULT_BONUS_PER_LEVEL );
+			case COST_AWARE:
+				return new CostAware( CostAware.DEFAULT_BONUS_PER_DOUBLING );
+			case LRU:
+			default:
+				return new Lru();
+			}
+		}
+	}
+
+	/**
+	 * Pure LRU.
+	 */
+	class Lru implements TileEvictionPolicy
+	{
+		@Override
+		public int bonus( final Object image )
+		{
+			return 0;
+		}
+	}
+
+	/**
+	 * LRU, where tiles of resolution level {@code l} get a bonus of
+	 * {@code l * bonusPerLevel}. This keeps the coarse levels (which are
+	 * required to show anything at all) when zooming into a fine region.
+	 */
+	class LevelWeighted implements TileEvictionPolicy
+	{
+		static final int DEFAULT_BONUS_PER_LEVEL = 20;
+
+		private final int bonusPerLevel;
+
+		public LevelWeighted( final int bonusPerLevel )
+		{
+			this.bonusPerLevel = bonusPerLevel;
+		}
+
+		@Override
+		public int bonus( final Object image )
+		{
+			return image instanceof ResolutionLevel3D
+					? bonusPerLevel * ( ( ResolutionLevel3D< ? > ) image ).getLevel()
+					: 0;
+		}
+	}
+
+	/**
+	 * LRU, where tiles get a bonus depending on the average measured time to
+	 * fill a block of their image. The bonus is {@code bonusPerDoubling *
+	 * floor(log2(avgFillTime / 10us))}, i.e., tiles that take twice as long to
+	 * reload are kept {@code bonusPerDoubling} timestamps longer. The
+	 * {@link #getGeneration() generation} changes when a bonus changes after
+	 * the first measurement of an image.
+	 */
+	class CostAware implements TileEvictionPolicy
+	{
+		static final int DEFAULT_BONUS_PER_DOUBLING = 20;
+
+		private static final long MIN_COST_NANOS = 10_000;
+
+		private final int bonusPerDoubling;
+
+		private static class Cost
+		{
+			final LongAdder nanos = new LongAdder();
+
+			final LongAdder count = new LongAdder();
+
+			volatile int bonus;
+		}
+
+		private final ConcurrentHashMap< Object, Cost > costs = new ConcurrentHashMap<>();
+
+		private final AtomicInteger generation = new AtomicInteger();
+
+		public CostAware( final int bonusPerDoubling )
+		{
+			this.bonusPerDoubling = bonusPerDoubling;
+		}
+
+		@Override
+		public int bonus( final Object image )
+		{
+			final Cost cost = costs.get( image );
+			return cost == null ? 0 : cost.bonus;
+		}
+
+		@Override
+		public void fillCompleted( final Object image, final long nanos )
+		{
+			final Cost cost = costs.computeIfAbsent( image, k -> new Cost() );
+			cost.nanos.add( nanos );
+			cost.count.increment();
+			final long count = cost.count.sum();
+			final long avg = cost.nanos.sum() / Math.max( 1, count );
+			final int doublings = 63 - Long.numberOfLeadingZeros( Math.max( 1, avg / MIN_COST_NANOS ) );
+			final int bonus = bonusPerDoubling * doublings;
+			if ( cost.bonus != bonus )
+			{
+				cost.bonus = bonus;
+				if ( count > 1 )
+					generation.incrementAndGet();
+			}
+		}
+
+		@Override
+		public void forget( final Object image )
+		{
+			costs.remove( image );
+		}
+
+		@Override
+		public int getGeneration()
+		{
+			return generation.get();
+		}
+	}
+}
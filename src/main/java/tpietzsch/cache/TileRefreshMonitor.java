@@ -0,0 +1,191 @@
+package tpietzsch.cache;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Detects when blocks that could not be loaded completely (e.g., because the
+ * volatile cells they are copied from are still loading) become completely
+ * loadable (or, if partial uploads are allowed, when more of their data
+ * becomes loadable).
+ * <p>
+ * The render thread {@link #watch(long, BooleanSupplier) watches} the packed
+ * keys (see {@link TextureCache#packKey(int, int, int, int)}) of blocks that
+ * are incomplete or missing in the current frame. A background thread
+ * periodically evaluates the checks of watched blocks. When a check succeeds,
+ * the block is marked dirty, and the listener is notified (on the background
+ * thread), so that a new frame can be requested. {@link #beginFrame()} makes
+ * the dirty blocks available to the next frame via {@link #isDirty(long)},
+ * and discards all watches. Blocks that are still incomplete in that frame
+ * are watched again.
+ * <p>
+ * This avoids rendering frames (and checking all required blocks) over and
+ * over, while data is streaming in: Only the watched blocks are checked, and
+ * frames are requested only when new data is available for them.
+ */
+public class TileRefreshMonitor
+{
+	/**
+	 * Default interval between evaluating the checks of watched blocks.
+	 */
+	public static final long DEFAULT_POLL_INTERVAL_MILLIS = 20;
+
+	private final Runnable listener;
+
+	private final long pollIntervalMillis;
+
+	// maps packed key of watched blocks to check whether new data can be loaded
+	private final ConcurrentHashMap< Long, BooleanSupplier > watched = new ConcurrentHashMap<>();
+
+	// packed keys of blocks with new data since the last beginFrame()
+	private final Set< Long > dirty = ConcurrentHashMap.newKeySet();
+
+	// packed keys of blocks with new data before the current frame (only accessed by the render thread)
+	private final Set< Long > frameDirty = new HashSet<>();
+
+	// created when the first block is watched
+	private ScheduledExecutorService poller;
+
+	private boolean shutdown;
+
+	/**
+	 * @param listener
+	 *            called (from the polling thread) when watched blocks became
+	 *            dirty. Usually requests a repaint.
+	 */
+	public TileRefreshMonitor( final Runnable listener )
+	{
+		this( listener, DEFAULT_POLL_INTERVAL_MILLIS );
+	}
+
+	/**
+	 * @param listener
+	 *            called (from the polling thread) when watched blocks became
+	 *            dirty. Usually requests a repaint.
+	 * @param pollIntervalMillis
+	 *            interval between evaluating the checks of watched blocks.
+	 */
+	public TileRefreshMonitor( final Runnable listener, final long pollIntervalMillis )
+	{
+		this.listener = listener;
+		this.pollIntervalMillis = pollIntervalMillis;
+	}
+
+	/**
+	 * Watch the block with the given packed key until the next
+	 * {@link #beginFrame()}.
+	 *
+	 * @param key
+	 *            packed key of the block
+	 * @param hasNewData
+	 *            check whether new data can be loaded for the block now,
+	 *            e.g., whether it can be loaded completely. This is evaluated
+	 *            on the polling thread.
+	 */
+	public void watch( final long key, final BooleanSupplier hasNewData )
+	{
+		if ( !dirty.contains( key ) )
+		{
+			watched.putIfAbsent( key, hasNewData );
+			startPolling();
+		}
+	}
+
+	/**
+	 * Start a new frame: Blocks that became dirty since the last call are
+	 * reported by {@link #isDirty(long)} until the next call. All watches are
+	 * discarded.
+	 */
+	public void beginFrame()
+	{
+		watched.clear();
+		frameDirty.clear();
+		for ( final Iterator< Long > it = dirty.iterator(); it.hasNext(); )
+		{
+			frameDirty.add( it.next() );
+			it.remove();
+		}
+	}
+
+	/**
+	 * Whether new data became loadable for the block with the given packed
+	 * key before the current frame (see {@link #beginFrame()}).
+	 */
+	public boolean isDirty( final long key )
+	{
+		return frameDirty.contains( key );
+	}
+
+	/**
+	 * Whether new data became loadable for any block since the last
+	 * {@link #beginFrame()}.
+	 */
+	public boolean hasDirty()
+	{
+		return !dirty.isEmpty();
+	}
+
+	/**
+	 * @return number of blocks that are currently watched.
+	 */
+	public int getNumWatched()
+	{
+		return watched.size();
+	}
+
+	/**
+	 * Stop the polling thread. The monitor must not be used afterwards.
+	 */
+	public synchronized void shutdown()
+	{
+		shutdown = true;
+		if ( poller != null )
+		{
+			poller.shutdown();
+			poller = null;
+		}
+		watched.clear();
+	}
+
+	private synchronized void startPolling()
+	{
+		if ( poller != null || shutdown )
+			return;
+		poller = Executors.newSingleThreadScheduledExecutor( r -> {
+			final Thread thread = new Thread( r, "TileRefreshMonitor" );
+			thread.setDaemon( true );
+			return thread;
+		} );
+		poller.scheduleWithFixedDelay( this::poll, pollIntervalMillis, pollIntervalMillis, TimeUnit.MILLISECONDS );
+	}
+
+	private void poll()
+	{
+		try
+		{
+			boolean notify = false;
+			for ( final Map.Entry< Long, BooleanSupplier > entry : watched.entrySet() )
+			{
+				if ( entry.getValue().getAsBoolean() && watched.remove( entry.getKey(), entry.getValue() ) )
+				{
+					dirty.add( entry.getKey() );
+					notify = true;
+				}
+			}
+			if ( notify )
+				listener.run();
+		}
+		catch ( final Exception e )
+		{
+			// keep polling
+			e.printStackTrace();
+		}
+	}
+}
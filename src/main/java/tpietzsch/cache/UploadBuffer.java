@@ -9,12 +9,29 @@ public class UploadBuffer implements ByteUtils.Address
 {
 	private final Buffer buffer;
 	private final int offset;
+	private final int sizeInBytes;
 	private ContentState state;
+	private boolean uniform;
+	private boolean hashRequested;
+	private boolean hasContentHash;
+	private long contentHash;
+	private int version;
 
 	public UploadBuffer( final Buffer buffer, final int offset )
+	{
+		this( buffer, offset, -1 );
+	}
+
+	/**
+	 * @param sizeInBytes
+	 *            size of the tile in buffer, or {@code -1} if unknown. (Only
+	 *            used for bounds checking, see {@link ByteUtils}.)
+	 */
+	public UploadBuffer( final Buffer buffer, final int offset, final int sizeInBytes )
 	{
 		this.buffer = buffer;
 		this.offset = offset;
+		this.sizeInBytes = sizeInBytes;
 	}
 
 	/**
@@ -53,6 +70,84 @@ public class UploadBuffer implements ByteUtils.Address
 		return state;
 	}
 
+	/**
+	 * Called by FillTask to say whether stored image block data is uniform,
+	 * i.e., all elements have the same value.
+	 */
+	public void setUniform( final boolean uniform )
+	{
+		this.uniform = uniform;
+	}
+
+	/**
+	 * Is stored image block data uniform?
+	 */
+	public boolean isUniform()
+	{
+		return uniform;
+	}
+
+	/**
+	 * Called by the cache to request a {@link #setContentHash content hash}
+	 * of complete blocks.
+	 */
+	public void setContentHashRequested( final boolean requested )
+	{
+		this.hashRequested = requested;
+	}
+
+	/**
+	 * Should FillTask compute a content hash of complete blocks?
+	 */
+	public boolean isContentHashRequested()
+	{
+		return hashRequested;
+	}
+
+	/**
+	 * Called by FillTask to set the hash of complete stored image block data
+	 * (see {@link ByteUtils#hash}).
+	 */
+	public void setContentHash( final long hash )
+	{
+		this.contentHash = hash;
+		this.hasContentHash = true;
+	}
+
+	/**
+	 * Was a content hash of stored image block data set?
+	 */
+	public boolean hasContentHash()
+	{
+		return hasContentHash;
+	}
+
+	/**
+	 * Hash of stored image block data, if {@link #hasContentHash()}.
+	 */
+	public long getContentHash()
+	{
+		return contentHash;
+	}
+
+	/**
+	 * Called by FillTask to set a version stamp of the stored image block
+	 * data, e.g., of the intensity window it was quantized with. (Defaults to
+	 * {@code 0}.)
+	 */
+	public void setVersion( final int version )
+	{
+		this.version = version;
+	}
+
+	/**
+	 * Version stamp of stored image block data.
+	 */
+	public int getVersion()
+	{
+		return version;
+	}
+
 	/**
 	 * ...tentative...
 	 */
@@ -61,4 +156,10 @@ public class UploadBuffer implements ByteUtils.Address
 	{
 		return ByteUtils.addressOf( buffer ) + offset;
 	}
+
+	@Override
+	public long getSizeInBytes()
+	{
+		return sizeInBytes;
+	}
 }
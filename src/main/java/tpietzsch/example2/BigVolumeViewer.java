@@ -48,6 +48,7 @@ import bdv.viewer.state.ViewerState;
 import mpicbg.spim.data.SpimDataException;
 import tpietzsch.example2.VolumeViewerPanel.RenderData;
 import tpietzsch.frombdv.ManualTransformationEditor;
+import tpietzsch.multires.SourceStacks;
 import tpietzsch.scene.TexturedUnitCube;
 
 public class BigVolumeViewer
@@ -422,6 +423,9 @@ public class BigVolumeViewer
 		final ArrayList< ConverterSetup > converterSetups = new ArrayList<>();
 		final ArrayList< SourceAndConverter< ? > > sources = new ArrayList<>();
 		initSetups( spimData, converterSetups, sources );
+		final String datasetId = SourceStacks.datasetId( new File( xmlFilename ), spimData );
+		if ( datasetId != null )
+			SourceStacks.setPersistentIds( datasetId, spimData, sources );
 
 
 		final SequenceDescriptionMinimal seq = spimData.getSequenceDescription();
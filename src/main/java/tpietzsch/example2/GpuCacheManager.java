@@ -0,0 +1,596 @@
+package tpietzsch.example2;
+
+import com.jogamp.opengl.GLAutoDrawable;
+import com.jogamp.opengl.GLCapabilitiesImmutable;
+import com.jogamp.opengl.GLDrawableFactory;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import tpietzsch.backend.GpuContext;
+import tpietzsch.backend.Texture.InternalFormat;
+import tpietzsch.blocks.TileAccess;
+import tpietzsch.cache.CacheSpec;
+import tpietzsch.cache.HostTileCache;
+import tpietzsch.cache.PboChain;
+import tpietzsch.cache.PersistentTileStore;
+import tpietzsch.cache.TextureCache;
+import tpietzsch.cache.TileEvictionPolicy;
+import tpietzsch.multires.ResolutionLevel3D;
+
+import static tpietzsch.backend.Texture.InternalFormat.R16;
+
+/**
+ * Owns the GPU cache ({@link TextureCache}, {@link PboChain}), the host-side
+ * and on-disk tile caches, and the thread pool for filling tiles, such that
+ * they can be shared between several {@link VolumeRenderer}s. Tiles loaded for
+ * one renderer are then immediately available to the others.
+ * <p>
+ * There is one {@code TextureCache} (with its {@code PboChain}) per
+ * {@link InternalFormat cache format}, see
+ * {@link TileAccess#cacheFormat(Object)}. The {@code R16} cache is created
+ * upfront, caches for other formats are created when they are first used.
+ * The max cache size is a budget for all caches together: It is split evenly
+ * between the formats in use, i.e., existing caches are shrunk when a cache
+ * for a new format is created. The host-side and on-disk tile caches are only
+ * used for the {@code R16} cache.
+ * <p>
+ * The manager is reference-counted: Renderers {@link #acquire() acquire} it
+ * when they are created and {@link #release() release} it when they are
+ * disposed. When the last renderer releases it, the fill pool is shut down
+ * and the tile store is closed.
+ * <p>
+ * Renderers sharing a manager must render into GL contexts of the same share
+ * group. {@link VolumeViewerPanel} takes care of this, using
+ * {@link #getSharedAutoDrawable(GLCapabilitiesImmutable)} as the shared
+ * context. Renderers synchronize on the manager while they update the cache.
+ */
+public class GpuCacheManager
+{
+	private final CacheSpec cacheSpec;
+
+	private final TextureCache textureCache;
+
+	/**
+	 * Texture caches and their {@code PboChain}s by format (including
+	 * {@link #textureCache}).
+	 */
+	private final Map< InternalFormat, FormatCache > formatCaches = new EnumMap<>( InternalFormat.class );
+
+	/**
+	 * Settings for creating caches of additional formats.
+	 */
+	private final int[] cacheBlockSize;
+	private int maxCacheSizeInMB;
+	private final int maxStagingSizeInMB;
+	private final TileEvictionPolicy.Type evictionPolicy;
+	private final double pinnedCacheFraction;
+	private boolean contentHashDedup;
+
+	/**
+	 * Host-side cache of complete padded tiles (or {@code null}).
+	 */
+	private final HostTileCache hostTileCache;
+
+	/**
+	 * On-disk store of complete padded tiles (or {@code null}).
+	 */
+	private final PersistentTileStore tileStore;
+
+	private final ForkJoinPool forkJoinPool;
+
+	/**
+	 * How many renderers pinned each resolution level, per cache format.
+	 */
+	private final Map< InternalFormat, Map< ResolutionLevel3D< ? >, Integer > > pinCounts = new EnumMap<>( InternalFormat.class );
+
+	/**
+	 * Hidden drawable whose context is the shared master of all renderers'
+	 * contexts (or {@code null} if not created yet).
+	 */
+	private GLAutoDrawable sharedDrawable;
+
+	/**
+	 * For each context that uploaded to the caches, a fence after its latest
+	 * uploads. See {@link #awaitUploads(GpuContext)}.
+	 */
+	private final Map< GpuContext, Object > uploadFences = new HashMap<>();
+
+	/**
+	 * Fences of contexts that were {@link #release(GpuContext) released}.
+	 * Sync objects are shared by the contexts of the share group, so they are
+	 * deleted in the next {@link #awaitUploads} or {@link #fenceUploads} of
+	 * any context (on its GL thread).
+	 */
+	private final List< Object > releasedFences = new ArrayList<>();
+
+	private int refCount;
+
+	private boolean disposed;
+
+	/**
+	 * Create a manager with cache settings from {@code options}.
+	 */
+	public GpuCacheManager( final VolumeViewerOptions options )
+	{
+		this(
+				options.values.getCacheBlockSize(),
+				options.values.getMaxCacheSizeInMB(),
+				options.values.getMaxStagingSizeInMB(),
+				options.values.getMaxHostCacheSizeInMB(),
+				options.values.getTileStoreDirectory(),
+				options.values.getMaxTileStoreSizeInMB(),
+				options.values.getEvictionPolicy(),
+				options.values.getPinnedCacheFraction() );
+		setContentHashDedup( options.values.isContentHashDedup() );
+	}
+
+	/**
+	 * @param maxStagingSizeInMB
+	 * 		max memory for PBOs staging tile uploads. If {@code > 0}, PBO
+	 * 		geometry is adapted to measured fill and upload throughput within
+	 * 		this limit. Otherwise, a fixed geometry is used.
+	 * @param maxHostCacheSizeInMB
+	 * 		max memory for the host-side cache of padded tiles. If {@code 0},
+	 * 		no host-side cache is used.
+	 * @param tileStoreDirectory
+	 * 		directory of the on-disk tile store. If {@code null}, no tile store
+	 * 		is used.
+	 * @param maxTileStoreSizeInMB
+	 * 		max size of the on-disk tile store.
+	 * @param evictionPolicy
+	 * 		decides which tiles of the GPU cache are replaced first.
+	 * @param pinnedCacheFraction
+	 * 		fraction of the GPU cache reserved for pinned tiles.
+	 */
+	public GpuCacheManager(
+			final int[] cacheBlockSize,
+			final int maxCacheSizeInMB,
+			final int maxStagingSizeInMB,
+			final int maxHostCacheSizeInMB,
+			final String tileStoreDirectory,
+			final int maxTileStoreSizeInMB,
+			final TileEvictionPolicy.Type evictionPolicy,
+			final double pinnedCacheFraction )
+	{
+		this.cacheBlockSize = cacheBlockSize;
+		this.maxCacheSizeInMB = maxCacheSizeInMB;
+		this.maxStagingSizeInMB = maxStagingSizeInMB;
+		this.evictionPolicy = evictionPolicy;
+		this.pinnedCacheFraction = pinnedCacheFraction;
+		forkJoinPool = new ForkJoinPool( parallelism() );
+		final FormatCache primary = createFormatCache( R16 );
+		formatCaches.put( R16, primary );
+		cacheSpec = primary.textureCache.spec();
+		textureCache = primary.textureCache;
+		hostTileCache = maxHostCacheSizeInMB > 0
+				? new HostTileCache( cacheSpec, maxHostCacheSizeInMB * 1024L * 1024L )
+				: null;
+		tileStore = openTileStore( tileStoreDirectory, cacheSpec, maxTileStoreSizeInMB );
+	}
+
+	private static int parallelism()
+	{
+		return Math.max( 1, Runtime.getRuntime().availableProcessors() / 2 );
+	}
+
+	/**
+	 * Size of each texture cache, if {@code numFormats} caches share the max
+	 * cache size.
+	 */
+	private int formatCacheSizeInMB( final int numFormats )
+	{
+		return Math.max( 1, maxCacheSizeInMB / numFormats );
+	}
+
+	private FormatCache createFormatCache( final InternalFormat format )
+	{
+		final CacheSpec spec = new CacheSpec( format, cacheBlockSize );
+		final int sizeInMB = formatCacheSizeInMB( formatCaches.size() + 1 );
+		final int numCachePages = TextureCache.findSuitableNumPages( sizeInMB );
+		final int[] cacheGridDimensions = TextureCache.findSuitableGridSize( spec, sizeInMB / numCachePages );
+		final TextureCache cache = new TextureCache( cacheGridDimensions, numCachePages, spec, evictionPolicy.create() );
+		cache.setMaxPinnedFraction( pinnedCacheFraction );
+		cache.setContentHashDedup( contentHashDedup );
+		final PboChain chain = maxStagingSizeInMB > 0
+				? new PboChain( maxStagingSizeInMB * 1024L * 1024L, parallelism(), cache )
+				: new PboChain( 5, 100, cache );
+		return new FormatCache( cache, chain );
+	}
+
+	/**
+	 * Set whether identical blocks are stored only once in the texture
+	 * caches (see {@link TextureCache#setContentHashDedup(boolean)}).
+	 */
+	public synchronized void setContentHashDedup( final boolean contentHashDedup )
+	{
+		this.contentHashDedup = contentHashDedup;
+		for ( final FormatCache fc : formatCaches.values() )
+			fc.textureCache.setContentHashDedup( contentHashDedup );
+	}
+
+	/**
+	 * Register a user (renderer) of this manager.
+	 *
+	 * @throws IllegalStateException
+	 * 		if the manager was already disposed, because the last user released it.
+	 */
+	public synchronized void acquire()
+	{
+		if ( disposed )
+			throw new IllegalStateException( "GpuCacheManager was disposed" );
+		++refCount;
+	}
+
+	/**
+	 * Unregister a user (renderer) of this manager. When the last user is
+	 * unregistered, the fill pool is shut down, the tile store is written to
+	 * disk and closed, and the shared GL context is destroyed.
+	 */
+	public synchronized void release()
+	{
+		if ( refCount <= 0 )
+			throw new IllegalStateException();
+		if ( --refCount == 0 )
+			dispose();
+	}
+
+	/**
+	 * Unregister a user (renderer) of this manager, that uploaded to the
+	 * caches in {@code context} (or {@code null} if it never did). The upload
+	 * fence of {@code context} is dropped. (This may be called from any
+	 * thread.)
+	 *
+	 * @see #release()
+	 */
+	public synchronized void release( final GpuContext context )
+	{
+		if ( context != null )
+		{
+			final Object fence = uploadFences.remove( context );
+			if ( fence != null )
+				releasedFences.add( fence );
+		}
+		release();
+	}
+
+	private void dispose()
+	{
+		disposed = true;
+		// sync objects are destroyed with the share group
+		uploadFences.clear();
+		releasedFences.clear();
+		forkJoinPool.shutdown();
+		if ( tileStore != null )
+		{
+			try
+			{
+				tileStore.close();
+			}
+			catch ( final IOException e )
+			{
+				e.printStackTrace();
+			}
+		}
+		if ( sharedDrawable != null )
+		{
+			sharedDrawable.destroy();
+			sharedDrawable = null;
+		}
+	}
+
+	/**
+	 * Get a (hidden) drawable to share GL objects with. Canvases of renderers
+	 * using this manager must be {@code setSharedAutoDrawable()} to it, so
+	 * that the cache texture and PBOs are visible in all of them.
+	 *
+	 * @param caps
+	 * 		capabilities of the shared context (only used when it is created
+	 * 		on the first call).
+	 */
+	public synchronized GLAutoDrawable getSharedAutoDrawable( final GLCapabilitiesImmutable caps )
+	{
+		if ( sharedDrawable == null )
+		{
+			sharedDrawable = GLDrawableFactory.getFactory( caps.getGLProfile() ).createDummyAutoDrawable( null, true, caps, null );
+			sharedDrawable.display(); // make sure the context is created
+		}
+		return sharedDrawable;
+	}
+
+	/**
+	 * Pin all blocks of {@code level} in the {@link TextureCache} for
+	 * {@code format}, i.e., the cache that the blocks of {@code level} are
+	 * drawn from. Pins are counted, the level remains pinned until every
+	 * renderer that pinned it {@link #unpin(ResolutionLevel3D, InternalFormat)
+	 * unpinned} it.
+	 */
+	public synchronized void pin( final ResolutionLevel3D< ? > level, final InternalFormat format )
+	{
+		final Map< ResolutionLevel3D< ? >, Integer > counts = pinCounts.computeIfAbsent( format, f -> new HashMap<>() );
+		if ( counts.merge( level, 1, Integer::sum ) == 1 )
+			getTextureCache( format ).pin( level );
+	}
+
+	/**
+	 * Undo one {@link #pin(ResolutionLevel3D, InternalFormat)} of
+	 * {@code level}.
+	 */
+	public synchronized void unpin( final ResolutionLevel3D< ? > level, final InternalFormat format )
+	{
+		final Map< ResolutionLevel3D< ? >, Integer > counts = pinCounts.get( format );
+		final Integer count = counts == null ? null : counts.get( level );
+		if ( count == null )
+			return;
+		if ( count > 1 )
+			counts.put( level, count - 1 );
+		else
+		{
+			counts.remove( level );
+			getTextureCache( format ).unpin( level );
+		}
+	}
+
+	/**
+	 * Request to resize the GPU caches to (at most) {@code maxCacheSizeInMB}
+	 * in total. This can be used to grow the caches when more GPU memory becomes
+	 * available, or to shrink them under memory pressure. The resize is
+	 * applied by the next renderer that updates the caches (see
+	 * {@link #applyRequestedResize(GpuContext)}). As many present blocks as
+	 * possible are kept.
+	 */
+	public synchronized void requestResize( final int maxCacheSizeInMB )
+	{
+		this.maxCacheSizeInMB = maxCacheSizeInMB;
+		requestFormatCacheSizes();
+	}
+
+	/**
+	 * Request to resize each cache to its share of the max cache size.
+	 */
+	private void requestFormatCacheSizes()
+	{
+		final int sizeInMB = formatCacheSizeInMB( formatCaches.size() );
+		final int numPages = TextureCache.findSuitableNumPages( sizeInMB );
+		for ( final FormatCache fc : formatCaches.values() )
+		{
+			final TextureCache cache = fc.textureCache;
+			final int[] gridSize = TextureCache.findSuitableGridSize( cache.spec(), sizeInMB / numPages );
+			final boolean unchanged = numPages == cache.getNumPages() && Arrays.equals( gridSize, cache.getGridSize() );
+			fc.requestedGridSize = unchanged ? null : gridSize;
+			fc.requestedNumPages = numPages;
+		}
+	}
+
+	/**
+	 * Apply pending {@link #requestResize(int) resize requests}. Must be
+	 * called on the GL thread. Caches whose {@link PboChain} is not
+	 * {@link PboChain#ready() ready} (because an upload batch is suspended)
+	 * are resized by a later call.
+	 *
+	 * @return whether any cache was resized.
+	 */
+	public synchronized boolean applyRequestedResize( final GpuContext context )
+	{
+		boolean resized = false;
+		for ( final FormatCache fc : formatCaches.values() )
+		{
+			if ( fc.requestedGridSize != null && fc.pboChain.ready() )
+			{
+				fc.textureCache.resize( fc.requestedGridSize, fc.requestedNumPages, context );
+				fc.requestedGridSize = null;
+				resized = true;
+			}
+		}
+		return resized;
+	}
+
+	/**
+	 * Make GL commands subsequently issued in {@code context} wait for the
+	 * cache uploads issued in other contexts (see {@link #fenceUploads}). Must
+	 * be called on the GL thread of {@code context}, in each frame before the
+	 * caches are sampled or updated.
+	 * <p>
+	 * Renderers sharing this manager upload to the same textures from
+	 * different contexts of the share group, and a suspended upload batch may
+	 * be resumed in another context than the one that started it. GL only
+	 * guarantees that changes made in one context are visible in another
+	 * after they are completed (e.g., by waiting for a fence) and the object
+	 * is bound again.
+	 */
+	public synchronized void awaitUploads( final GpuContext context )
+	{
+		deleteReleasedFences( context );
+		uploadFences.forEach( ( c, fence ) -> {
+			if ( c != context )
+				context.waitSync( fence );
+		} );
+	}
+
+	/**
+	 * Insert a fence after the cache uploads issued in {@code context}, for
+	 * other contexts to {@link #awaitUploads await}. Must be called on the GL
+	 * thread of {@code context}, after the caches were updated.
+	 */
+	public synchronized void fenceUploads( final GpuContext context )
+	{
+		deleteReleasedFences( context );
+		final Object previous = uploadFences.put( context, context.fenceSync() );
+		if ( previous != null )
+			context.deleteSync( previous );
+	}
+
+	private void deleteReleasedFences( final GpuContext context )
+	{
+		for ( final Object fence : releasedFences )
+			context.deleteSync( fence );
+		releasedFences.clear();
+	}
+
+	/**
+	 * @return sum of the {@link TextureCache#getGeneration() generations} of
+	 *         all caches. This changes whenever any cache is resized (or a
+	 *         cache is created).
+	 */
+	public synchronized int getGeneration()
+	{
+		int generation = formatCaches.size();
+		for ( final FormatCache fc : formatCaches.values() )
+			generation += fc.textureCache.getGeneration();
+		return generation;
+	}
+
+	/**
+	 * @return total number of bytes uploaded by the {@code PboChain}s of all
+	 *         caches.
+	 */
+	public synchronized long getNumUploadedBytes()
+	{
+		long bytes = 0;
+		for ( final FormatCache fc : formatCaches.values() )
+			bytes += fc.pboChain.getNumUploadedBytes();
+		return bytes;
+	}
+
+	public CacheSpec getCacheSpec()
+	{
+		return cacheSpec;
+	}
+
+	/**
+	 * @return the {@code R16} texture cache.
+	 */
+	public TextureCache getTextureCache()
+	{
+		return textureCache;
+	}
+
+	/**
+	 * Get the texture cache for {@code format}. It is created if necessary.
+	 */
+	public synchronized TextureCache getTextureCache( final InternalFormat format )
+	{
+		return getFormatCache( format ).textureCache;
+	}
+
+	/**
+	 * Get the texture cache for blocks of {@code level}, according to its
+	 * {@link TileAccess#cacheFormat(Object) cache format}.
+	 *
+	 * @throws IllegalArgumentException
+	 * 		if the pixel type of {@code level} is not supported.
+	 */
+	public synchronized TextureCache getTextureCache( final ResolutionLevel3D< ? > level )
+	{
+		final InternalFormat format = TileAccess.cacheFormat( level.getType() );
+		if ( format == null )
+			throw new IllegalArgumentException( "pixel type not supported" );
+		return getTextureCache( format );
+	}
+
+	/**
+	 * @return the formats of the texture caches created so far.
+	 */
+	public synchronized List< InternalFormat > getCacheFormats()
+	{
+		return new ArrayList<>( formatCaches.keySet() );
+	}
+
+	/**
+	 * Get the {@code PboChain} uploading to the texture cache for
+	 * {@code format}. The cache is created if necessary.
+	 */
+	public synchronized PboChain getPboChain( final InternalFormat format )
+	{
+		return getFormatCache( format ).pboChain;
+	}
+
+	private FormatCache getFormatCache( final InternalFormat format )
+	{
+		FormatCache fc = formatCaches.get( format );
+		if ( fc == null )
+		{
+			fc = createFormatCache( format );
+			formatCaches.put( format, fc );
+			requestFormatCacheSizes();
+		}
+		return fc;
+	}
+
+	/**
+	 * @return the host-side tile cache, or {@code null} if disabled.
+	 */
+	public HostTileCache getHostTileCache()
+	{
+		return hostTileCache;
+	}
+
+	/**
+	 * @return the on-disk tile store, or {@code null} if disabled.
+	 */
+	public PersistentTileStore getTileStore()
+	{
+		return tileStore;
+	}
+
+	/**
+	 * @return the {@code PboChain} uploading to the {@code R16} texture cache.
+	 */
+	public synchronized PboChain getPboChain()
+	{
+		return formatCaches.get( R16 ).pboChain;
+	}
+
+	public ForkJoinPool getForkJoinPool()
+	{
+		return forkJoinPool;
+	}
+
+	private static PersistentTileStore openTileStore( final String directory, final CacheSpec cacheSpec, final int maxSizeInMB )
+	{
+		if ( directory == null || maxSizeInMB <= 0 )
+			return null;
+		try
+		{
+			return new PersistentTileStore( new File( directory ), cacheSpec, maxSizeInMB * 1024L * 1024L );
+		}
+		catch ( final IOException e )
+		{
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	/**
+	 * A texture cache, the {@code PboChain} uploading to it, and a pending
+	 * resize request.
+	 */
+	private static class FormatCache
+	{
+		final TextureCache textureCache;
+
+		final PboChain pboChain;
+
+		/**
+		 * Requested new grid size of the {@link TextureCache} pages (or
+		 * {@code null}). Applied by the next renderer updating the cache.
+		 */
+		int[] requestedGridSize;
+
+		/**
+		 * Requested new number of {@link TextureCache} pages.
+		 */
+		int requestedNumPages;
+
+		FormatCache( final TextureCache textureCache, final PboChain pboChain )
+		{
+			this.textureCache = textureCache;
+			this.pboChain = pboChain;
+		}
+	}
+}
@@ -35,7 +35,10 @@ public class LookupTextureARGB implements Texture3D
 	 * <p>
 	 * Each voxel (4 bytes, "RGBA") represents a tile in the cache:
 	 * X,Y,Z grid coordinates, and
-	 * resolution relative to {@code baseLevel} (1 means {@code baseLevel}).
+	 * resolution relative to {@code baseLevel} (1 means {@code baseLevel})
+	 * in the lower 4 bits and the cache page in the upper 4 bits of A. (This
+	 * limits the number of cache pages to 16, see
+	 * {@link TextureCache#MAX_NUM_PAGES}.)
 	 */
 	private ByteBuffer data;
 
@@ -74,7 +77,7 @@ public class LookupTextureARGB implements Texture3D
 		data.put( i * 4, ( byte ) tile.x() );
 		data.put( i * 4 + 1, ( byte ) tile.y() );
 		data.put( i * 4 + 2, ( byte ) tile.z() );
-		data.put( i * 4 + 3, ( byte ) ( level - baseLevel + 1 ) );
+		data.put( i * 4 + 3, ( byte ) ( ( level - baseLevel + 1 ) | ( tile.page() << 4 ) ) );
 	}
 
 	public void upload( final GpuContext context )
@@ -1,6 +1,11 @@
 package tpietzsch.example2;
 
 import bdv.tools.brightness.ConverterSetup;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
 import net.imglib2.type.numeric.ARGBType;
 import org.joml.Matrix4f;
 import org.joml.Matrix4fc;
@@ -8,6 +13,7 @@ import org.joml.Vector2f;
 import org.joml.Vector4f;
 import tpietzsch.backend.GpuContext;
 import tpietzsch.backend.Texture2D;
+import tpietzsch.blocks.QuantizationWindow;
 import tpietzsch.cache.CacheSpec;
 import tpietzsch.cache.TextureCache;
 import tpietzsch.dither.DitherBuffer;
@@ -72,7 +78,19 @@ public class MultiVolumeShaderMip
 		final SegmentTemplate templateVolBlocks = new SegmentTemplate(
 				"sample_volume_blocks.frag",
 				"im", "sourcemin", "sourcemax", "intersectBoundingBox",
-				"lutSampler", "blockScales", "lutSize", "lutOffset", "sampleVolume" );
+				"lutSampler", "blockScales", "lutSize", "lutOffset", "sampleVolume",
+				"cacheSize", "sampleCachePage" );
+		final SegmentTemplate templateVolBlocksRGBA = new SegmentTemplate(
+				"sample_volume_blocks_rgba.frag",
+				"im", "sourcemin", "sourcemax", "intersectBoundingBox",
+				"lutSampler", "blockScales", "lutSize", "lutOffset", "sampleVolume",
+				"cacheSize", "sampleCachePage" );
+		final SegmentTemplate templateCachePages = new SegmentTemplate(
+				"sample_cache_pages.frag",
+				"cacheTexture", "cacheSize", "sampleCachePage" );
+		final SegmentTemplate templateCachePagesRGBA = new SegmentTemplate(
+				"sample_cache_pages_rgba.frag",
+				"cacheTexture", "cacheSize", "sampleCachePage" );
 		final SegmentTemplate templateVolSimple = new SegmentTemplate(
 				"sample_volume_simple.frag",
 				"im", "sourcemax", "intersectBoundingBox",
@@ -103,6 +121,9 @@ public class MultiVolumeShaderMip
 				"accumulate_mip_simple.frag",
 				"vis", "sampleVolume", "convert" );
 
+		// cache pages are declared once per cache format (which is given by
+		// the pixel type of MULTIRESOLUTION volumes)
+		final Map< PixelType, Segment > cachePagesSegs = new EnumMap<>( PixelType.class );
 		final Segment[] sampleVolumeSegs = new Segment[ numVolumes ];
 		final Segment[] convertSegs = new Segment[ numVolumes ];
 		final Segment[] accumulateSegs = new Segment[ numVolumes ];
@@ -116,7 +137,16 @@ public class MultiVolumeShaderMip
 			{
 			case MULTIRESOLUTION:
 				accumulate = templateAccumulateMipBlocks.instantiate();
-				sampleVolume = templateVolBlocks.instantiate();
+				sampleVolume = volumeSignature.getPixelType() == ARGB
+						? templateVolBlocksRGBA.instantiate()
+						: templateVolBlocks.instantiate();
+				final Segment cachePages = cachePagesSegs.computeIfAbsent( volumeSignature.getPixelType(),
+						pixelType -> ( pixelType == ARGB
+								? templateCachePagesRGBA.instantiate()
+								: templateCachePages.instantiate() )
+								.repeat( "cacheTexture", volumeSignature.getNumCachePages() ) );
+				sampleVolume.bind( "cacheSize", cachePages );
+				sampleVolume.bind( "sampleCachePage", cachePages );
 				break;
 			case SIMPLE:
 				accumulate = templateAccumulateMipSimple.instantiate();
@@ -134,6 +164,7 @@ public class MultiVolumeShaderMip
 			default:
 			case USHORT:
 			case UBYTE:
+			case FLOAT:
 			 	convert = templateConvert.instantiate();
 				break;
 			case ARGB:
@@ -150,7 +181,9 @@ public class MultiVolumeShaderMip
 			convertSegs[ i ] = convert;
 			accumulateSegs[ i ] = accumulate;
 		}
-		fp.insert( "SampleVolume", sampleVolumeSegs );
+		final List< Segment > samplingSegs = new ArrayList<>( cachePagesSegs.values() );
+		samplingSegs.addAll( Arrays.asList( sampleVolumeSegs ) );
+		fp.insert( "SampleVolume", samplingSegs );
 		fp.insert( "Convert", convertSegs );
 		fp.insert( "Accumulate", accumulateSegs );
 
@@ -163,6 +196,8 @@ public class MultiVolumeShaderMip
 		uniformFwnw = prog.getUniform1f( "fwnw" );
 		uniformXf = prog.getUniform1f( "xf" );
 
+		final Map< PixelType, CachePagesSegment > cachePagesSegments = new EnumMap<>( PixelType.class );
+
 		volumeSegments = new VolumeSegment[ numVolumes ];
 		converterSegments = new ConverterSegment[ numVolumes ];
 		for ( int i = 0; i < numVolumes; ++i )
@@ -174,7 +209,9 @@ public class MultiVolumeShaderMip
 				volumeSegments[ i ] = new VolumeSimpleSegment( prog, sampleVolumeSegs[ i ] );
 				break;
 			case MULTIRESOLUTION:
-				volumeSegments[ i ] = new VolumeBlocksSegment( prog, sampleVolumeSegs[ i ] );
+				final CachePagesSegment cachePages = cachePagesSegments.computeIfAbsent( volumeSignature.getPixelType(),
+						pixelType -> new CachePagesSegment( prog, cachePagesSegs.get( pixelType ), volumeSignature.getNumCachePages() ) );
+				volumeSegments[ i ] = new VolumeBlocksSegment( prog, sampleVolumeSegs[ i ], cachePages );
 				break;
 			}
 			converterSegments[ i ] = new ConverterSegment( prog, convertSegs[ i ], volumeSignature.getPixelType() );
@@ -194,6 +231,10 @@ public class MultiVolumeShaderMip
 //		System.out.println( "\n\n--------------------------------\n\n" );
 	}
 
+	/**
+	 * Set the block geometry of the texture cache(s). The cache textures of
+	 * each volume are set by {@link #setVolume(int, VolumeBlocks)}.
+	 */
 	public void setTextureCache( TextureCache textureCache )
 	{
 		CacheSpec spec = textureCache.spec();
@@ -203,9 +244,6 @@ public class MultiVolumeShaderMip
 		prog.getUniform3f( "blockSize" ).set( bs[ 0 ], bs[ 1 ], bs[ 2 ] );
 		prog.getUniform3f( "paddedBlockSize" ).set( pbs[ 0 ], pbs[ 1 ], pbs[ 2 ] );
 		prog.getUniform3f( "cachePadOffset" ).set( bo[ 0 ], bo[ 1 ], bo[ 2 ] );
-
-		prog.getUniformSampler( "volumeCache" ).set( textureCache );
-		prog.getUniform3f( "cacheSize" ).set( textureCache.texWidth(), textureCache.texHeight(), textureCache.texDepth() );
 	}
 
 	public void setDepthTexture( Texture2D depth )
@@ -221,6 +259,15 @@ public class MultiVolumeShaderMip
 		converterSegments[ index ].setData( converter );
 	}
 
+	/**
+	 * Set the converter for a volume whose blocks are quantized with
+	 * {@code window} (or not quantized, if {@code window == null}).
+	 */
+	public void setConverter( int index, ConverterSetup converter, QuantizationWindow window )
+	{
+		converterSegments[ index ].setData( converter, window );
+	}
+
 	public void setVolume( int index, VolumeBlocks volume )
 	{
 		final VolumeSignature vs = signature.getVolumeSignatures().get( index );
@@ -331,13 +378,39 @@ public class MultiVolumeShaderMip
 			case ARGB:
 				rangeScale = 0xff;
 				break;
+			case FLOAT:
+				rangeScale = 1;
+				break;
 			}
 		}
 
 		public void setData( ConverterSetup converter )
 		{
-			final double fmin = converter.getDisplayRangeMin() / rangeScale;
-			final double fmax = converter.getDisplayRangeMax() / rangeScale;
+			setData( converter, 0, rangeScale );
+		}
+
+		/**
+		 * Texture values {@code [0, 1]} of blocks quantized with
+		 * {@code window} correspond to {@code [window.min(), window.max()]}.
+		 */
+		public void setData( ConverterSetup converter, QuantizationWindow window )
+		{
+			if ( window == null )
+				setData( converter );
+			else
+				setData( converter, window.min(), window.max() - window.min() );
+		}
+
+		/**
+		 * @param valueMin
+		 * 		value corresponding to texture value {@code 0}
+		 * @param valueRange
+		 * 		difference of values corresponding to texture values {@code 1} and {@code 0}
+		 */
+		private void setData( ConverterSetup converter, double valueMin, double valueRange )
+		{
+			final double fmin = ( converter.getDisplayRangeMin() - valueMin ) / valueRange;
+			final double fmax = ( converter.getDisplayRangeMax() - valueMin ) / valueRange;
 			final double s = 1.0 / ( fmax - fmin );
 			final double o = -fmin * s;
 
@@ -373,6 +446,34 @@ public class MultiVolumeShaderMip
 	interface VolumeSegment
 	{}
 
+	/**
+	 * Pages of the texture cache of one format, shared by all volumes that are
+	 * drawn from it. There is a sampler for each page.
+	 */
+	static class CachePagesSegment
+	{
+		private final UniformSampler[] uniformCacheTextures;
+		private final Uniform3f uniformCacheSize;
+
+		public CachePagesSegment( final SegmentedShader prog, final Segment pages, final int numPages )
+		{
+			uniformCacheTextures = new UniformSampler[ numPages ];
+			for ( int i = 0; i < numPages; ++i )
+				uniformCacheTextures[ i ] = prog.getUniformSampler( pages, "cacheTexture", i );
+			uniformCacheSize = prog.getUniform3f( pages, "cacheSize" );
+		}
+
+		public void setData( TextureCache textureCache )
+		{
+			// the cache may have been resized to fewer pages than the shader
+			// was generated for. unused samplers are bound to the last page.
+			final int lastPage = textureCache.getNumPages() - 1;
+			for ( int i = 0; i < uniformCacheTextures.length; ++i )
+				uniformCacheTextures[ i ].set( textureCache.getPage( Math.min( i, lastPage ) ) );
+			uniformCacheSize.set( textureCache.texWidth(), textureCache.texHeight(), textureCache.texDepth() );
+		}
+	}
+
 	static class VolumeBlocksSegment implements VolumeSegment
 	{
 		private final Uniform3fv uniformBlockScales;
@@ -382,8 +483,9 @@ public class MultiVolumeShaderMip
 		private final UniformMatrix4f uniformIm;
 		private final Uniform3f uniformSourcemin;
 		private final Uniform3f uniformSourcemax;
+		private final CachePagesSegment cachePages;
 
-		public VolumeBlocksSegment( final SegmentedShader prog, final Segment volume )
+		public VolumeBlocksSegment( final SegmentedShader prog, final Segment volume, final CachePagesSegment cachePages )
 		{
 			uniformBlockScales = prog.getUniform3fv( volume, "blockScales" );
 			uniformLutSampler = prog.getUniformSampler( volume,"lutSampler" );
@@ -392,10 +494,13 @@ public class MultiVolumeShaderMip
 			uniformIm = prog.getUniformMatrix4f( volume, "im" );
 			uniformSourcemin = prog.getUniform3f( volume,"sourcemin" );
 			uniformSourcemax = prog.getUniform3f( volume,"sourcemax" );
+			this.cachePages = cachePages;
 		}
 
 		public void setData( VolumeBlocks blocks )
 		{
+			cachePages.setData( blocks.getTextureCache() );
+
 			uniformBlockScales.set( blocks.getLutBlockScales( NUM_BLOCK_SCALES ) );
 			final LookupTextureARGB lut = blocks.getLookupTexture();
 			uniformLutSampler.set( lut );
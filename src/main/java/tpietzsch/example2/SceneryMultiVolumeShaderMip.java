@@ -142,7 +142,15 @@ public class SceneryMultiVolumeShaderMip
 		prog.getUniform3f( "paddedBlockSize" ).set( pbs[ 0 ], pbs[ 1 ], pbs[ 2 ] );
 		prog.getUniform3f( "cachePadOffset" ).set( bo[ 0 ], bo[ 1 ], bo[ 2 ] );
 
+		// the shader declares samplers for (at most) 4 pages, unused pages
+		// are bound to the last page
+		if ( textureCache.getNumPages() > 4 )
+			throw new IllegalArgumentException( "at most 4 cache pages are supported" );
 		prog.getUniformSampler( "volumeCache" ).set( textureCache );
+		final int lastPage = textureCache.getNumPages() - 1;
+		prog.getUniformSampler( "volumeCache1" ).set( textureCache.getPage( Math.min( 1, lastPage ) ) );
+		prog.getUniformSampler( "volumeCache2" ).set( textureCache.getPage( Math.min( 2, lastPage ) ) );
+		prog.getUniformSampler( "volumeCache3" ).set( textureCache.getPage( Math.min( 3, lastPage ) ) );
 		prog.getUniform3f( "cacheSize" ).set( textureCache.texWidth(), textureCache.texHeight(), textureCache.texDepth() );
 	}
 
@@ -1,27 +1,36 @@
 package tpietzsch.example2;
 
 import java.util.ArrayList;
-import java.util.HashSet;
 import java.util.List;
+import java.util.function.IntPredicate;
 import net.imglib2.Interval;
 import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.util.Intervals;
 import net.imglib2.util.LinAlgHelpers;
 import org.joml.Matrix4f;
 import org.joml.Matrix4fc;
 import org.joml.Vector3f;
+import tpietzsch.blockmath.BlockBudgetAllocator;
 import tpietzsch.blockmath.MipmapSizes;
 import tpietzsch.blockmath.RequiredBlock;
 import tpietzsch.blockmath.RequiredBlocks;
+import tpietzsch.blocks.QuantizationWindow;
 import tpietzsch.blocks.TileAccess;
 import tpietzsch.cache.CacheSpec;
 import tpietzsch.cache.DefaultFillTask;
 import tpietzsch.cache.FillTask;
+import tpietzsch.cache.HostTileCache;
 import tpietzsch.cache.ImageBlockKey;
+import tpietzsch.cache.PartialUploadPolicy;
+import tpietzsch.cache.PersistentTileStore;
 import tpietzsch.cache.TextureCache;
 import tpietzsch.cache.TextureCache.Tile;
+import tpietzsch.cache.TileRefreshMonitor;
 import tpietzsch.cache.UploadBuffer;
 import tpietzsch.multires.MultiResolutionStack3D;
 import tpietzsch.multires.ResolutionLevel3D;
+import tpietzsch.util.LongIntMap;
+import tpietzsch.util.LongObjectMap;
 import tpietzsch.util.MatrixMath;
 
 import static tpietzsch.blockmath.FindRequiredBlocks.getRequiredLevelBlocksFrustum;
@@ -41,18 +50,154 @@ import static tpietzsch.cache.TextureCache.ContentState.INCOMPLETE;
 public class VolumeBlocks
 {
 	private final TextureCache textureCache;
+	private final HostTileCache hostTileCache;
+	private final PersistentTileStore tileStore;
 	private final CacheSpec cacheSpec;
 	private final LookupTextureARGB lut;
 	private final TileAccess.Cache tileAccess;
-	private final MipmapSizes sizes;
+	private MipmapSizes sizes;
+
+	/**
+	 * Watches incomplete and missing blocks, or {@code null}.
+	 */
+	private TileRefreshMonitor refreshMonitor;
+
+	/**
+	 * Decides whether blocks that can only be loaded partially are uploaded.
+	 */
+	private PartialUploadPolicy partialUploadPolicy = new PartialUploadPolicy.CompleteOnly();
+
+	/** size of a padded block in bytes */
+	private final long bytesPerTile;
+
+	/**
+	 * Default margin (in levels) for {@link #setLevelHysteresis(float)}.
+	 */
+	public static final float DEFAULT_LEVEL_HYSTERESIS = 0.2f;
+
+	/**
+	 * How far (in levels) the ideal level of a block must move past the
+	 * boundary between its previous level and a neighbouring level, before
+	 * the block switches level.
+	 */
+	private float levelHysteresis = DEFAULT_LEVEL_HYSTERESIS;
+
+	/**
+	 * Best levels of the required blocks of the previous and the current
+	 * frame, by packed key of the block at {@code baseLevel}.
+	 */
+	private LongIntMap prevBestLevels = new LongIntMap();
+	private LongIntMap bestLevels = new LongIntMap();
+
+	/**
+	 * Number of required blocks that switched level, and number of blocks
+	 * that kept their level only due to hysteresis, in the last
+	 * {@link #initRequiredBlocks()}.
+	 */
+	private int numLevelSwitches;
+	private int numSuppressedLevelSwitches;
+
+	/**
+	 * Window for quantizing unsigned short data to bytes while copying
+	 * blocks, or {@code null}.
+	 */
+	private QuantizationWindow quantizationWindow;
 
 	public VolumeBlocks( final TextureCache textureCache )
+	{
+		this( textureCache, null, null );
+	}
+
+	/**
+	 * @param hostTileCache
+	 * 		second-level cache of complete tiles, or {@code null}
+	 * @param tileStore
+	 * 		on-disk store of complete tiles, or {@code null}
+	 */
+	public VolumeBlocks( final TextureCache textureCache, final HostTileCache hostTileCache, final PersistentTileStore tileStore )
 	{
 		this.textureCache = textureCache;
+		this.hostTileCache = hostTileCache;
+		this.tileStore = tileStore;
 		this.cacheSpec = textureCache.spec();
 		this.lut = new LookupTextureARGB();
 		this.tileAccess = new TileAccess.Cache();
 		this.sizes = new MipmapSizes();
+		bytesPerTile = Intervals.numElements( cacheSpec.paddedBlockSize() ) * cacheSpec.format().getBytesPerElement();
+	}
+
+	/**
+	 * Set the monitor that is notified about blocks that are incomplete or
+	 * missing in {@link #makeLut(int)}. If set, incomplete tiles are only
+	 * reloaded in {@link #getFillTasks()} when the monitor reports them
+	 * {@link TileRefreshMonitor#isDirty(long) dirty}. If {@code null},
+	 * incomplete tiles are reloaded every frame.
+	 */
+	public void setRefreshMonitor( final TileRefreshMonitor refreshMonitor )
+	{
+		this.refreshMonitor = refreshMonitor;
+	}
+
+	/**
+	 * Set the policy that decides whether blocks that can only be loaded
+	 * partially are uploaded. (By default, only complete blocks are uploaded.)
+	 */
+	public void setPartialUploadPolicy( final PartialUploadPolicy partialUploadPolicy )
+	{
+		this.partialUploadPolicy = partialUploadPolicy;
+	}
+
+	/**
+	 * Set the margin (in levels) by which the ideal (fractional) resolution
+	 * level of a block must move past the boundary to a neighbouring level,
+	 * before the block switches to that level. This avoids blocks near a
+	 * level boundary flipping between levels (and being uploaded again) every
+	 * frame during slow camera motion. Within the margin, a level that is
+	 * already in the cache is preferred for blocks that were not required
+	 * in the previous frame. {@code 0} disables hysteresis.
+	 */
+	public void setLevelHysteresis( final float levelHysteresis )
+	{
+		this.levelHysteresis = levelHysteresis;
+	}
+
+	/**
+	 * Set the window for quantizing unsigned short data to bytes while
+	 * copying blocks into the (then {@code R8}) texture cache, or
+	 * {@code null} to copy data as is. Tiles quantized with an older window
+	 * are loaded again (see {@link Tile#version()}). Until then, they are
+	 * still used for rendering.
+	 */
+	public void setQuantizationWindow( final QuantizationWindow quantizationWindow )
+	{
+		this.quantizationWindow = quantizationWindow;
+	}
+
+	/**
+	 * @return the window for quantizing blocks, or {@code null}.
+	 */
+	public QuantizationWindow getQuantizationWindow()
+	{
+		return quantizationWindow;
+	}
+
+	/**
+	 * @return number of required blocks whose best level changed from the
+	 *         previous frame, in the last {@link #initRequiredBlocks()}.
+	 */
+	public int getNumLevelSwitches()
+	{
+		return numLevelSwitches;
+	}
+
+	/**
+	 * @return number of required blocks that kept their previous level only
+	 *         due to {@link #setLevelHysteresis(float) hysteresis}, in the
+	 *         last {@link #initRequiredBlocks()}.
+	 */
+	public int getNumSuppressedLevelSwitches()
+	{
+		return numSuppressedLevelSwitches;
 	}
 
 	private MultiResolutionStack3D< ? > multiResolutionStack;
@@ -60,6 +205,16 @@ public class VolumeBlocks
 	/** {@code projection * view * model} matrix */
 	final Matrix4f pvm = new Matrix4f();
 
+	/** width of the surface to be rendered */
+	private int viewportWidth;
+
+	/**
+	 * {@code MipmapSizes} for the predicted view in
+	 * {@link #getPrefetchTasks(Matrix4fc)}. (Temporarily swapped with
+	 * {@link #sizes}.)
+	 */
+	private MipmapSizes prefetchSizes = new MipmapSizes();
+
 	/**
 	 * Chosen base resolution level for rendering the volume.
 	 * Every block in the volumes LUT is at this level or higher (coarser).
@@ -71,6 +226,34 @@ public class VolumeBlocks
 	 */
 	private RequiredBlocks requiredBlocks;
 
+	/**
+	 * {@link TextureCache#imageId Image id} of each resolution level of
+	 * {@link #multiResolutionStack}, for packing block keys.
+	 */
+	private int[] levelImageIds = new int[ 0 ];
+
+	/**
+	 * Packed keys of blocks that were already considered in {@code getFillTasks()}.
+	 * (Reused to avoid allocation.)
+	 */
+	private final LongObjectMap< Boolean > existingKeys = new LongObjectMap<>();
+
+	/**
+	 * See {@link #getNumPresentEvictableTiles()}.
+	 */
+	private int numPresentEvictableTiles;
+
+	/**
+	 * If partial uploads are allowed: number of loadable source cells of
+	 * watched (or reloaded) blocks when they were last loaded, by packed key.
+	 * The {@link #refreshMonitor} reports such a block when more cells become
+	 * loadable. Entries of blocks that are not watched in a frame are
+	 * dropped in {@link #makeLut(int)}.
+	 */
+	private LongIntMap loadedCellCounts = new LongIntMap();
+
+	private LongIntMap prevLoadedCellCounts = new LongIntMap();
+
 	/**
 	 * @param multiResolutionStack single-channel, multi-resolution source
 	 * @param viewportWidth width of the surface to be rendered
@@ -87,6 +270,13 @@ public class VolumeBlocks
 		pvm.set( pv ).mul( model );
 		sizes.init( pvm, viewportWidth, multiResolutionStack.resolutions() );
 		baseLevel = sizes.getBaseLevel();
+		this.viewportWidth = viewportWidth;
+
+		final int numLevels = multiResolutionStack.resolutions().size();
+		if ( levelImageIds.length != numLevels )
+			levelImageIds = new int[ numLevels ];
+		for ( int level = 0; level < numLevels; ++level )
+			levelImageIds[ level ] = textureCache.imageId( multiResolutionStack.resolutions().get( level ) );
 	}
 
 	/**
@@ -144,17 +334,92 @@ public class VolumeBlocks
 	 * @return list of {@code FillTask}s
 	 */
 	public List< FillTask > getFillTasks()
+	{
+		initRequiredBlocks();
+		return getRequiredFillTasks();
+	}
+
+	/**
+	 * Sets up {@code RequiredBlocks} (internally), with the best resolution
+	 * level for each block.
+	 * <p>
+	 * The returned view of the required blocks can be passed to a
+	 * {@link BlockBudgetAllocator}, which coarsens the levels of individual
+	 * blocks to fit the cache capacity. Then {@link #getRequiredFillTasks()}
+	 * creates {@code FillTask}s for the allocated levels.
+	 *
+	 * @return the required blocks, for allocating resolution levels.
+	 */
+	public BlockBudgetAllocator.Source initRequiredBlocks()
 	{
 		// block coordinates are grid coordinates of baseLevel resolution
 		requiredBlocks = getRequiredBlocks( baseLevel );
-		assignBestLevels( requiredBlocks, baseLevel, baseLevel );
-		final List< FillTask > fillTasks = getFillTasks( requiredBlocks, baseLevel );
-		return fillTasks;
+		assignBestLevelsWithHysteresis( requiredBlocks, baseLevel );
+		return new BudgetSource();
+	}
+
+	/**
+	 * Creates a list of {@code FillTask}s for the required blocks set up by
+	 * {@link #initRequiredBlocks()}, at their (possibly allocated) resolution
+	 * levels.
+	 *
+	 * @return list of {@code FillTask}s
+	 */
+	public List< FillTask > getRequiredFillTasks()
+	{
+		return getFillTasks( requiredBlocks, baseLevel, true );
+	}
+
+	/**
+	 * @return number of required blocks in the last
+	 *         {@link #getRequiredFillTasks()} that were present and up to date
+	 *         in evictable tiles of the cache. No tasks are created for them,
+	 *         but they occupy tiles of {@link TextureCache#getNumEvictableTiles()}.
+	 */
+	public int getNumPresentEvictableTiles()
+	{
+		return numPresentEvictableTiles;
+	}
+
+	/**
+	 * Creates a list of {@code FillTask}s for blocks that will be required if
+	 * the view changes to {@code predictedPv}, and that are not present in the
+	 * cache. Resolution levels are capped at the current base level.
+	 * <p>
+	 * Must be called after {@link #getFillTasks()}. Does not modify the
+	 * required blocks, so {@link #makeLut(int)} can be called afterwards.
+	 *
+	 * @param predictedPv predicted {@code projection * view} matrix
+	 * @return list of {@code FillTask}s
+	 */
+	public List< FillTask > getPrefetchTasks( final Matrix4fc predictedPv )
+	{
+		final Matrix4f currentPvm = new Matrix4f( pvm );
+		final MipmapSizes currentSizes = sizes;
+		try
+		{
+			final Matrix4f model = MatrixMath.affine( multiResolutionStack.getSourceTransform(), new Matrix4f() );
+			pvm.set( predictedPv ).mul( model );
+			sizes = prefetchSizes;
+			sizes.init( pvm, viewportWidth, multiResolutionStack.resolutions() );
+
+			final RequiredBlocks predictedBlocks = getRequiredBlocks( baseLevel );
+			assignBestLevels( predictedBlocks, baseLevel, baseLevel );
+			return getFillTasks( predictedBlocks, baseLevel, false );
+		}
+		finally
+		{
+			pvm.set( currentPvm );
+			prefetchSizes = sizes;
+			sizes = currentSizes;
+		}
 	}
 
 	/**
 	 * @return whether every required block was completely available at the desired resolution level.
 	 * I.e., if {@code false} is returned, the frame should be repainted until the remaining incomplete blocks are loaded.
+	 * If a {@link #setRefreshMonitor(TileRefreshMonitor) refresh monitor} is set, these blocks are watched by it,
+	 * and the frame only needs to be repainted when the monitor reports new data.
 	 */
 	public boolean makeLut( final int timestamp )
 	{
@@ -162,7 +427,13 @@ public class VolumeBlocks
 		final int[] rmax = requiredBlocks.getMax();
 		lut.init( rmin, rmax, baseLevel );
 
+		final LongIntMap tmpCounts = prevLoadedCellCounts;
+		prevLoadedCellCounts = loadedCellCounts;
+		loadedCellCounts = tmpCounts;
+		loadedCellCounts.clear();
+
 		boolean complete = true;
+		final int version = requiredVersion();
 		final int maxLevel = multiResolutionStack.resolutions().size() - 1;
 		final int[] r = multiResolutionStack.resolutions().get( baseLevel ).getR();
 		final int[] gj = new int[ 3 ];
@@ -175,17 +446,30 @@ public class VolumeBlocks
 				final double[] sj = resolution.getS();
 				for ( int d = 0; d < 3; ++d )
 					gj[ d ] = ( int ) ( g0[ d ] * sj[ d ] * r[ d ] );
-				final Tile tile = textureCache.get( new ImageBlockKey<>( resolution, gj ) );
+				final Tile tile = textureCache.get( TextureCache.packKey( levelImageIds[ level ], gj[ 0 ], gj[ 1 ], gj[ 2 ] ) );
 				if ( tile != null )
 				{
 					tile.useAtTimestamp( timestamp );
 					lut.putTile( g0, tile, level );
-					if ( level != block.getBestLevel() || tile.state() == INCOMPLETE )
+					if ( tile.state() == INCOMPLETE )
+					{
 						complete = false;
+						watchBlock( level, g0, r, true );
+					}
+					else if ( tile.version() < version )
+						complete = false; // quantized with an outdated window
+					if ( level != block.getBestLevel() )
+					{
+						complete = false;
+						watchBlock( block.getBestLevel(), g0, r, false );
+					}
 					break;
 				}
 				else if ( level == maxLevel )
+				{
 					complete = false;
+					watchBlock( level, g0, r, true );
+				}
 			}
 		}
 		return complete;
@@ -250,6 +534,14 @@ public class VolumeBlocks
 		return lut;
 	}
 
+	/**
+	 * @return the texture cache that blocks of this volume are stored in.
+	 */
+	public TextureCache getTextureCache()
+	{
+		return textureCache;
+	}
+
 
 
 
@@ -295,16 +587,157 @@ public class VolumeBlocks
 		}
 	}
 
-	private List< FillTask > getFillTasks( final RequiredBlocks requiredBlocks, final int baseLevel )
+	/**
+	 * Determine the best resolution level for each block, like
+	 * {@link #assignBestLevels}, but with temporal hysteresis: A block keeps
+	 * its level of the previous frame, until its ideal (fractional) level
+	 * moves more than {@link #levelHysteresis} past the boundary to another
+	 * level. Blocks that switch level (or were not required in the previous
+	 * frame) prefer a neighbouring level that is already in the cache, if
+	 * it is within {@code 0.5 + levelHysteresis} of the ideal level.
+	 * <p>
+	 * Block coordinates are grid coordinates of {@code baseLevel} resolution.
+	 * Best resolution is capped at {@code baseLevel}.
+	 */
+	private void assignBestLevelsWithHysteresis( final RequiredBlocks requiredBlocks, final int baseLevel )
 	{
 		final int maxLevel = multiResolutionStack.resolutions().size() - 1;
 		final int[] r = multiResolutionStack.resolutions().get( baseLevel ).getR();
-		final HashSet< ImageBlockKey< ? > > existingKeys = new HashSet<>();
+		final int[] blockSize = cacheSpec.blockSize();
+		final int[] scale = new int[] {
+				blockSize[ 0 ] * r[ 0 ],
+				blockSize[ 1 ] * r[ 1 ],
+				blockSize[ 2 ] * r[ 2 ]
+		};
+		final Vector3f blockCenter = new Vector3f();
+		final Vector3f tmp = new Vector3f();
+		final int[] gj = new int[ 3 ];
+		final int[] g0 = new int[ 3 ];
+		final IntPredicate isPresent = level -> isPresent( level, g0, r, gj );
+		numLevelSwitches = 0;
+		numSuppressedLevelSwitches = 0;
+		for ( final RequiredBlock block : requiredBlocks.getBlocks() )
+		{
+			System.arraycopy( block.getGridPos(), 0, g0, 0, 3 );
+			blockCenter.set(
+					( g0[ 0 ] + 0.5f ) * scale[ 0 ],
+					( g0[ 1 ] + 0.5f ) * scale[ 1 ],
+					( g0[ 2 ] + 0.5f ) * scale[ 2 ] );
+			final float ideal = sizes.levelPosition( blockCenter, tmp );
+
+			final long key = TextureCache.packKey( levelImageIds[ baseLevel ], g0[ 0 ], g0[ 1 ], g0[ 2 ] );
+			final int prev = prevBestLevels.get( key, -1 );
+			final int bestLevel = levelWithHysteresis( ideal, prev, levelHysteresis, baseLevel, maxLevel, isPresent );
+			if ( prev >= 0 && prev != bestLevel )
+				++numLevelSwitches;
+			else if ( prev >= 0 && prev != nearestLevel( ideal, baseLevel ) )
+				++numSuppressedLevelSwitches;
+
+			block.setBestLevel( bestLevel );
+			bestLevels.put( key, bestLevel );
+		}
+
+		final LongIntMap tmpLevels = prevBestLevels;
+		prevBestLevels = bestLevels;
+		bestLevels = tmpLevels;
+		bestLevels.clear();
+	}
+
+	/**
+	 * The level nearest to the {@code ideal} (fractional) level, but not finer
+	 * than {@code baseLevel}.
+	 */
+	static int nearestLevel( final float ideal, final int baseLevel )
+	{
+		return Math.max( baseLevel, ( int ) Math.ceil( ideal - 0.5f ) );
+	}
+
+	/**
+	 * Choose the level of one block, given its {@code ideal} (fractional)
+	 * level, see {@link #assignBestLevelsWithHysteresis}.
+	 *
+	 * @param prev
+	 * 		level of the block in the previous frame, or {@code -1} if it was
+	 * 		not required.
+	 * @param isPresent
+	 * 		whether the block is in the cache at a given level.
+	 */
+	static int levelWithHysteresis(
+			final float ideal,
+			final int prev,
+			final float levelHysteresis,
+			final int baseLevel,
+			final int maxLevel,
+			final IntPredicate isPresent )
+	{
+		final float margin = 0.5f + levelHysteresis;
+		final int nearest = nearestLevel( ideal, baseLevel );
+		if ( prev >= 0 && Math.abs( ideal - prev ) < margin )
+			return prev;
+
+		if ( levelHysteresis > 0 && !isPresent.test( nearest ) )
+		{
+			// prefer the other neighbouring level, if it is already in the cache
+			final int other = ideal > nearest ? nearest + 1 : nearest - 1;
+			if ( other >= baseLevel && other <= maxLevel && Math.abs( ideal - other ) < margin && isPresent.test( other ) )
+				return other;
+		}
+		return nearest;
+	}
+
+	/**
+	 * Whether the block at {@code level} corresponding to base level grid
+	 * position {@code g0} is in the cache.
+	 *
+	 * @param r
+	 * 		scale of {@code baseLevel}
+	 * @param gj
+	 * 		temporary array for grid position at {@code level}
+	 */
+	private boolean isPresent( final int level, final int[] g0, final int[] r, final int[] gj )
+	{
+		final double[] sj = multiResolutionStack.resolutions().get( level ).getS();
+		for ( int d = 0; d < 3; ++d )
+			gj[ d ] = ( int ) ( g0[ d ] * sj[ d ] * r[ d ] );
+		return textureCache.get( TextureCache.packKey( levelImageIds[ level ], gj[ 0 ], gj[ 1 ], gj[ 2 ] ) ) != null;
+	}
+
+	/**
+	 * @param required
+	 * 		whether the blocks are required for the current frame. If so,
+	 * 		present and up-to-date tiles are marked as
+	 * 		{@link TextureCache#useRequired used}. Otherwise (prefetching),
+	 * 		present tiles are skipped.
+	 */
+	private List< FillTask > getFillTasks( final RequiredBlocks requiredBlocks, final int baseLevel, final boolean required )
+	{
+		final int maxLevel = multiResolutionStack.resolutions().size() - 1;
+		final int[] r = multiResolutionStack.resolutions().get( baseLevel ).getR();
+		final int[] blockSize = cacheSpec.blockSize();
+		final int[] scale = new int[] {
+				blockSize[ 0 ] * r[ 0 ],
+				blockSize[ 1 ] * r[ 1 ],
+				blockSize[ 2 ] * r[ 2 ]
+		};
+		final Vector3f blockCenter = new Vector3f();
+		final Vector3f tmp = new Vector3f();
+		final Matrix4f[] levelPvms = new Matrix4f[ maxLevel + 1 ];
+		existingKeys.clear();
+		tileAccess.beginBatch();
+		final QuantizationWindow window = quantizationWindow;
+		final int version = requiredVersion();
 		final List< FillTask > fillTasks = new ArrayList<>();
 		final int[] gj = new int[ 3 ];
+		if ( required )
+			numPresentEvictableTiles = 0;
 		for ( RequiredBlock block : requiredBlocks.getBlocks() )
 		{
 			final int[] g0 = block.getGridPos();
+			blockCenter.set(
+					( g0[ 0 ] + 0.5f ) * scale[ 0 ],
+					( g0[ 1 ] + 0.5f ) * scale[ 1 ],
+					( g0[ 2 ] + 0.5f ) * scale[ 2 ] );
+			final float blockPriority = blockPriority( blockCenter, tmp );
 			for ( int level = block.getBestLevel(); level <= maxLevel; ++level )
 			{
 				final ResolutionLevel3D< ? > resolution = multiResolutionStack.resolutions().get( level );
@@ -312,14 +745,31 @@ public class VolumeBlocks
 				for ( int d = 0; d < 3; ++d )
 					gj[ d ] = ( int ) ( g0[ d ] * sj[ d ] * r[ d ] );
 
-				final ImageBlockKey< ResolutionLevel3D< ? > > key = new ImageBlockKey<>( resolution, gj );
-				if ( !existingKeys.contains( key ) )
+				final long packedKey = TextureCache.packKey( levelImageIds[ level ], gj[ 0 ], gj[ 1 ], gj[ 2 ] );
+				if ( existingKeys.put( packedKey, Boolean.TRUE ) == null )
 				{
-					existingKeys.add( key );
-					final Tile tile = textureCache.get( key );
-					if ( tile != null || canLoadCompletely( key ) || level == maxLevel )
+					final Tile tile = textureCache.get( packedKey );
+					if ( tile != null && !required )
+						break;
+					if ( tile != null && tile.version() >= version && ( tile.state() != INCOMPLETE || refreshMonitor != null && !refreshMonitor.isDirty( packedKey ) ) )
 					{
-						fillTasks.add( new DefaultFillTask( key, buf -> loadTile( key, buf ), () -> containsData( key ) ) );
+						// Complete, or no new data since the tile was loaded.
+						// No task is needed, but the tile must be protected
+						// from replacement while staging.
+						if ( textureCache.useRequired( packedKey, tile ) )
+							++numPresentEvictableTiles;
+						break;
+					}
+					if ( tile != null || canLoadCompletely( resolution, gj, window ) || level == maxLevel )
+					{
+						final double priority = fillPriority( level, maxLevel, blockPriority );
+						final ImageBlockKey< ResolutionLevel3D< ? > > key = new ImageBlockKey<>( resolution, gj );
+						final double coverage = partialUploadPolicy.allowsPartialUploads()
+								? screenCoverage( level, gj, levelPvms, tmp )
+								: 0;
+						if ( refreshMonitor != null && partialUploadPolicy.allowsPartialUploads() )
+							loadedCellCounts.put( packedKey, tileAccess.get( resolution, cacheSpec, window ).numLoadableCells( gj ) );
+						fillTasks.add( new DefaultFillTask( key, buf -> loadTile( key, buf, window ), () -> containsData( key, coverage, window ), priority, version ) );
 						break;
 					}
 				}
@@ -331,32 +781,278 @@ public class VolumeBlocks
 		return fillTasks;
 	}
 
-	private boolean canLoadCompletely( final ImageBlockKey< ResolutionLevel3D< ? > > key )
+	/**
+	 * View of {@link #requiredBlocks} for {@link BlockBudgetAllocator}. The
+	 * allocated level of a block is set as its best level.
+	 */
+	private class BudgetSource implements BlockBudgetAllocator.Source
+	{
+		private final List< RequiredBlock > blocks = requiredBlocks.getBlocks();
+
+		private final int maxLevel = multiResolutionStack.resolutions().size() - 1;
+
+		// best levels before allocation
+		private final int[] bestLevels;
+
+		// block priorities (see blockPriority())
+		private final float[] priorities;
+
+		// scale of baseLevel
+		private final int[] r = multiResolutionStack.resolutions().get( baseLevel ).getR();
+
+		BudgetSource()
+		{
+			final int[] blockSize = cacheSpec.blockSize();
+			final Vector3f blockCenter = new Vector3f();
+			final Vector3f tmp = new Vector3f();
+			final int n = blocks.size();
+			bestLevels = new int[ n ];
+			priorities = new float[ n ];
+			for ( int i = 0; i < n; ++i )
+			{
+				final RequiredBlock block = blocks.get( i );
+				final int[] g0 = block.getGridPos();
+				blockCenter.set(
+						( g0[ 0 ] + 0.5f ) * blockSize[ 0 ] * r[ 0 ],
+						( g0[ 1 ] + 0.5f ) * blockSize[ 1 ] * r[ 1 ],
+						( g0[ 2 ] + 0.5f ) * blockSize[ 2 ] * r[ 2 ] );
+				bestLevels[ i ] = block.getBestLevel();
+				priorities[ i ] = blockPriority( blockCenter, tmp );
+			}
+		}
+
+		@Override
+		public int numBlocks()
+		{
+			return blocks.size();
+		}
+
+		@Override
+		public int maxLevel()
+		{
+			return maxLevel;
+		}
+
+		@Override
+		public int bestLevel( final int block )
+		{
+			return bestLevels[ block ];
+		}
+
+		@Override
+		public long tileKey( final int block, final int level )
+		{
+			final int[] g0 = blocks.get( block ).getGridPos();
+			final double[] sj = multiResolutionStack.resolutions().get( level ).getS();
+			return TextureCache.packKey( levelImageIds[ level ],
+					( int ) ( g0[ 0 ] * sj[ 0 ] * r[ 0 ] ),
+					( int ) ( g0[ 1 ] * sj[ 1 ] * r[ 1 ] ),
+					( int ) ( g0[ 2 ] * sj[ 2 ] * r[ 2 ] ) );
+		}
+
+		/**
+		 * Near and central blocks are worth up to twice as much as far and
+		 * peripheral blocks.
+		 */
+		@Override
+		public double weight( final int block )
+		{
+			return 2 - priorities[ block ];
+		}
+
+		@Override
+		public void setLevel( final int block, final int level )
+		{
+			blocks.get( block ).setBestLevel( level );
+		}
+
+		/**
+		 * Pinned (or shared) tiles do not count against
+		 * {@link TextureCache#getNumEvictableTiles()}.
+		 */
+		@Override
+		public boolean isFree( final int block, final int level )
+		{
+			final Tile tile = textureCache.get( tileKey( block, level ) );
+			return tile != null && !tile.evictable();
+		}
+	}
+
+	/**
+	 * Loading priority of a block, in {@code [0, 1]}, smaller is more urgent.
+	 * This is the average of the relative depth between near and far plane
+	 * ({@code drel}), and the distance from the screen center (normalized to
+	 * the screen corners).
+	 * <p>
+	 * The priority of a {@code FillTask} is computed from the block priority
+	 * and the level, see {@link #fillPriority(int, int, float)}.
+	 *
+	 * @param blockCenter
+	 * 		block center in source coordinates. (Not modified.)
+	 */
+	private float blockPriority( final Vector3f blockCenter, final Vector3f tmp )
 	{
-		return tileAccess.get( key.image(), cacheSpec ).canLoadCompletely( key.pos(), false );
+		final float drel = Math.max( 0, Math.min( 1, sizes.getDrel( blockCenter, tmp ) ) );
+		pvm.transformProject( blockCenter, tmp );
+		final float dcenter = Math.min( 1, ( float ) Math.sqrt( 0.5 * ( tmp.x() * tmp.x() + tmp.y() * tmp.y() ) ) );
+		return 0.5f * ( drel + dcenter );
 	}
 
-	private boolean containsData( final ImageBlockKey< ResolutionLevel3D< ? > > key )
+	/**
+	 * Loading priority of a {@code FillTask}, in {@code [0, 1]}, smaller is
+	 * more urgent. This is {@code (maxLevel - level) + blockPriority},
+	 * normalized by the number of levels. So coarse level fallbacks are
+	 * loaded before fine refinements, and within a level, near and central
+	 * blocks are loaded first.
+	 * <p>
+	 * Normalizing makes priorities comparable across sources with different
+	 * numbers of levels (tasks of all sources are sorted together): the
+	 * coarsest level of every source maps to {@code [0, 1/numLevels]}, the
+	 * finest level to {@code [1 - 1/numLevels, 1]}.
+	 *
+	 * @param level
+	 * 		resolution level of the task
+	 * @param maxLevel
+	 * 		coarsest resolution level of the source
+	 * @param blockPriority
+	 * 		block priority in {@code [0, 1]}, see {@link #blockPriority(Vector3f, Vector3f)}
+	 */
+	static double fillPriority( final int level, final int maxLevel, final float blockPriority )
 	{
-		/*
-		 * TODO.
-		 *
-		 * ContainsData is called to determine whether it makes sense to upload a partially completed block.
-		 *
-		 * Using TileAccess.canLoadCompletely will not upload any partial block, saving on texture upload bandwidth.
-		 *
-		 * Using TileAccess.canLoadPartially will upload any partial blocks, consuming (typically much) more texture upload bandwidth,
-		 * but potentially presenting a more complete volume to the user.
-		 *
-		 * Decisions, decisions...
-		 */
-		return tileAccess.get( key.image(), cacheSpec ).canLoadCompletely( key.pos(), true );
-//		return tileAccess.get( key.image(), cacheSpec ).canLoadPartially( key.pos() );
+		return ( ( maxLevel - level ) + blockPriority ) / ( maxLevel + 1 );
+	}
+
+	private boolean canLoadCompletely( final ResolutionLevel3D< ? > resolution, final int[] gridPos, final QuantizationWindow window )
+	{
+		return tileAccess.get( resolution, cacheSpec, window ).canLoadCompletely( gridPos, false );
+	}
+
+	/**
+	 * Version that tiles must have to be up to date (see
+	 * {@link FillTask#getVersion()}).
+	 */
+	private int requiredVersion()
+	{
+		return quantizationWindow == null ? 0 : quantizationWindow.version();
+	}
+
+	/**
+	 * Watch the block at {@code level} corresponding to base level grid
+	 * position {@code g0} with the {@link #refreshMonitor} (if any), until it
+	 * can be loaded completely. If {@code partial} and partial uploads are
+	 * allowed, also until more source cells are loadable than when the block
+	 * was last loaded (or first watched).
+	 *
+	 * @param r
+	 * 		scale of {@code baseLevel}
+	 * @param partial
+	 * 		whether the block is reloaded with partial data (i.e., it has an
+	 * 		incomplete tile or is at the coarsest level), see {@link #getFillTasks()}.
+	 */
+	private void watchBlock( final int level, final int[] g0, final int[] r, final boolean partial )
+	{
+		if ( refreshMonitor == null )
+			return;
+
+		final ResolutionLevel3D< ? > resolution = multiResolutionStack.resolutions().get( level );
+		final double[] sj = resolution.getS();
+		final int[] gj = new int[ 3 ];
+		for ( int d = 0; d < 3; ++d )
+			gj[ d ] = ( int ) ( g0[ d ] * sj[ d ] * r[ d ] );
+		final long packedKey = TextureCache.packKey( levelImageIds[ level ], gj[ 0 ], gj[ 1 ], gj[ 2 ] );
+		final QuantizationWindow window = quantizationWindow;
+		// tileAccess is thread-local, so this can be evaluated on the polling thread
+		if ( partial && partialUploadPolicy.allowsPartialUploads() )
+		{
+			int count = prevLoadedCellCounts.get( packedKey, -1 );
+			if ( count < 0 )
+				count = tileAccess.get( resolution, cacheSpec, window ).numLoadableCells( gj );
+			loadedCellCounts.put( packedKey, count );
+			final int loadedCells = count;
+			refreshMonitor.watch( packedKey, () -> {
+				final TileAccess< ? > access = tileAccess.get( resolution, cacheSpec, window );
+				return access.canLoadCompletely( gj, true ) || access.numLoadableCells( gj ) > loadedCells;
+			} );
+		}
+		else
+			refreshMonitor.watch( packedKey, () -> tileAccess.get( resolution, cacheSpec, window ).canLoadCompletely( gj, true ) );
 	}
 
-	private boolean loadTile( final ImageBlockKey< ResolutionLevel3D< ? > > key, final UploadBuffer buffer )
+	/**
+	 * Fraction of the screen covered by the block at grid position {@code gj}
+	 * of resolution {@code level}. (Approximated by the bounding box of the
+	 * projected block corners, clipped to the screen.)
+	 *
+	 * @param levelPvms
+	 * 		cache of {@code pvm * upscale(level)} for each level (entries are created as needed).
+	 */
+	private double screenCoverage( final int level, final int[] gj, final Matrix4f[] levelPvms, final Vector3f tmp )
 	{
-		return tileAccess.get( key.image(), cacheSpec ).loadTile( key.pos(), buffer );
+		if ( levelPvms[ level ] == null )
+			levelPvms[ level ] = pvm.mul( getUpscale( level ), new Matrix4f() );
+		final Matrix4f pvms = levelPvms[ level ];
+		final int[] blockSize = cacheSpec.blockSize();
+		float xmin = 1, ymin = 1, xmax = -1, ymax = -1;
+		for ( int i = 0; i < 8; ++i )
+		{
+			tmp.set(
+					( gj[ 0 ] + ( i & 1 ) ) * blockSize[ 0 ],
+					( gj[ 1 ] + ( ( i >> 1 ) & 1 ) ) * blockSize[ 1 ],
+					( gj[ 2 ] + ( ( i >> 2 ) & 1 ) ) * blockSize[ 2 ] );
+			pvms.transformProject( tmp );
+			xmin = Math.min( xmin, tmp.x() );
+			ymin = Math.min( ymin, tmp.y() );
+			xmax = Math.max( xmax, tmp.x() );
+			ymax = Math.max( ymax, tmp.y() );
+		}
+		final double w = Math.max( 0, Math.min( xmax, 1 ) - Math.max( xmin, -1 ) );
+		final double h = Math.max( 0, Math.min( ymax, 1 ) - Math.max( ymin, -1 ) );
+		return w * h / 4;
+	}
+
+	/**
+	 * ContainsData is called to determine whether it makes sense to upload a
+	 * block. Complete blocks are always uploaded. Whether blocks that can
+	 * only be loaded partially are uploaded is decided by the
+	 * {@link #setPartialUploadPolicy(PartialUploadPolicy) partial upload policy}.
+	 * (Uploading partial blocks presents a more complete volume, but consumes
+	 * (typically much) more texture upload bandwidth.)
+	 *
+	 * @param coverage
+	 * 		fraction of the screen covered by the block.
+	 */
+	private boolean containsData( final ImageBlockKey< ResolutionLevel3D< ? > > key, final double coverage, final QuantizationWindow window )
+	{
+		final TileAccess< ? > access = tileAccess.get( key.image(), cacheSpec, window );
+		if ( access.canLoadCompletely( key.pos(), true ) )
+			return true;
+		return partialUploadPolicy.allowsPartialUploads()
+				&& access.canLoadPartially( key.pos() )
+				&& partialUploadPolicy.uploadPartial( coverage, bytesPerTile );
+	}
+
+	private boolean loadTile( final ImageBlockKey< ResolutionLevel3D< ? > > key, final UploadBuffer buffer, final QuantizationWindow window )
+	{
+		if ( hostTileCache != null && hostTileCache.get( key, buffer ) )
+			return true;
+
+		final String persistentId = tileStore == null ? null : key.image().getPersistentId();
+		if ( persistentId != null && tileStore.get( persistentId, key.x(), key.y(), key.z(), buffer ) )
+		{
+			if ( hostTileCache != null )
+				hostTileCache.put( key, buffer );
+			return true;
+		}
+
+		final boolean complete = tileAccess.get( key.image(), cacheSpec, window ).loadTile( key.pos(), buffer );
+		if ( complete )
+		{
+			if ( hostTileCache != null )
+				hostTileCache.put( key, buffer );
+			if ( persistentId != null )
+				tileStore.put( persistentId, key.x(), key.y(), key.z(), buffer );
+		}
+		return complete;
 	}
 
 	/**
@@ -6,12 +6,12 @@ import static com.jogamp.opengl.GL.GL_DEPTH_TEST;
 import static com.jogamp.opengl.GL.GL_ONE_MINUS_SRC_ALPHA;
 import static com.jogamp.opengl.GL.GL_SRC_ALPHA;
 import static com.jogamp.opengl.GL.GL_UNPACK_ALIGNMENT;
-import static tpietzsch.backend.Texture.InternalFormat.R16;
 import static tpietzsch.example2.VolumeRenderer.RepaintType.DITHER;
 import static tpietzsch.example2.VolumeRenderer.RepaintType.FULL;
 import static tpietzsch.example2.VolumeRenderer.RepaintType.LOAD;
 import static tpietzsch.example2.VolumeRenderer.RepaintType.NONE;
 import static tpietzsch.example2.VolumeShaderSignature.PixelType.ARGB;
+import static tpietzsch.example2.VolumeShaderSignature.PixelType.FLOAT;
 import static tpietzsch.example2.VolumeShaderSignature.PixelType.UBYTE;
 import static tpietzsch.example2.VolumeShaderSignature.PixelType.USHORT;
 import static tpietzsch.multires.SourceStacks.SourceStackType.MULTIRESOLUTION;
@@ -23,7 +23,9 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ForkJoinPool;
 
 import net.imglib2.type.numeric.ARGBType;
@@ -32,16 +34,27 @@ import net.imglib2.type.numeric.integer.UnsignedShortType;
 import org.joml.Matrix4f;
 
 import bdv.tools.brightness.ConverterSetup;
+import tpietzsch.backend.GpuContext;
+import tpietzsch.backend.Texture.InternalFormat;
 import tpietzsch.backend.jogl.JoglGpuContext;
+import tpietzsch.blockmath.BlockBudgetAllocator;
+import tpietzsch.blocks.QuantizationWindow;
 import tpietzsch.blocks.TileAccess;
-import tpietzsch.cache.CacheSpec;
 import tpietzsch.cache.FillTask;
+import tpietzsch.cache.HostTileCache;
+import tpietzsch.cache.PartialUploadPolicy;
+import tpietzsch.cache.PersistentTileStore;
 import tpietzsch.cache.PboChain;
+import tpietzsch.cache.PrefetchFillTask;
 import tpietzsch.cache.ProcessFillTasks;
 import tpietzsch.cache.TextureCache;
+import tpietzsch.cache.TileEvictionPolicy;
+import tpietzsch.cache.TileRefreshMonitor;
 import tpietzsch.dither.DitherBuffer;
+import tpietzsch.example2.VolumeShaderSignature.PixelType;
 import tpietzsch.example2.VolumeShaderSignature.VolumeSignature;
 import tpietzsch.multires.MultiResolutionStack3D;
+import tpietzsch.multires.ResolutionLevel3D;
 import tpietzsch.multires.SimpleStack3D;
 import tpietzsch.multires.Stack3D;
 import tpietzsch.offscreen.OffScreenFrameBufferWithDepth;
@@ -104,12 +117,111 @@ public class VolumeRenderer
 	private final int numDitherSteps;
 
 	// ... gpu cache ...
-	// TODO This could be packaged into one class and potentially shared between renderers?
-	private final CacheSpec cacheSpec; // TODO remove
+	/**
+	 * Owns the gpu cache (possibly shared with other renderers).
+	 */
+	private final GpuCacheManager cacheManager;
+
+	/**
+	 * The context in which this renderer last uploaded to the gpu cache (or
+	 * {@code null}). Its upload fence is dropped in {@link #release()}.
+	 */
+	private GpuContext uploadContext;
+
+	/**
+	 * Host-side cache of complete padded tiles (or {@code null}).
+	 * Only used for volumes stored in the {@code R16} texture cache.
+	 */
+	private final HostTileCache hostTileCache;
+
+	/**
+	 * On-disk store of complete padded tiles (or {@code null}).
+	 * Only used for volumes stored in the {@code R16} texture cache.
+	 */
+	private final PersistentTileStore tileStore;
+
+	/**
+	 * Resolution levels currently pinned by this renderer, and the format of
+	 * the texture cache they are pinned in.
+	 */
+	private final Map< ResolutionLevel3D< ? >, InternalFormat > pinnedLevels = new HashMap<>();
 
-	private final TextureCache textureCache;
+	/**
+	 * Default number of frames that camera motion is extrapolated for
+	 * prefetching blocks.
+	 */
+	public static final int DEFAULT_PREFETCH_FRAMES = 2;
+
+	/**
+	 * How many frames ahead camera motion is extrapolated for prefetching
+	 * blocks. {@code 0} disables prefetching.
+	 */
+	private int prefetchFrames = DEFAULT_PREFETCH_FRAMES;
+
+	/**
+	 * {@code pv} of the previous {@link #updateBlocks} call, for extrapolating
+	 * camera motion.
+	 */
+	private final Matrix4f prevPv = new Matrix4f();
+
+	private boolean hasPrevPv = false;
 
-	private final PboChain pboChain;
+	/**
+	 * Timestamp of the last {@code makeLut()}, per texture cache. Tiles used
+	 * at this timestamp are not replaced by prefetched blocks.
+	 */
+	private final Map< TextureCache, Integer > lastFrameTimestamps = new HashMap<>();
+
+	/**
+	 * {@link GpuCacheManager#getGeneration() Generation} of the texture caches
+	 * that shaders and lookup tables were set up for. When a cache is resized
+	 * (possibly by another renderer sharing it), the next frame is upgraded
+	 * to {@link RepaintType#LOAD LOAD} to rebuild lookup tables.
+	 */
+	private int textureCacheGeneration;
+
+	/**
+	 * Watches blocks that are incomplete or missing in the current frame, and
+	 * requests a {@code LOAD} repaint when new data is available for them (or
+	 * {@code null}, see {@link #setRequestLoadRepaint(Runnable)}).
+	 */
+	private TileRefreshMonitor refreshMonitor;
+
+	/**
+	 * Decides whether blocks that can only be loaded partially are uploaded.
+	 */
+	private PartialUploadPolicy partialUploadPolicy = new PartialUploadPolicy.CompleteOnly();
+
+	/**
+	 * {@link GpuCacheManager#getNumUploadedBytes()} at the previous
+	 * {@link #updateBlocks}, for measuring bytes uploaded per frame.
+	 */
+	private long prevNumUploadedBytes;
+
+	/**
+	 * Chooses resolution levels of required blocks across all volumes stored
+	 * in the same texture cache, to fit its capacity.
+	 */
+	private final BlockBudgetAllocator budgetAllocator = new BlockBudgetAllocator();
+
+	/**
+	 * Margin for switching resolution levels of blocks (see
+	 * {@link VolumeBlocks#setLevelHysteresis(float)}).
+	 */
+	private float levelHysteresis = VolumeBlocks.DEFAULT_LEVEL_HYSTERESIS;
+
+	/**
+	 * Number of blocks (of all volumes) that switched resolution level, and
+	 * that kept their level only due to hysteresis, in the last frame.
+	 */
+	private int numLevelSwitches;
+	private int numSuppressedLevelSwitches;
+
+	/**
+	 * Whether unsigned short volumes are quantized to bytes (within a window
+	 * around their display range) while copying blocks to the cache.
+	 */
+	private boolean quantizeToByte = false;
 
 	private final ForkJoinPool forkJoinPool;
 
@@ -143,19 +255,72 @@ public class VolumeRenderer
 			final int numDitherSamples,
 			final int[] cacheBlockSize,
 			final int maxCacheSizeInMB )
+	{
+		this( renderWidth, renderHeight, ditherWidth, ditherStep, numDitherSamples, cacheBlockSize, maxCacheSizeInMB, 0, 0, null, 0, TileEvictionPolicy.Type.LRU, TextureCache.DEFAULT_MAX_PINNED_FRACTION );
+	}
+
+	/**
+	 * @param maxStagingSizeInMB
+	 * 		max memory for PBOs staging tile uploads. If {@code > 0}, PBO
+	 * 		geometry is adapted to measured fill and upload throughput within
+	 * 		this limit. Otherwise, a fixed geometry is used.
+	 * @param maxHostCacheSizeInMB
+	 * 		max memory for the host-side cache of padded tiles. If {@code 0},
+	 * 		no host-side cache is used.
+	 * @param tileStoreDirectory
+	 * 		directory of the on-disk tile store. If {@code null}, no tile store
+	 * 		is used.
+	 * @param maxTileStoreSizeInMB
+	 * 		max size of the on-disk tile store.
+	 * @param evictionPolicy
+	 * 		decides which tiles of the GPU cache are replaced first.
+	 * @param pinnedCacheFraction
+	 * 		fraction of the GPU cache reserved for pinned tiles. If {@code > 0},
+	 * 		the coarsest resolution level of each visible source is pinned.
+	 */
+	public VolumeRenderer(
+			final int renderWidth,
+			final int renderHeight,
+			final int ditherWidth,
+			final int ditherStep,
+			final int numDitherSamples,
+			final int[] cacheBlockSize,
+			final int maxCacheSizeInMB,
+			final int maxStagingSizeInMB,
+			final int maxHostCacheSizeInMB,
+			final String tileStoreDirectory,
+			final int maxTileStoreSizeInMB,
+			final TileEvictionPolicy.Type evictionPolicy,
+			final double pinnedCacheFraction )
+	{
+		this( renderWidth, renderHeight, ditherWidth, ditherStep, numDitherSamples,
+				new GpuCacheManager( cacheBlockSize, maxCacheSizeInMB, maxStagingSizeInMB, maxHostCacheSizeInMB,
+						tileStoreDirectory, maxTileStoreSizeInMB, evictionPolicy, pinnedCacheFraction ) );
+	}
+
+	/**
+	 * @param cacheManager
+	 * 		provides the gpu cache, which may be shared with other renderers.
+	 * 		The renderer {@link GpuCacheManager#acquire() acquires} it, and
+	 * 		releases it in {@link #release()}.
+	 */
+	public VolumeRenderer(
+			final int renderWidth,
+			final int renderHeight,
+			final int ditherWidth,
+			final int ditherStep,
+			final int numDitherSamples,
+			final GpuCacheManager cacheManager )
 	{
 		this.renderWidth = renderWidth;
 		this.renderHeight = renderHeight;
 
 		// set up gpu cache
-		// TODO This could be packaged into one class and potentially shared between renderers?
-		cacheSpec = new CacheSpec( R16, cacheBlockSize );
-		final int[] cacheGridDimensions = TextureCache.findSuitableGridSize( cacheSpec, maxCacheSizeInMB );
-		textureCache = new TextureCache( cacheGridDimensions, cacheSpec );
-		pboChain = new PboChain( 5, 100, textureCache );
-		final int parallelism = Math.max( 1, Runtime.getRuntime().availableProcessors() / 2 );
-		forkJoinPool = new ForkJoinPool( parallelism );
-
+		cacheManager.acquire();
+		this.cacheManager = cacheManager;
+		hostTileCache = cacheManager.getHostTileCache();
+		tileStore = cacheManager.getTileStore();
+		forkJoinPool = cacheManager.getForkJoinPool();
 
 
 		// set up dither buffer (or null)
@@ -187,13 +352,88 @@ public class VolumeRenderer
 	private void needAtLeastNumBlockVolumes( final int n )
 	{
 		while ( volumes.size() < n )
-			volumes.add( new VolumeBlocks( textureCache ) );
+			volumes.add( createVolumeBlocks( cacheManager.getTextureCache() ) );
+	}
+
+	private VolumeBlocks createVolumeBlocks( final TextureCache textureCache )
+	{
+		final boolean primary = textureCache == cacheManager.getTextureCache();
+		final VolumeBlocks volume = primary
+				? new VolumeBlocks( textureCache, hostTileCache, tileStore )
+				: new VolumeBlocks( textureCache );
+		volume.setRefreshMonitor( refreshMonitor );
+		volume.setPartialUploadPolicy( partialUploadPolicy );
+		volume.setLevelHysteresis( levelHysteresis );
+		return volume;
+	}
+
+	/**
+	 * Get the {@code VolumeBlocks} for the {@code i}-th multi-resolution
+	 * stack. If it stores blocks in another texture cache than required for
+	 * {@code stack}, it is replaced. If the stack is quantized, the
+	 * {@link QuantizationWindow} is updated for the display range of
+	 * {@code converter}.
+	 */
+	private VolumeBlocks getVolumeBlocks( final int i, final MultiResolutionStack3D< ? > stack, final ConverterSetup converter )
+	{
+		final TextureCache textureCache = cacheManager.getTextureCache( cacheFormat( stack ) );
+		VolumeBlocks volume = volumes.get( i );
+		if ( volume.getTextureCache() != textureCache )
+		{
+			volume = createVolumeBlocks( textureCache );
+			volumes.set( i, volume );
+		}
+
+		if ( isQuantized( stack ) )
+		{
+			final double min = converter.getDisplayRangeMin();
+			final double max = converter.getDisplayRangeMax();
+			final QuantizationWindow window = volume.getQuantizationWindow();
+			if ( window == null || window.needsUpdate( min, max ) )
+				volume.setQuantizationWindow( QuantizationWindow.forDisplayRange( min, max ) );
+		}
+		else
+			volume.setQuantizationWindow( null );
+		return volume;
+	}
+
+	private boolean isQuantized( final Stack3D< ? > stack )
+	{
+		return quantizeToByte && TileAccess.isQuantizable( stack.getType() );
+	}
+
+	/**
+	 * Format of the texture cache storing blocks of {@code stack}.
+	 */
+	private InternalFormat cacheFormat( final Stack3D< ? > stack )
+	{
+		return isQuantized( stack ) ? InternalFormat.R8 : TileAccess.cacheFormat( stack.getType() );
+	}
+
+	/**
+	 * Pixel type of the shader segment sampling blocks from a texture cache
+	 * of the given format.
+	 */
+	private static PixelType cachePixelType( final InternalFormat format )
+	{
+		switch ( format )
+		{
+		case R8:
+			return UBYTE;
+		case R32F:
+			return FLOAT;
+		case RGBA8:
+			return ARGB;
+		case R16:
+		default:
+			return USHORT;
+		}
 	}
 
 	private MultiVolumeShaderMip createMultiVolumeShader( final VolumeShaderSignature signature )
 	{
 		final MultiVolumeShaderMip progvol = new MultiVolumeShaderMip( signature, true, 1.0 );
-		progvol.setTextureCache( textureCache );
+		progvol.setTextureCache( cacheManager.getTextureCache() );
 		return progvol;
 	}
 
@@ -202,6 +442,139 @@ public class VolumeRenderer
 		gl.glPixelStorei( GL_UNPACK_ALIGNMENT, 1 );
 	}
 
+	/**
+	 * Get the host-side tile cache (for hit/miss statistics).
+	 *
+	 * @return the host-side tile cache, or {@code null} if disabled.
+	 */
+	public HostTileCache getHostTileCache()
+	{
+		return hostTileCache;
+	}
+
+	/**
+	 * Get the on-disk tile store (for hit/miss statistics).
+	 *
+	 * @return the on-disk tile store, or {@code null} if disabled.
+	 */
+	public PersistentTileStore getTileStore()
+	{
+		return tileStore;
+	}
+
+	public GpuCacheManager getCacheManager()
+	{
+		return cacheManager;
+	}
+
+	/**
+	 * Set how many frames ahead camera motion is extrapolated for prefetching
+	 * blocks into spare cache capacity. Set to {@code 0} to disable
+	 * prefetching. (See {@link TextureCache#getPrefetchHitRate()} for tuning.)
+	 */
+	public void setPrefetchFrames( final int prefetchFrames )
+	{
+		this.prefetchFrames = prefetchFrames;
+	}
+
+	/**
+	 * Set the margin (in levels) by which the ideal resolution level of a
+	 * block must move past a level boundary before the block switches level.
+	 * {@code 0} disables hysteresis. (See {@link #getNumLevelSwitches()} for
+	 * tuning.)
+	 */
+	public void setLevelHysteresis( final float levelHysteresis )
+	{
+		this.levelHysteresis = levelHysteresis;
+		for ( final VolumeBlocks volume : volumes )
+			volume.setLevelHysteresis( levelHysteresis );
+	}
+
+	/**
+	 * @return number of blocks (of all volumes) that switched resolution
+	 *         level in the last frame.
+	 */
+	public int getNumLevelSwitches()
+	{
+		return numLevelSwitches;
+	}
+
+	/**
+	 * @return number of blocks (of all volumes) that kept their resolution
+	 *         level in the last frame only due to
+	 *         {@link #setLevelHysteresis(float) hysteresis}.
+	 */
+	public int getNumSuppressedLevelSwitches()
+	{
+		return numSuppressedLevelSwitches;
+	}
+
+	/**
+	 * Set whether unsigned short volumes are quantized to bytes while copying
+	 * blocks into the cache. Quantized volumes are stored in the {@code R8}
+	 * texture cache, which halves GPU memory and upload bandwidth per block.
+	 * Values are quantized within a {@link QuantizationWindow} around the
+	 * display range. When the display range changes a lot, a new window is
+	 * created and blocks are quantized again.
+	 */
+	public void setQuantizeToByte( final boolean quantizeToByte )
+	{
+		this.quantizeToByte = quantizeToByte;
+	}
+
+	/**
+	 * Set the policy that decides whether blocks that can only be loaded
+	 * partially (while data is loading) are uploaded. By default, only
+	 * complete blocks are uploaded. (See {@link TextureCache#getReplacedPartialUploadBytes()}
+	 * for the upload volume spent on partial blocks.)
+	 */
+	public void setPartialUploadPolicy( final PartialUploadPolicy partialUploadPolicy )
+	{
+		this.partialUploadPolicy = partialUploadPolicy;
+		for ( final VolumeBlocks volume : volumes )
+			volume.setPartialUploadPolicy( partialUploadPolicy );
+	}
+
+	/**
+	 * Set a callback that requests a {@link RepaintType#LOAD LOAD} repaint.
+	 * <p>
+	 * If set, blocks that are incomplete or missing in a frame are watched in
+	 * the background (see {@link TileRefreshMonitor}), and
+	 * {@code requestLoadRepaint} is called (from the background thread) when
+	 * new data is available for them. Otherwise, {@link #draw} returns
+	 * {@code LOAD} as long as any block is incomplete, i.e., frames are
+	 * rendered continuously while data is loading.
+	 *
+	 * @param requestLoadRepaint
+	 * 		requests a {@code LOAD} repaint, or {@code null}.
+	 */
+	public void setRequestLoadRepaint( final Runnable requestLoadRepaint )
+	{
+		if ( refreshMonitor != null )
+			refreshMonitor.shutdown();
+		refreshMonitor = requestLoadRepaint == null ? null : new TileRefreshMonitor( requestLoadRepaint );
+		for ( final VolumeBlocks volume : volumes )
+			volume.setRefreshMonitor( refreshMonitor );
+	}
+
+	/**
+	 * Unpin the resolution levels pinned by this renderer and release the
+	 * {@link GpuCacheManager}. When no other renderer uses it, the on-disk
+	 * tile store (if any) is written to disk and closed. The renderer must
+	 * not be used afterwards.
+	 */
+	public void release()
+	{
+		if ( refreshMonitor != null )
+			refreshMonitor.shutdown();
+		synchronized ( cacheManager )
+		{
+			pinnedLevels.forEach( cacheManager::unpin );
+			pinnedLevels.clear();
+		}
+		cacheManager.release( uploadContext );
+	}
+
 	/**
 	 * @param maxAllowedStepInVoxels
 	 * 		Set to {@code 0} to base step size purely on pixel width of render target
@@ -209,7 +582,7 @@ public class VolumeRenderer
 	// TODO rename paint() like in MultiResolutionRenderer?
 	public RepaintType draw(
 			final GL3 gl,
-			final RepaintType type,
+			final RepaintType requestedType,
 			final OffScreenFrameBufferWithDepth sceneBuf,
 			final List< Stack3D< ? > > renderStacks,
 			final List< ConverterSetup > renderConverters,
@@ -221,6 +594,13 @@ public class VolumeRenderer
 		final JoglGpuContext context = JoglGpuContext.get( gl );
 		nextRequestedRepaint.type = NONE;
 
+		// other renderers sharing the gpu cache may have uploaded in their contexts
+		cacheManager.awaitUploads( context );
+
+		final RepaintType type = textureCacheGeneration != cacheManager.getGeneration() && requestedType.ordinal() < LOAD.ordinal()
+				? LOAD
+				: requestedType;
+
 		gl.glEnable( GL_DEPTH_TEST );
 		gl.glDepthFunc( GL_ALWAYS );
 
@@ -238,6 +618,7 @@ public class VolumeRenderer
 		{
 			final List< VolumeSignature > volumeSignatures = new ArrayList<>();
 			final List< MultiResolutionStack3D< ? > > multiResStacks = new ArrayList<>();
+			final List< ConverterSetup > multiResConverters = new ArrayList<>();
 			for ( int i = 0; i < renderStacks.size(); i++ )
 			{
 				final Stack3D< ? > stack = renderStacks.get( i );
@@ -246,7 +627,8 @@ public class VolumeRenderer
 					if ( !TileAccess.isSupportedType( stack.getType() ) )
 						throw new IllegalArgumentException();
 					multiResStacks.add( ( MultiResolutionStack3D< ? > ) stack );
-					volumeSignatures.add( new VolumeSignature( MULTIRESOLUTION, USHORT ) );
+					multiResConverters.add( renderConverters.get( i ) );
+					volumeSignatures.add( null ); // set after updateBlocks(), see below
 				}
 				else if ( stack instanceof SimpleStack3D )
 				{
@@ -264,7 +646,32 @@ public class VolumeRenderer
 					throw new IllegalArgumentException();
 			}
 			needAtLeastNumBlockVolumes( multiResStacks.size() );
-			updateBlocks( context, multiResStacks, pv );
+			// the gpu cache may be shared with other renderers
+			synchronized ( cacheManager )
+			{
+				updateBlocks( context, multiResStacks, multiResConverters, pv, maxRenderNanoTime );
+				cacheManager.fenceUploads( context );
+				uploadContext = context;
+				if ( textureCacheGeneration != cacheManager.getGeneration() )
+				{
+					textureCacheGeneration = cacheManager.getGeneration();
+					for ( final MultiVolumeShaderMip p : progvols.values() )
+						if ( p != null )
+							p.setTextureCache( cacheManager.getTextureCache() );
+				}
+
+				// the shader declares a sampler for each cache page, and the
+				// number of pages may have changed by resizing in updateBlocks()
+				for ( int i = 0, mri = 0; i < volumeSignatures.size(); ++i )
+				{
+					if ( volumeSignatures.get( i ) == null )
+					{
+						final InternalFormat format = cacheFormat( multiResStacks.get( mri++ ) );
+						final int numCachePages = cacheManager.getTextureCache( format ).getNumPages();
+						volumeSignatures.set( i, new VolumeSignature( MULTIRESOLUTION, cachePixelType( format ), numCachePages ) );
+					}
+				}
+			}
 
 			double minWorldVoxelSize = Double.POSITIVE_INFINITY;
 			progvol = progvols.computeIfAbsent( new VolumeShaderSignature( volumeSignatures ), this::createMultiVolumeShader );
@@ -273,15 +680,16 @@ public class VolumeRenderer
 				int mri = 0;
 				for ( int i = 0; i < renderStacks.size(); i++ )
 				{
-					progvol.setConverter( i, renderConverters.get( i ) );
 					if ( volumeSignatures.get( i ).getSourceStackType() == MULTIRESOLUTION )
 					{
 						final VolumeBlocks volume = volumes.get( mri++ );
+						progvol.setConverter( i, renderConverters.get( i ), volume.getQuantizationWindow() );
 						progvol.setVolume( i, volume );
 						minWorldVoxelSize = Math.min( minWorldVoxelSize, volume.getBaseLevelVoxelSizeInWorldCoordinates() );
 					}
 					else
 					{
+						progvol.setConverter( i, renderConverters.get( i ) );
 						final SimpleStack3D< ? > simpleStack3D = ( SimpleStack3D< ? > ) renderStacks.get( i );
 						final SimpleVolume volume = simpleStackManager.getSimpleVolume( context, simpleStack3D );
 						progvol.setVolume( i, volume );
@@ -344,89 +752,221 @@ public class VolumeRenderer
 		return nextRequestedRepaint.type;
 	}
 
-	static class VolumeAndTasks
+	/**
+	 * Extrapolate camera motion: If {@code pv} differs from the previous
+	 * {@code pv} by {@code step = pv * prevPv^-1}, predict {@code step^n * pv},
+	 * where {@code n} is {@link #prefetchFrames}.
+	 *
+	 * @return predicted {@code projection * view} matrix, or {@code null} if
+	 *         the camera is not moving (or prefetching is disabled).
+	 */
+	private Matrix4f predictPv( final Matrix4f pv )
 	{
-		private final List< FillTask > tasks;
-		private final VolumeBlocks volume;
-		private final int maxLevel;
-
-		int numTasks()
+		Matrix4f predicted = null;
+		if ( prefetchFrames > 0 && hasPrevPv && !pv.equals( prevPv, 1e-6f ) )
 		{
-			return tasks.size();
+			final Matrix4f step = new Matrix4f( pv ).mul( new Matrix4f( prevPv ).invert() );
+			predicted = new Matrix4f( pv );
+			for ( int i = 0; i < prefetchFrames; ++i )
+				step.mul( predicted, predicted );
 		}
+		prevPv.set( pv );
+		hasPrevPv = true;
+		return predicted;
+	}
 
-		VolumeAndTasks( final List< FillTask > tasks, final VolumeBlocks volume, final int maxLevel )
+	/**
+	 * Pin the coarsest resolution level of each of the {@code multiResStacks}
+	 * in the texture cache it is drawn from (see {@link #cacheFormat}), so
+	 * that there is always a fallback to show. Unpin levels of stacks that
+	 * are no longer visible (or are drawn from a different cache now).
+	 */
+	private void pinCoarsestLevels( final List< ? extends MultiResolutionStack3D< ? > > multiResStacks )
+	{
+		final Map< ResolutionLevel3D< ? >, InternalFormat > levels = new HashMap<>();
+		for ( final MultiResolutionStack3D< ? > stack : multiResStacks )
 		{
-			this.tasks = new ArrayList<>( tasks );
-			this.volume = volume;
-			this.maxLevel = maxLevel;
+			final InternalFormat format = cacheFormat( stack );
+			if ( cacheManager.getTextureCache( format ).getMaxNumPinnedTiles() > 0 )
+				levels.put( stack.resolutions().get( stack.resolutions().size() - 1 ), format );
 		}
+		if ( levels.equals( pinnedLevels ) )
+			return;
+
+		pinnedLevels.forEach( ( level, format ) -> {
+			if ( levels.get( level ) != format )
+				cacheManager.unpin( level, format );
+		} );
+		levels.forEach( ( level, format ) -> {
+			if ( pinnedLevels.get( level ) != format )
+				cacheManager.pin( level, format );
+		} );
+		pinnedLevels.clear();
+		pinnedLevels.putAll( levels );
 	}
 
+	/**
+	 * Determine required blocks for each volume, upload missing blocks and
+	 * update lookup textures.
+	 * <p>
+	 * Volumes are stored in the texture cache matching their pixel type (see
+	 * {@link TileAccess#cacheFormat(Object)}). Blocks are allocated and
+	 * uploaded separately for each cache, see
+	 * {@link #updateBlocks(JoglGpuContext, TextureCache, PboChain, List, Matrix4f, long)}.
+	 * <p>
+	 * If blocks are incomplete or missing, or uploads were suspended, a
+	 * {@code LOAD} repaint is requested.
+	 *
+	 * @param multiResConverters
+	 *            converters of the {@code multiResStacks} (for quantization
+	 *            windows).
+	 * @param maxNanoTime
+	 *            {@code System.nanoTime()} deadline for uploading blocks.
+	 */
 	private void updateBlocks(
 			final JoglGpuContext context,
 			final List< ? extends MultiResolutionStack3D< ? > > multiResStacks,
-			final Matrix4f pv )
+			final List< ConverterSetup > multiResConverters,
+			final Matrix4f pv,
+			final long maxNanoTime )
 	{
-		final List< VolumeAndTasks > tasksPerVolume = new ArrayList<>();
-		int numTasks = 0;
+		cacheManager.applyRequestedResize( context );
+
+		if ( refreshMonitor != null )
+			refreshMonitor.beginFrame();
+
+		final long numUploadedBytes = cacheManager.getNumUploadedBytes();
+		partialUploadPolicy.beginFrame( numUploadedBytes - prevNumUploadedBytes );
+		prevNumUploadedBytes = numUploadedBytes;
+
+		pinCoarsestLevels( multiResStacks );
+
+		// group volumes by texture cache
+		final Map< InternalFormat, List< VolumeBlocks > > volumesByFormat = new LinkedHashMap<>();
 		for ( int i = 0; i < multiResStacks.size(); i++ )
 		{
 			final MultiResolutionStack3D< ? > stack = multiResStacks.get( i );
-			final VolumeBlocks volume = volumes.get( i );
+			final VolumeBlocks volume = getVolumeBlocks( i, stack, multiResConverters.get( i ) );
 			volume.init( stack, renderWidth, pv );
-			final List< FillTask > tasks = volume.getFillTasks();
-			numTasks += tasks.size();
-			tasksPerVolume.add( new VolumeAndTasks( tasks, volume, stack.resolutions().size() - 1 ) );
+			volumesByFormat.computeIfAbsent( volume.getTextureCache().spec().format(), f -> new ArrayList<>() ).add( volume );
+		}
+
+		final Matrix4f predictedPv = predictPv( pv );
+		numLevelSwitches = 0;
+		numSuppressedLevelSwitches = 0;
+		boolean needsRepaint = false;
+		// caches without visible volumes are updated as well, to complete suspended uploads
+		for ( final InternalFormat format : cacheManager.getCacheFormats() )
+		{
+			final List< VolumeBlocks > cacheVolumes = volumesByFormat.getOrDefault( format, Collections.emptyList() );
+			if ( updateBlocks( context, cacheManager.getTextureCache( format ), cacheManager.getPboChain( format ), cacheVolumes, predictedPv, maxNanoTime ) )
+				needsRepaint = true;
 		}
 
-		A:
-		while ( numTasks > textureCache.getMaxNumTiles() )
+		if ( needsRepaint )
+			nextRequestedRepaint.request( LOAD );
+	}
+
+	/**
+	 * Determine required blocks for the {@code cacheVolumes} stored in
+	 * {@code textureCache}, upload missing blocks and update lookup textures.
+	 * <p>
+	 * If the required blocks of all volumes do not fit into the cache, the
+	 * {@link #budgetAllocator} coarsens individual blocks, favouring blocks
+	 * whose refinement is worth the most per tile, while guaranteeing every
+	 * volume a minimum share of the cache.
+	 * <p>
+	 * Uploads are time-sliced: if they are not completed before
+	 * {@code maxNanoTime}, the upload batch is suspended and a {@code LOAD}
+	 * repaint is requested to resume it in the next frame. New blocks are
+	 * only staged when no suspended batch is pending.
+	 * <p>
+	 * If blocks are incomplete or missing, a {@code LOAD} repaint is requested
+	 * as well, unless a {@link #refreshMonitor} is set. Then the monitor
+	 * requests the repaint when new data for these blocks is available.
+	 *
+	 * @param predictedPv
+	 *            extrapolated {@code pv} for prefetching, or {@code null}.
+	 * @param maxNanoTime
+	 *            {@code System.nanoTime()} deadline for uploading blocks.
+	 * @return whether a {@code LOAD} repaint is needed.
+	 */
+	private boolean updateBlocks(
+			final JoglGpuContext context,
+			final TextureCache textureCache,
+			final PboChain pboChain,
+			final List< VolumeBlocks > cacheVolumes,
+			final Matrix4f predictedPv,
+			final long maxNanoTime )
+	{
+		final List< BlockBudgetAllocator.Source > requiredBlocks = new ArrayList<>();
+		for ( final VolumeBlocks volume : cacheVolumes )
 		{
-			tasksPerVolume.sort( Comparator.comparingInt( VolumeAndTasks::numTasks ).reversed() );
-			for ( final VolumeAndTasks vat : tasksPerVolume )
+			requiredBlocks.add( volume.initRequiredBlocks() );
+			numLevelSwitches += volume.getNumLevelSwitches();
+			numSuppressedLevelSwitches += volume.getNumSuppressedLevelSwitches();
+		}
+
+		// choose resolution levels of all blocks, such that they fit into the cache
+		budgetAllocator.allocate( requiredBlocks, textureCache.getNumEvictableTiles() );
+
+		// present blocks get no tasks, but keep their tiles
+		final List< List< FillTask > > sourceTasks = new ArrayList<>();
+		final int[] numPresentTiles = new int[ cacheVolumes.size() ];
+		int capacity = textureCache.getNumEvictableTiles();
+		for ( int i = 0; i < cacheVolumes.size(); ++i )
+		{
+			sourceTasks.add( cacheVolumes.get( i ).getRequiredFillTasks() );
+			numPresentTiles[ i ] = cacheVolumes.get( i ).getNumPresentEvictableTiles();
+			capacity -= numPresentTiles[ i ];
+		}
+		// if the coarsest levels alone do not fit, drop the least important
+		// tasks, but keep the minimum share of each source
+		final List< FillTask > fillTasks = budgetAllocator.select(
+				sourceTasks, numPresentTiles, Comparator.comparingDouble( FillTask::getPriority ), textureCache.getNumEvictableTiles() );
+
+		if ( predictedPv != null )
+		{
+			final int lastFrameTimestamp = lastFrameTimestamps.getOrDefault( textureCache, 0 );
+			final ArrayList< FillTask > prefetchTasks = new ArrayList<>();
+			for ( final VolumeBlocks volume : cacheVolumes )
+				for ( final FillTask task : volume.getPrefetchTasks( predictedPv ) )
+					prefetchTasks.add( new PrefetchFillTask( task, lastFrameTimestamp ) );
+			final int budget = Math.max( 0, capacity - fillTasks.size() );
+			if ( prefetchTasks.size() > budget )
 			{
-				final int baseLevel = vat.volume.getBaseLevel();
-				if ( baseLevel < vat.maxLevel )
-				{
-					vat.volume.setBaseLevel( baseLevel + 1 );
-					numTasks -= vat.numTasks();
-					vat.tasks.clear();
-					vat.tasks.addAll( vat.volume.getFillTasks() );
-					numTasks += vat.numTasks();
-					continue A;
-				}
+				prefetchTasks.sort( Comparator.comparingDouble( FillTask::getPriority ) );
+				prefetchTasks.subList( budget, prefetchTasks.size() ).clear();
 			}
-			break;
+			fillTasks.addAll( prefetchTasks );
 		}
 
-		final ArrayList< FillTask > fillTasks = new ArrayList<>();
-		for ( final VolumeAndTasks vat : tasksPerVolume )
-			fillTasks.addAll( vat.tasks );
-		if ( fillTasks.size() > textureCache.getMaxNumTiles() )
-			fillTasks.subList( textureCache.getMaxNumTiles(), fillTasks.size() ).clear();
-
+		boolean needsRepaint = false;
 		try
 		{
-			ProcessFillTasks.parallel( textureCache, pboChain, context, forkJoinPool, fillTasks );
+			boolean uploadsComplete = true;
+			if ( !pboChain.ready() )
+				uploadsComplete = ProcessFillTasks.resume( textureCache, pboChain, context, maxNanoTime );
+			if ( uploadsComplete )
+				uploadsComplete = ProcessFillTasks.parallel( textureCache, pboChain, context, forkJoinPool, fillTasks, maxNanoTime );
+			if ( !uploadsComplete )
+				needsRepaint = true;
 		}
 		catch ( final InterruptedException e )
 		{
 			e.printStackTrace();
 		}
 
-		boolean needsRepaint = false;
 		final int timestamp = textureCache.nextTimestamp();
-		for ( int i = 0; i < multiResStacks.size(); i++ )
+		lastFrameTimestamps.put( textureCache, timestamp );
+		for ( final VolumeBlocks volume : cacheVolumes )
 		{
-			final VolumeBlocks volume = volumes.get( i );
 			final boolean complete = volume.makeLut( timestamp );
-			if ( !complete )
+			if ( !complete && refreshMonitor == null )
 				needsRepaint = true;
 			volume.getLookupTexture().upload( context );
 		}
 
-		if ( needsRepaint )
-			nextRequestedRepaint.request( LOAD );
+		return needsRepaint;
 	}
 }
@@ -10,18 +10,32 @@ public final class VolumeShaderSignature
 	{
 		USHORT,
 		UBYTE,
-		ARGB
+		ARGB,
+		FLOAT
 	}
 
 	public static final class VolumeSignature
 	{
 		private final SourceStacks.SourceStackType sourceStackType;
 		private final PixelType pixelType;
+		private final int numCachePages;
 
 		public VolumeSignature( final SourceStacks.SourceStackType sourceStackType, final PixelType pixelType )
+		{
+			this( sourceStackType, pixelType, 0 );
+		}
+
+		/**
+		 * @param numCachePages
+		 *            number of pages of the texture cache that a
+		 *            {@code MULTIRESOLUTION} volume is drawn from. (The shader
+		 *            declares a sampler for each page.)
+		 */
+		public VolumeSignature( final SourceStacks.SourceStackType sourceStackType, final PixelType pixelType, final int numCachePages )
 		{
 			this.sourceStackType = sourceStackType;
 			this.pixelType = pixelType;
+			this.numCachePages = numCachePages;
 		}
 
 		public SourceStacks.SourceStackType getSourceStackType()
@@ -34,6 +48,11 @@ public final class VolumeShaderSignature
 			return pixelType;
 		}
 
+		public int getNumCachePages()
+		{
+			return numCachePages;
+		}
+
 		@Override
 		public boolean equals( final Object o )
 		{
@@ -42,7 +61,7 @@ public final class VolumeShaderSignature
 			if ( ! ( o instanceof VolumeSignature ) )
 				return false;
 			final VolumeSignature that = ( VolumeSignature ) o;
-			return sourceStackType == that.sourceStackType && pixelType == that.pixelType;
+			return sourceStackType == that.sourceStackType && pixelType == that.pixelType && numCachePages == that.numCachePages;
 		}
 
 		@Override
@@ -50,6 +69,7 @@ public final class VolumeShaderSignature
 		{
 			int result = sourceStackType.hashCode();
 			result = 31 * result + pixelType.hashCode();
+			result = 31 * result + numCachePages;
 			return result;
 		}
 	}
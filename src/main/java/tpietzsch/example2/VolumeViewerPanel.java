@@ -355,14 +355,21 @@ public class VolumeViewerPanel
 		maxRenderMillis = options.getMaxRenderMillis();
 
 		viewerTransform = new AffineTransform3D();
+		final GpuCacheManager cacheManager = options.getCacheManager() != null
+				? options.getCacheManager()
+				: new GpuCacheManager( optional );
 		renderer = new VolumeRenderer(
 				renderWidth,
 				renderHeight,
 				options.getDitherWidth(),
 				getDitherStep( options.getDitherWidth() ),
 				options.getNumDitherSamples(),
-				options.getCacheBlockSize(),
-				options.getMaxCacheSizeInMB() );
+				cacheManager );
+		renderer.setPrefetchFrames( options.getPrefetchFrames() );
+		renderer.setLevelHysteresis( ( float ) options.getLevelHysteresis() );
+		renderer.setQuantizeToByte( options.isQuantizeToByte() );
+		renderer.setPartialUploadPolicy( options.getPartialUploadPolicy().create( options.getPartialUploadBudgetInMB() * 1024L * 1024L ) );
+		renderer.setRequestLoadRepaint( () -> requestRepaint( LOAD ) );
 
 		dCam = options.getDCam();
 		dClipNear = options.getDClipNear();
@@ -374,6 +381,8 @@ public class VolumeViewerPanel
 
 		final GLCapabilities capsReqUser = new GLCapabilities( GLProfile.getMaxProgrammableCore( true ) );
 		canvas = new GLCanvas( capsReqUser );
+		if ( options.getCacheManager() != null )
+			canvas.setSharedAutoDrawable( cacheManager.getSharedAutoDrawable( capsReqUser ) );
 		canvas.setPreferredSize( new Dimension( options.getWidth(), options.getHeight() ) );
 		canvas.addGLEventListener( glEventListener );
 
@@ -492,6 +501,17 @@ public class VolumeViewerPanel
 		requestRepaint();
 	}
 
+	/**
+	 * Resize the GPU cache to (at most) {@code maxCacheSizeInMB}, keeping as
+	 * many present blocks as possible. If the cache is shared with other
+	 * viewers, they are resized as well.
+	 */
+	public void setMaxCacheSizeInMB( final int maxCacheSizeInMB )
+	{
+		renderer.getCacheManager().requestResize( maxCacheSizeInMB );
+		requestRepaint();
+	}
+
 	/**
 	 * Set the viewer transform.
 	 */
@@ -742,6 +762,7 @@ public class VolumeViewerPanel
 		{
 			e.printStackTrace();
 		}
+		renderer.release();
 		state.kill();
 	}
 
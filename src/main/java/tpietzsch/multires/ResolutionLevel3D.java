@@ -59,6 +59,19 @@ public interface ResolutionLevel3D< T > extends EuclideanSpace, Typed< T >
 	 */
 	RandomAccessibleInterval< T > getImage();
 
+	/**
+	 * Get an identifier of the image data of this resolution level that is
+	 * stable across sessions, for storing tiles on disk (see
+	 * {@link tpietzsch.cache.PersistentTileStore}). The identifier must change
+	 * when the image data changes, e.g., when the source is invalidated.
+	 *
+	 * @return persistent identifier of the image data, or {@code null} if tiles of this level should not be stored persistently.
+	 */
+	default String getPersistentId()
+	{
+		return null;
+	}
+
 	@Override
 	default int numDimensions()
 	{
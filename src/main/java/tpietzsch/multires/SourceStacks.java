@@ -1,13 +1,17 @@
 package tpietzsch.multires;
 
+import bdv.img.hdf5.Hdf5ImageLoader;
 import bdv.util.volatiles.VolatileView;
 import bdv.viewer.Source;
 import bdv.viewer.SourceAndConverter;
+import java.io.File;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.WeakHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
+import mpicbg.spim.data.generic.AbstractSpimData;
+import mpicbg.spim.data.generic.sequence.BasicViewSetup;
 import net.imglib2.RandomAccessible;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.img.cell.AbstractCellImg;
@@ -31,6 +35,8 @@ public class SourceStacks
 
 	private static final Map< Source< ? >, AtomicInteger > sourceGenerations = new WeakHashMap<>();
 
+	private static final Map< Source< ? >, String > persistentIds = new WeakHashMap<>();
+
 	public static void setSourceStackType( Source< ? > source, SourceStackType stack )
 	{
 		sourceStackTypes.put( source, stack );
@@ -41,6 +47,68 @@ public class SourceStacks
 		return sourceStackTypes.getOrDefault( source, UNDEFINED );
 	}
 
+	/**
+	 * Set an identifier of the image data of {@code source} that is stable
+	 * across sessions (e.g., dataset path and setup id). Tiles of sources with
+	 * a persistent id can be kept in a {@link tpietzsch.cache.PersistentTileStore}.
+	 */
+	public static synchronized void setPersistentId( final Source< ? > source, final String id )
+	{
+		persistentIds.put( source, id );
+	}
+
+	public static synchronized String getPersistentId( final Source< ? > source )
+	{
+		return persistentIds.get( source );
+	}
+
+	/**
+	 * Get a dataset identifier for {@link #setPersistentIds} that is stable
+	 * across sessions, but changes when the dataset is modified on disk. It
+	 * consists of the absolute path, modification time and size of
+	 * {@code xmlFile}, and (for HDF5 datasets) of the HDF5 file.
+	 *
+	 * @param xmlFile
+	 *            the XML file {@code spimData} was loaded from, or
+	 *            {@code null} if unknown.
+	 * @return dataset identifier, or {@code null} if there is no file that
+	 *         identifies the dataset.
+	 */
+	public static String datasetId( final File xmlFile, final AbstractSpimData< ? > spimData )
+	{
+		final Object imgLoader = spimData.getSequenceDescription().getImgLoader();
+		final File hdf5File = imgLoader instanceof Hdf5ImageLoader
+				? ( ( Hdf5ImageLoader ) imgLoader ).getHdf5File()
+				: null;
+		if ( xmlFile == null && hdf5File == null )
+			return null;
+
+		final StringBuilder id = new StringBuilder();
+		for ( final File file : new File[] { xmlFile, hdf5File } )
+			if ( file != null )
+				id.append( file.getAbsolutePath() ).append( '@' ).append( file.lastModified() ).append( ':' ).append( file.length() ).append( ';' );
+		return id.toString();
+	}
+
+	/**
+	 * Set persistent ids for {@code sources} created from {@code spimData}
+	 * (in the order of {@code getViewSetupsOrdered()}, as created by
+	 * {@code BigDataViewer.initSetups()}). The id of each source is
+	 * {@code datasetId} followed by the setup id.
+	 */
+	public static void setPersistentIds( final String datasetId, final AbstractSpimData< ? > spimData, final List< ? extends SourceAndConverter< ? > > sources )
+	{
+		final List< ? extends BasicViewSetup > setups = spimData.getSequenceDescription().getViewSetupsOrdered();
+		for ( int i = 0; i < sources.size() && i < setups.size(); ++i )
+		{
+			final String id = datasetId + "/s" + setups.get( i ).getId();
+			final SourceAndConverter< ? > soc = sources.get( i );
+			setPersistentId( soc.getSpimSource(), id );
+			if ( soc.asVolatile() != null )
+				setPersistentId( soc.asVolatile().getSpimSource(), id );
+		}
+	}
+
 	public static void invalidate( final Source< ? > source )
 	{
 		synchronized ( source )
@@ -61,17 +129,16 @@ public class SourceStacks
 			setSourceStackType( source, stackType );
 		}
 
-		if ( stackType == SIMPLE )
+		final int generation;
+		synchronized ( source )
 		{
-			final int generation;
-			synchronized ( source )
-			{
-				generation = sourceGenerations.computeIfAbsent( source, s -> new AtomicInteger() ).get();
-			}
-			return new SimpleStack3DImp<>( source, timepoint, generation );
+			generation = sourceGenerations.computeIfAbsent( source, s -> new AtomicInteger() ).get();
 		}
+
+		if ( stackType == SIMPLE )
+			return new SimpleStack3DImp<>( source, timepoint, generation );
 		else if ( stackType == MULTIRESOLUTION )
-			return new MultiResolutionStack3DImp<>( source, timepoint );
+			return new MultiResolutionStack3DImp<>( source, timepoint, generation );
 		else
 			return null;
 	}
@@ -173,15 +240,16 @@ public class SourceStacks
 	{
 		private final ArrayList< ResolutionLevel3DImp< T > > resolutions;
 
-		MultiResolutionStack3DImp( final Source< T > source, final int timepoint )
+		MultiResolutionStack3DImp( final Source< T > source, final int timepoint, final int generation )
 		{
-			super( source, timepoint, 0 /*TODO*/ );
+			super( source, timepoint, generation );
 
 			final SourceStackResolutions ssr = SourceStacks.sourceStackResolutions.computeIfAbsent( source, s -> new SourceStackResolutions( source, timepoint ) );
+			final String persistentId = getPersistentId( source );
 
 			resolutions = new ArrayList<>();
 			for ( int level = 0; level < source.getNumMipmapLevels(); level++ )
-				resolutions.add( new ResolutionLevel3DImp<>( source, timepoint, level, ssr ) );
+				resolutions.add( new ResolutionLevel3DImp<>( source, timepoint, level, generation, persistentId, ssr ) );
 		}
 
 		@Override
@@ -199,17 +267,27 @@ public class SourceStacks
 
 		private final Source< T > source;
 
+		private final int generation;
+
+		private final String persistentId;
+
 		private final int[] resolution;
 
 		private final double[] scale;
 
 		private final AffineTransform3D levelt;
 
-		ResolutionLevel3DImp( final Source< T > source, final int timepoint, final int level, final SourceStackResolutions sourceStackResolutions )
+		ResolutionLevel3DImp( final Source< T > source, final int timepoint, final int level, final int generation, final String sourcePersistentId, final SourceStackResolutions sourceStackResolutions )
 		{
 			this.level = level;
 			this.timepoint = timepoint;
 			this.source = source;
+			this.generation = generation;
+			// After invalidation, the data differs from what is on disk (and
+			// generations restart in the next session), so it is not stored.
+			this.persistentId = sourcePersistentId == null || generation > 0
+					? null
+					: sourcePersistentId + "/t" + timepoint + "/l" + level;
 
 			resolution = sourceStackResolutions.resolutions[ level ];
 			scale = sourceStackResolutions.scales[ level ];
@@ -246,6 +324,12 @@ public class SourceStacks
 			return source.getSource( timepoint, level );
 		}
 
+		@Override
+		public String getPersistentId()
+		{
+			return persistentId;
+		}
+
 		@Override
 		public T getType()
 		{
@@ -266,6 +350,8 @@ public class SourceStacks
 				return false;
 			if ( level != that.level )
 				return false;
+			if ( generation != that.generation )
+				return false;
 			return source.equals( that.source );
 		}
 
@@ -274,6 +360,7 @@ public class SourceStacks
 		{
 			int result = level;
 			result = 31 * result + timepoint;
+			result = 31 * result + generation;
 			result = 31 * result + source.hashCode();
 			return result;
 		}
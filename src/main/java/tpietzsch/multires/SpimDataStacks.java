@@ -30,9 +30,29 @@ public class SpimDataStacks implements Stacks
 
 	private final List< TimePoint > timepoints;
 
+	private final String datasetId;
+
+	/**
+	 * Stacks for {@code spimData}. Only HDF5 datasets have
+	 * {@link ResolutionLevel3D#getPersistentId() persistent ids} (derived from
+	 * the HDF5 file), because the XML file is unknown.
+	 */
 	public SpimDataStacks( final AbstractSpimData< ? > spimData )
+	{
+		this( spimData, SourceStacks.datasetId( null, spimData ) );
+	}
+
+	/**
+	 * @param datasetId
+	 *            identifies the dataset for
+	 *            {@link ResolutionLevel3D#getPersistentId() persistent ids}
+	 *            (see {@link SourceStacks#datasetId}), or {@code null} if
+	 *            tiles should not be stored persistently.
+	 */
+	public SpimDataStacks( final AbstractSpimData< ? > spimData, final String datasetId )
 	{
 		this.spimData = spimData;
+		this.datasetId = datasetId;
 		registrations = spimData.getViewRegistrations();
 
 		setups = spimData.getSequenceDescription().getViewSetupsOrdered();
@@ -98,7 +118,7 @@ public class SpimDataStacks implements Stacks
 
 		final ResolutionLevel3DImp< ? >[] resolutionLevels = new ResolutionLevel3DImp[ numMipmapLevels ];
 		for ( int level = 0; level < numMipmapLevels; level++ )
-			resolutionLevels[ level ] = new ResolutionLevel3DImp( level, timepointId, setupId, spimData, resolutions[ level ], rais[ level], type );
+			resolutionLevels[ level ] = new ResolutionLevel3DImp( level, timepointId, setupId, spimData, datasetId, resolutions[ level ], rais[ level], type );
 
 		return new MultiResolutionStack3DImp( timepointId, setupId, spimData, model, resolutionLevels, type );
 	}
@@ -200,6 +220,8 @@ public class SpimDataStacks implements Stacks
 
 		private final AbstractSpimData< ? > spimData;
 
+		private final String datasetId;
+
 		private final int[] resolution;
 
 		private final RandomAccessibleInterval< T > rai;
@@ -215,6 +237,7 @@ public class SpimDataStacks implements Stacks
 				final int timepointId,
 				final int setupId,
 				final AbstractSpimData< ? > spimData,
+				final String datasetId,
 				final int[] resolution,
 				final RandomAccessibleInterval< T > rai,
 				final T type )
@@ -223,6 +246,7 @@ public class SpimDataStacks implements Stacks
 			this.timepointId = timepointId;
 			this.setupId = setupId;
 			this.spimData = spimData;
+			this.datasetId = datasetId;
 			this.resolution = resolution;
 			this.rai = rai;
 			this.type = type;
@@ -267,6 +291,14 @@ public class SpimDataStacks implements Stacks
 			return rai;
 		}
 
+		@Override
+		public String getPersistentId()
+		{
+			return datasetId == null
+					? null
+					: datasetId + "/s" + setupId + "/t" + timepointId + "/l" + level;
+		}
+
 		@Override
 		public T getType()
 		{
@@ -105,6 +105,17 @@ public class Segment
 		return ( String ) identifier.value();
 	}
 
+	@SuppressWarnings( "unchecked" )
+	String getListIdentifier( final String key, final int index )
+	{
+		final Identifier identifier = keyToIdentifier.get( key );
+		if ( identifier == null )
+			throw new IllegalArgumentException( "Key '" + key + "' does not exist." );
+		if ( !identifier.isList() )
+			throw new IllegalArgumentException( "Key '" + key + "' maps to a single identifier. Expected list of identifiers." );
+		return ( ( List< String > ) identifier.value() ).get( index );
+	}
+
 	Map< String, Identifier > getKeyToIdentifierMap()
 	{
 		return keyToIdentifier;
@@ -91,4 +91,13 @@ public class SegmentedShader extends AbstractShader
 	{
 		return getUniformSampler( segment.getSingleIdentifier( key ) );
 	}
+
+	/**
+	 * Get the sampler uniform with the given {@code index} of a {@code key}
+	 * that was {@link Segment#repeat(String, int) repeated}.
+	 */
+	public UniformSampler getUniformSampler( final Segment segment, final String key, final int index )
+	{
+		return getUniformSampler( segment.getListIdentifier( key, index ) );
+	}
 }
@@ -0,0 +1,194 @@
+package tpietzsch.util;
+
+import java.util.Arrays;
+
+/**
+ * Open-addressing hash map from non-negative {@code long} keys to
+ * {@code int} values.
+ * <p>
+ * Same layout as {@link LongObjectMap} (linear probing, backward-shift
+ * deletion), but values are stored unboxed, so {@link #get}, {@link #put},
+ * {@link #remove}, and {@link #clear} do not allocate (unless the map grows).
+ * <p>
+ * Not thread-safe.
+ */
+public class LongIntMap
+{
+	private static final long EMPTY = -1;
+
+	private static final float LOAD_FACTOR = 0.5f;
+
+	private long[] keys;
+
+	private int[] values;
+
+	private int mask;
+
+	private int size;
+
+	private int growThreshold;
+
+	public LongIntMap()
+	{
+		this( 16 );
+	}
+
+	public LongIntMap( final int expectedSize )
+	{
+		allocate( capacityFor( expectedSize ) );
+	}
+
+	/**
+	 * @return the value for {@code key}, or {@code missingValue} if there is none.
+	 */
+	public int get( final long key, final int missingValue )
+	{
+		for ( int i = slot( key );; i = ( i + 1 ) & mask )
+		{
+			final long k = keys[ i ];
+			if ( k == key )
+				return values[ i ];
+			if ( k == EMPTY )
+				return missingValue;
+		}
+	}
+
+	public boolean containsKey( final long key )
+	{
+		for ( int i = slot( key );; i = ( i + 1 ) & mask )
+		{
+			final long k = keys[ i ];
+			if ( k == key )
+				return true;
+			if ( k == EMPTY )
+				return false;
+		}
+	}
+
+	/**
+	 * Associate {@code value} with {@code key} (non-negative).
+	 */
+	public void put( final long key, final int value )
+	{
+		if ( key < 0 )
+			throw new IllegalArgumentException( "negative key" );
+
+		for ( int i = slot( key );; i = ( i + 1 ) & mask )
+		{
+			final long k = keys[ i ];
+			if ( k == key )
+			{
+				values[ i ] = value;
+				return;
+			}
+			if ( k == EMPTY )
+			{
+				keys[ i ] = key;
+				values[ i ] = value;
+				if ( ++size > growThreshold )
+					rehash( keys.length * 2 );
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Remove the value for {@code key}.
+	 *
+	 * @return whether there was a value for {@code key}.
+	 */
+	public boolean remove( final long key )
+	{
+		for ( int i = slot( key );; i = ( i + 1 ) & mask )
+		{
+			final long k = keys[ i ];
+			if ( k == key )
+			{
+				removeAt( i );
+				return true;
+			}
+			if ( k == EMPTY )
+				return false;
+		}
+	}
+
+	public int size()
+	{
+		return size;
+	}
+
+	public boolean isEmpty()
+	{
+		return size == 0;
+	}
+
+	/**
+	 * Remove all entries. (Keeps the allocated capacity.)
+	 */
+	public void clear()
+	{
+		if ( size == 0 )
+			return;
+		Arrays.fill( keys, EMPTY );
+		size = 0;
+	}
+
+	private void removeAt( int i )
+	{
+		// backward-shift deletion: move following entries of the probe sequence into the gap
+		int j = i;
+		while ( true )
+		{
+			j = ( j + 1 ) & mask;
+			final long k = keys[ j ];
+			if ( k == EMPTY )
+				break;
+			final int s = slot( k );
+			// move k from j to i, unless its home slot s lies cyclically in (i, j]
+			if ( i <= j ? ( s <= i || s > j ) : ( s <= i && s > j ) )
+			{
+				keys[ i ] = k;
+				values[ i ] = values[ j ];
+				i = j;
+			}
+		}
+		keys[ i ] = EMPTY;
+		--size;
+	}
+
+	private int slot( final long key )
+	{
+		// murmur3 finalizer
+		long h = key;
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		return ( int ) h & mask;
+	}
+
+	private void rehash( final int capacity )
+	{
+		final long[] oldKeys = keys;
+		final int[] oldValues = values;
+		allocate( capacity );
+		for ( int i = 0; i < oldKeys.length; ++i )
+			if ( oldKeys[ i ] != EMPTY )
+				put( oldKeys[ i ], oldValues[ i ] );
+	}
+
+	private void allocate( final int capacity )
+	{
+		keys = new long[ capacity ];
+		Arrays.fill( keys, EMPTY );
+		values = new int[ capacity ];
+		mask = capacity - 1;
+		size = 0;
+		growThreshold = ( int ) ( capacity * LOAD_FACTOR );
+	}
+
+	private static int capacityFor( final int expectedSize )
+	{
+		final int min = ( int ) Math.min( 1 << 30, Math.max( 16, ( long ) Math.ceil( expectedSize / LOAD_FACTOR ) ) );
+		return Integer.highestOneBit( min - 1 ) << 1;
+	}
+}
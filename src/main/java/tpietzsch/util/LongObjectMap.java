@@ -0,0 +1,225 @@
+package tpietzsch.util;
+
+import java.util.Arrays;
+import java.util.function.BiPredicate;
+import java.util.function.LongConsumer;
+
+/**
+ * Open-addressing hash map from non-negative {@code long} keys to objects.
+ * <p>
+ * Uses linear probing and backward-shift deletion, so there are no
+ * tombstones, and {@link #get}, {@link #put}, {@link #remove}, and
+ * {@link #clear} do not allocate (unless the map grows).
+ * <p>
+ * Not thread-safe.
+ *
+ * @param <V>
+ *            value type
+ */
+public class LongObjectMap< V >
+{
+	private static final long EMPTY = -1;
+
+	private static final float LOAD_FACTOR = 0.5f;
+
+	private long[] keys;
+
+	private V[] values;
+
+	private int mask;
+
+	private int size;
+
+	private int growThreshold;
+
+	public LongObjectMap()
+	{
+		this( 16 );
+	}
+
+	public LongObjectMap( final int expectedSize )
+	{
+		allocate( capacityFor( expectedSize ) );
+	}
+
+	/**
+	 * @return the value for {@code key}, or {@code null} if there is none.
+	 */
+	public V get( final long key )
+	{
+		for ( int i = slot( key );; i = ( i + 1 ) & mask )
+		{
+			final long k = keys[ i ];
+			if ( k == key )
+				return values[ i ];
+			if ( k == EMPTY )
+				return null;
+		}
+	}
+
+	public boolean containsKey( final long key )
+	{
+		return get( key ) != null;
+	}
+
+	/**
+	 * Associate {@code value} (non-null) with {@code key} (non-negative).
+	 *
+	 * @return the previous value for {@code key}, or {@code null} if there was none.
+	 */
+	public V put( final long key, final V value )
+	{
+		if ( key < 0 )
+			throw new IllegalArgumentException( "negative key" );
+		if ( value == null )
+			throw new NullPointerException();
+
+		for ( int i = slot( key );; i = ( i + 1 ) & mask )
+		{
+			final long k = keys[ i ];
+			if ( k == key )
+			{
+				final V previous = values[ i ];
+				values[ i ] = value;
+				return previous;
+			}
+			if ( k == EMPTY )
+			{
+				keys[ i ] = key;
+				values[ i ] = value;
+				if ( ++size > growThreshold )
+					rehash( keys.length * 2 );
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * Remove the value for {@code key}.
+	 *
+	 * @return the removed value, or {@code null} if there was none.
+	 */
+	public V remove( final long key )
+	{
+		for ( int i = slot( key );; i = ( i + 1 ) & mask )
+		{
+			final long k = keys[ i ];
+			if ( k == key )
+			{
+				final V previous = values[ i ];
+				removeAt( i );
+				return previous;
+			}
+			if ( k == EMPTY )
+				return null;
+		}
+	}
+
+	/**
+	 * Remove all entries for which {@code filter} returns {@code true}.
+	 */
+	public void removeIf( final BiPredicate< Long, V > filter )
+	{
+		for ( int i = 0; i < keys.length; )
+		{
+			// removeAt(i) may shift another entry into slot i, so only advance if nothing was removed
+			if ( keys[ i ] != EMPTY && filter.test( keys[ i ], values[ i ] ) )
+				removeAt( i );
+			else
+				++i;
+		}
+	}
+
+	/**
+	 * Call {@code action} for the key of each entry.
+	 */
+	public void forEachKey( final LongConsumer action )
+	{
+		for ( final long key : keys )
+			if ( key != EMPTY )
+				action.accept( key );
+	}
+
+	public int size()
+	{
+		return size;
+	}
+
+	public boolean isEmpty()
+	{
+		return size == 0;
+	}
+
+	/**
+	 * Remove all entries. (Keeps the allocated capacity.)
+	 */
+	public void clear()
+	{
+		if ( size == 0 )
+			return;
+		Arrays.fill( keys, EMPTY );
+		Arrays.fill( values, null );
+		size = 0;
+	}
+
+	private void removeAt( int i )
+	{
+		// backward-shift deletion: move following entries of the probe sequence into the gap
+		int j = i;
+		while ( true )
+		{
+			j = ( j + 1 ) & mask;
+			final long k = keys[ j ];
+			if ( k == EMPTY )
+				break;
+			final int s = slot( k );
+			// move k from j to i, unless its home slot s lies cyclically in (i, j]
+			if ( i <= j ? ( s <= i || s > j ) : ( s <= i && s > j ) )
+			{
+				keys[ i ] = k;
+				values[ i ] = values[ j ];
+				i = j;
+			}
+		}
+		keys[ i ] = EMPTY;
+		values[ i ] = null;
+		--size;
+	}
+
+	private int slot( final long key )
+	{
+		// murmur3 finalizer
+		long h = key;
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		return ( int ) h & mask;
+	}
+
+	private void rehash( final int capacity )
+	{
+		final long[] oldKeys = keys;
+		final V[] oldValues = values;
+		allocate( capacity );
+		for ( int i = 0; i < oldKeys.length; ++i )
+			if ( oldKeys[ i ] != EMPTY )
+				put( oldKeys[ i ], oldValues[ i ] );
+	}
+
+	@SuppressWarnings( "unchecked" )
+	private void allocate( final int capacity )
+	{
+		keys = new long[ capacity ];
+		Arrays.fill( keys, EMPTY );
+		values = ( V[] ) new Object[ capacity ];
+		mask = capacity - 1;
+		size = 0;
+		growThreshold = ( int ) ( capacity * LOAD_FACTOR );
+	}
+
+	private static int capacityFor( final int expectedSize )
+	{
+		final int min = ( int ) Math.min( 1 << 30, Math.max( 16, ( long ) Math.ceil( expectedSize / LOAD_FACTOR ) ) );
+		return Integer.highestOneBit( min - 1 ) << 1;
+	}
+}
@@ -6,6 +6,12 @@ uniform float nw;
 
 uniform sampler3D volumeCache;
 
+// additional pages of the cache (see TextureCache.getPage()), at most 4 pages
+// in total. unused pages are bound to the last page.
+uniform sampler3D volumeCache1;
+uniform sampler3D volumeCache2;
+uniform sampler3D volumeCache3;
+
 // -- comes from CacheSpec -----
 uniform vec3 blockSize;
 uniform vec3 paddedBlockSize;
@@ -15,6 +21,20 @@ uniform vec3 cachePadOffset;
 uniform vec3 cacheSize; // TODO: get from texture!?
 uniform mat4 transform;
 
+// sample cache page (0 is volumeCache) at normalized texture coordinate c.
+// (textureLod, because derivatives are undefined in non-uniform control flow.)
+float sampleCachePage( uint page, sampler3D volumeCache, vec3 c )
+{
+	if ( page == 0u )
+		return textureLod( volumeCache, c, 0 ).r;
+	else if ( page == 1u )
+		return textureLod( volumeCache1, c, 0 ).r;
+	else if ( page == 2u )
+		return textureLod( volumeCache2, c, 0 ).r;
+	else
+		return textureLod( volumeCache3, c, 0 ).r;
+}
+
 #pragma scenery verbatim
 layout(location = 0) in VertexData {
 	vec2 textureCoord;
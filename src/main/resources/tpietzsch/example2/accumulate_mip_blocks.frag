@@ -1,5 +1,4 @@
 if (vis)
 {
-	float x = sampleVolume(wpos, volumeCache, cacheSize, blockSize, paddedBlockSize, cachePadOffset);
-	v = max(v, convert(x));
+	v = max(v, convert(sampleVolume(wpos)));
 }
@@ -5,15 +5,12 @@ uniform mat4 ipv;
 uniform float fwnw;
 uniform float nw;
 
-uniform sampler3D volumeCache;
-
 // -- comes from CacheSpec -----
+// (the caches of all formats use the same block size)
 uniform vec3 blockSize;
 uniform vec3 paddedBlockSize;
 uniform vec3 cachePadOffset;
 
-// -- comes from TextureCache --
-uniform vec3 cacheSize;// TODO: get from texture!?
 uniform mat4 transform;
 
 // intersect ray with a box
@@ -89,12 +86,11 @@ void main()
 
 			// $insert{Accumulate}
 			/*
-			inserts something like the following (keys: vis,blockTexture,convert)
+			inserts something like the following (keys: vis,sampleVolume,convert)
 
 			if (vis)
 			{
-				float x = blockTexture(wpos, volumeCache, cacheSize, blockSize, paddedBlockSize, cachePadOffset);
-				v = max(v, convert(x));
+				v = max(v, convert(sampleVolume(wpos)));
 			}
 			*/
 		}
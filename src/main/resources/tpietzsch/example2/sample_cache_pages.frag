@@ -0,0 +1,21 @@
+// pages of the texture cache (see TextureCache.getPage()).
+// declared once for all volumes that are drawn from the same cache, with one
+// sampler for each page of the cache.
+// $repeat:{cacheTexture|
+uniform sampler3D cacheTexture;
+// }$
+
+// -- comes from TextureCache --
+uniform vec3 cacheSize;
+
+// sample cache page at normalized texture coordinate c.
+// (textureLod, because derivatives are undefined in non-uniform control flow.)
+float sampleCachePage( uint page, vec3 c )
+{
+	uint p = 0u;
+	// $repeat:{cacheTexture|
+	if ( page == p++ )
+		return textureLod( cacheTexture, c, 0 ).r;
+	// }$
+	return 0.0;
+}
@@ -0,0 +1,22 @@
+// pages of the texture cache (see TextureCache.getPage()).
+// declared once for all volumes that are drawn from the same cache, with one
+// sampler for each page of the cache.
+// $repeat:{cacheTexture|
+uniform sampler3D cacheTexture;
+// }$
+
+// -- comes from TextureCache --
+uniform vec3 cacheSize;
+
+// sample cache page at normalized texture coordinate c.
+// (ARGB pixels are stored as BGRA bytes in the RGBA8 texture.)
+// (textureLod, because derivatives are undefined in non-uniform control flow.)
+vec4 sampleCachePage( uint page, vec3 c )
+{
+	uint p = 0u;
+	// $repeat:{cacheTexture|
+	if ( page == p++ )
+		return textureLod( cacheTexture, c, 0 ).bgra;
+	// }$
+	return vec4( 0 );
+}
@@ -16,17 +16,20 @@ uniform vec3 blockScales[ NUM_BLOCK_SCALES ];
 uniform vec3 lutSize;
 uniform vec3 lutOffset;
 
-float sampleVolume( vec4 wpos, sampler3D volumeCache, vec3 cacheSize, vec3 blockSize, vec3 paddedBlockSize, vec3 padOffset )
+// cacheSize and sampleCachePage() come from the cache pages segment of the
+// volume's cache format (sample_cache_pages.frag).
+
+float sampleVolume( vec4 wpos )
 {
 	vec3 pos = (im * wpos).xyz + 0.5;
 	vec3 q = floor( pos / blockSize ) - lutOffset + 0.5;
 
 	uvec4 lutv = texture( lutSampler, q / lutSize );
-	vec3 B0 = lutv.xyz * paddedBlockSize + padOffset;
-	vec3 sj = blockScales[ lutv.w ];
+	vec3 B0 = lutv.xyz * paddedBlockSize + cachePadOffset;
+	vec3 sj = blockScales[ lutv.w & 0xfu ];
 
 	vec3 c0 = B0 + mod( pos * sj, blockSize ) + 0.5 * sj;
 	                                       // + 0.5 ( sj - 1 )   + 0.5 for tex coord offset
 
-	return texture( volumeCache, c0 / cacheSize ).r;
+	return sampleCachePage( lutv.w >> 4u, c0 / cacheSize );
 }
@@ -0,0 +1,35 @@
+#define NUM_BLOCK_SCALES 10
+
+uniform mat4 im;
+uniform vec3 sourcemin;
+uniform vec3 sourcemax;
+
+void intersectBoundingBox( vec4 wfront, vec4 wback, out float tnear, out float tfar )
+{
+	vec4 mfront = im * wfront;
+	vec4 mback = im * wback;
+	intersectBox( mfront.xyz, (mback - mfront).xyz, sourcemin, sourcemax, tnear, tfar );
+}
+
+uniform usampler3D lutSampler;
+uniform vec3 blockScales[ NUM_BLOCK_SCALES ];
+uniform vec3 lutSize;
+uniform vec3 lutOffset;
+
+// cacheSize and sampleCachePage() come from the cache pages segment of the
+// volume's cache format (sample_cache_pages_rgba.frag).
+
+vec4 sampleVolume( vec4 wpos )
+{
+	vec3 pos = (im * wpos).xyz + 0.5;
+	vec3 q = floor( pos / blockSize ) - lutOffset + 0.5;
+
+	uvec4 lutv = texture( lutSampler, q / lutSize );
+	vec3 B0 = lutv.xyz * paddedBlockSize + cachePadOffset;
+	vec3 sj = blockScales[ lutv.w & 0xfu ];
+
+	vec3 c0 = B0 + mod( pos * sj, blockSize ) + 0.5 * sj;
+	                                       // + 0.5 ( sj - 1 )   + 0.5 for tex coord offset
+
+	return sampleCachePage( lutv.w >> 4u, c0 / cacheSize );
+}
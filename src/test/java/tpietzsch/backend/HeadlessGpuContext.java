@@ -0,0 +1,223 @@
+package tpietzsch.backend;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import tpietzsch.shadergen.Shader;
+
+/**
+ * A {@link GpuContext} that keeps textures and staging buffers in host memory.
+ * It supports uploading, resizing, and inspecting texture data, but not
+ * shaders. This allows to run the cache machinery (e.g.,
+ * {@code TextureCache}, {@code PboChain}) without OpenGL.
+ * <p>
+ * Textures are stored as {@code width x height x depth} elements of
+ * {@link Texture.InternalFormat#getBytesPerElement()} bytes, x varying fastest.
+ */
+public class HeadlessGpuContext implements GpuContext
+{
+	private static class TextureData
+	{
+		final ByteBuffer data;
+
+		// dimensions when the texture was allocated
+		final int width;
+
+		final int height;
+
+		TextureData( final Texture texture )
+		{
+			width = texture.texWidth();
+			height = texture.texHeight();
+			data = ByteBuffer.allocate( width * height * texture.texDepth() * texture.texInternalFormat().getBytesPerElement() );
+		}
+	}
+
+	private final Map< Texture, TextureData > textures = new IdentityHashMap<>();
+
+	private final Map< StagingBuffer, Integer > stagingBufferIds = new IdentityHashMap<>();
+
+	private final Map< Integer, ByteBuffer > stagingBuffers = new HashMap<>();
+
+	private int boundStagingBufferId;
+
+	private int numStagingBufferIds;
+
+	@Override
+	public void use( final Shader shader )
+	{
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public SetUniforms getUniformSetter( final Shader shader )
+	{
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public int bindStagingBuffer( final StagingBuffer stagingBuffer )
+	{
+		return bindStagingBufferId( getStagingBufferId( stagingBuffer ) );
+	}
+
+	@Override
+	public int bindStagingBufferId( final int id )
+	{
+		final int restoreId = boundStagingBufferId;
+		boundStagingBufferId = id;
+		return restoreId;
+	}
+
+	@Override
+	public int bindTexture( final Texture texture )
+	{
+		return 0;
+	}
+
+	@Override
+	public void bindTexture( final Texture texture, final int unit )
+	{
+	}
+
+	@Override
+	public int bindTextureId( final int id, final int numTexDimensions )
+	{
+		return 0;
+	}
+
+	@Override
+	public Buffer map( final StagingBuffer stagingBuffer )
+	{
+		final ByteBuffer buffer = ByteBuffer.allocateDirect( stagingBuffer.getSizeInBytes() );
+		stagingBuffers.put( getStagingBufferId( stagingBuffer ), buffer );
+		return buffer;
+	}
+
+	@Override
+	public void unmap( final StagingBuffer stagingBuffer )
+	{
+	}
+
+	@Override
+	public void delete( final StagingBuffer stagingBuffer )
+	{
+		final Integer id = stagingBufferIds.remove( stagingBuffer );
+		if ( id != null )
+			stagingBuffers.remove( id );
+	}
+
+	@Override
+	public void delete( final Texture texture )
+	{
+		textures.remove( texture );
+	}
+
+	@Override
+	public boolean resize( final Texture3D texture, final int width, final int height, final int depth, final int[] regions )
+	{
+		final TextureData src = textures.remove( texture );
+		if ( src == null )
+			return true;
+
+		final ByteBuffer dst = getTextureData( texture );
+		final int bpe = texture.texInternalFormat().getBytesPerElement();
+		for ( int i = 0; i < regions.length; i += 6 )
+			copy( src.data, regions[ i ], regions[ i + 1 ], regions[ i + 2 ], src.width, src.height,
+					dst, regions[ i + 3 ], regions[ i + 4 ], regions[ i + 5 ], texture.texWidth(), texture.texHeight(),
+					width, height, depth, bpe );
+		return true;
+	}
+
+	@Override
+	public void texSubImage3D( final StagingBuffer stagingBuffer, final Texture3D texture, final int xoffset, final int yoffset, final int zoffset, final int width, final int height, final int depth, final long pixels_buffer_offset )
+	{
+		final ByteBuffer src = stagingBuffers.get( getStagingBufferId( stagingBuffer ) );
+		final ByteBuffer offset = src.duplicate();
+		offset.position( ( int ) pixels_buffer_offset );
+		texSubImage3D( texture, xoffset, yoffset, zoffset, width, height, depth, offset.slice() );
+	}
+
+	@Override
+	public void texSubImage3D( final Texture3D texture, final int xoffset, final int yoffset, final int zoffset, final int width, final int height, final int depth, final Buffer pixels )
+	{
+		final ByteBuffer src = ( ByteBuffer ) pixels;
+		final ByteBuffer dst = getTextureData( texture );
+		copy( src, 0, 0, 0, width, height,
+				dst, xoffset, yoffset, zoffset, texture.texWidth(), texture.texHeight(),
+				width, height, depth, texture.texInternalFormat().getBytesPerElement() );
+	}
+
+	// commands complete immediately, so fences are always signaled
+
+	@Override
+	public Object fenceSync()
+	{
+		return new Object();
+	}
+
+	@Override
+	public void waitSync( final Object fence )
+	{
+	}
+
+	@Override
+	public void deleteSync( final Object fence )
+	{
+	}
+
+	/**
+	 * Get the data of {@code texture} (allocated and zero-filled, if
+	 * necessary). The returned buffer holds
+	 * {@code texWidth() x texHeight() x texDepth()} elements.
+	 */
+	public ByteBuffer getTextureData( final Texture texture )
+	{
+		return textures.computeIfAbsent( texture, TextureData::new ).data;
+	}
+
+	/**
+	 * Total size in bytes of all allocated staging buffers.
+	 */
+	public long getStagingBufferBytes()
+	{
+		long bytes = 0;
+		for ( final ByteBuffer buffer : stagingBuffers.values() )
+			bytes += buffer.capacity();
+		return bytes;
+	}
+
+	private int getStagingBufferId( final StagingBuffer stagingBuffer )
+	{
+		return stagingBufferIds.computeIfAbsent( stagingBuffer, b -> ++numStagingBufferIds );
+	}
+
+	/**
+	 * Copy a {@code width x height x depth} region from {@code src} (of
+	 * dimensions {@code srcW x srcH x ?}) at {@code (sx,sy,sz)} to {@code dst}
+	 * (of dimensions {@code dstW x dstH x ?}) at {@code (dx,dy,dz)}.
+	 */
+	private static void copy(
+			final ByteBuffer src, final int sx, final int sy, final int sz, final int srcW, final int srcH,
+			final ByteBuffer dst, final int dx, final int dy, final int dz, final int dstW, final int dstH,
+			final int width, final int height, final int depth, final int bpe )
+	{
+		final byte[] row = new byte[ width * bpe ];
+		for ( int z = 0; z < depth; ++z )
+		{
+			for ( int y = 0; y < height; ++y )
+			{
+				final int si = ( ( ( sz + z ) * srcH + sy + y ) * srcW + sx ) * bpe;
+				final int di = ( ( ( dz + z ) * dstH + dy + y ) * dstW + dx ) * bpe;
+				final ByteBuffer s = src.duplicate();
+				s.position( si );
+				s.get( row );
+				final ByteBuffer d = dst.duplicate();
+				d.position( di );
+				d.put( row );
+			}
+		}
+	}
+}
@@ -0,0 +1,273 @@
+package tpietzsch.blockmath;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import org.junit.Test;
+import tpietzsch.blockmath.BlockBudgetAllocator.Source;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class BlockBudgetAllocatorTest
+{
+	/**
+	 * Blocks on a line, where block {@code i} is in tile {@code i >> level}
+	 * at resolution {@code level}.
+	 */
+	static class LineSource implements Source
+	{
+		final int maxLevel;
+
+		final int[] bestLevels;
+
+		final double[] weights;
+
+		final int[] levels;
+
+		/**
+		 * {@link #tileKey tile keys} of {@link #isFree free} tiles.
+		 */
+		final Set< Long > freeTiles = new HashSet<>();
+
+		LineSource( final int numBlocks, final int maxLevel )
+		{
+			this.maxLevel = maxLevel;
+			bestLevels = new int[ numBlocks ];
+			weights = new double[ numBlocks ];
+			Arrays.fill( weights, 1 );
+			levels = new int[ numBlocks ];
+		}
+
+		@Override
+		public int numBlocks()
+		{
+			return levels.length;
+		}
+
+		@Override
+		public int maxLevel()
+		{
+			return maxLevel;
+		}
+
+		@Override
+		public int bestLevel( final int block )
+		{
+			return bestLevels[ block ];
+		}
+
+		@Override
+		public long tileKey( final int block, final int level )
+		{
+			return ( long ) level << 32 | ( block >> level );
+		}
+
+		@Override
+		public double weight( final int block )
+		{
+			return weights[ block ];
+		}
+
+		@Override
+		public void setLevel( final int block, final int level )
+		{
+			levels[ block ] = level;
+		}
+
+		@Override
+		public boolean isFree( final int block, final int level )
+		{
+			return freeTiles.contains( tileKey( block, level ) );
+		}
+
+		/**
+		 * @return the number of distinct tiles for the allocated levels.
+		 */
+		int numTiles()
+		{
+			final Set< Long > tiles = new HashSet<>();
+			for ( int i = 0; i < levels.length; ++i )
+				tiles.add( tileKey( i, levels[ i ] ) );
+			return tiles.size();
+		}
+
+		/**
+		 * @return the number of distinct tiles for the allocated levels that
+		 *         are not free.
+		 */
+		int numUsedTiles()
+		{
+			final Set< Long > tiles = new HashSet<>();
+			for ( int i = 0; i < levels.length; ++i )
+				tiles.add( tileKey( i, levels[ i ] ) );
+			tiles.removeAll( freeTiles );
+			return tiles.size();
+		}
+	}
+
+	@Test
+	public void testEverythingFits()
+	{
+		final LineSource source = new LineSource( 16, 4 );
+		for ( int i = 0; i < 16; ++i )
+			source.bestLevels[ i ] = i < 8 ? 0 : 2;
+
+		final int total = new BlockBudgetAllocator().allocate( Collections.singletonList( source ), 100 );
+		for ( int i = 0; i < 16; ++i )
+			assertEquals( source.bestLevels[ i ], source.levels[ i ] );
+		assertEquals( 8 + 2, total );
+		assertEquals( total, source.numTiles() );
+	}
+
+	@Test
+	public void testCoarsestLevelsDoNotFit()
+	{
+		final LineSource source = new LineSource( 16, 2 );
+		final int total = new BlockBudgetAllocator().allocate( Collections.singletonList( source ), 1 );
+		for ( int i = 0; i < 16; ++i )
+			assertEquals( 2, source.levels[ i ] );
+		assertEquals( 4, total );
+	}
+
+	@Test
+	public void testCapacityIsRespected()
+	{
+		final Random random = new Random( 1 );
+		for ( int iter = 0; iter < 100; ++iter )
+		{
+			final LineSource s1 = new LineSource( 1 + random.nextInt( 64 ), 6 );
+			final LineSource s2 = new LineSource( 1 + random.nextInt( 64 ), 3 );
+			for ( final LineSource s : Arrays.asList( s1, s2 ) )
+				for ( int i = 0; i < s.numBlocks(); ++i )
+				{
+					s.bestLevels[ i ] = random.nextInt( s.maxLevel + 1 );
+					s.weights[ i ] = random.nextDouble();
+				}
+			final int capacity = 2 + random.nextInt( 64 );
+
+			final int coarsestTiles = ( ( s1.numBlocks() - 1 ) >> 6 ) + 1 + ( ( s2.numBlocks() - 1 ) >> 3 ) + 1;
+
+			final int total = new BlockBudgetAllocator().allocate( Arrays.asList( s1, s2 ), capacity );
+			assertEquals( s1.numTiles() + s2.numTiles(), total );
+			assertTrue( total <= Math.max( capacity, coarsestTiles ) );
+			for ( final LineSource s : Arrays.asList( s1, s2 ) )
+				for ( int i = 0; i < s.numBlocks(); ++i )
+					assertTrue( s.levels[ i ] >= s.bestLevels[ i ] && s.levels[ i ] <= s.maxLevel );
+		}
+	}
+
+	@Test
+	public void testHeavierBlocksAreRefinedFirst()
+	{
+		final LineSource source = new LineSource( 16, 4 );
+		for ( int i = 8; i < 16; ++i )
+			source.weights[ i ] = 10;
+
+		// enough for blocks 8..15 at level 0, and one tile for blocks 0..7
+		final int total = new BlockBudgetAllocator().allocate( Collections.singletonList( source ), 9 );
+		assertEquals( 9, total );
+		for ( int i = 0; i < 8; ++i )
+			assertEquals( 3, source.levels[ i ] );
+		for ( int i = 8; i < 16; ++i )
+			assertEquals( 0, source.levels[ i ] );
+	}
+
+	@Test
+	public void testMinimumShare()
+	{
+		final int capacity = 24;
+		for ( final double minShareFraction : new double[] { 0, 0.5 } )
+		{
+			final LineSource important = new LineSource( 32, 5 );
+			Arrays.fill( important.weights, 100 );
+			final LineSource other = new LineSource( 16, 4 );
+
+			new BlockBudgetAllocator( minShareFraction ).allocate( Arrays.asList( important, other ), capacity );
+			final int minShare = ( int ) ( minShareFraction * capacity / 2 );
+			if ( minShareFraction == 0 )
+				assertTrue( other.numTiles() < 6 );
+			else
+				assertTrue( other.numTiles() >= minShare );
+		}
+	}
+
+	@Test
+	public void testFreeTilesCostNothing()
+	{
+		// the coarsest tiles are pinned: the whole capacity is left for refinement
+		final LineSource source = new LineSource( 16, 2 );
+		for ( int t = 0; t < 4; ++t )
+			source.freeTiles.add( source.tileKey( 4 * t, 2 ) );
+
+		final int total = new BlockBudgetAllocator().allocate( Collections.singletonList( source ), 4 );
+		assertEquals( 4, total );
+		assertEquals( total, source.numUsedTiles() );
+		int numRefined = 0;
+		for ( int i = 0; i < 16; ++i )
+			if ( source.levels[ i ] < 2 )
+				++numRefined;
+		assertTrue( numRefined >= 4 );
+
+		// without pinned tiles, the coarsest level fills the capacity
+		final LineSource unpinned = new LineSource( 16, 2 );
+		assertEquals( 4, new BlockBudgetAllocator().allocate( Collections.singletonList( unpinned ), 4 ) );
+		for ( int i = 0; i < 16; ++i )
+			assertEquals( 2, unpinned.levels[ i ] );
+	}
+
+	@Test
+	public void testSelectEverythingFits()
+	{
+		final List< Integer > a = new ArrayList<>( Arrays.asList( 3, 1, 2 ) );
+		final List< Integer > b = new ArrayList<>( Arrays.asList( 5, 4 ) );
+		final List< Integer > selected = new BlockBudgetAllocator().select(
+				Arrays.asList( a, b ), new int[] { 1, 2 }, Comparator.naturalOrder(), 8 );
+		assertEquals( Arrays.asList( 3, 1, 2, 5, 4 ), selected );
+	}
+
+	@Test
+	public void testSelectMinimumShare()
+	{
+		// all tasks of a are more important than those of b
+		final List< Integer > a = new ArrayList<>();
+		final List< Integer > b = new ArrayList<>();
+		for ( int i = 0; i < 10; ++i )
+		{
+			a.add( i );
+			b.add( 100 + i );
+		}
+		Collections.shuffle( a, new Random( 1 ) );
+		Collections.shuffle( b, new Random( 2 ) );
+
+		// minimum share is 0.5 * 12 / 2 = 3 tiles, b already uses 1 of them
+		final List< Integer > selected = new BlockBudgetAllocator( 0.5 ).select(
+				Arrays.asList( a, b ), new int[] { 0, 1 }, Comparator.naturalOrder(), 12 );
+		assertEquals( 11, selected.size() );
+		final Set< Integer > expected = new HashSet<>();
+		for ( int i = 0; i < 9; ++i )
+			expected.add( i );
+		expected.add( 100 );
+		expected.add( 101 );
+		assertEquals( expected, new HashSet<>( selected ) );
+
+		// without minimum share, only the most important tasks are selected
+		final List< Integer > global = new BlockBudgetAllocator( 0 ).select(
+				Arrays.asList( a, b ), new int[] { 0, 1 }, Comparator.naturalOrder(), 12 );
+		assertEquals( Arrays.asList( 0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 100 ), global );
+	}
+
+	@Test
+	public void testSelectNoCapacity()
+	{
+		final List< Integer > a = new ArrayList<>( Arrays.asList( 1, 2 ) );
+		final List< Integer > selected = new BlockBudgetAllocator().select(
+				Collections.singletonList( a ), new int[] { 5 }, Comparator.naturalOrder(), 4 );
+		assertTrue( selected.isEmpty() );
+	}
+}
@@ -0,0 +1,120 @@
+package tpietzsch.blocks;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import tpietzsch.blocks.ByteUtils.Address;
+
+/**
+ * Copy a padded block of shorts from a cell array into an upload buffer,
+ * through {@link CopySubArrayImp.ShortToAddress} with bounds checking disabled
+ * ({@code copy}) and enabled ({@code copyChecked}, which forks with
+ * {@code -Dbvv.checkBounds=true}), and with raw addresses that do not go
+ * through {@link ByteUtils#address(Address, long, long)} ({@code copyRaw}).
+ * <p>
+ * {@code copy} should be as fast as {@code copyRaw}, because with bounds
+ * checking disabled the checks are removed by the JIT.
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+public class BoundsCheckBenchmark
+{
+	@Param( { "16", "32", "64" } )
+	public int blockSize;
+
+	private int paddedBlockSize;
+
+	private int cellSize;
+
+	private short[] src;
+
+	private ByteBuffer buffer;
+
+	private Address dst;
+
+	private final CopySubArray< short[], Address > copy = new CopySubArrayImp.ShortToAddress();
+
+	@Setup
+	public void setup()
+	{
+		paddedBlockSize = blockSize + 2;
+		cellSize = 2 * blockSize;
+		src = new short[ cellSize * cellSize * cellSize ];
+		for ( int i = 0; i < src.length; ++i )
+			src[ i ] = ( short ) i;
+
+		final int sizeInBytes = 2 * paddedBlockSize * paddedBlockSize * paddedBlockSize;
+		buffer = ByteBuffer.allocateDirect( sizeInBytes );
+		final long address = ByteUtils.addressOf( buffer );
+		dst = new Address()
+		{
+			@Override
+			public long getAddress()
+			{
+				return address;
+			}
+
+			@Override
+			public long getSizeInBytes()
+			{
+				return sizeInBytes;
+			}
+		};
+	}
+
+	private void copyBlock()
+	{
+		final int p = paddedBlockSize;
+		copy.copysubarray3d( src, 3, 5, 7, cellSize, cellSize, dst, 0, 0, 0, p, p, p, p, p );
+	}
+
+	@Benchmark
+	@Fork( 1 )
+	public void copy()
+	{
+		copyBlock();
+	}
+
+	@Benchmark
+	@Fork( value = 1, jvmArgsAppend = "-Dbvv.checkBounds=true" )
+	public void copyChecked()
+	{
+		copyBlock();
+	}
+
+	@Benchmark
+	@Fork( 1 )
+	public void copyRaw()
+	{
+		final int p = paddedBlockSize;
+		final long address = dst.getAddress();
+		for ( int z = 0; z < p; ++z )
+			for ( int y = 0; y < p; ++y )
+				ByteUtils.copyShorts( src, address + 2L * ( z * p + y ) * p, ( ( z + 7 ) * cellSize + y + 5 ) * cellSize + 3, p );
+	}
+
+	public static void main( final String... args ) throws RunnerException
+	{
+		final Options options = new OptionsBuilder()
+				.include( BoundsCheckBenchmark.class.getSimpleName() )
+				.build();
+		new Runner( options ).run();
+	}
+}
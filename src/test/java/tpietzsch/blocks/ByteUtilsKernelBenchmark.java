@@ -0,0 +1,114 @@
+package tpietzsch.blocks;
+
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import sun.misc.Unsafe;
+
+/**
+ * Word-at-a-time {@link ByteUtils} kernels compared to the scalar loops they
+ * replaced (one element per iteration), on blocks of {@code blockSize^3}
+ * voxels.
+ * <p>
+ * {@code fill*} sets all shorts of a block to a value whose bytes differ (so
+ * that {@code setMemory} cannot be used), and {@code allEqual*} checks a
+ * uniform block (so that the whole block is read).
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class ByteUtilsKernelBenchmark
+{
+	private static final Unsafe UNSAFE;
+
+	static
+	{
+		try
+		{
+			final Field field = Unsafe.class.getDeclaredField( "theUnsafe" );
+			field.setAccessible( true );
+			UNSAFE = ( Unsafe ) field.get( null );
+		}
+		catch ( final Exception e )
+		{
+			throw new RuntimeException( e );
+		}
+	}
+
+	private static final short VALUE = 0x1234;
+
+	@Param( { "16", "32", "64", "128" } )
+	public int blockSize;
+
+	private int numElements;
+
+	private ByteBuffer shorts;
+
+	private long shortsAddress;
+
+	@Setup
+	public void setup()
+	{
+		numElements = blockSize * blockSize * blockSize;
+		shorts = ByteBuffer.allocateDirect( 2 * numElements );
+		shortsAddress = ByteUtils.addressOf( shorts );
+		ByteUtils.setShorts( VALUE, shortsAddress, numElements );
+	}
+
+	@Benchmark
+	public void fillScalar()
+	{
+		final long dst = shortsAddress;
+		for ( int i = 0; i < numElements; ++i )
+			UNSAFE.putShort( dst + 2 * i, VALUE );
+	}
+
+	@Benchmark
+	public void fillWords()
+	{
+		ByteUtils.setShorts( VALUE, shortsAddress, numElements );
+	}
+
+	@Benchmark
+	public boolean allEqualScalar()
+	{
+		final long src = shortsAddress;
+		final short v = UNSAFE.getShort( src );
+		for ( int i = 1; i < numElements; ++i )
+			if ( UNSAFE.getShort( src + 2 * i ) != v )
+				return false;
+		return true;
+	}
+
+	@Benchmark
+	public boolean allEqualWords()
+	{
+		return ByteUtils.allShortsEqual( shortsAddress, numElements );
+	}
+
+	public static void main( final String... args ) throws RunnerException
+	{
+		final Options options = new OptionsBuilder()
+				.include( ByteUtilsKernelBenchmark.class.getSimpleName() )
+				.build();
+		new Runner( options ).run();
+	}
+}
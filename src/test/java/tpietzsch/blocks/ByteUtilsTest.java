@@ -0,0 +1,172 @@
+package tpietzsch.blocks;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ByteUtilsTest
+{
+	private static final byte GUARD = 0x5a;
+
+	private static final int NUM_ITERATIONS = 5000;
+
+	private final ByteBuffer buffer = ByteBuffer.allocateDirect( 4096 ).order( ByteOrder.nativeOrder() );
+
+	private final long base = ByteUtils.addressOf( buffer );
+
+	private void fillGuard()
+	{
+		for ( int i = 0; i < buffer.capacity(); ++i )
+			buffer.put( i, GUARD );
+	}
+
+	/**
+	 * Check that bytes outside of {@code [from, to)} were not touched.
+	 */
+	private void checkGuard( final int from, final int to )
+	{
+		for ( int i = 0; i < from; ++i )
+			assertEquals( "guard byte " + i, GUARD, buffer.get( i ) );
+		for ( int i = to; i < buffer.capacity(); ++i )
+			assertEquals( "guard byte " + i, GUARD, buffer.get( i ) );
+	}
+
+	/*
+	 * Random (unaligned) offsets and lengths cover the head and tail of the
+	 * word-at-a-time loops.
+	 */
+
+	@Test
+	public void testSetAndCompareShorts()
+	{
+		final Random random = new Random( 1 );
+		for ( int iter = 0; iter < NUM_ITERATIONS; ++iter )
+		{
+			fillGuard();
+			final int off = random.nextInt( 32 );
+			final int n = random.nextInt( 100 );
+			final short value = ( short ) random.nextInt();
+			ByteUtils.setShorts( value, base + off, n );
+			for ( int i = 0; i < n; ++i )
+				assertEquals( value, buffer.getShort( off + 2 * i ) );
+			checkGuard( off, off + 2 * n );
+			assertTrue( ByteUtils.allShortsEqual( base + off, n ) );
+			if ( n > 1 )
+			{
+				final int i = off + 2 * random.nextInt( n );
+				buffer.putShort( i, ( short ) ( value ^ ( 1 << random.nextInt( 16 ) ) ) );
+				assertFalse( ByteUtils.allShortsEqual( base + off, n ) );
+			}
+		}
+	}
+
+	@Test
+	public void testSetAndCompareInts()
+	{
+		final Random random = new Random( 1 );
+		for ( int iter = 0; iter < NUM_ITERATIONS; ++iter )
+		{
+			fillGuard();
+			final int off = random.nextInt( 32 );
+			final int n = random.nextInt( 100 );
+			final int value = random.nextInt();
+			ByteUtils.setInts( value, base + off, n );
+			for ( int i = 0; i < n; ++i )
+				assertEquals( value, buffer.getInt( off + 4 * i ) );
+			checkGuard( off, off + 4 * n );
+			assertTrue( ByteUtils.allIntsEqual( base + off, n ) );
+			if ( n > 1 )
+			{
+				final int i = off + 4 * random.nextInt( n );
+				buffer.putInt( i, value ^ ( 1 << random.nextInt( 32 ) ) );
+				assertFalse( ByteUtils.allIntsEqual( base + off, n ) );
+			}
+		}
+	}
+
+	@Test
+	public void testSetAndCompareBytes()
+	{
+		final Random random = new Random( 1 );
+		for ( int iter = 0; iter < NUM_ITERATIONS; ++iter )
+		{
+			fillGuard();
+			final int off = random.nextInt( 32 );
+			final int n = random.nextInt( 100 );
+			final byte value = ( byte ) random.nextInt();
+			ByteUtils.setBytes( value, base + off, n );
+			for ( int i = 0; i < n; ++i )
+				assertEquals( value, buffer.get( off + i ) );
+			checkGuard( off, off + n );
+			assertTrue( ByteUtils.allBytesEqual( base + off, n ) );
+			if ( n > 1 )
+			{
+				final int i = off + random.nextInt( n );
+				buffer.put( i, ( byte ) ( value ^ ( 1 << random.nextInt( 8 ) ) ) );
+				assertFalse( ByteUtils.allBytesEqual( base + off, n ) );
+			}
+		}
+	}
+
+	@Test
+	public void testHashDoesNotDependOnAddress()
+	{
+		final Random random = new Random( 1 );
+		final byte[] data = new byte[ 100 ];
+		random.nextBytes( data );
+		for ( int n = 0; n <= data.length; ++n )
+		{
+			for ( int i = 0; i < n; ++i )
+				buffer.put( i, data[ i ] );
+			final long expected = ByteUtils.hash( base, n );
+			for ( int offset = 1; offset < 16; ++offset )
+			{
+				for ( int i = 0; i < n; ++i )
+					buffer.put( 1000 + offset + i, data[ i ] );
+				assertEquals( "length " + n + ", offset " + offset, expected, ByteUtils.hash( base + 1000 + offset, n ) );
+			}
+		}
+	}
+
+	@Test
+	public void testHashDependsOnEveryBit()
+	{
+		final Random random = new Random( 1 );
+		for ( final int n : new int[] { 1, 7, 8, 9, 16, 17, 100 } )
+		{
+			for ( int i = 0; i < n; ++i )
+				buffer.put( i, ( byte ) random.nextInt() );
+			final long h = ByteUtils.hash( base, n );
+			for ( int i = 0; i < n; ++i )
+			{
+				for ( int bit = 0; bit < 8; ++bit )
+				{
+					final byte b = buffer.get( i );
+					buffer.put( i, ( byte ) ( b ^ ( 1 << bit ) ) );
+					assertNotEquals( "length " + n + ", byte " + i + ", bit " + bit, h, ByteUtils.hash( base, n ) );
+					buffer.put( i, b );
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testHashDependsOnLength()
+	{
+		// all zeros: only the length differs
+		for ( int i = 0; i < 64; ++i )
+			buffer.put( i, ( byte ) 0 );
+		final Set< Long > hashes = new HashSet<>();
+		for ( int n = 0; n <= 64; ++n )
+			hashes.add( ByteUtils.hash( base, n ) );
+		assertEquals( 65, hashes.size() );
+	}
+}
@@ -0,0 +1,192 @@
+package tpietzsch.blocks;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import tpietzsch.blocks.ByteUtils.Address;
+
+/**
+ * Copy a batch of 4x4x4 neighboring padded blocks (of size {@code 32^3 + 1}
+ * voxel padding) from a cell grid, with cells that are aligned with the blocks
+ * ({@code cellSize = 32}) or not ({@code cellSize = 48}).
+ * <p>
+ * {@code cellCache} copies the batch with one {@link CopyGridBlock}, so cells
+ * shared by neighboring blocks are fetched once. {@code noCellCache} clears the
+ * cell cache before each block.
+ * <p>
+ * Cells are looked up in a {@code ConcurrentHashMap} with boxed keys, like in
+ * the imglib2 cache that backs {@code TileAccess}.
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class CopyGridBlockBenchmark
+{
+	private static final int BLOCK_SIZE = 32;
+
+	private static final int PADDED_BLOCK_SIZE = BLOCK_SIZE + 2;
+
+	private static final int BATCH_SIZE = 4;
+
+	@Param( { "32", "48" } )
+	public int cellSize;
+
+	private GridDataAccess< short[] > grid;
+
+	private ByteBuffer buffer;
+
+	private Address dst;
+
+	private final CopyGridBlock gridBlock = new CopyGridBlock();
+
+	private final CopySubArray< short[], Address > copy = new CopySubArrayImp.ShortToAddress();
+
+	private final int[] min = new int[ 3 ];
+
+	private final int[] dim = { PADDED_BLOCK_SIZE, PADDED_BLOCK_SIZE, PADDED_BLOCK_SIZE };
+
+	@Setup
+	public void setup()
+	{
+		final int s = 192;
+		grid = new CachedGridDataAccess( new TestGridDataAccess( new int[] { s, s, s }, new int[] { cellSize, cellSize, cellSize } ) );
+		buffer = ByteBuffer.allocateDirect( 2 * PADDED_BLOCK_SIZE * PADDED_BLOCK_SIZE * PADDED_BLOCK_SIZE );
+		final long address = ByteUtils.addressOf( buffer );
+		dst = () -> address;
+	}
+
+	/**
+	 * Looks up cells of a {@link TestGridDataAccess} in a map.
+	 */
+	static class CachedGridDataAccess implements GridDataAccess< short[] >
+	{
+		private final TestGridDataAccess source;
+
+		private final int[] gridSize = new int[ 3 ];
+
+		private final ConcurrentHashMap< Long, short[] > cells = new ConcurrentHashMap<>();
+
+		private final int[] position = new int[ 3 ];
+
+		CachedGridDataAccess( final TestGridDataAccess source )
+		{
+			this.source = source;
+			for ( int d = 0; d < 3; ++d )
+				gridSize[ d ] = ( source.imgSize( d ) + source.cellSize( d ) - 1 ) / source.cellSize( d );
+			for ( int z = 0; z < gridSize[ 2 ]; ++z )
+				for ( int y = 0; y < gridSize[ 1 ]; ++y )
+					for ( int x = 0; x < gridSize[ 0 ]; ++x )
+					{
+						source.setPosition( new int[] { x, y, z } );
+						cells.put( index( x, y, z ), source.get() );
+					}
+		}
+
+		private long index( final int x, final int y, final int z )
+		{
+			return ( ( long ) z * gridSize[ 1 ] + y ) * gridSize[ 0 ] + x;
+		}
+
+		@Override
+		public void fwd( final int d )
+		{
+			++position[ d ];
+		}
+
+		@Override
+		public void setPosition( final int position, final int d )
+		{
+			this.position[ d ] = position;
+		}
+
+		@Override
+		public void setPosition( final int[] position )
+		{
+			System.arraycopy( position, 0, this.position, 0, 3 );
+		}
+
+		@Override
+		public int[] getPosition()
+		{
+			return position.clone();
+		}
+
+		@Override
+		public short[] get()
+		{
+			return cells.get( index( position[ 0 ], position[ 1 ], position[ 2 ] ) );
+		}
+
+		@Override
+		public int cellSize( final int d )
+		{
+			return source.cellSize( d );
+		}
+
+		@Override
+		public int cellSize( final int d, final int cellGridPosition )
+		{
+			return source.cellSize( d, cellGridPosition );
+		}
+
+		@Override
+		public int imgSize( final int d )
+		{
+			return source.imgSize( d );
+		}
+	}
+
+	private void copyBatch( final boolean clearCellCache )
+	{
+		gridBlock.clearCellCache();
+		for ( int z = 1; z <= BATCH_SIZE; ++z )
+			for ( int y = 1; y <= BATCH_SIZE; ++y )
+				for ( int x = 1; x <= BATCH_SIZE; ++x )
+				{
+					if ( clearCellCache )
+						gridBlock.clearCellCache();
+					min[ 0 ] = x * BLOCK_SIZE - 1;
+					min[ 1 ] = y * BLOCK_SIZE - 1;
+					min[ 2 ] = z * BLOCK_SIZE - 1;
+					gridBlock.copy( min, dim, dst, grid, copy );
+				}
+	}
+
+	@Benchmark
+	public void cellCache()
+	{
+		copyBatch( false );
+	}
+
+	@Benchmark
+	public void noCellCache()
+	{
+		copyBatch( true );
+	}
+
+	public static void main( final String... args ) throws RunnerException
+	{
+		final Options options = new OptionsBuilder()
+				.include( CopyGridBlockBenchmark.class.getSimpleName() )
+				.build();
+		new Runner( options ).run();
+	}
+}
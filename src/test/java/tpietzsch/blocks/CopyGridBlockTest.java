@@ -0,0 +1,456 @@
+package tpietzsch.blocks;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.IntUnaryOperator;
+import org.junit.Test;
+import tpietzsch.blocks.ByteUtils.Address;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Check {@link CopyGridBlock} against a per-voxel reference, for random
+ * aligned, misaligned, and out-of-bounds blocks, including invalid cells.
+ * Cells of {@code short[]}, {@code byte[]}, {@code int[]} (ARGB), and
+ * {@code float[]} are checked, as well as {@link CopyGridBlock#isUniform()}.
+ */
+public class CopyGridBlockTest
+{
+	private static final int MAX_BLOCK_SIZE = 40;
+
+	private final ByteBuffer buffer = ByteBuffer.allocateDirect( 4 * MAX_BLOCK_SIZE * MAX_BLOCK_SIZE * MAX_BLOCK_SIZE ).order( ByteOrder.nativeOrder() );
+
+	private final Address dst = () -> ByteUtils.addressOf( buffer );
+
+	private final CopySubArray< short[], Address > copy = new CopySubArrayImp.ShortToAddress();
+
+	/**
+	 * Element type of the cells. Elements are derived from the {@code short}
+	 * values of {@link TestGridDataAccess}, and compared by their bits.
+	 */
+	static abstract class CellType< A >
+	{
+		final String name;
+
+		final CopySubArray< A, Address > copy;
+
+		CellType( final String name, final CopySubArray< A, Address > copy )
+		{
+			this.name = name;
+			this.copy = copy;
+		}
+
+		/**
+		 * @return cell of elements derived from the {@code values}.
+		 */
+		abstract A cell( short[] values, IntUnaryOperator map );
+
+		/**
+		 * @return bits of the element derived from {@code value}.
+		 */
+		abstract int element( int value );
+
+		/**
+		 * @return bits of the {@code i}-th element in {@code buffer}.
+		 */
+		abstract int read( ByteBuffer buffer, int i );
+	}
+
+	static final CellType< short[] > SHORTS = new CellType< short[] >( "short", new CopySubArrayImp.ShortToAddress() )
+	{
+		@Override
+		short[] cell( final short[] values, final IntUnaryOperator map )
+		{
+			final short[] cell = new short[ values.length ];
+			for ( int i = 0; i < values.length; ++i )
+				cell[ i ] = ( short ) element( map.applyAsInt( values[ i ] ) );
+			return cell;
+		}
+
+		@Override
+		int element( final int value )
+		{
+			return ( short ) value;
+		}
+
+		@Override
+		int read( final ByteBuffer buffer, final int i )
+		{
+			return buffer.getShort( 2 * i );
+		}
+	};
+
+	static final CellType< byte[] > BYTES = new CellType< byte[] >( "byte", new CopySubArrayImp.ByteToAddress() )
+	{
+		@Override
+		byte[] cell( final short[] values, final IntUnaryOperator map )
+		{
+			final byte[] cell = new byte[ values.length ];
+			for ( int i = 0; i < values.length; ++i )
+				cell[ i ] = ( byte ) element( map.applyAsInt( values[ i ] ) );
+			return cell;
+		}
+
+		@Override
+		int element( final int value )
+		{
+			return ( byte ) ( value ^ ( value >> 8 ) );
+		}
+
+		@Override
+		int read( final ByteBuffer buffer, final int i )
+		{
+			return buffer.get( i );
+		}
+	};
+
+	static final CellType< int[] > INTS = new CellType< int[] >( "int", new CopySubArrayImp.IntToAddress() )
+	{
+		@Override
+		int[] cell( final short[] values, final IntUnaryOperator map )
+		{
+			final int[] cell = new int[ values.length ];
+			for ( int i = 0; i < values.length; ++i )
+				cell[ i ] = element( map.applyAsInt( values[ i ] ) );
+			return cell;
+		}
+
+		@Override
+		int element( final int value )
+		{
+			// spread over all channels (including alpha and the sign bit)
+			return value * 0x9e3779b1;
+		}
+
+		@Override
+		int read( final ByteBuffer buffer, final int i )
+		{
+			return buffer.getInt( 4 * i );
+		}
+	};
+
+	static final CellType< float[] > FLOATS = new CellType< float[] >( "float", new CopySubArrayImp.FloatToAddress() )
+	{
+		@Override
+		float[] cell( final short[] values, final IntUnaryOperator map )
+		{
+			final float[] cell = new float[ values.length ];
+			for ( int i = 0; i < values.length; ++i )
+				cell[ i ] = Float.intBitsToFloat( element( map.applyAsInt( values[ i ] ) ) );
+			return cell;
+		}
+
+		@Override
+		int element( final int value )
+		{
+			return Float.floatToRawIntBits( value == 0 ? 0 : value * 0.25f - 1000 );
+		}
+
+		@Override
+		int read( final ByteBuffer buffer, final int i )
+		{
+			return buffer.getInt( 4 * i );
+		}
+	};
+
+	static final List< CellType< ? > > CELL_TYPES = Arrays.asList( SHORTS, BYTES, INTS, FLOATS );
+
+	/**
+	 * {@link TestGridDataAccess} with cells converted to {@code CellType}.
+	 * The value {@code v} of a voxel is mapped to the element derived from
+	 * {@code map(v)}. Converted cells are kept, so that {@link #get()}
+	 * returns the same array for the same cell.
+	 */
+	static class ConvertedGridDataAccess< A > implements GridDataAccess< A >
+	{
+		final TestGridDataAccess source;
+
+		final CellType< A > type;
+
+		final IntUnaryOperator map;
+
+		private final Map< short[], A > cells = new IdentityHashMap<>();
+
+		ConvertedGridDataAccess( final TestGridDataAccess source, final CellType< A > type, final IntUnaryOperator map )
+		{
+			this.source = source;
+			this.type = type;
+			this.map = map;
+		}
+
+		/**
+		 * @return bits of the element of voxel {@code (x, y, z)}.
+		 */
+		int element( final int x, final int y, final int z )
+		{
+			return type.element( map.applyAsInt( TestGridDataAccess.value( x, y, z ) ) );
+		}
+
+		@Override
+		public void fwd( final int d )
+		{
+			source.fwd( d );
+		}
+
+		@Override
+		public void setPosition( final int position, final int d )
+		{
+			source.setPosition( position, d );
+		}
+
+		@Override
+		public void setPosition( final int[] position )
+		{
+			source.setPosition( position );
+		}
+
+		@Override
+		public int[] getPosition()
+		{
+			return source.getPosition();
+		}
+
+		@Override
+		public A get()
+		{
+			final short[] values = source.get();
+			return values == null ? null : cells.computeIfAbsent( values, v -> type.cell( v, map ) );
+		}
+
+		@Override
+		public int cellSize( final int d )
+		{
+			return source.cellSize( d );
+		}
+
+		@Override
+		public int cellSize( final int d, final int cellGridPosition )
+		{
+			return source.cellSize( d, cellGridPosition );
+		}
+
+		@Override
+		public int imgSize( final int d )
+		{
+			return source.imgSize( d );
+		}
+	}
+
+	/**
+	 * Check that {@code buffer} contains the {@code dim} block at {@code min}
+	 * of {@code grid}, with zeros for voxels outside the image or in invalid
+	 * cells.
+	 *
+	 * @return whether the block is complete, i.e., has no voxels in invalid
+	 *         cells.
+	 */
+	private boolean verify( final TestGridDataAccess grid, final int[] min, final int[] dim )
+	{
+		return verify( new ConvertedGridDataAccess<>( grid, SHORTS, v -> v ), min, dim, null );
+	}
+
+	/**
+	 * Check that {@code buffer} contains the {@code dim} block at {@code min}
+	 * of {@code grid}, with zeros for voxels outside the image or in invalid
+	 * cells.
+	 *
+	 * @param uniform
+	 *            if not {@code null}, {@code uniform[0]} is set to whether
+	 *            all elements of the block are equal.
+	 * @return whether the block is complete, i.e., has no voxels in invalid
+	 *         cells.
+	 */
+	private boolean verify( final ConvertedGridDataAccess< ? > grid, final int[] min, final int[] dim, final boolean[] uniform )
+	{
+		final TestGridDataAccess source = grid.source;
+		boolean complete = true;
+		boolean allEqual = true;
+		int first = 0;
+		for ( int z = 0; z < dim[ 2 ]; ++z )
+			for ( int y = 0; y < dim[ 1 ]; ++y )
+				for ( int x = 0; x < dim[ 0 ]; ++x )
+				{
+					final int gx = min[ 0 ] + x;
+					final int gy = min[ 1 ] + y;
+					final int gz = min[ 2 ] + z;
+					int expected = 0;
+					if ( gx >= 0 && gy >= 0 && gz >= 0 && gx < source.imgSize( 0 ) && gy < source.imgSize( 1 ) && gz < source.imgSize( 2 ) )
+					{
+						if ( source.isValid( gx, gy, gz ) )
+							expected = grid.element( gx, gy, gz );
+						else
+							complete = false;
+					}
+					final int i = ( z * dim[ 1 ] + y ) * dim[ 0 ] + x;
+					final int actual = grid.type.read( buffer, i );
+					assertEquals( grid.type.name + " voxel (" + x + ", " + y + ", " + z + ") of block at (" + min[ 0 ] + ", " + min[ 1 ] + ", " + min[ 2 ] + ")", expected, actual );
+					if ( i == 0 )
+						first = expected;
+					else
+						allEqual &= expected == first;
+				}
+		if ( uniform != null )
+			uniform[ 0 ] = allEqual;
+		return complete;
+	}
+
+	@Test
+	public void testRandomBlocks()
+	{
+		for ( final CellType< ? > type : CELL_TYPES )
+			testRandomBlocks( type );
+	}
+
+	private < A > void testRandomBlocks( final CellType< A > type )
+	{
+		final Random random = new Random( 3 );
+		final boolean[] uniform = new boolean[ 1 ];
+		for ( int iter = 0; iter < 1000; ++iter )
+		{
+			final int[] imgSize = { 1 + random.nextInt( 60 ), 1 + random.nextInt( 60 ), 1 + random.nextInt( 60 ) };
+			final boolean aligned = random.nextBoolean();
+			final int[] cellSize = aligned
+					? new int[] { 16, 16, 16 }
+					: new int[] { 1 + random.nextInt( 20 ), 1 + random.nextInt( 20 ), 1 + random.nextInt( 20 ) };
+			final TestGridDataAccess source = new TestGridDataAccess( imgSize, cellSize );
+			if ( random.nextInt( 3 ) == 0 )
+				for ( int z = 0; z < imgSize[ 2 ]; z += cellSize[ 2 ] )
+					for ( int y = 0; y < imgSize[ 1 ]; y += cellSize[ 1 ] )
+						for ( int x = 0; x < imgSize[ 0 ]; x += cellSize[ 0 ] )
+							if ( random.nextInt( 4 ) == 0 )
+								source.invalidate( x, y, z );
+			final ConvertedGridDataAccess< A > grid = new ConvertedGridDataAccess<>( source, type, v -> v );
+
+			// blocks are copied by the same CopyGridBlock, so that cached cells are reused
+			final CopyGridBlock gridBlock = new CopyGridBlock();
+			for ( int i = 0; i < 8; ++i )
+			{
+				final int[] min;
+				final int[] dim;
+				if ( aligned && random.nextBoolean() )
+				{
+					// padded block of size 16 aligned with the cells
+					min = new int[] { 16 * random.nextInt( 4 ) - 1, 16 * random.nextInt( 4 ) - 1, 16 * random.nextInt( 4 ) - 1 };
+					dim = new int[] { 18, 18, 18 };
+				}
+				else
+				{
+					min = new int[] { random.nextInt( 80 ) - 20, random.nextInt( 80 ) - 20, random.nextInt( 80 ) - 20 };
+					dim = random.nextBoolean()
+							// within a single cell (if min is aligned)
+							? new int[] { 1 + random.nextInt( cellSize[ 0 ] ), 1 + random.nextInt( cellSize[ 1 ] ), 1 + random.nextInt( cellSize[ 2 ] ) }
+							: new int[] { 1 + random.nextInt( MAX_BLOCK_SIZE ), 1 + random.nextInt( MAX_BLOCK_SIZE ), 1 + random.nextInt( MAX_BLOCK_SIZE ) };
+				}
+
+				final boolean complete = gridBlock.copy( min, dim, dst, grid, type.copy );
+				final boolean expectedComplete = verify( grid, min, dim, uniform );
+				assertEquals( type.name + " complete", expectedComplete, complete );
+				assertEquals( type.name + " canLoadCompletely", expectedComplete, gridBlock.canLoadCompletely( min, dim, grid, false ) );
+				assertEquals( type.name + " uniform", expectedComplete && uniform[ 0 ], gridBlock.isUniform() );
+			}
+		}
+	}
+
+	/**
+	 * Blocks of cells with a constant value, where optionally a single voxel
+	 * (at a random position, including the last element of the block)
+	 * differs.
+	 */
+	@Test
+	public void testUniformBlocks()
+	{
+		for ( final CellType< ? > type : CELL_TYPES )
+			testUniformBlocks( type );
+	}
+
+	private < A > void testUniformBlocks( final CellType< A > type )
+	{
+		final Random random = new Random( 4 );
+		final boolean[] uniform = new boolean[ 1 ];
+		final int[] imgSize = { 50, 50, 50 };
+		final TestGridDataAccess source = new TestGridDataAccess( imgSize, new int[] { 16, 16, 16 } );
+		for ( int iter = 0; iter < 500; ++iter )
+		{
+			final int[] dim = { 1 + random.nextInt( MAX_BLOCK_SIZE ), 1 + random.nextInt( MAX_BLOCK_SIZE ), 1 + random.nextInt( MAX_BLOCK_SIZE ) };
+			final int[] min = new int[ 3 ];
+			for ( int d = 0; d < 3; ++d )
+				min[ d ] = random.nextInt( 4 ) == 0
+						? random.nextInt( 80 ) - 20 // possibly (partially) out of bounds
+						: random.nextInt( imgSize[ d ] - dim[ d ] + 1 > 0 ? imgSize[ d ] - dim[ d ] + 1 : 1 );
+
+			final int constant = 1 + random.nextInt( 1000 );
+			final int differing;
+			switch ( random.nextInt( 3 ) )
+			{
+			case 0:
+				differing = -1;
+				break;
+			case 1:
+				// the last element of the block
+				differing = TestGridDataAccess.value( min[ 0 ] + dim[ 0 ] - 1, min[ 1 ] + dim[ 1 ] - 1, min[ 2 ] + dim[ 2 ] - 1 );
+				break;
+			default:
+				differing = TestGridDataAccess.value( min[ 0 ] + random.nextInt( dim[ 0 ] ), min[ 1 ] + random.nextInt( dim[ 1 ] ), min[ 2 ] + random.nextInt( dim[ 2 ] ) );
+				break;
+			}
+			final ConvertedGridDataAccess< A > grid = new ConvertedGridDataAccess<>( source, type, v -> v == differing ? constant + 1 : constant );
+
+			final CopyGridBlock gridBlock = new CopyGridBlock();
+			final boolean complete = gridBlock.copy( min, dim, dst, grid, type.copy );
+			assertTrue( complete );
+			assertTrue( verify( grid, min, dim, uniform ) );
+			assertEquals( type.name + " uniform", uniform[ 0 ], gridBlock.isUniform() );
+		}
+	}
+
+	@Test
+	public void testCellsAreReused()
+	{
+		final TestGridDataAccess grid = new TestGridDataAccess( new int[] { 64, 64, 64 }, new int[] { 16, 16, 16 } );
+		final CopyGridBlock gridBlock = new CopyGridBlock();
+		final int[] dim = { 18, 18, 18 };
+
+		// each padded block touches 3x3x3 cells
+		final int[] min = { 15, 15, 15 };
+		assertTrue( gridBlock.copy( min, dim, dst, grid, copy ) );
+		assertEquals( 27, grid.numGets );
+
+		// 2x2x2 padded blocks touch 4x4x4 cells, some of which are cached
+		grid.numGets = 0;
+		for ( int z = 0; z < 2; ++z )
+			for ( int y = 0; y < 2; ++y )
+				for ( int x = 0; x < 2; ++x )
+				{
+					final int[] bmin = { 16 * x + 15, 16 * y + 15, 16 * z + 15 };
+					assertTrue( gridBlock.copy( bmin, dim, dst, grid, copy ) );
+					verify( grid, bmin, dim );
+				}
+		assertTrue( "cells fetched: " + grid.numGets, grid.numGets < 8 * 27 );
+
+		// after clearing the cache, all cells are fetched again
+		gridBlock.clearCellCache();
+		grid.numGets = 0;
+		assertTrue( gridBlock.copy( min, dim, dst, grid, copy ) );
+		assertEquals( 27, grid.numGets );
+	}
+
+	@Test
+	public void testInvalidCellsAreFetchedAgain()
+	{
+		final TestGridDataAccess grid = new TestGridDataAccess( new int[] { 32, 32, 32 }, new int[] { 16, 16, 16 } );
+		grid.invalidate( 0, 0, 0 );
+		final CopyGridBlock gridBlock = new CopyGridBlock();
+		final int[] min = { 0, 0, 0 };
+		final int[] dim = { 8, 8, 8 };
+
+		assertEquals( false, gridBlock.copy( min, dim, dst, grid, copy ) );
+		assertEquals( false, gridBlock.copy( min, dim, dst, grid, copy ) );
+		assertEquals( 2, grid.numGets );
+	}
+}
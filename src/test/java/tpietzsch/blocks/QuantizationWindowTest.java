@@ -0,0 +1,98 @@
+package tpietzsch.blocks;
+
+import java.nio.ByteBuffer;
+import org.junit.Test;
+import tpietzsch.blocks.ByteUtils.Address;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class QuantizationWindowTest
+{
+	private static int quantize( final QuantizationWindow window, final int value )
+	{
+		return window.lut()[ value ] & 0xff;
+	}
+
+	@Test
+	public void testLut()
+	{
+		final QuantizationWindow window = new QuantizationWindow( 1000, 2020 );
+		assertEquals( 0, quantize( window, 0 ) );
+		assertEquals( 0, quantize( window, 1000 ) );
+		assertEquals( 1, quantize( window, 1004 ) );
+		assertEquals( 128, quantize( window, 1512 ) );
+		assertEquals( 255, quantize( window, 2020 ) );
+		assertEquals( 255, quantize( window, 0xffff ) );
+	}
+
+	@Test
+	public void testEmptyWindow()
+	{
+		final QuantizationWindow window = new QuantizationWindow( 100, 100 );
+		assertEquals( 101, window.max(), 0 );
+		assertEquals( 0, quantize( window, 100 ) );
+		assertEquals( 255, quantize( window, 101 ) );
+	}
+
+	@Test
+	public void testForDisplayRange()
+	{
+		QuantizationWindow window = QuantizationWindow.forDisplayRange( 1000, 3000 );
+		assertEquals( 500, window.min(), 0 );
+		assertEquals( 3500, window.max(), 0 );
+
+		// clipped to unsigned short range
+		window = QuantizationWindow.forDisplayRange( -100, 70000 );
+		assertEquals( 0, window.min(), 0 );
+		assertEquals( 0xffff, window.max(), 0 );
+	}
+
+	@Test
+	public void testNeedsUpdate()
+	{
+		final QuantizationWindow window = QuantizationWindow.forDisplayRange( 1000, 3000 );
+		assertFalse( window.needsUpdate( 1000, 3000 ) );
+		assertFalse( window.needsUpdate( 600, 3400 ) );
+
+		// outside the window
+		assertTrue( window.needsUpdate( 400, 3000 ) );
+		assertTrue( window.needsUpdate( 1000, 3600 ) );
+
+		// narrower than half of the window
+		assertFalse( window.needsUpdate( 1000, 2500 ) );
+		assertTrue( window.needsUpdate( 1000, 2400 ) );
+	}
+
+	@Test
+	public void testVersion()
+	{
+		final QuantizationWindow w1 = new QuantizationWindow( 0, 100 );
+		final QuantizationWindow w2 = new QuantizationWindow( 0, 100 );
+		assertTrue( w2.version() > w1.version() );
+	}
+
+	@Test
+	public void testQuantizedCopy()
+	{
+		final QuantizationWindow window = new QuantizationWindow( 1000, 2020 );
+		final CopySubArray< short[], Address > copy = new CopySubArrayImp.ShortToAddressQuantized( window.lut() );
+
+		// copy the inner 3x3x3 of a 5x5x5 source, with values up to 65535
+		final short[] src = new short[ 5 * 5 * 5 ];
+		for ( int i = 0; i < src.length; ++i )
+			src[ i ] = ( short ) ( i * 531 );
+		final ByteBuffer buffer = ByteBuffer.allocateDirect( 3 * 3 * 3 );
+		final Address dst = () -> ByteUtils.addressOf( buffer );
+		copy.copysubarray3d( src, 1, 1, 1, 5, 5, dst, 0, 0, 0, 3, 3, 3, 3, 3 );
+
+		for ( int z = 0; z < 3; ++z )
+			for ( int y = 0; y < 3; ++y )
+				for ( int x = 0; x < 3; ++x )
+				{
+					final int v = src[ ( ( z + 1 ) * 5 + y + 1 ) * 5 + x + 1 ] & 0xffff;
+					assertEquals( quantize( window, v ), buffer.get( ( z * 3 + y ) * 3 + x ) & 0xff );
+				}
+	}
+}
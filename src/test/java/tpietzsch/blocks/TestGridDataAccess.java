@@ -0,0 +1,126 @@
+package tpietzsch.blocks;
+
+/**
+ * {@link GridDataAccess} to a 3D image of shorts, where voxel {@code (x, y, z)}
+ * has value {@link #value(int, int, int)}. Cells can be marked invalid, and the
+ * number of {@link #get()} calls is counted.
+ */
+class TestGridDataAccess implements GridDataAccess< short[] >
+{
+	private final int[] imgSize;
+
+	private final int[] cellSize;
+
+	private final int[] gridSize;
+
+	private final short[][] cells;
+
+	private final boolean[] invalid;
+
+	private final int[] position = new int[ 3 ];
+
+	int numGets;
+
+	TestGridDataAccess( final int[] imgSize, final int[] cellSize )
+	{
+		this.imgSize = imgSize.clone();
+		this.cellSize = cellSize.clone();
+		gridSize = new int[ 3 ];
+		for ( int d = 0; d < 3; ++d )
+			gridSize[ d ] = ( imgSize[ d ] + cellSize[ d ] - 1 ) / cellSize[ d ];
+		cells = new short[ gridSize[ 0 ] * gridSize[ 1 ] * gridSize[ 2 ] ][];
+		invalid = new boolean[ cells.length ];
+		for ( int gz = 0; gz < gridSize[ 2 ]; ++gz )
+			for ( int gy = 0; gy < gridSize[ 1 ]; ++gy )
+				for ( int gx = 0; gx < gridSize[ 0 ]; ++gx )
+				{
+					final int sx = cellSize( 0, gx );
+					final int sy = cellSize( 1, gy );
+					final int sz = cellSize( 2, gz );
+					final short[] data = new short[ sx * sy * sz ];
+					for ( int z = 0; z < sz; ++z )
+						for ( int y = 0; y < sy; ++y )
+							for ( int x = 0; x < sx; ++x )
+								data[ ( z * sy + y ) * sx + x ] = value( gx * cellSize[ 0 ] + x, gy * cellSize[ 1 ] + y, gz * cellSize[ 2 ] + z );
+					cells[ cellIndex( gx, gy, gz ) ] = data;
+				}
+	}
+
+	static short value( final int x, final int y, final int z )
+	{
+		return ( short ) ( 1 + x + 37 * y + 1013 * z );
+	}
+
+	/**
+	 * Make the cell containing voxel {@code (x, y, z)} invalid, so that
+	 * {@link #get()} returns {@code null}.
+	 */
+	void invalidate( final int x, final int y, final int z )
+	{
+		invalid[ cellIndex( x / cellSize[ 0 ], y / cellSize[ 1 ], z / cellSize[ 2 ] ) ] = true;
+	}
+
+	/**
+	 * @return whether voxel {@code (x, y, z)} is inside the image and in a
+	 *         valid cell.
+	 */
+	boolean isValid( final int x, final int y, final int z )
+	{
+		return !invalid[ cellIndex( x / cellSize[ 0 ], y / cellSize[ 1 ], z / cellSize[ 2 ] ) ];
+	}
+
+	private int cellIndex( final int gx, final int gy, final int gz )
+	{
+		return ( gz * gridSize[ 1 ] + gy ) * gridSize[ 0 ] + gx;
+	}
+
+	@Override
+	public void fwd( final int d )
+	{
+		++position[ d ];
+	}
+
+	@Override
+	public void setPosition( final int position, final int d )
+	{
+		this.position[ d ] = position;
+	}
+
+	@Override
+	public void setPosition( final int[] position )
+	{
+		System.arraycopy( position, 0, this.position, 0, 3 );
+	}
+
+	@Override
+	public int[] getPosition()
+	{
+		return position.clone();
+	}
+
+	@Override
+	public short[] get()
+	{
+		++numGets;
+		final int i = cellIndex( position[ 0 ], position[ 1 ], position[ 2 ] );
+		return invalid[ i ] ? null : cells[ i ];
+	}
+
+	@Override
+	public int cellSize( final int d )
+	{
+		return cellSize[ d ];
+	}
+
+	@Override
+	public int cellSize( final int d, final int cellGridPosition )
+	{
+		return Math.min( cellSize[ d ], imgSize[ d ] - cellGridPosition * cellSize[ d ] );
+	}
+
+	@Override
+	public int imgSize( final int d )
+	{
+		return imgSize[ d ];
+	}
+}
@@ -0,0 +1,101 @@
+package tpietzsch.cache;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import tpietzsch.backend.HeadlessGpuContext;
+import tpietzsch.backend.Texture3D;
+import tpietzsch.blocks.ByteUtils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static tpietzsch.backend.Texture.InternalFormat.R16;
+
+/**
+ * Load identical (non-uniform) blocks into a {@link TextureCache} in a
+ * {@link HeadlessGpuContext}, with and without content hash deduplication.
+ */
+public class ContentHashDedupTest
+{
+	private static final CacheSpec SPEC = new CacheSpec( R16, 2, 2, 2 );
+
+	private static final int NUM_ELEMENTS = 4 * 4 * 4;
+
+	private final Object image = new Object();
+
+	/**
+	 * Task for block {@code (x, 0, 0)}, filled with {@code value}, except for
+	 * the first element (so that the block is not uniform).
+	 */
+	private FillTask task( final int x, final short value )
+	{
+		return new DefaultFillTask( new ImageBlockKey<>( image, x, 0, 0 ), buf -> {
+			ByteUtils.setShorts( value, buf.getAddress(), NUM_ELEMENTS );
+			ByteUtils.setShorts( ( short ) 7, buf.getAddress(), 1 );
+			if ( buf.isContentHashRequested() )
+				buf.setContentHash( ByteUtils.hash( buf.getAddress(), 2 * NUM_ELEMENTS ) );
+			return true;
+		}, () -> true );
+	}
+
+	private static void load( final TextureCache cache, final PboChain chain, final HeadlessGpuContext context, final FillTask... tasks ) throws InterruptedException
+	{
+		final List< FillTask > list = new ArrayList<>();
+		for ( final FillTask task : tasks )
+			list.add( task );
+		ProcessFillTasks.sequential( cache, chain, context, list );
+		final int timestamp = cache.nextTimestamp();
+		for ( final FillTask task : list )
+			cache.get( task.getKey() ).useAtTimestamp( timestamp );
+	}
+
+	private int value( final TextureCache cache, final HeadlessGpuContext context, final int x )
+	{
+		final TextureCache.Tile tile = cache.get( new ImageBlockKey<>( image, x, 0, 0 ) );
+		assertNotNull( "block " + x, tile );
+		final Texture3D page = cache.getPage( tile.page() );
+		final ByteBuffer data = context.getTextureData( page ).order( ByteOrder.nativeOrder() );
+		final int tx = tile.x() * 4 + 1;
+		final int ty = tile.y() * 4 + 1;
+		final int tz = tile.z() * 4 + 1;
+		return data.getShort( ( ( tz * page.texHeight() + ty ) * page.texWidth() + tx ) * 2 );
+	}
+
+	@Test
+	public void testIdenticalBlocksShareTile() throws InterruptedException
+	{
+		final TextureCache cache = new TextureCache( new int[] { 5, 5, 5 }, SPEC );
+		cache.setContentHashDedup( true );
+		final PboChain chain = new PboChain( 3, 7, cache );
+		final HeadlessGpuContext context = new HeadlessGpuContext();
+
+		load( cache, chain, context, task( 0, ( short ) 3 ), task( 1, ( short ) 4 ) );
+		assertEquals( 0, cache.getNumContentAliasedUploads() );
+
+		// block 2 has the same content as block 0
+		load( cache, chain, context, task( 2, ( short ) 3 ) );
+		assertSame( cache.get( new ImageBlockKey<>( image, 0, 0, 0 ) ), cache.get( new ImageBlockKey<>( image, 2, 0, 0 ) ) );
+		assertNotSame( cache.get( new ImageBlockKey<>( image, 1, 0, 0 ) ), cache.get( new ImageBlockKey<>( image, 2, 0, 0 ) ) );
+		assertEquals( 1, cache.getNumContentAliasedUploads() );
+		assertEquals( 3, value( cache, context, 2 ) );
+		assertEquals( 4, value( cache, context, 1 ) );
+	}
+
+	@Test
+	public void testDisabled() throws InterruptedException
+	{
+		final TextureCache cache = new TextureCache( new int[] { 5, 5, 5 }, SPEC );
+		final PboChain chain = new PboChain( 3, 7, cache );
+		final HeadlessGpuContext context = new HeadlessGpuContext();
+
+		load( cache, chain, context, task( 0, ( short ) 3 ) );
+		load( cache, chain, context, task( 2, ( short ) 3 ) );
+		assertNotSame( cache.get( new ImageBlockKey<>( image, 0, 0, 0 ) ), cache.get( new ImageBlockKey<>( image, 2, 0, 0 ) ) );
+		assertEquals( 0, cache.getNumContentAliasedUploads() );
+		assertEquals( 3, value( cache, context, 2 ) );
+	}
+}
@@ -0,0 +1,125 @@
+package tpietzsch.cache;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+import tpietzsch.cache.TextureCache.EvictionOrder;
+import tpietzsch.cache.TextureCache.Tile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class EvictionOrderTest
+{
+	/**
+	 * Policy with settable bonuses, where images are {@code Integer}s.
+	 */
+	static class SettablePolicy implements TileEvictionPolicy
+	{
+		final Map< Object, Integer > bonuses = new HashMap<>();
+
+		int generation;
+
+		@Override
+		public int bonus( final Object image )
+		{
+			return bonuses.getOrDefault( image, 0 );
+		}
+
+		@Override
+		public int getGeneration()
+		{
+			return generation;
+		}
+	}
+
+	// the image of a packed key is the key itself
+	private static EvictionOrder order( final TileEvictionPolicy policy )
+	{
+		return new EvictionOrder( policy, key -> ( int ) key );
+	}
+
+	private static Tile tile( final EvictionOrder order, final int image, final int lru )
+	{
+		final Tile tile = new Tile( 0, image, 0, 0, order );
+		order.add( tile );
+		tile.content = image;
+		tile.useAtTimestamp( lru );
+		return tile;
+	}
+
+	@Test
+	public void testBucket()
+	{
+		assertEquals( 0, EvictionOrder.bucket( -1 ) );
+		assertEquals( 0, EvictionOrder.bucket( 0 ) );
+		assertEquals( 0, EvictionOrder.bucket( 7 ) );
+		assertEquals( 1, EvictionOrder.bucket( 8 ) );
+		assertEquals( 1, EvictionOrder.bucket( 10 ) );
+		assertEquals( 3, EvictionOrder.bucket( 20 ) );
+		assertEquals( EvictionOrder.BONUS_BUCKETS.length - 1, EvictionOrder.bucket( 1024 ) );
+		assertEquals( EvictionOrder.BONUS_BUCKETS.length - 1, EvictionOrder.bucket( Integer.MAX_VALUE ) );
+	}
+
+	@Test
+	public void testSelectByRetention()
+	{
+		final SettablePolicy policy = new SettablePolicy();
+		policy.bonuses.put( 1, 16 );
+		final EvictionOrder order = order( policy );
+		final Tile a = tile( order, 1, 10 ); // retention 26
+		final Tile b = tile( order, 2, 20 ); // retention 20
+		final Tile c = tile( order, 3, 30 ); // retention 30
+
+		final List< Tile > selected = order.select( 3, Integer.MAX_VALUE, true );
+		assertSame( b, selected.get( 0 ) );
+		assertSame( a, selected.get( 1 ) );
+		assertSame( c, selected.get( 2 ) );
+	}
+
+	@Test
+	public void testReassignBucketsWhenGenerationChanges()
+	{
+		final SettablePolicy policy = new SettablePolicy();
+		final EvictionOrder order = order( policy );
+		final Tile a = tile( order, 1, 10 );
+		final Tile b = tile( order, 2, 20 );
+		assertSame( a, order.select( 1, Integer.MAX_VALUE, true ).get( 0 ) );
+
+		// the bonus of a's image changes, without a being used again
+		policy.bonuses.put( 1, 32 );
+		assertSame( a, order.select( 1, Integer.MAX_VALUE, true ).get( 0 ) );
+		++policy.generation;
+		assertSame( b, order.select( 1, Integer.MAX_VALUE, true ).get( 0 ) );
+	}
+
+	@Test( expected = IllegalArgumentException.class )
+	public void testSelectTooMany()
+	{
+		final EvictionOrder order = order( new TileEvictionPolicy.Lru() );
+		tile( order, 1, 10 );
+		tile( order, 2, 20 );
+		order.select( 3, Integer.MAX_VALUE, true );
+	}
+
+	@Test
+	public void testCostAware()
+	{
+		final TileEvictionPolicy.CostAware policy = new TileEvictionPolicy.CostAware( 20 );
+		final Object image = new Object();
+
+		// first measurement: tiles of image are inserted with the new bonus
+		policy.fillCompleted( image, 40_000 );
+		assertEquals( 40, policy.bonus( image ) );
+		assertEquals( 0, policy.getGeneration() );
+
+		// average 1ms = 100 * 10us, that is 6 doublings
+		policy.fillCompleted( image, 1_960_000 );
+		assertEquals( 120, policy.bonus( image ) );
+		assertEquals( 1, policy.getGeneration() );
+
+		policy.forget( image );
+		assertEquals( 0, policy.bonus( image ) );
+	}
+}
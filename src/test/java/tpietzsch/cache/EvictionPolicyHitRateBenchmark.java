@@ -0,0 +1,215 @@
+package tpietzsch.cache;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.realtransform.AffineTransform3D;
+import tpietzsch.backend.HeadlessGpuContext;
+import tpietzsch.blocks.ByteUtils;
+import tpietzsch.multires.ResolutionLevel3D;
+
+import static tpietzsch.backend.Texture.InternalFormat.R16;
+
+/**
+ * Replay a synthetic trace of required blocks through a {@link TextureCache}
+ * with each {@link TileEvictionPolicy.Type}, and report hit rates (the
+ * fraction of required blocks that were already present when they were
+ * requested).
+ * <p>
+ * The trace alternates between showing an overview of the whole volume at a
+ * coarse resolution level, and zooming into a fine region that is panned for
+ * a few frames. The fine working set does not fit into the cache, so pure LRU
+ * evicts the overview during each zoom. Filling a block takes longer on
+ * coarser levels (simulated by spinning), which {@code COST_AWARE} measures.
+ */
+public class EvictionPolicyHitRateBenchmark
+{
+	private static final CacheSpec SPEC = new CacheSpec( R16, 2, 2, 2 );
+
+	private static final int NUM_LEVELS = 4;
+
+	// level 0 has 16^3 blocks, level 3 has 2^3 blocks
+	private static final int LEVEL0_GRID_SIZE = 16;
+
+	private static final int OVERVIEW_LEVEL = 2;
+
+	private static final int NUM_CYCLES = 50;
+
+	private static final int NUM_OVERVIEW_FRAMES = 3;
+
+	private static final int NUM_ZOOM_FRAMES = 12;
+
+	// simulated time to fill a block of level 0, doubles with each level
+	private static final long LEVEL0_FILL_NANOS = 10_000;
+
+	static class Level implements ResolutionLevel3D< Object >
+	{
+		private final int level;
+
+		Level( final int level )
+		{
+			this.level = level;
+		}
+
+		@Override
+		public int getLevel()
+		{
+			return level;
+		}
+
+		@Override
+		public int[] getR()
+		{
+			final int r = 1 << level;
+			return new int[] { r, r, r };
+		}
+
+		@Override
+		public double[] getS()
+		{
+			final double s = 1.0 / ( 1 << level );
+			return new double[] { s, s, s };
+		}
+
+		@Override
+		public AffineTransform3D getLevelTransform()
+		{
+			return null;
+		}
+
+		@Override
+		public RandomAccessibleInterval< Object > getImage()
+		{
+			return null;
+		}
+
+		@Override
+		public Object getType()
+		{
+			return null;
+		}
+	}
+
+	static class Frame
+	{
+		final List< ImageBlockKey< Level > > keys = new ArrayList<>();
+
+		void addBox( final Level level, final int x0, final int y0, final int z0, final int size )
+		{
+			final int gridSize = LEVEL0_GRID_SIZE >> level.getLevel();
+			for ( int z = Math.max( 0, z0 ); z < Math.min( gridSize, z0 + size ); ++z )
+				for ( int y = Math.max( 0, y0 ); y < Math.min( gridSize, y0 + size ); ++y )
+					for ( int x = Math.max( 0, x0 ); x < Math.min( gridSize, x0 + size ); ++x )
+						keys.add( new ImageBlockKey<>( level, x, y, z ) );
+		}
+	}
+
+	/**
+	 * Required blocks of each frame: the whole volume at
+	 * {@code OVERVIEW_LEVEL}, or a 6x6x6 region at level 0 (panned by one
+	 * block per frame) with a 4x4x4 region of level 1 around it.
+	 */
+	static List< Frame > createTrace( final Level[] levels )
+	{
+		final Random random = new Random( 1 );
+		final List< Frame > trace = new ArrayList<>();
+		for ( int cycle = 0; cycle < NUM_CYCLES; ++cycle )
+		{
+			for ( int i = 0; i < NUM_OVERVIEW_FRAMES; ++i )
+			{
+				final Frame frame = new Frame();
+				frame.addBox( levels[ OVERVIEW_LEVEL ], 0, 0, 0, LEVEL0_GRID_SIZE >> OVERVIEW_LEVEL );
+				trace.add( frame );
+			}
+			final int x0 = random.nextInt( LEVEL0_GRID_SIZE / 2 );
+			final int y0 = random.nextInt( LEVEL0_GRID_SIZE - 6 );
+			final int z0 = random.nextInt( LEVEL0_GRID_SIZE - 6 );
+			for ( int i = 0; i < NUM_ZOOM_FRAMES; ++i )
+			{
+				final Frame frame = new Frame();
+				final int x = Math.min( x0 + i, LEVEL0_GRID_SIZE - 6 );
+				frame.addBox( levels[ 0 ], x, y0, z0, 6 );
+				frame.addBox( levels[ 1 ], x / 2 - 1, y0 / 2 - 1, z0 / 2 - 1, 4 );
+				trace.add( frame );
+			}
+		}
+		return trace;
+	}
+
+	static class HitRates
+	{
+		final long[] requested = new long[ NUM_LEVELS ];
+
+		final long[] hits = new long[ NUM_LEVELS ];
+
+		double total()
+		{
+			long r = 0;
+			long h = 0;
+			for ( int l = 0; l < NUM_LEVELS; ++l )
+			{
+				r += requested[ l ];
+				h += hits[ l ];
+			}
+			return ( double ) h / r;
+		}
+
+		double level( final int level )
+		{
+			return requested[ level ] == 0 ? Double.NaN : ( double ) hits[ level ] / requested[ level ];
+		}
+	}
+
+	static HitRates replay( final TileEvictionPolicy.Type policy, final List< Frame > trace ) throws InterruptedException
+	{
+		final TextureCache cache = new TextureCache( new int[] { 8, 8, 8 }, SPEC, policy.create() );
+		final PboChain chain = new PboChain( 3, 7, cache );
+		final HeadlessGpuContext context = new HeadlessGpuContext();
+		final int[] pbs = SPEC.paddedBlockSize();
+		final int numElements = pbs[ 0 ] * pbs[ 1 ] * pbs[ 2 ];
+
+		final HitRates rates = new HitRates();
+		for ( final Frame frame : trace )
+		{
+			final List< FillTask > tasks = new ArrayList<>();
+			for ( final ImageBlockKey< Level > key : frame.keys )
+			{
+				final int level = key.image().getLevel();
+				++rates.requested[ level ];
+				if ( cache.get( key ) != null )
+					++rates.hits[ level ];
+				final long fillNanos = LEVEL0_FILL_NANOS << level;
+				final short value = ( short ) ( key.x() + 1 );
+				tasks.add( new DefaultFillTask( key, buf -> {
+					final long t0 = System.nanoTime();
+					while ( System.nanoTime() - t0 < fillNanos )
+						;
+					ByteUtils.setShorts( value, buf.getAddress(), numElements );
+					ByteUtils.setShorts( ( short ) 0, buf.getAddress(), 1 );
+					return true;
+				}, () -> true ) );
+			}
+			ProcessFillTasks.sequential( cache, chain, context, tasks );
+			final int timestamp = cache.nextTimestamp();
+			for ( final FillTask task : tasks )
+				cache.get( task.getKey() ).useAtTimestamp( timestamp );
+		}
+		return rates;
+	}
+
+	public static void main( final String... args ) throws InterruptedException
+	{
+		final Level[] levels = new Level[ NUM_LEVELS ];
+		for ( int l = 0; l < NUM_LEVELS; ++l )
+			levels[ l ] = new Level( l );
+		final List< Frame > trace = createTrace( levels );
+
+		System.out.println( String.format( "%-16s %8s %8s %8s %8s", "policy", "total", "level 0", "level 1", "level 2" ) );
+		for ( final TileEvictionPolicy.Type policy : TileEvictionPolicy.Type.values() )
+		{
+			final HitRates rates = replay( policy, trace );
+			System.out.println( String.format( "%-16s %8.3f %8.3f %8.3f %8.3f", policy, rates.total(), rates.level( 0 ), rates.level( 1 ), rates.level( 2 ) ) );
+		}
+	}
+}
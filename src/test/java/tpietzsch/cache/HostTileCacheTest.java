@@ -0,0 +1,174 @@
+package tpietzsch.cache;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.Test;
+import tpietzsch.blocks.ByteUtils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static tpietzsch.backend.Texture.InternalFormat.R16;
+
+public class HostTileCacheTest
+{
+	private static final CacheSpec SPEC = new CacheSpec( R16, 8, 8, 8 );
+
+	private static final int NUM_ELEMENTS = 10 * 10 * 10;
+
+	private static final int TILE_SIZE = 2 * NUM_ELEMENTS;
+
+	private final Object image = new Object();
+
+	private static UploadBuffer buffer()
+	{
+		return new UploadBuffer( ByteBuffer.allocateDirect( TILE_SIZE ).order( ByteOrder.nativeOrder() ), 0, TILE_SIZE );
+	}
+
+	/**
+	 * Fill with a pattern that depends on {@code x}, and on the element index.
+	 */
+	private static void fill( final UploadBuffer buffer, final int x )
+	{
+		final ByteBuffer data = ( ByteBuffer ) buffer.getBuffer();
+		for ( int i = 0; i < NUM_ELEMENTS; ++i )
+			data.putShort( 2 * i, ( short ) ( x * 31 + i ) );
+	}
+
+	private static void verify( final UploadBuffer buffer, final int x )
+	{
+		final ByteBuffer data = ( ByteBuffer ) buffer.getBuffer();
+		for ( int i = 0; i < NUM_ELEMENTS; ++i )
+			assertEquals( "block " + x + ", element " + i, ( short ) ( x * 31 + i ), data.getShort( 2 * i ) );
+	}
+
+	private ImageBlockKey< Object > key( final int x )
+	{
+		return new ImageBlockKey<>( image, x, 0, 0 );
+	}
+
+	@Test
+	public void testGetAndPut()
+	{
+		final HostTileCache cache = new HostTileCache( SPEC, 10 * TILE_SIZE );
+		final UploadBuffer buffer = buffer();
+		for ( int x = 0; x < 5; ++x )
+		{
+			fill( buffer, x );
+			cache.put( key( x ), buffer );
+		}
+		assertEquals( 5, cache.size() );
+		for ( int x = 0; x < 5; ++x )
+		{
+			ByteUtils.setShorts( ( short ) 0, buffer.getAddress(), NUM_ELEMENTS );
+			assertTrue( cache.get( key( x ), buffer ) );
+			verify( buffer, x );
+		}
+		assertFalse( cache.get( key( 5 ), buffer ) );
+		assertEquals( 5, cache.getHits() );
+		assertEquals( 1, cache.getMisses() );
+	}
+
+	@Test
+	public void testEvictLeastRecentlyUsed()
+	{
+		final HostTileCache cache = new HostTileCache( SPEC, 3 * TILE_SIZE );
+		final UploadBuffer buffer = buffer();
+		for ( int x = 0; x < 3; ++x )
+		{
+			fill( buffer, x );
+			cache.put( key( x ), buffer );
+		}
+		assertTrue( cache.get( key( 0 ), buffer ) );
+
+		fill( buffer, 3 );
+		cache.put( key( 3 ), buffer );
+		assertEquals( 3, cache.size() );
+		assertEquals( 1, cache.getEvictions() );
+		assertFalse( cache.get( key( 1 ), buffer ) );
+		for ( final int x : new int[] { 0, 2, 3 } )
+		{
+			assertTrue( cache.get( key( x ), buffer ) );
+			verify( buffer, x );
+		}
+	}
+
+	@Test
+	public void testClearReusesSlots()
+	{
+		final HostTileCache cache = new HostTileCache( SPEC, 3 * TILE_SIZE );
+		final UploadBuffer buffer = buffer();
+		for ( int x = 0; x < 3; ++x )
+		{
+			fill( buffer, x );
+			cache.put( key( x ), buffer );
+		}
+		cache.clear();
+		assertEquals( 0, cache.size() );
+		assertFalse( cache.get( key( 0 ), buffer ) );
+
+		for ( int x = 10; x < 13; ++x )
+		{
+			fill( buffer, x );
+			cache.put( key( x ), buffer );
+		}
+		assertEquals( 3, cache.size() );
+		assertEquals( 0, cache.getEvictions() );
+		for ( int x = 10; x < 13; ++x )
+		{
+			assertTrue( cache.get( key( x ), buffer ) );
+			verify( buffer, x );
+		}
+	}
+
+	/**
+	 * Many threads concurrently get and put tiles in a cache that is too
+	 * small for all of them, and occasionally clear it. Tiles that are copied
+	 * out of the cache must never be overwritten while they are copied.
+	 */
+	@Test( timeout = 60000 )
+	public void testConcurrentAccess() throws Exception
+	{
+		final HostTileCache cache = new HostTileCache( SPEC, 20 * TILE_SIZE );
+		final ExecutorService executor = Executors.newFixedThreadPool( 8 );
+		try
+		{
+			final List< Future< ? > > futures = new ArrayList<>();
+			for ( int t = 0; t < 8; ++t )
+			{
+				final int seed = t;
+				futures.add( executor.submit( () -> {
+					final Random random = new Random( seed );
+					final UploadBuffer buffer = buffer();
+					for ( int i = 0; i < 20000; ++i )
+					{
+						final int x = random.nextInt( 40 );
+						if ( cache.get( key( x ), buffer ) )
+							verify( buffer, x );
+						else
+						{
+							fill( buffer, x );
+							cache.put( key( x ), buffer );
+						}
+						if ( seed == 0 && i % 1000 == 999 )
+							cache.clear();
+					}
+				} ) );
+			}
+			for ( final Future< ? > future : futures )
+				future.get();
+		}
+		finally
+		{
+			executor.shutdown();
+		}
+		assertTrue( cache.size() <= 20 );
+		assertEquals( 8 * 20000, cache.getHits() + cache.getMisses() );
+	}
+}
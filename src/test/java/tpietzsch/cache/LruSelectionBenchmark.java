@@ -0,0 +1,120 @@
+package tpietzsch.cache;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import tpietzsch.cache.TextureCache.EvictionOrder;
+import tpietzsch.cache.TextureCache.Tile;
+
+/**
+ * Selecting the {@code k} least recently used tiles for new blocks, once per
+ * frame, in a cache with {@code numTiles} tiles.
+ * <p>
+ * {@code sortAll} sorts a list of all tiles by {@code (lru, x, y, z)} and takes
+ * the first {@code k} (as {@code assignFillTiles} did before the intrusive LRU
+ * lists). {@code lruList} takes them from the head of an {@link EvictionOrder}
+ * and sorts only those {@code k}. In both cases, the selected tiles are then
+ * used at the current timestamp, which moves them to the end of the order.
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class LruSelectionBenchmark
+{
+	@Param( { "10000", "100000", "1000000" } )
+	public int numTiles;
+
+	/**
+	 * Number of new blocks per frame.
+	 */
+	@Param( { "100", "1000" } )
+	public int k;
+
+	private List< Tile > sortedTiles;
+
+	private EvictionOrder order;
+
+	private int timestamp;
+
+	@Setup
+	public void setup()
+	{
+		final int n = ( int ) Math.ceil( Math.cbrt( numTiles ) );
+		order = new EvictionOrder( new TileEvictionPolicy.Lru(), key -> null );
+		final List< Tile > listTiles = new ArrayList<>();
+		sortedTiles = new ArrayList<>();
+		for ( int z = 0; z < n; ++z )
+			for ( int y = 0; y < n; ++y )
+				for ( int x = 0; x < n; ++x )
+				{
+					final Tile tile = new Tile( 0, x, y, z, order );
+					order.add( tile );
+					listTiles.add( tile );
+					sortedTiles.add( new Tile( 0, x, y, z, order ) );
+				}
+
+		// initial timestamps in random order (but increasing, so that
+		// insertion into the list is cheap)
+		final Random random = new Random( 1 );
+		Collections.shuffle( listTiles, random );
+		Collections.shuffle( sortedTiles, random );
+		timestamp = 0;
+		for ( int i = 0; i < listTiles.size(); ++i )
+		{
+			++timestamp;
+			listTiles.get( i ).useAtTimestamp( timestamp );
+			sortedTiles.get( i ).lru = timestamp;
+		}
+	}
+
+	@Benchmark
+	public void sortAll( final Blackhole blackhole )
+	{
+		final int mark = ++timestamp;
+		sortedTiles.sort( TextureCache.lruComparator );
+		final List< Tile > fillTiles = sortedTiles.subList( 0, k );
+		blackhole.consume( fillTiles.get( k - 1 ) );
+		for ( final Tile tile : fillTiles )
+			tile.lru = mark;
+	}
+
+	@Benchmark
+	public void lruList( final Blackhole blackhole )
+	{
+		final int mark = ++timestamp;
+		final List< Tile > fillTiles = order.select( k, mark, true );
+		fillTiles.sort( TextureCache.lruComparator );
+		blackhole.consume( fillTiles.get( k - 1 ) );
+		for ( final Tile tile : fillTiles )
+			tile.useAtTimestamp( mark );
+	}
+
+	public static void main( final String... args ) throws RunnerException
+	{
+		final Options options = new OptionsBuilder()
+				.include( LruSelectionBenchmark.class.getSimpleName() )
+				.build();
+		new Runner( options ).run();
+	}
+}
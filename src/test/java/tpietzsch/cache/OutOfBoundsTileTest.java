@@ -0,0 +1,87 @@
+package tpietzsch.cache;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import org.junit.Test;
+import tpietzsch.backend.HeadlessGpuContext;
+import tpietzsch.backend.StagingBuffer;
+import tpietzsch.backend.Texture.InternalFormat;
+import tpietzsch.backend.Texture3D;
+
+import static org.junit.Assert.assertEquals;
+import static tpietzsch.backend.Texture.InternalFormat.R16;
+import static tpietzsch.backend.Texture.InternalFormat.R32F;
+import static tpietzsch.backend.Texture.InternalFormat.R8;
+import static tpietzsch.backend.Texture.InternalFormat.RGBA8;
+
+/**
+ * Check that the out-of-bounds tile 0 is zeroed completely, for every cache
+ * format.
+ */
+public class OutOfBoundsTileTest
+{
+	private static final byte GARBAGE = 0x5a;
+
+	/**
+	 * Staging buffers are filled with garbage when they are mapped, like
+	 * uninitialized driver memory.
+	 */
+	private static class GarbageGpuContext extends HeadlessGpuContext
+	{
+		@Override
+		public Buffer map( final StagingBuffer stagingBuffer )
+		{
+			final ByteBuffer buffer = ( ByteBuffer ) super.map( stagingBuffer );
+			for ( int i = 0; i < buffer.capacity(); ++i )
+				buffer.put( i, GARBAGE );
+			return buffer;
+		}
+	}
+
+	private void testFormat( final InternalFormat format ) throws InterruptedException
+	{
+		final CacheSpec spec = new CacheSpec( format, 4, 4, 4 );
+		final TextureCache cache = new TextureCache( new int[] { 13, 13, 13 }, spec );
+		final PboChain chain = new PboChain( 3, 7, cache );
+		final GarbageGpuContext context = new GarbageGpuContext();
+		ProcessFillTasks.sequential( cache, chain, context, Collections.emptyList() );
+
+		// tile 0 is at the origin of page 0, the rest of the page is not written
+		final Texture3D page = cache.getPage( 0 );
+		final ByteBuffer data = context.getTextureData( page );
+		final int bpe = format.getBytesPerElement();
+		for ( int z = 0; z < page.texDepth(); ++z )
+			for ( int y = 0; y < page.texHeight(); ++y )
+				for ( int x = 0; x < page.texWidth(); ++x )
+				{
+					final int i = ( ( z * page.texHeight() + y ) * page.texWidth() + x ) * bpe;
+					for ( int b = 0; b < bpe; ++b )
+						assertEquals( format + " byte " + b + " of element (" + x + ", " + y + ", " + z + ")", 0, data.get( i + b ) );
+				}
+	}
+
+	@Test
+	public void testR8() throws InterruptedException
+	{
+		testFormat( R8 );
+	}
+
+	@Test
+	public void testR16() throws InterruptedException
+	{
+		testFormat( R16 );
+	}
+
+	@Test
+	public void testR32F() throws InterruptedException
+	{
+		testFormat( R32F );
+	}
+
+	@Test
+	public void testRGBA8() throws InterruptedException
+	{
+		testFormat( RGBA8 );
+	}
+}
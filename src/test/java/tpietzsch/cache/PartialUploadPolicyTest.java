@@ -0,0 +1,89 @@
+package tpietzsch.cache;
+
+import org.junit.Test;
+import tpietzsch.cache.PartialUploadPolicy.Adaptive;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PartialUploadPolicyTest
+{
+	@Test
+	public void testCreate()
+	{
+		assertFalse( PartialUploadPolicy.Type.COMPLETE.create( 0 ).allowsPartialUploads() );
+		assertFalse( PartialUploadPolicy.Type.COMPLETE.create( 0 ).uploadPartial( 1, 1 ) );
+		assertTrue( PartialUploadPolicy.Type.PARTIAL.create( 0 ).uploadPartial( 0, Long.MAX_VALUE ) );
+		assertTrue( PartialUploadPolicy.Type.ADAPTIVE.create( 1000 ) instanceof Adaptive );
+	}
+
+	@Test
+	public void testAdaptiveBudget()
+	{
+		final Adaptive policy = new Adaptive( 1000 );
+		policy.beginFrame( 0 );
+		assertTrue( policy.uploadPartial( 0.1, 400 ) );
+		assertTrue( policy.uploadPartial( 0.1, 400 ) );
+		assertFalse( policy.uploadPartial( 0.1, 400 ) );
+		assertTrue( policy.uploadPartial( 0.1, 200 ) );
+	}
+
+	@Test
+	public void testAdaptiveSmoothedUploads()
+	{
+		final Adaptive policy = new Adaptive( 1000 );
+
+		// the first measurement is taken as is
+		policy.beginFrame( 800 );
+		assertFalse( policy.uploadPartial( 0.1, 300 ) );
+		assertTrue( policy.uploadPartial( 0.1, 200 ) );
+
+		// smoothed: 0.5 * 800 + 0.5 * 0
+		policy.beginFrame( 0 );
+		assertFalse( policy.uploadPartial( 0.1, 700 ) );
+		assertTrue( policy.uploadPartial( 0.1, 600 ) );
+
+		// uploads exceed the budget
+		policy.beginFrame( 5000 );
+		assertFalse( policy.uploadPartial( 1, 1 ) );
+	}
+
+	@Test
+	public void testAdaptiveMinCoverage()
+	{
+		final Adaptive policy = new Adaptive( 1000 );
+		policy.beginFrame( 0 );
+		assertEquals( 0, policy.getMinCoverage(), 0 );
+		assertTrue( policy.uploadPartial( 0.1, 500 ) );
+		assertTrue( policy.uploadPartial( 0.2, 500 ) );
+		assertFalse( policy.uploadPartial( 0.3, 500 ) );
+		assertFalse( policy.uploadPartial( 0.4, 500 ) );
+
+		// the budget fits 2 of the 4 requested blocks: raise the min
+		// coverage to that of the 2nd-largest
+		policy.beginFrame( 0 );
+		assertEquals( 0.3, policy.getMinCoverage(), 0 );
+		assertFalse( policy.uploadPartial( 0.2, 500 ) );
+		assertTrue( policy.uploadPartial( 0.3, 500 ) );
+		assertTrue( policy.uploadPartial( 0.4, 500 ) );
+
+		// the budget was not exhausted: halve the min coverage
+		policy.beginFrame( 0 );
+		assertEquals( 0.15, policy.getMinCoverage(), 1e-12 );
+		assertTrue( policy.uploadPartial( 0.2, 500 ) );
+	}
+
+	@Test
+	public void testAdaptiveMinCoverageKeepsOneBlock()
+	{
+		final Adaptive policy = new Adaptive( 1000 );
+		policy.beginFrame( 0 );
+		assertFalse( policy.uploadPartial( 0.1, 2000 ) );
+		assertFalse( policy.uploadPartial( 0.2, 2000 ) );
+
+		// no requested block fits, but the largest one is still allowed
+		policy.beginFrame( 0 );
+		assertEquals( 0.2, policy.getMinCoverage(), 0 );
+	}
+}
@@ -0,0 +1,126 @@
+package tpietzsch.cache;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import tpietzsch.backend.HeadlessGpuContext;
+import tpietzsch.blocks.ByteUtils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static tpietzsch.backend.Texture.InternalFormat.R16;
+
+/**
+ * Run many batches of {@link FillTask}s through a {@link PboChain}, with
+ * sequential, parallel, and deadline-limited (resumed) processing, and check
+ * that every batch completes and leaves the {@link TextureCache} consistent.
+ * <p>
+ * Batches vary in size, so that {@link PboChain#take()} runs out of tiles in
+ * the middle of a {@link Pbo}, and fillers race for the last tiles.
+ */
+public class PboChainStressTest
+{
+	private static final CacheSpec SPEC = new CacheSpec( R16, 2, 2, 2 );
+
+	private static final int NUM_ITERATIONS = 500;
+
+	private ForkJoinPool pool;
+
+	@Before
+	public void setUp()
+	{
+		pool = new ForkJoinPool( 16 );
+	}
+
+	@After
+	public void tearDown()
+	{
+		pool.shutdown();
+	}
+
+	@Test( timeout = 60000 )
+	public void testDefaultChain() throws InterruptedException
+	{
+		final TextureCache cache = new TextureCache( new int[] { 20, 20, 20 }, SPEC );
+		stress( cache, new PboChain( 3, 7, cache ) );
+	}
+
+	@Test( timeout = 60000 )
+	public void testSmallChain() throws InterruptedException
+	{
+		final TextureCache cache = new TextureCache( new int[] { 20, 20, 20 }, SPEC );
+		stress( cache, new PboChain( 2, 1, cache ) );
+	}
+
+	@Test( timeout = 60000 )
+	public void testCapacityLimitedChain() throws InterruptedException
+	{
+		final TextureCache cache = new TextureCache( new int[] { 20, 20, 20 }, SPEC );
+		stress( cache, new PboChain( 100L, 4, cache ) );
+	}
+
+	private void stress( final TextureCache cache, final PboChain chain ) throws InterruptedException
+	{
+		final HeadlessGpuContext context = new HeadlessGpuContext();
+		final Object image = new Object();
+		final int[] pbs = SPEC.paddedBlockSize();
+		final int numElements = pbs[ 0 ] * pbs[ 1 ] * pbs[ 2 ];
+		for ( int iter = 0; iter < NUM_ITERATIONS; ++iter )
+		{
+			final List< FillTask > tasks = new ArrayList<>();
+			final int n = ( iter * 37 ) % 500 + 1;
+			for ( int i = 0; i < n; ++i )
+			{
+				final int j = i + iter * 13;
+				tasks.add( new DefaultFillTask( new ImageBlockKey<>( image, j, iter % 7, 0 ), buf -> {
+					if ( j % 3 == 0 )
+					{
+						ByteUtils.setShorts( ( short ) ( j % 4 ), buf.getAddress(), numElements );
+						buf.setUniform( true );
+					}
+					else
+					{
+						ByteUtils.setShorts( ( short ) 1, buf.getAddress(), numElements );
+						ByteUtils.setShorts( ( short ) 2, buf.getAddress(), 1 );
+					}
+					return true;
+				}, () -> j % 5 != 0, j % 11 ) );
+			}
+
+			switch ( iter % 4 )
+			{
+			case 0:
+				ProcessFillTasks.sequential( cache, chain, context, tasks );
+				break;
+			case 2:
+				ProcessFillTasks.parallel( cache, chain, context, pool, tasks );
+				break;
+			default:
+				boolean done = ProcessFillTasks.parallel( cache, chain, context, pool, tasks, System.nanoTime() + 100_000 );
+				while ( !done )
+					done = ProcessFillTasks.resume( cache, chain, context, System.nanoTime() + 100_000 );
+				break;
+			}
+			assertTrue( "chain not ready after iteration " + iter, chain.ready() );
+
+			final int timestamp = cache.nextTimestamp();
+			for ( final FillTask task : tasks )
+			{
+				final TextureCache.Tile tile = cache.get( task.getKey() );
+				if ( task.containsData() )
+					assertNotNull( "missing block in iteration " + iter, tile );
+				if ( tile == null )
+					continue;
+				final boolean uniform = task.getKey().x() % 3 == 0;
+				assertEquals( "shared tile for block " + task.getKey().x(), uniform, tile.shared );
+				if ( !uniform )
+					assertEquals( cache.packKey( task.getKey() ), tile.content );
+				tile.useAtTimestamp( timestamp );
+			}
+		}
+	}
+}
@@ -0,0 +1,170 @@
+package tpietzsch.cache;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import tpietzsch.backend.HeadlessGpuContext;
+import tpietzsch.blocks.ByteUtils;
+import tpietzsch.cache.PboChain.Geometry;
+import tpietzsch.cache.PboChain.Throughput;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static tpietzsch.backend.Texture.InternalFormat.R16;
+
+public class PboGeometryTest
+{
+	private static final int BLOCK_SIZE = 1000;
+
+	private static final long UNLIMITED = Long.MAX_VALUE / 2;
+
+	/**
+	 * Record the measurements of one batch.
+	 */
+	private static void batch( final Throughput throughput,
+			final long fillNanosPerBlock, final long numBlocks,
+			final long mapNanosPerPbo, final long numPbos,
+			final long uploadNanosPerBlock )
+	{
+		throughput.fillNanos.add( fillNanosPerBlock * numBlocks );
+		throughput.fillBlocks.add( numBlocks );
+		throughput.mapNanos += mapNanosPerPbo * numPbos;
+		throughput.mapCount += numPbos;
+		throughput.uploadNanos += uploadNanosPerBlock * numBlocks;
+		throughput.uploadBlocks += numBlocks;
+	}
+
+	@Test
+	public void testClampFitsIntoStagingMemory()
+	{
+		for ( final long maxStagingBytes : new long[] { 1, 999, 1000, 5000, 123_456, 1_000_000 } )
+		{
+			final Geometry g = Geometry.clamp( 5, 100, BLOCK_SIZE, maxStagingBytes );
+			assertTrue( g.numBufs >= 1 && g.bufSize >= 1 );
+			if ( maxStagingBytes >= 2 * BLOCK_SIZE )
+				assertTrue( "cap " + maxStagingBytes, ( long ) g.numBufs * g.bufSize * BLOCK_SIZE <= maxStagingBytes );
+		}
+
+		// bufSize is shrunk before numBufs
+		final Geometry g = Geometry.clamp( 5, 100, BLOCK_SIZE, 50 * BLOCK_SIZE );
+		assertEquals( 5, g.numBufs );
+		assertEquals( 10, g.bufSize );
+
+		// too small for even one block per PBO
+		final Geometry tiny = Geometry.clamp( 5, 100, BLOCK_SIZE, 1 );
+		assertEquals( 1, tiny.numBufs );
+		assertEquals( 1, tiny.bufSize );
+	}
+
+	@Test
+	public void testClampNumBufs()
+	{
+		assertEquals( Geometry.MIN_NUM_BUFS, Geometry.clamp( 0, 10, BLOCK_SIZE, UNLIMITED ).numBufs );
+		assertEquals( Geometry.MAX_NUM_BUFS, Geometry.clamp( 1000, 10, BLOCK_SIZE, UNLIMITED ).numBufs );
+		assertEquals( 7, Geometry.clamp( 7, 10, BLOCK_SIZE, UNLIMITED ).numBufs );
+	}
+
+	@Test
+	public void testKeepGeometryWithoutMeasurements()
+	{
+		final Geometry g = new Throughput().adapt( 5, 100, BLOCK_SIZE, UNLIMITED, 4 );
+		assertEquals( 5, g.numBufs );
+		assertEquals( 100, g.bufSize );
+	}
+
+	@Test
+	public void testFillBound()
+	{
+		// map 100us per PBO, upload 1us per block: bufSize = 10 * 100 / 1 = 1000.
+		// filling 1000 blocks with 4 threads at 10us takes 2.5ms, recycling
+		// a PBO 1.1ms: numBufs = 2 + 1 = 3.
+		final Throughput throughput = new Throughput();
+		batch( throughput, 10_000, 1000, 100_000, 5, 1_000 );
+		final Geometry g = throughput.adapt( 5, 100, BLOCK_SIZE, UNLIMITED, 4 );
+		assertEquals( 1000, g.bufSize );
+		assertEquals( 3, g.numBufs );
+	}
+
+	@Test
+	public void testUploadBound()
+	{
+		// fast fills: more PBOs are needed to keep fillers busy while the gpu uploads
+		final Throughput throughput = new Throughput();
+		batch( throughput, 1_000, 1000, 100_000, 5, 10_000 );
+		final Geometry g = throughput.adapt( 5, 100, BLOCK_SIZE, UNLIMITED, 8 );
+		assertEquals( 100, g.bufSize );
+		assertEquals( Geometry.MAX_NUM_BUFS, g.numBufs );
+
+		// ... but not more than fit into staging memory (shrinking the PBOs)
+		final Throughput throughput2 = new Throughput();
+		batch( throughput2, 1_000, 1000, 100_000, 5, 10_000 );
+		final Geometry g2 = throughput2.adapt( 5, 100, BLOCK_SIZE, 400 * BLOCK_SIZE, 8 );
+		assertEquals( Geometry.MAX_NUM_BUFS, g2.numBufs );
+		assertEquals( 25, g2.bufSize );
+	}
+
+	@Test
+	public void testEveryFillerGetsASlot()
+	{
+		// mapping is negligible, but bufSize is at least parallelism
+		final Throughput throughput = new Throughput();
+		batch( throughput, 10_000, 1000, 0, 5, 1_000 );
+		final Geometry g = throughput.adapt( 5, 100, BLOCK_SIZE, UNLIMITED, 16 );
+		assertEquals( 16, g.bufSize );
+	}
+
+	@Test
+	public void testSmoothing()
+	{
+		final Throughput throughput = new Throughput();
+		batch( throughput, 10_000, 1000, 100_000, 5, 1_000 );
+		assertEquals( 1000, throughput.adapt( 5, 100, BLOCK_SIZE, UNLIMITED, 4 ).bufSize );
+
+		// measurements were reset: an empty batch does not change the estimates
+		assertEquals( 1000, throughput.adapt( 5, 100, BLOCK_SIZE, UNLIMITED, 4 ).bufSize );
+
+		// a batch with 4x the map time moves the estimate by 30%: 100us * (0.7 + 0.3 * 4) = 190us
+		batch( throughput, 10_000, 1000, 400_000, 5, 1_000 );
+		assertEquals( 1900, throughput.adapt( 5, 100, BLOCK_SIZE, UNLIMITED, 4 ).bufSize );
+	}
+
+	@Test
+	public void testRetiredPbosAreDeleted() throws InterruptedException
+	{
+		final CacheSpec spec = new CacheSpec( R16, 2, 2, 2 );
+		final TextureCache cache = new TextureCache( new int[] { 10, 10, 10 }, spec );
+		final int blockSize = 2 * 4 * 4 * 4;
+		final long maxStagingBytes = 100 * blockSize;
+		final PboChain chain = new PboChain( maxStagingBytes, 1, cache );
+		final HeadlessGpuContext context = new HeadlessGpuContext();
+
+		// 5 PBOs of 20 blocks
+		assertEquals( 5, chain.getNumBufs() );
+		assertEquals( 20, chain.getBufSize() );
+		fill( cache, chain, context, 0, 200 );
+		assertEquals( maxStagingBytes, context.getStagingBufferBytes() );
+
+		// slow fills and expensive maps: fewer and larger PBOs
+		batch( chain.throughput, 1_000_000, 1000, 10_000_000, 1, 1_000 );
+		fill( cache, chain, context, 200, 200 );
+		assertEquals( 3, chain.getNumBufs() );
+		assertEquals( 33, chain.getBufSize() );
+		assertTrue( context.getStagingBufferBytes() <= maxStagingBytes );
+		assertEquals( 3 * 33 * blockSize, context.getStagingBufferBytes() );
+	}
+
+	private static void fill( final TextureCache cache, final PboChain chain, final HeadlessGpuContext context, final int from, final int n ) throws InterruptedException
+	{
+		final Object image = new Object();
+		final List< FillTask > tasks = new ArrayList<>();
+		for ( int i = from; i < from + n; ++i )
+		{
+			tasks.add( new DefaultFillTask( new ImageBlockKey<>( image, i, 0, 0 ), buf -> {
+				ByteUtils.setShorts( ( short ) 1, buf.getAddress(), 4 * 4 * 4 );
+				ByteUtils.setShorts( ( short ) 2, buf.getAddress(), 1 );
+				return true;
+			}, () -> true ) );
+		}
+		ProcessFillTasks.sequential( cache, chain, context, tasks );
+	}
+}
@@ -0,0 +1,262 @@
+package tpietzsch.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static tpietzsch.backend.Texture.InternalFormat.R16;
+
+public class PersistentTileStoreTest
+{
+	private static final CacheSpec SPEC = new CacheSpec( R16, 8, 8, 8 );
+
+	private static final int NUM_ELEMENTS = 10 * 10 * 10;
+
+	private static final int TILE_SIZE = 2 * NUM_ELEMENTS;
+
+	private static final String ID = "image";
+
+	private final List< File > directories = new ArrayList<>();
+
+	private File directory;
+
+	@Before
+	public void setUp() throws IOException
+	{
+		directory = createDirectory();
+	}
+
+	@After
+	public void tearDown()
+	{
+		for ( final File dir : directories )
+		{
+			final File[] files = dir.listFiles();
+			if ( files != null )
+				for ( final File file : files )
+					file.delete();
+			dir.delete();
+		}
+	}
+
+	private File createDirectory() throws IOException
+	{
+		final File dir = Files.createTempDirectory( "tilestore" ).toFile();
+		directories.add( dir );
+		return dir;
+	}
+
+	private static UploadBuffer buffer()
+	{
+		return new UploadBuffer( ByteBuffer.allocateDirect( TILE_SIZE ).order( ByteOrder.nativeOrder() ), 0, TILE_SIZE );
+	}
+
+	/**
+	 * Fill with a pattern that depends on {@code x}, and on the element index.
+	 */
+	private static void fill( final UploadBuffer buffer, final int x )
+	{
+		final ByteBuffer data = ( ByteBuffer ) buffer.getBuffer();
+		for ( int i = 0; i < NUM_ELEMENTS; ++i )
+			data.putShort( 2 * i, ( short ) ( x * 31 + i ) );
+	}
+
+	private static void verify( final UploadBuffer buffer, final int x )
+	{
+		final ByteBuffer data = ( ByteBuffer ) buffer.getBuffer();
+		for ( int i = 0; i < NUM_ELEMENTS; ++i )
+			assertEquals( "block " + x + ", element " + i, ( short ) ( x * 31 + i ), data.getShort( 2 * i ) );
+	}
+
+	private static void put( final PersistentTileStore store, final int... xs )
+	{
+		final UploadBuffer buffer = buffer();
+		for ( final int x : xs )
+		{
+			fill( buffer, x );
+			store.put( ID, x, 0, 0, buffer );
+		}
+	}
+
+	private static void assertStored( final PersistentTileStore store, final int... xs )
+	{
+		final UploadBuffer buffer = buffer();
+		for ( final int x : xs )
+		{
+			assertTrue( "block " + x, store.get( ID, x, 0, 0, buffer ) );
+			verify( buffer, x );
+		}
+	}
+
+	private static void assertNotStored( final PersistentTileStore store, final int... xs )
+	{
+		final UploadBuffer buffer = buffer();
+		for ( final int x : xs )
+			assertFalse( "block " + x, store.get( ID, x, 0, 0, buffer ) );
+	}
+
+	@Test
+	public void testReopen() throws IOException
+	{
+		try ( final PersistentTileStore store = new PersistentTileStore( directory, SPEC, 10 * TILE_SIZE ) )
+		{
+			put( store, 0, 1, 2, 3, 4 );
+			assertStored( store, 0, 1, 2, 3, 4 );
+		}
+
+		try ( final PersistentTileStore store = new PersistentTileStore( directory, SPEC, 10 * TILE_SIZE ) )
+		{
+			assertEquals( 5, store.size() );
+			assertStored( store, 0, 1, 2, 3, 4 );
+			assertNotStored( store, 5 );
+
+			// new tiles do not overwrite the stored ones
+			put( store, 5, 6, 7, 8, 9 );
+			assertStored( store, 0, 1, 2, 3, 4, 5, 6, 7, 8, 9 );
+			assertEquals( 0, store.getEvictions() );
+		}
+	}
+
+	@Test
+	public void testCacheSpecMismatch() throws IOException
+	{
+		try ( final PersistentTileStore store = new PersistentTileStore( directory, SPEC, 10 * TILE_SIZE ) )
+		{
+			put( store, 0, 1, 2 );
+		}
+
+		final CacheSpec other = new CacheSpec( R16, 4, 4, 4 );
+		try ( final PersistentTileStore store = new PersistentTileStore( directory, other, 10 * TILE_SIZE ) )
+		{
+			assertEquals( 0, store.size() );
+		}
+	}
+
+	@Test
+	public void testUncleanShutdown() throws IOException
+	{
+		try ( final PersistentTileStore store = new PersistentTileStore( directory, SPEC, 10 * TILE_SIZE ) )
+		{
+			put( store, 0, 1, 2 );
+		}
+
+		// while the store is open, the index is removed. Copying the
+		// directory then gives the state after a crash.
+		final File crashed = createDirectory();
+		try ( final PersistentTileStore store = new PersistentTileStore( directory, SPEC, 10 * TILE_SIZE ) )
+		{
+			assertStored( store, 0, 1, 2 );
+			put( store, 3 );
+			assertFalse( new File( directory, "tiles.idx" ).exists() );
+			store.flush();
+			Files.copy( new File( directory, "tiles.bin" ).toPath(), new File( crashed, "tiles.bin" ).toPath() );
+		}
+
+		try ( final PersistentTileStore store = new PersistentTileStore( crashed, SPEC, 10 * TILE_SIZE ) )
+		{
+			assertEquals( 0, store.size() );
+			assertNotStored( store, 0, 1, 2, 3 );
+		}
+	}
+
+	@Test
+	public void testDirectoryIsLocked() throws IOException
+	{
+		try ( final PersistentTileStore store = new PersistentTileStore( directory, SPEC, 10 * TILE_SIZE ) )
+		{
+			boolean locked = false;
+			try
+			{
+				new PersistentTileStore( directory, SPEC, 10 * TILE_SIZE ).close();
+			}
+			catch ( final IOException e )
+			{
+				locked = true;
+			}
+			assertTrue( locked );
+		}
+	}
+
+	@Test
+	public void testReopenWithSmallerBudget() throws IOException
+	{
+		try ( final PersistentTileStore store = new PersistentTileStore( directory, SPEC, 6 * TILE_SIZE ) )
+		{
+			put( store, 0, 1, 2, 3, 4, 5 );
+			// LRU order: 2, 3, 4, 5, 0, 1
+			assertStored( store, 0, 1 );
+		}
+
+		try ( final PersistentTileStore store = new PersistentTileStore( directory, SPEC, 3 * TILE_SIZE ) )
+		{
+			// the most recently used tiles are kept (5 is moved to a slot within the budget)
+			assertEquals( 3, store.size() );
+			assertTrue( new File( directory, "tiles.bin" ).length() <= 3 * TILE_SIZE );
+			assertStored( store, 5, 0, 1 );
+			assertNotStored( store, 2, 3, 4 );
+
+			// LRU order: 5, 0, 1, 6
+			put( store, 6 );
+			assertEquals( 3, store.size() );
+			assertNotStored( store, 5 );
+			assertStored( store, 0, 1, 6 );
+		}
+	}
+
+	/**
+	 * Many threads concurrently get and put tiles in a store that is too
+	 * small for all of them. Tiles that are copied out of the store must never
+	 * be overwritten while they are copied.
+	 */
+	@Test( timeout = 60000 )
+	public void testConcurrentAccess() throws Exception
+	{
+		final PersistentTileStore store = new PersistentTileStore( directory, SPEC, 20 * TILE_SIZE );
+		final ExecutorService executor = Executors.newFixedThreadPool( 8 );
+		try
+		{
+			final List< Future< ? > > futures = new ArrayList<>();
+			for ( int t = 0; t < 8; ++t )
+			{
+				final int seed = t;
+				futures.add( executor.submit( () -> {
+					final Random random = new Random( seed );
+					final UploadBuffer buffer = buffer();
+					for ( int i = 0; i < 10000; ++i )
+					{
+						final int x = random.nextInt( 40 );
+						if ( store.get( ID, x, 0, 0, buffer ) )
+							verify( buffer, x );
+						else
+						{
+							fill( buffer, x );
+							store.put( ID, x, 0, 0, buffer );
+						}
+					}
+				} ) );
+			}
+			for ( final Future< ? > future : futures )
+				future.get();
+		}
+		finally
+		{
+			executor.shutdown();
+			store.close();
+		}
+		assertEquals( 8 * 10000, store.getHits() + store.getMisses() );
+	}
+}
@@ -0,0 +1,163 @@
+package tpietzsch.cache;
+
+import java.util.ArrayList;
+import java.util.List;
+import net.imglib2.FinalInterval;
+import org.junit.Test;
+import tpietzsch.backend.HeadlessGpuContext;
+import tpietzsch.blocks.ByteUtils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static tpietzsch.backend.Texture.InternalFormat.R16;
+
+/**
+ * Check the accounting of pinned tiles of a {@link TextureCache} in a
+ * {@link HeadlessGpuContext}, when pins and the max pinned fraction change.
+ */
+public class PinnedTilesTest
+{
+	private static final CacheSpec SPEC = new CacheSpec( R16, 2, 2, 2 );
+
+	private static final int NUM_ELEMENTS = 4 * 4 * 4;
+
+	private final Object image = new Object();
+
+	private final HeadlessGpuContext context = new HeadlessGpuContext();
+
+	private final TextureCache cache = new TextureCache( new int[] { 5, 5, 5 }, SPEC );
+
+	private final PboChain chain = new PboChain( 3, 7, cache );
+
+	private ImageBlockKey< ? > key( final int x )
+	{
+		return new ImageBlockKey<>( image, x, 0, 0 );
+	}
+
+	private List< ImageBlockKey< ? > > keys( final int from, final int to )
+	{
+		final List< ImageBlockKey< ? > > keys = new ArrayList<>();
+		for ( int x = from; x < to; ++x )
+			keys.add( key( x ) );
+		return keys;
+	}
+
+	/**
+	 * Load blocks {@code (x, 0, 0)} with {@code from <= x < to}. (Blocks
+	 * are not uniform.)
+	 */
+	private void load( final int from, final int to ) throws InterruptedException
+	{
+		final List< FillTask > tasks = new ArrayList<>();
+		for ( int x = from; x < to; ++x )
+		{
+			final short value = ( short ) ( x + 1 );
+			tasks.add( new DefaultFillTask( key( x ), buf -> {
+				ByteUtils.setShorts( value, buf.getAddress(), NUM_ELEMENTS );
+				ByteUtils.setShorts( ( short ) -1, buf.getAddress(), 1 );
+				return true;
+			}, () -> true ) );
+		}
+		ProcessFillTasks.sequential( cache, chain, context, tasks );
+		final int timestamp = cache.nextTimestamp();
+		for ( final FillTask task : tasks )
+			cache.get( task.getKey() ).useAtTimestamp( timestamp );
+	}
+
+	/**
+	 * Check that the pinned tile count matches the tiles of blocks
+	 * {@code 0 <= x < n}, and that the evictable tiles are the rest.
+	 */
+	private void checkAccounting( final int n, final int expectedNumPinned )
+	{
+		int numPinned = 0;
+		for ( int x = 0; x < n; ++x )
+		{
+			final TextureCache.Tile tile = cache.get( key( x ) );
+			if ( tile != null && !tile.evictable() )
+				++numPinned;
+		}
+		assertEquals( expectedNumPinned, numPinned );
+		assertEquals( expectedNumPinned, cache.getNumPinnedTiles() );
+		assertEquals( cache.getMaxNumTiles() - expectedNumPinned, cache.getNumEvictableTiles() );
+	}
+
+	@Test
+	public void testPinnedTilesAreNotReplaced() throws InterruptedException
+	{
+		cache.pin( keys( 0, 5 ) );
+		load( 0, 5 );
+		checkAccounting( 5, 5 );
+
+		// load many more blocks than fit into the cache
+		for ( int from = 5; from < 500; from += 50 )
+			load( from, from + 50 );
+		for ( int x = 0; x < 5; ++x )
+		{
+			assertNotNull( cache.get( key( x ) ) );
+			assertFalse( cache.get( key( x ) ).evictable() );
+		}
+		checkAccounting( 500, 5 );
+	}
+
+	@Test
+	public void testMaxPinnedFraction() throws InterruptedException
+	{
+		final int maxNumTiles = cache.getMaxNumTiles();
+		cache.pin( keys( 0, 20 ) );
+		load( 0, 20 );
+		final int defaultMax = ( int ) ( TextureCache.DEFAULT_MAX_PINNED_FRACTION * maxNumTiles );
+		assertEquals( defaultMax, cache.getMaxNumPinnedTiles() );
+		checkAccounting( 20, Math.min( 20, defaultMax ) );
+
+		// lowering the fraction unpins tiles
+		cache.setMaxPinnedFraction( 0.05 );
+		final int lowerMax = ( int ) ( 0.05 * maxNumTiles );
+		checkAccounting( 20, Math.min( 20, lowerMax ) );
+
+		// raising it pins the present blocks again
+		cache.setMaxPinnedFraction( 1 );
+		checkAccounting( 20, 20 );
+
+		cache.setMaxPinnedFraction( 0 );
+		checkAccounting( 20, 0 );
+		assertEquals( maxNumTiles, cache.getNumEvictableTiles() );
+
+		// out of range fractions are clamped
+		cache.setMaxPinnedFraction( 2 );
+		assertEquals( maxNumTiles, cache.getMaxNumPinnedTiles() );
+		checkAccounting( 20, 20 );
+		cache.setMaxPinnedFraction( -1 );
+		assertEquals( 0, cache.getMaxNumPinnedTiles() );
+		checkAccounting( 20, 0 );
+	}
+
+	@Test
+	public void testPinAndUnpin() throws InterruptedException
+	{
+		cache.setMaxPinnedFraction( 1 );
+		load( 0, 20 );
+		checkAccounting( 20, 0 );
+
+		// pinning present blocks applies immediately
+		cache.pin( keys( 0, 5 ) );
+		checkAccounting( 20, 5 );
+
+		// overlapping region and explicit keys are counted once
+		cache.pin( image, new FinalInterval( new long[] { 3, 0, 0 }, new long[] { 9, 0, 0 } ) );
+		checkAccounting( 20, 10 );
+
+		// blocks 3 and 4 stay pinned by the region
+		cache.unpin( keys( 0, 5 ) );
+		checkAccounting( 20, 7 );
+
+		cache.unpin( image );
+		checkAccounting( 20, 0 );
+
+		cache.pin( image, null );
+		checkAccounting( 20, 20 );
+		cache.unpinAll();
+		checkAccounting( 20, 0 );
+	}
+}
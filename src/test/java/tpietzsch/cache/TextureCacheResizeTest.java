@@ -0,0 +1,165 @@
+package tpietzsch.cache;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import tpietzsch.backend.GpuContext;
+import tpietzsch.backend.HeadlessGpuContext;
+import tpietzsch.backend.Texture3D;
+import tpietzsch.blocks.ByteUtils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static tpietzsch.backend.Texture.InternalFormat.R16;
+
+/**
+ * Resize a {@link TextureCache} in a {@link HeadlessGpuContext} and check that
+ * kept tiles still hold the data of their blocks.
+ */
+public class TextureCacheResizeTest
+{
+	private static final CacheSpec SPEC = new CacheSpec( R16, 2, 2, 2 );
+
+	private final Object image = new Object();
+
+	/**
+	 * Tasks for blocks {@code (i, 0, 0)} with {@code from <= i < from + n}.
+	 * Block {@code i} is filled with value {@code i + 1}. (The first element
+	 * is set to a different value, so that blocks are not uniform.)
+	 */
+	private List< FillTask > tasks( final int from, final int n )
+	{
+		final int[] pbs = SPEC.paddedBlockSize();
+		final int numElements = pbs[ 0 ] * pbs[ 1 ] * pbs[ 2 ];
+		final List< FillTask > tasks = new ArrayList<>();
+		for ( int i = from; i < from + n; ++i )
+		{
+			final short value = ( short ) ( i + 1 );
+			tasks.add( new DefaultFillTask( new ImageBlockKey<>( image, i, 0, 0 ), buf -> {
+				ByteUtils.setShorts( value, buf.getAddress(), numElements );
+				ByteUtils.setShorts( ( short ) 7, buf.getAddress(), 1 );
+				return true;
+			}, () -> true ) );
+		}
+		return tasks;
+	}
+
+	private static void load( final TextureCache cache, final PboChain chain, final GpuContext context, final List< FillTask > tasks ) throws InterruptedException
+	{
+		ProcessFillTasks.sequential( cache, chain, context, tasks );
+		final int timestamp = cache.nextTimestamp();
+		for ( final FillTask task : tasks )
+			cache.get( task.getKey() ).useAtTimestamp( timestamp );
+	}
+
+	/**
+	 * Check the texture data of all present blocks {@code (i, 0, 0)} with
+	 * {@code i < n}.
+	 *
+	 * @return number of present blocks
+	 */
+	private int verify( final TextureCache cache, final HeadlessGpuContext context, final int n )
+	{
+		int numPresent = 0;
+		for ( int i = 0; i < n; ++i )
+		{
+			final TextureCache.Tile tile = cache.get( new ImageBlockKey<>( image, i, 0, 0 ) );
+			if ( tile == null )
+				continue;
+			++numPresent;
+			final Texture3D page = cache.getPage( tile.page() );
+			final ByteBuffer data = context.getTextureData( page ).order( ByteOrder.nativeOrder() );
+			final int[] pbs = SPEC.paddedBlockSize();
+			final int x = tile.x() * pbs[ 0 ] + 1;
+			final int y = tile.y() * pbs[ 1 ] + 1;
+			final int z = tile.z() * pbs[ 2 ] + 1;
+			final int value = data.getShort( ( ( z * page.texHeight() + y ) * page.texWidth() + x ) * 2 );
+			assertEquals( "content of block " + i, i + 1, value );
+		}
+		return numPresent;
+	}
+
+	@Test
+	public void testShrinkKeepsRecentBlocks() throws InterruptedException
+	{
+		final TextureCache cache = new TextureCache( new int[] { 5, 5, 5 }, SPEC );
+		final PboChain chain = new PboChain( 3, 7, cache );
+		final HeadlessGpuContext context = new HeadlessGpuContext();
+
+		load( cache, chain, context, tasks( 0, 100 ) );
+		load( cache, chain, context, tasks( 100, 20 ) );
+		assertEquals( 120, verify( cache, context, 200 ) );
+
+		final int generation = cache.getGeneration();
+		final int kept = cache.resize( new int[] { 3, 4, 5 }, context );
+		assertEquals( 3 * 4 * 5 - 1, cache.getMaxNumTiles() );
+		assertEquals( kept, verify( cache, context, 200 ) );
+		assertTrue( cache.getGeneration() != generation );
+
+		// the most recently used blocks are kept
+		for ( int i = 100; i < 120; ++i )
+			assertNotNull( "block " + i, cache.get( new ImageBlockKey<>( image, i, 0, 0 ) ) );
+	}
+
+	@Test
+	public void testGrowKeepsAllBlocks() throws InterruptedException
+	{
+		final TextureCache cache = new TextureCache( new int[] { 3, 4, 5 }, SPEC );
+		final PboChain chain = new PboChain( 3, 7, cache );
+		final HeadlessGpuContext context = new HeadlessGpuContext();
+
+		load( cache, chain, context, tasks( 0, 50 ) );
+		final int kept = cache.resize( new int[] { 6, 6, 6 }, context );
+		assertEquals( 50, kept );
+		assertEquals( 50, verify( cache, context, 200 ) );
+
+		// new blocks go to the new tiles
+		load( cache, chain, context, tasks( 50, 150 ) );
+		assertEquals( 200, verify( cache, context, 200 ) );
+	}
+
+	@Test
+	public void testResizeWithoutCopy() throws InterruptedException
+	{
+		final HeadlessGpuContext context = new HeadlessGpuContext()
+		{
+			@Override
+			public boolean resize( final Texture3D texture, final int width, final int height, final int depth, final int[] regions )
+			{
+				super.resize( texture, width, height, depth, new int[ 0 ] );
+				return false;
+			}
+		};
+		final TextureCache cache = new TextureCache( new int[] { 5, 5, 5 }, SPEC );
+		final PboChain chain = new PboChain( 3, 7, cache );
+
+		load( cache, chain, context, tasks( 0, 50 ) );
+		final int kept = cache.resize( new int[] { 4, 4, 4 }, context );
+		assertEquals( 0, kept );
+		assertEquals( 0, verify( cache, context, 200 ) );
+
+		// blocks are loaded again, and the out-of-bounds tile is initialized again
+		load( cache, chain, context, tasks( 0, 50 ) );
+		assertEquals( 50, verify( cache, context, 200 ) );
+		assertEquals( 0, context.getTextureData( cache.getPage( 0 ) ).getShort( 0 ) );
+	}
+
+	@Test
+	public void testResizeNumPages() throws InterruptedException
+	{
+		final TextureCache cache = new TextureCache( new int[] { 4, 4, 4 }, SPEC );
+		final PboChain chain = new PboChain( 3, 7, cache );
+		final HeadlessGpuContext context = new HeadlessGpuContext();
+
+		load( cache, chain, context, tasks( 0, 60 ) );
+		cache.resize( new int[] { 4, 4, 4 }, 2, context );
+		assertEquals( 2, cache.getNumPages() );
+		assertEquals( 60, verify( cache, context, 200 ) );
+
+		load( cache, chain, context, tasks( 60, 60 ) );
+		assertEquals( 120, verify( cache, context, 200 ) );
+	}
+}
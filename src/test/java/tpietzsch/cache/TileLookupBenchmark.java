@@ -0,0 +1,141 @@
+package tpietzsch.cache;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import tpietzsch.util.LongObjectMap;
+
+/**
+ * Per-frame tile lookups as done by {@code VolumeBlocks}: for every candidate
+ * block on every resolution level, check whether it is present in the cache
+ * and whether it was already requested in this frame.
+ * <p>
+ * {@code boxedKeys} does this with a new {@link ImageBlockKey} per lookup in a
+ * {@code ConcurrentHashMap} and a {@code HashSet} (as before keys were packed),
+ * {@code packedKeys} with {@link TextureCache#packKey(int, int, int, int)
+ * packed} keys in {@link LongObjectMap}s that are cleared and reused every
+ * frame. Run with the GC profiler (see {@link #main}) and compare
+ * {@code gc.alloc.rate.norm}.
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class TileLookupBenchmark
+{
+	private static final int NUM_LEVELS = 6;
+
+	/**
+	 * Number of candidate blocks per level.
+	 */
+	@Param( { "10000", "50000" } )
+	public int numBlocks;
+
+	private Object[] levels;
+
+	private int[][] blockPositions;
+
+	private ConcurrentHashMap< ImageBlockKey< ? >, Object > boxedTiles;
+
+	private LongObjectMap< Object > packedTiles;
+
+	@Setup
+	public void setup()
+	{
+		levels = new Object[ NUM_LEVELS ];
+		for ( int level = 0; level < NUM_LEVELS; ++level )
+			levels[ level ] = new Object();
+
+		final Random random = new Random( 1 );
+		blockPositions = new int[ numBlocks ][];
+		for ( int i = 0; i < numBlocks; ++i )
+			blockPositions[ i ] = new int[] { random.nextInt( 256 ), random.nextInt( 256 ), random.nextInt( 256 ) };
+
+		// about half of the candidate blocks are present
+		boxedTiles = new ConcurrentHashMap<>();
+		packedTiles = new LongObjectMap<>();
+		final Object tile = new Object();
+		for ( int level = 0; level < NUM_LEVELS; ++level )
+		{
+			for ( int i = 0; i < numBlocks; i += 2 )
+			{
+				final int[] pos = blockPositions[ i ];
+				boxedTiles.put( new ImageBlockKey<>( levels[ level ], pos ), tile );
+				packedTiles.put( TextureCache.packKey( level, pos[ 0 ], pos[ 1 ], pos[ 2 ] ), tile );
+			}
+		}
+	}
+
+	@Benchmark
+	public void boxedKeys( final Blackhole blackhole )
+	{
+		final Set< ImageBlockKey< ? > > requested = new HashSet<>();
+		int numPresent = 0;
+		for ( int level = 0; level < NUM_LEVELS; ++level )
+		{
+			for ( final int[] pos : blockPositions )
+			{
+				final ImageBlockKey< ? > key = new ImageBlockKey<>( levels[ level ], pos );
+				if ( boxedTiles.get( key ) != null )
+					++numPresent;
+				else
+					requested.add( key );
+			}
+		}
+		blackhole.consume( numPresent );
+		blackhole.consume( requested );
+	}
+
+	private final LongObjectMap< Boolean > requestedKeys = new LongObjectMap<>();
+
+	@Benchmark
+	public void packedKeys( final Blackhole blackhole )
+	{
+		final LongObjectMap< Boolean > requested = requestedKeys;
+		requested.clear();
+		int numPresent = 0;
+		for ( int level = 0; level < NUM_LEVELS; ++level )
+		{
+			for ( final int[] pos : blockPositions )
+			{
+				final long key = TextureCache.packKey( level, pos[ 0 ], pos[ 1 ], pos[ 2 ] );
+				if ( packedTiles.get( key ) != null )
+					++numPresent;
+				else
+					requested.put( key, Boolean.TRUE );
+			}
+		}
+		blackhole.consume( numPresent );
+		blackhole.consume( requested );
+	}
+
+	public static void main( final String... args ) throws RunnerException
+	{
+		final Options options = new OptionsBuilder()
+				.include( TileLookupBenchmark.class.getSimpleName() )
+				.addProfiler( GCProfiler.class )
+				.build();
+		new Runner( options ).run();
+	}
+}
@@ -0,0 +1,205 @@
+package tpietzsch.cache;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+import tpietzsch.backend.HeadlessGpuContext;
+import tpietzsch.blocks.ByteUtils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static tpietzsch.backend.Texture.InternalFormat.R16;
+import static tpietzsch.cache.TextureCache.NO_CONTENT;
+
+/**
+ * Load uniform blocks into a {@link TextureCache} in a
+ * {@link HeadlessGpuContext}, and check how they are mapped to shared tiles
+ * (see {@link TextureCache#assignUniform}).
+ */
+public class UniformTilesTest
+{
+	private static final CacheSpec SPEC = new CacheSpec( R16, 2, 2, 2 );
+
+	private static final int NUM_ELEMENTS = 4 * 4 * 4;
+
+	private final Object image = new Object();
+
+	private final HeadlessGpuContext context = new HeadlessGpuContext();
+
+	private ImageBlockKey< ? > key( final int x )
+	{
+		return new ImageBlockKey<>( image, x, 0, 0 );
+	}
+
+	/**
+	 * Task for block {@code (x, 0, 0)}, filled with {@code value}.
+	 */
+	private FillTask uniform( final int x, final short value, final int version )
+	{
+		return new DefaultFillTask( key( x ), buf -> {
+			ByteUtils.setShorts( value, buf.getAddress(), NUM_ELEMENTS );
+			buf.setUniform( true );
+			buf.setVersion( version );
+			return true;
+		}, () -> true, 0, version );
+	}
+
+	/**
+	 * Task for block {@code (x, 0, 0)}, filled with {@code value}, except
+	 * for the first element.
+	 */
+	private FillTask nonUniform( final int x, final short value, final int version )
+	{
+		return new DefaultFillTask( key( x ), buf -> {
+			ByteUtils.setShorts( value, buf.getAddress(), NUM_ELEMENTS );
+			ByteUtils.setShorts( ( short ) 7, buf.getAddress(), 1 );
+			buf.setVersion( version );
+			return true;
+		}, () -> true, 0, version );
+	}
+
+	private void load( final TextureCache cache, final PboChain chain, final FillTask... tasks ) throws InterruptedException
+	{
+		final List< FillTask > list = new ArrayList<>( Arrays.asList( tasks ) );
+		ProcessFillTasks.sequential( cache, chain, context, list );
+		final int timestamp = cache.nextTimestamp();
+		for ( final FillTask task : list )
+		{
+			final TextureCache.Tile tile = cache.get( task.getKey() );
+			if ( tile != null )
+				tile.useAtTimestamp( timestamp );
+		}
+	}
+
+	@Test
+	public void testIdenticalValuesShareTile() throws InterruptedException
+	{
+		final TextureCache cache = new TextureCache( new int[] { 5, 5, 5 }, SPEC );
+		final PboChain chain = new PboChain( 3, 7, cache );
+		final int maxNumTiles = cache.getMaxNumTiles();
+
+		load( cache, chain, uniform( 0, ( short ) 5, 0 ), uniform( 1, ( short ) 5, 0 ) );
+		final TextureCache.Tile tile = cache.get( key( 0 ) );
+		assertNotNull( tile );
+		assertSame( tile, cache.get( key( 1 ) ) );
+		assertFalse( tile.evictable() );
+		assertEquals( 1, cache.getNumSkippedUploads() );
+		assertEquals( maxNumTiles - 1, cache.getMaxNumTiles() );
+	}
+
+	@Test
+	public void testValueZeroUsesOutOfBoundsTile() throws InterruptedException
+	{
+		final TextureCache cache = new TextureCache( new int[] { 5, 5, 5 }, SPEC );
+		final PboChain chain = new PboChain( 3, 7, cache );
+		final int maxNumTiles = cache.getMaxNumTiles();
+
+		load( cache, chain, uniform( 0, ( short ) 0, 0 ) );
+		final TextureCache.Tile tile = cache.get( key( 0 ) );
+		assertNotNull( tile );
+		assertEquals( 0, tile.page() );
+		assertEquals( 0, tile.x() );
+		assertEquals( 0, tile.y() );
+		assertEquals( 0, tile.z() );
+		assertEquals( 1, cache.getNumSkippedUploads() );
+		assertEquals( maxNumTiles, cache.getMaxNumTiles() );
+	}
+
+	@Test
+	public void testNewerVersionPromotesSharedTile() throws InterruptedException
+	{
+		final TextureCache cache = new TextureCache( new int[] { 5, 5, 5 }, SPEC );
+		final PboChain chain = new PboChain( 3, 7, cache );
+
+		load( cache, chain, uniform( 0, ( short ) 5, 1 ), uniform( 1, ( short ) 5, 1 ) );
+		final TextureCache.Tile shared = cache.get( key( 0 ) );
+		assertSame( shared, cache.get( key( 1 ) ) );
+		assertEquals( 1, shared.version() );
+
+		// block 2 with version 2 promotes the shared tile, and blocks mapped
+		// with version 1 must be reloaded
+		load( cache, chain, uniform( 2, ( short ) 5, 2 ) );
+		assertSame( shared, cache.get( key( 2 ) ) );
+		assertEquals( 2, shared.version() );
+		assertNull( cache.get( key( 1 ) ) );
+
+		// an outdated block is uploaded to its own tile
+		load( cache, chain, uniform( 3, ( short ) 5, 1 ) );
+		final TextureCache.Tile outdated = cache.get( key( 3 ) );
+		assertNotNull( outdated );
+		assertNotSame( shared, outdated );
+		assertEquals( 1, outdated.version() );
+		assertTrue( outdated.evictable() );
+	}
+
+	@Test
+	public void testReloadedContentBecomesEmpty() throws InterruptedException
+	{
+		final TextureCache cache = new TextureCache( new int[] { 5, 5, 5 }, SPEC );
+		final PboChain chain = new PboChain( 3, 7, cache );
+
+		load( cache, chain, uniform( 0, ( short ) 5, 1 ), nonUniform( 1, ( short ) 3, 1 ) );
+		final TextureCache.Tile shared = cache.get( key( 0 ) );
+		final TextureCache.Tile tile = cache.get( key( 1 ) );
+		assertNotSame( shared, tile );
+		assertEquals( cache.packKey( key( 1 ) ), tile.content );
+
+		// block 1 is reloaded into its tile, and turns out to be uniform
+		load( cache, chain, uniform( 1, ( short ) 5, 2 ) );
+		assertSame( shared, cache.get( key( 1 ) ) );
+		assertEquals( NO_CONTENT, tile.content );
+		assertTrue( tile.evictable() );
+	}
+
+	@Test
+	public void testMaxNumUniformTiles() throws InterruptedException
+	{
+		final TextureCache cache = new TextureCache( new int[] { 5, 5, 5 }, SPEC );
+		final PboChain chain = new PboChain( 3, 7, cache );
+		final int maxNumTiles = cache.getMaxNumTiles();
+
+		final int n = TextureCache.MAX_NUM_UNIFORM_TILES + 3;
+		for ( int i = 0; i < n; ++i )
+			load( cache, chain, uniform( i, ( short ) ( i + 1 ), 0 ) );
+		assertEquals( maxNumTiles - TextureCache.MAX_NUM_UNIFORM_TILES, cache.getMaxNumTiles() );
+		int numShared = 0;
+		for ( int i = 0; i < n; ++i )
+			if ( !cache.get( key( i ) ).evictable() )
+				++numShared;
+		assertEquals( TextureCache.MAX_NUM_UNIFORM_TILES, numShared );
+	}
+
+	@Test
+	public void testPinnedTilesLimitUniformTiles() throws InterruptedException
+	{
+		// 4 tiles: the out-of-bounds tile and 3 unblocked tiles
+		final TextureCache cache = new TextureCache( new int[] { 2, 2, 1 }, SPEC );
+		final PboChain chain = new PboChain( 3, 7, cache );
+		assertEquals( 3, cache.getMaxNumTiles() );
+		cache.setMaxPinnedFraction( 1 );
+		cache.pin( Arrays.asList( key( 0 ), key( 1 ) ) );
+
+		load( cache, chain, nonUniform( 0, ( short ) 3, 0 ), nonUniform( 1, ( short ) 4, 0 ) );
+		assertEquals( 2, cache.getNumPinnedTiles() );
+		assertEquals( 1, cache.getNumEvictableTiles() );
+
+		// the last evictable tile is not turned into a shared tile
+		load( cache, chain, uniform( 2, ( short ) 5, 0 ) );
+		assertTrue( cache.get( key( 2 ) ).evictable() );
+		assertEquals( 3, cache.getMaxNumTiles() );
+
+		// a pinned block that is reloaded as uniform block is unpinned, and
+		// its tile becomes the shared tile for the value
+		load( cache, chain, uniform( 1, ( short ) 6, 1 ) );
+		assertEquals( 1, cache.getNumPinnedTiles() );
+		assertEquals( 2, cache.getMaxNumTiles() );
+		assertEquals( 1, cache.getNumEvictableTiles() );
+		assertFalse( cache.get( key( 1 ) ).evictable() );
+	}
+}
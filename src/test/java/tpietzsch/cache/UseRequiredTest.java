@@ -0,0 +1,110 @@
+package tpietzsch.cache;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Test;
+import tpietzsch.backend.HeadlessGpuContext;
+import tpietzsch.blocks.ByteUtils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static tpietzsch.backend.Texture.InternalFormat.R16;
+
+/**
+ * Present tiles passed to {@link TextureCache#useRequired} (instead of as
+ * {@code FillTask}s) are protected from replacement in the next
+ * {@link TextureCache#stage}.
+ */
+public class UseRequiredTest
+{
+	private static final CacheSpec SPEC = new CacheSpec( R16, 2, 2, 2 );
+
+	private static final int NUM_ELEMENTS = 4 * 4 * 4;
+
+	private final Object image = new Object();
+
+	private FillTask task( final int x )
+	{
+		return new DefaultFillTask( new ImageBlockKey<>( image, x, 0, 0 ), buf -> {
+			ByteUtils.setShorts( ( short ) x, buf.getAddress(), NUM_ELEMENTS );
+			ByteUtils.setShorts( ( short ) 7, buf.getAddress(), 1 );
+			return true;
+		}, () -> true );
+	}
+
+	private long packedKey( final TextureCache cache, final int x )
+	{
+		return cache.packKey( new ImageBlockKey<>( image, x, 0, 0 ) );
+	}
+
+	/**
+	 * Fill the cache with blocks {@code 0, 1, ...} (block 0 is least
+	 * recently used) and return the number of blocks.
+	 */
+	private int fill( final TextureCache cache, final PboChain chain, final HeadlessGpuContext context ) throws InterruptedException
+	{
+		final int n = cache.getNumEvictableTiles();
+		for ( int x = 0; x < n; ++x )
+		{
+			ProcessFillTasks.sequential( cache, chain, context, Collections.singletonList( task( x ) ) );
+			cache.get( packedKey( cache, x ) ).useAtTimestamp( cache.nextTimestamp() );
+		}
+		return n;
+	}
+
+	@Test
+	public void testUsedTileIsNotReplaced() throws InterruptedException
+	{
+		final TextureCache cache = new TextureCache( new int[] { 9, 5, 5 }, SPEC );
+		final PboChain chain = new PboChain( 3, 7, cache );
+		final HeadlessGpuContext context = new HeadlessGpuContext();
+		final int n = fill( cache, chain, context );
+		assertTrue( n > 1 );
+
+		final long requested = cache.getNumRequestedBlocks();
+		assertTrue( cache.useRequired( packedKey( cache, 0 ), cache.get( packedKey( cache, 0 ) ) ) );
+		assertEquals( requested + 1, cache.getNumRequestedBlocks() );
+		ProcessFillTasks.sequential( cache, chain, context, Collections.singletonList( task( n ) ) );
+		assertNotNull( cache.get( packedKey( cache, 0 ) ) );
+		assertNull( cache.get( packedKey( cache, 1 ) ) );
+		assertNotNull( cache.get( packedKey( cache, n ) ) );
+	}
+
+	@Test
+	public void testNextTimestampDropsUsedTiles() throws InterruptedException
+	{
+		final TextureCache cache = new TextureCache( new int[] { 9, 5, 5 }, SPEC );
+		final PboChain chain = new PboChain( 3, 7, cache );
+		final HeadlessGpuContext context = new HeadlessGpuContext();
+		final int n = fill( cache, chain, context );
+
+		// not staged in this frame: the mark is dropped with the next frame
+		cache.useRequired( packedKey( cache, 0 ), cache.get( packedKey( cache, 0 ) ) );
+		cache.nextTimestamp();
+		ProcessFillTasks.sequential( cache, chain, context, Collections.singletonList( task( n ) ) );
+		assertNull( cache.get( packedKey( cache, 0 ) ) );
+	}
+
+	@Test
+	public void testAllTilesUsed() throws InterruptedException
+	{
+		final TextureCache cache = new TextureCache( new int[] { 9, 5, 5 }, SPEC );
+		final PboChain chain = new PboChain( 3, 7, cache );
+		final HeadlessGpuContext context = new HeadlessGpuContext();
+		final int n = fill( cache, chain, context );
+
+		// blocks 0..n-2 are present and used, so there is one tile left for new blocks
+		final List< FillTask > tasks = new ArrayList<>();
+		for ( int x = 0; x < n - 1; ++x )
+			cache.useRequired( packedKey( cache, x ), cache.get( packedKey( cache, x ) ) );
+		tasks.add( task( n ) );
+		ProcessFillTasks.sequential( cache, chain, context, tasks );
+		for ( int x = 0; x < n - 1; ++x )
+			assertNotNull( cache.get( packedKey( cache, x ) ) );
+		assertNull( cache.get( packedKey( cache, n - 1 ) ) );
+		assertNotNull( cache.get( packedKey( cache, n ) ) );
+	}
+}
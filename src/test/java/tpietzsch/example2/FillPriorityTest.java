@@ -0,0 +1,59 @@
+package tpietzsch.example2;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static tpietzsch.example2.VolumeBlocks.fillPriority;
+
+/**
+ * Tests {@link VolumeBlocks#fillPriority}.
+ */
+public class FillPriorityTest
+{
+	@Test
+	public void testRange()
+	{
+		for ( int maxLevel = 0; maxLevel < 8; ++maxLevel )
+		{
+			for ( int level = 0; level <= maxLevel; ++level )
+			{
+				for ( final float blockPriority : new float[] { 0, 0.5f, 1 } )
+				{
+					final double p = fillPriority( level, maxLevel, blockPriority );
+					assertTrue( p >= 0 && p <= 1 );
+				}
+			}
+		}
+		assertEquals( 0, fillPriority( 4, 4, 0 ), 0 );
+		assertEquals( 1, fillPriority( 0, 4, 1 ), 1e-9 );
+	}
+
+	@Test
+	public void testCoarseBeforeFine()
+	{
+		// the least urgent block on a coarse level goes before the most urgent one on the next finer level
+		for ( int level = 0; level < 4; ++level )
+			assertTrue( fillPriority( level + 1, 4, 1 ) <= fillPriority( level, 4, 0 ) );
+
+		// within a level, the block priority decides
+		assertTrue( fillPriority( 2, 4, 0.2f ) < fillPriority( 2, 4, 0.3f ) );
+	}
+
+	@Test
+	public void testComparableAcrossSources()
+	{
+		// source a has 6 levels, source b has 2 levels. The coarsest levels
+		// of both sources go before the full resolution of either.
+		final double aCoarsest = fillPriority( 5, 5, 0.5f );
+		final double bCoarsest = fillPriority( 1, 1, 0.5f );
+		final double aFinest = fillPriority( 0, 5, 0.5f );
+		final double bFinest = fillPriority( 0, 1, 0.5f );
+		assertTrue( aCoarsest < aFinest && aCoarsest < bFinest );
+		assertTrue( bCoarsest < aFinest && bCoarsest < bFinest );
+
+		// without normalization, b's full resolution (1 + blockPriority)
+		// would go before a's level 3 (2 + blockPriority)
+		assertTrue( fillPriority( 3, 5, 0.5f ) < fillPriority( 0, 1, 0.5f ) );
+	}
+}
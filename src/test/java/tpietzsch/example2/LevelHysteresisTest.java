@@ -0,0 +1,81 @@
+package tpietzsch.example2;
+
+import java.util.function.IntPredicate;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static tpietzsch.example2.VolumeBlocks.levelWithHysteresis;
+import static tpietzsch.example2.VolumeBlocks.nearestLevel;
+
+/**
+ * Tests the margin logic of {@link VolumeBlocks#levelWithHysteresis}.
+ */
+public class LevelHysteresisTest
+{
+	private static final int MAX_LEVEL = 3;
+
+	private static final IntPredicate NONE_PRESENT = level -> false;
+
+	private static IntPredicate present( final int presentLevel )
+	{
+		return level -> level == presentLevel;
+	}
+
+	@Test
+	public void testNearestLevel()
+	{
+		assertEquals( 1, nearestLevel( 1.3f, 0 ) );
+		assertEquals( 2, nearestLevel( 1.6f, 0 ) );
+		assertEquals( 0, nearestLevel( -0.8f, 0 ) );
+		assertEquals( 2, nearestLevel( 1.0f, 2 ) );
+	}
+
+	@Test
+	public void testWithoutPreviousLevel()
+	{
+		assertEquals( 1, levelWithHysteresis( 1.3f, -1, 0.2f, 0, MAX_LEVEL, NONE_PRESENT ) );
+		assertEquals( 2, levelWithHysteresis( 1.6f, -1, 0.2f, 0, MAX_LEVEL, NONE_PRESENT ) );
+		assertEquals( 2, levelWithHysteresis( 1.0f, -1, 0.2f, 2, MAX_LEVEL, NONE_PRESENT ) );
+	}
+
+	@Test
+	public void testKeepPreviousLevelWithinMargin()
+	{
+		// margin is 0.5 + 0.2
+		assertEquals( 1, levelWithHysteresis( 1.6f, 1, 0.2f, 0, MAX_LEVEL, NONE_PRESENT ) );
+		assertEquals( 1, levelWithHysteresis( 0.4f, 1, 0.2f, 0, MAX_LEVEL, NONE_PRESENT ) );
+		assertEquals( 2, levelWithHysteresis( 1.75f, 1, 0.2f, 0, MAX_LEVEL, NONE_PRESENT ) );
+		assertEquals( 0, levelWithHysteresis( 0.25f, 1, 0.2f, 0, MAX_LEVEL, NONE_PRESENT ) );
+	}
+
+	@Test
+	public void testNoHysteresis()
+	{
+		assertEquals( 2, levelWithHysteresis( 1.55f, 1, 0, 0, MAX_LEVEL, NONE_PRESENT ) );
+		assertEquals( 1, levelWithHysteresis( 1.45f, 1, 0, 0, MAX_LEVEL, NONE_PRESENT ) );
+
+		// without hysteresis, levels in the cache are not preferred
+		assertEquals( 1, levelWithHysteresis( 1.4f, -1, 0, 0, MAX_LEVEL, present( 2 ) ) );
+	}
+
+	@Test
+	public void testPreferLevelInCache()
+	{
+		// nearest level 1 is not present, level 2 is present and within margin
+		assertEquals( 2, levelWithHysteresis( 1.4f, -1, 0.2f, 0, MAX_LEVEL, present( 2 ) ) );
+		assertEquals( 0, levelWithHysteresis( 0.6f, -1, 0.2f, 0, MAX_LEVEL, present( 0 ) ) );
+
+		// the present level is outside the margin
+		assertEquals( 1, levelWithHysteresis( 1.2f, -1, 0.2f, 0, MAX_LEVEL, present( 2 ) ) );
+
+		// the nearest level is present
+		assertEquals( 1, levelWithHysteresis( 1.4f, -1, 0.2f, 0, MAX_LEVEL, level -> true ) );
+
+		// the other level is finer than baseLevel, or coarser than maxLevel
+		assertEquals( 1, levelWithHysteresis( 0.7f, -1, 0.2f, 1, MAX_LEVEL, present( 0 ) ) );
+		assertEquals( 3, levelWithHysteresis( 3.4f, -1, 0.2f, 0, MAX_LEVEL, present( 4 ) ) );
+
+		// when switching away from the previous level
+		assertEquals( 2, levelWithHysteresis( 1.4f, 0, 0.2f, 0, MAX_LEVEL, present( 2 ) ) );
+	}
+}
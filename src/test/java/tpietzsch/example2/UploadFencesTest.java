@@ -0,0 +1,137 @@
+package tpietzsch.example2;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import tpietzsch.backend.HeadlessGpuContext;
+import tpietzsch.cache.TileEvictionPolicy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests that {@link GpuCacheManager} deletes the upload fences of released
+ * contexts.
+ */
+public class UploadFencesTest
+{
+	/**
+	 * Contexts of one share group: fences created in one context can be
+	 * waited for and deleted in every other.
+	 */
+	private static class ShareGroup
+	{
+		final Set< Object > liveFences = new HashSet<>();
+
+		final List< Object > waitedFences = new ArrayList<>();
+
+		HeadlessGpuContext newContext()
+		{
+			return new HeadlessGpuContext()
+			{
+				@Override
+				public Object fenceSync()
+				{
+					final Object fence = super.fenceSync();
+					liveFences.add( fence );
+					return fence;
+				}
+
+				@Override
+				public void waitSync( final Object fence )
+				{
+					assertTrue( "wait for deleted fence", liveFences.contains( fence ) );
+					waitedFences.add( fence );
+				}
+
+				@Override
+				public void deleteSync( final Object fence )
+				{
+					assertTrue( "delete deleted fence", liveFences.remove( fence ) );
+				}
+			};
+		}
+	}
+
+	private final ShareGroup group = new ShareGroup();
+
+	private GpuCacheManager cacheManager;
+
+	@Before
+	public void setUp()
+	{
+		cacheManager = new GpuCacheManager( new int[] { 32, 32, 32 }, 16, 0, 0, null, 0, TileEvictionPolicy.Type.LRU, 0 );
+		// keep the manager alive while renderers come and go
+		cacheManager.acquire();
+	}
+
+	@After
+	public void tearDown()
+	{
+		cacheManager.release();
+	}
+
+	@Test
+	public void testReleasedFenceIsDeleted()
+	{
+		final HeadlessGpuContext a = group.newContext();
+		final HeadlessGpuContext b = group.newContext();
+		cacheManager.acquire();
+		cacheManager.acquire();
+		cacheManager.fenceUploads( a );
+		cacheManager.fenceUploads( b );
+		assertEquals( 2, group.liveFences.size() );
+
+		cacheManager.release( a );
+		cacheManager.awaitUploads( b );
+		// the fence of a is deleted, and b does not wait for it
+		assertEquals( 1, group.liveFences.size() );
+		assertTrue( group.waitedFences.isEmpty() );
+
+		cacheManager.release( b );
+		cacheManager.acquire();
+		final HeadlessGpuContext c = group.newContext();
+		cacheManager.fenceUploads( c );
+		assertEquals( 1, group.liveFences.size() );
+		cacheManager.release( c );
+	}
+
+	@Test
+	public void testRenderersComingAndGoing()
+	{
+		final HeadlessGpuContext viewer = group.newContext();
+		cacheManager.acquire();
+		for ( int i = 0; i < 100; ++i )
+		{
+			final HeadlessGpuContext context = group.newContext();
+			cacheManager.acquire();
+			cacheManager.awaitUploads( context );
+			cacheManager.fenceUploads( context );
+			cacheManager.release( context );
+
+			cacheManager.awaitUploads( viewer );
+			cacheManager.fenceUploads( viewer );
+			assertEquals( 1, group.liveFences.size() );
+		}
+		cacheManager.release( viewer );
+	}
+
+	@Test
+	public void testReleaseWithoutUploads()
+	{
+		final HeadlessGpuContext a = group.newContext();
+		cacheManager.acquire();
+		cacheManager.acquire();
+		cacheManager.fenceUploads( a );
+		// a renderer that never uploaded
+		cacheManager.release( null );
+		cacheManager.awaitUploads( group.newContext() );
+		assertEquals( 1, group.liveFences.size() );
+		assertEquals( 1, group.waitedFences.size() );
+		cacheManager.release( a );
+	}
+}
@@ -0,0 +1,87 @@
+package tpietzsch.util;
+
+import java.util.HashMap;
+import java.util.Random;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class LongIntMapTest
+{
+	private static final int NUM_OPERATIONS = 200_000;
+
+	private static final int MISSING = -1;
+
+	/**
+	 * Random put/remove/get on a small key range, such that the map grows
+	 * and shrinks, and clusters of colliding keys form.
+	 */
+	@Test
+	public void testRandomOperations()
+	{
+		final Random random = new Random( 1 );
+		final LongIntMap map = new LongIntMap();
+		final HashMap< Long, Integer > expected = new HashMap<>();
+		for ( int i = 0; i < NUM_OPERATIONS; ++i )
+		{
+			// vary the key range, to let the map fill up and drain again
+			final int range = ( i / 10_000 ) % 2 == 0 ? 1000 : 50;
+			final long key = random.nextInt( range ) * 0x10001L;
+			apply( random, map, expected, key, i );
+		}
+		for ( long key = 0; key < 1000 * 0x10001L; key += 97 )
+			assertEquals( expected.getOrDefault( key, MISSING ).intValue(), map.get( key, MISSING ) );
+		map.clear();
+		assertEquals( 0, map.size() );
+		for ( final long key : expected.keySet() )
+			assertEquals( MISSING, map.get( key, MISSING ) );
+	}
+
+	/**
+	 * Keys that hash into the last slots of a 16-slot table, such that their
+	 * probe sequences wrap around the end of the table. The number of
+	 * entries is kept below the grow threshold.
+	 */
+	@Test
+	public void testWrapAroundClusters()
+	{
+		final long[] candidates = LongObjectMapTest.wrappingKeys( 16, 24 );
+		final Random random = new Random( 2 );
+		final LongIntMap map = new LongIntMap();
+		final HashMap< Long, Integer > expected = new HashMap<>();
+		for ( int i = 0; i < NUM_OPERATIONS; ++i )
+		{
+			long key = candidates[ random.nextInt( candidates.length ) ];
+			if ( expected.size() >= 8 && !expected.containsKey( key ) )
+				key = expected.keySet().iterator().next(); // stay below the grow threshold
+			apply( random, map, expected, key, i );
+			for ( final long k : candidates )
+				assertEquals( expected.getOrDefault( k, MISSING ).intValue(), map.get( k, MISSING ) );
+		}
+	}
+
+	@Test( expected = IllegalArgumentException.class )
+	public void testNegativeKey()
+	{
+		new LongIntMap().put( -1, 0 );
+	}
+
+	private static void apply( final Random random, final LongIntMap map, final HashMap< Long, Integer > expected, final long key, final int value )
+	{
+		switch ( random.nextInt( 3 ) )
+		{
+		case 0:
+			expected.put( key, value );
+			map.put( key, value );
+			break;
+		case 1:
+			assertEquals( expected.remove( key ) != null, map.remove( key ) );
+			break;
+		default:
+			assertEquals( expected.getOrDefault( key, MISSING ).intValue(), map.get( key, MISSING ) );
+			assertEquals( expected.containsKey( key ), map.containsKey( key ) );
+		}
+		assertEquals( expected.size(), map.size() );
+		assertEquals( expected.isEmpty(), map.isEmpty() );
+	}
+}
@@ -0,0 +1,146 @@
+package tpietzsch.util;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class LongObjectMapTest
+{
+	private static final int NUM_OPERATIONS = 200_000;
+
+	/**
+	 * Random put/remove/get on a small key range, such that the map grows
+	 * and shrinks, and clusters of colliding keys form.
+	 */
+	@Test
+	public void testRandomOperations()
+	{
+		final Random random = new Random( 1 );
+		final LongObjectMap< Integer > map = new LongObjectMap<>();
+		final HashMap< Long, Integer > expected = new HashMap<>();
+		for ( int i = 0; i < NUM_OPERATIONS; ++i )
+		{
+			// vary the key range, to let the map fill up and drain again
+			final int range = ( i / 10_000 ) % 2 == 0 ? 1000 : 50;
+			final long key = random.nextInt( range ) * 0x10001L;
+			apply( random, map, expected, key, i );
+		}
+		check( map, expected, 1000 * 0x10001L );
+	}
+
+	/**
+	 * Keys that hash into the last slots of a 16-slot table, such that their
+	 * probe sequences wrap around the end of the table. The number of
+	 * entries is kept below the grow threshold.
+	 */
+	@Test
+	public void testWrapAroundClusters()
+	{
+		final long[] candidates = wrappingKeys( 16, 24 );
+		final Random random = new Random( 2 );
+		final LongObjectMap< Integer > map = new LongObjectMap<>();
+		final HashMap< Long, Integer > expected = new HashMap<>();
+		for ( int i = 0; i < NUM_OPERATIONS; ++i )
+		{
+			long key = candidates[ random.nextInt( candidates.length ) ];
+			if ( expected.size() >= 8 && !expected.containsKey( key ) )
+				key = expected.keySet().iterator().next(); // stay below the grow threshold
+			apply( random, map, expected, key, i );
+			for ( final long k : candidates )
+				assertEquals( expected.get( k ), map.get( k ) );
+		}
+	}
+
+	@Test
+	public void testRemoveIf()
+	{
+		final Random random = new Random( 3 );
+		final LongObjectMap< Integer > map = new LongObjectMap<>();
+		final HashMap< Long, Integer > expected = new HashMap<>();
+		final long[] candidates = wrappingKeys( 16, 8 );
+		for ( int round = 0; round < 1000; ++round )
+		{
+			map.clear();
+			expected.clear();
+			final boolean wrap = round % 2 == 0;
+			final int n = wrap ? 1 + random.nextInt( 8 ) : random.nextInt( 200 );
+			for ( int i = 0; i < n; ++i )
+			{
+				final long key = wrap ? candidates[ i ] : random.nextInt( 500 );
+				final int value = random.nextInt( 4 );
+				map.put( key, value );
+				expected.put( key, value );
+			}
+			final int removed = random.nextInt( 4 );
+			map.removeIf( ( key, value ) -> value == removed );
+			expected.values().removeIf( value -> value == removed );
+			check( map, expected, 500 );
+			for ( final long key : candidates )
+				assertEquals( expected.get( key ), map.get( key ) );
+		}
+	}
+
+	@Test( expected = IllegalArgumentException.class )
+	public void testNegativeKey()
+	{
+		new LongObjectMap< Integer >().put( -1, 0 );
+	}
+
+	private static void apply( final Random random, final LongObjectMap< Integer > map, final HashMap< Long, Integer > expected, final long key, final int value )
+	{
+		switch ( random.nextInt( 3 ) )
+		{
+		case 0:
+			assertEquals( expected.put( key, value ), map.put( key, value ) );
+			break;
+		case 1:
+			assertEquals( expected.remove( key ), map.remove( key ) );
+			break;
+		default:
+			assertEquals( expected.get( key ), map.get( key ) );
+			assertEquals( expected.containsKey( key ), map.containsKey( key ) );
+		}
+		assertEquals( expected.size(), map.size() );
+	}
+
+	private static void check( final LongObjectMap< Integer > map, final Map< Long, Integer > expected, final long maxKey )
+	{
+		assertEquals( expected.size(), map.size() );
+		assertEquals( expected.isEmpty(), map.isEmpty() );
+		for ( final Map.Entry< Long, Integer > entry : expected.entrySet() )
+			assertEquals( entry.getValue(), map.get( entry.getKey() ) );
+		final Set< Long > keys = new HashSet<>();
+		map.forEachKey( keys::add );
+		assertEquals( expected.keySet(), keys );
+		for ( long key = 0; key < maxKey; key += 97 )
+			assertEquals( expected.get( key ), map.get( key ) );
+	}
+
+	/**
+	 * @return the first {@code n} keys whose home slot in a table of
+	 *         {@code capacity} slots is one of the last three.
+	 */
+	static long[] wrappingKeys( final int capacity, final int n )
+	{
+		final long[] keys = new long[ n ];
+		for ( long key = 0, i = 0; i < n; ++key )
+			if ( slot( key, capacity - 1 ) >= capacity - 3 )
+				keys[ ( int ) i++ ] = key;
+		return keys;
+	}
+
+	// same hash as LongObjectMap.slot()
+	private static int slot( final long key, final int mask )
+	{
+		long h = key;
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		return ( int ) h & mask;
+	}
+}